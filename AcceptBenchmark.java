@@ -0,0 +1,186 @@
+package pb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import pb.managers.IOThread;
+import pb.managers.ServerManager;
+import pb.utils.Utils;
+
+/**
+ * Connection storm benchmark of the {@link pb.managers.IOThread}'s acceptors.
+ * For each number of acceptors it starts a {@link pb.managers.ServerManager}
+ * that counts and closes each connection it is handed rather than starting
+ * a session on it, so that only accepting and the hand off are measured.
+ * Several client threads then connect as fast as they can, and close each
+ * connection straight away, until the given number have been made. It
+ * reports the accept rate and the percentiles of the time to connect, which
+ * grows as the listen backlog fills, for each number of acceptors.
+ *
+ * @see {@link pb.managers.IOThread}
+ * @author aaron
+ *
+ */
+public class AcceptBenchmark {
+
+	private static void help(Options options){
+		String header = "PB connection storm benchmark for Unimelb COMP90015\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.AcceptBenchmark", header, options, footer, true);
+		System.exit(-1);
+	}
+
+	/**
+	 * A server manager that only counts the connections it is handed.
+	 */
+	private static class CountingServerManager extends ServerManager {
+		final AtomicLong accepted=new AtomicLong();
+		volatile CountDownLatch done;
+
+		CountingServerManager(int port,int acceptors,CountDownLatch done) {
+			super(port);
+			this.done=done;
+			setNumAcceptors(acceptors);
+		}
+
+		@Override
+		public void acceptClient(Socket clientSocket) {
+			try {
+				clientSocket.close();
+			} catch (IOException e) {
+				// the client closed it first
+			}
+			accepted.incrementAndGet();
+			done.countDown();
+		}
+	}
+
+	/**
+	 * One storm of connections against a server with the given acceptors.
+	 * @return false if not all of the connections were accepted in time
+	 */
+	private static boolean storm(int port,int acceptors,int clients,int connections,long timeout)
+			throws InterruptedException {
+		CountDownLatch done=new CountDownLatch(connections);
+		CountingServerManager serverManager=new CountingServerManager(port,acceptors,done);
+		CountDownLatch listening=new CountDownLatch(1);
+		serverManager.on(IOThread.ioThread, (args)->{
+			listening.countDown();
+		});
+		serverManager.start();
+		if(!listening.await(10,TimeUnit.SECONDS)) {
+			System.out.println("the server did not start listening on port "+port);
+			System.exit(-1);
+		}
+
+		AtomicInteger next=new AtomicInteger();
+		AtomicLong failed=new AtomicLong();
+		long[] connectTimes=new long[connections];
+		Thread[] threads=new Thread[clients];
+		long start=System.nanoTime();
+		for(int c=0;c<clients;c++) {
+			threads[c]=new Thread(()->{
+				int i;
+				while((i=next.getAndIncrement())<connections) {
+					long before=System.nanoTime();
+					try(Socket socket=new Socket()) {
+						// reset rather than leave the client port in TIME_WAIT
+						socket.setSoLinger(true,0);
+						socket.connect(new InetSocketAddress(Utils.serverHost,port));
+						connectTimes[i]=System.nanoTime()-before;
+					} catch (IOException e) {
+						connectTimes[i]=-1;
+						failed.incrementAndGet();
+						done.countDown();
+					}
+				}
+			},"AcceptBenchmark-client-"+c);
+			threads[c].start();
+		}
+		boolean finished=done.await(timeout,TimeUnit.MILLISECONDS);
+		long elapsed=System.nanoTime()-start;
+		for(Thread thread : threads) thread.join();
+		serverManager.shutdown();
+		serverManager.join(10000);
+
+		long[] times=Arrays.stream(connectTimes).filter((t)->t>=0).sorted().toArray();
+		double seconds=elapsed/1e9;
+		System.out.print(String.format("%2d acceptors  accepted %d  failed %d  %.2f s  %.0f accepts/s",
+				acceptors,serverManager.accepted.get(),failed.get(),seconds,
+				serverManager.accepted.get()/seconds));
+		if(times.length>0) {
+			System.out.print(String.format("  connect ms p50 %.2f  p99 %.2f  max %.2f",
+					times[times.length/2]/1e6,times[Math.min(times.length-1,times.length*99/100)]/1e6,
+					times[times.length-1]/1e6));
+		}
+		System.out.println();
+		return finished && failed.get()==0;
+	}
+
+	public static void main( String[] args ) throws InterruptedException
+	{
+		Options options = new Options();
+		options.addOption("port",true,"port to listen on, an integer");
+		options.addOption("acceptors",true,"comma separated numbers of acceptor threads to compare, e.g. 1,2,4");
+		options.addOption("clients",true,"number of client threads connecting at once, an integer");
+		options.addOption("connections",true,"number of connections for each number of acceptors, an integer");
+		options.addOption("timeout",true,"ms to wait for each storm to be accepted, an integer");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+
+		int port = Utils.serverPort;
+		int[] acceptors = null;
+		int clients = 0;
+		int connections = 0;
+		long timeout = 0;
+		try{
+			port = Integer.parseInt(cmd.getOptionValue("port",""+Utils.serverPort));
+			acceptors = Arrays.stream(cmd.getOptionValue("acceptors","1,2,4,8").split(","))
+					.mapToInt((a)->Integer.parseInt(a.trim())).toArray();
+			clients = Integer.parseInt(cmd.getOptionValue("clients","16"));
+			connections = Integer.parseInt(cmd.getOptionValue("connections","10000"));
+			timeout = Long.parseLong(cmd.getOptionValue("timeout","60000"));
+		} catch (NumberFormatException e){
+			System.out.println("options require numbers: "+e.getMessage());
+			help(options);
+		}
+		if(clients<1 || connections<1 || Arrays.stream(acceptors).anyMatch((a)->a<1)) {
+			System.out.println("-acceptors, -clients and -connections must be at least 1");
+			help(options);
+		}
+
+		System.out.println(String.format("%d connections from %d client threads, %d processors",
+				connections,clients,Runtime.getRuntime().availableProcessors()));
+		boolean ok=true;
+		for(int a : acceptors) {
+			ok&=storm(port,a,clients,connections,timeout);
+		}
+		Utils.getInstance().cleanUp();
+		if(!ok) {
+			System.out.println("FAILED");
+			System.exit(-1);
+		}
+		System.out.println("OK");
+		System.exit(0);
+	}
+}
@@ -1,6 +1,8 @@
 package pb;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -13,6 +15,7 @@ import org.apache.commons.cli.ParseException;
 import pb.managers.ClientManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
 import pb.utils.Utils;
 
 /**
@@ -23,6 +26,10 @@ import pb.utils.Utils;
  * and terminate. Make sure the client does not send the event until the
  * SESSION_STARTED event has been emitted, etc. And the client should attempt to
  * cleanly terminate, not just system exit.
+ * <br/>
+ * The -stats option asks the server for a snapshot of its live endpoints and
+ * prints it, and with -refresh it keeps asking every so many ms until the
+ * client is killed.
  * 
  * @see {@link pb.managers.ClientManager}
  * @see {@link pb.utils.Utils}
@@ -42,6 +49,51 @@ public class AdminClient  {
 		System.exit(-1);
 	}
 	
+	private static String getPassword(CommandLine cmd) {
+		if(cmd.hasOption("password")) {
+			return cmd.getOptionValue("password");
+		}
+		System.out.println("using a blank password");
+		return "";
+	}
+	
+	/**
+	 * Print a table of endpoint statistics, one line per endpoint followed
+	 * by one line per protocol.
+	 * @param summary the last page of the stats reply
+	 * @param endpoints the endpoints from all pages
+	 */
+	private static void printStats(Document summary,List<Document> endpoints) {
+		System.out.println(String.format("%tT live endpoints: %d, accepted: %d, rejected: %d, threads: %d, heap: %dMB",
+				summary.getLong("time"),summary.getLong("liveEndpoints"),
+				summary.getLong("accepted"),summary.getLong("rejected"),
+				summary.getLong("threads"),summary.getLong("heapUsed")/(1024*1024)));
+		if(summary.get("application") instanceof Document) {
+			System.out.println("application: "+((Document) summary.get("application")).toJson());
+		}
+		System.out.println(String.format("%-28s %10s %8s %8s %8s %7s %6s  %s",
+				"endpoint","session(s)","rtt(ms)","srtt(ms)","rto(ms)","waiting","queue","events"));
+		for(Document endpoint : endpoints) {
+			long sessionAge=endpoint.getLong("sessionAge");
+			List<String> events=new ArrayList<>();
+			for(Object o : (List<?>) endpoint.get("events")) events.add((String) o);
+			System.out.println(String.format("%-28s %10s %8d %8d %8d %7d %6d  %s",
+					endpoint.getString("id"),
+					sessionAge<0 ? "-" : String.valueOf(sessionAge/1000),
+					endpoint.getLong("lastRtt"),endpoint.getLong("srtt"),
+					endpoint.getLong("timeout"),endpoint.getLong("outstanding"),
+					endpoint.getLong("queue"),
+					String.join(",",events)));
+			for(Object o : (List<?>) endpoint.get("protocols")) {
+				Document protocol=(Document) o;
+				System.out.println(String.format("    %-24s msgs in/out %8d/%-8d bytes in/out %10d/%d",
+						protocol.getString("protocol"),
+						protocol.getLong("messagesIn"),protocol.getLong("messagesOut"),
+						protocol.getLong("bytesIn"),protocol.getLong("bytesOut")));
+			}
+		}
+	}
+	
 	public static void main( String[] args ) throws IOException, InterruptedException
     {
     	// set a nice log format
@@ -56,6 +108,8 @@ public class AdminClient  {
         options.addOption("force",false,"in conjuction with shutdown, asking sessions to stop");
         options.addOption("vader",false,"in conjuction with shutdown, closing endpoints immediately");
         options.addOption("password",true,"password for server");
+        options.addOption("stats",false,"print statistics of the server's live endpoints");
+        options.addOption("refresh",true,"in conjunction with stats, ms between refreshing the statistics");
         
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -78,6 +132,17 @@ public class AdminClient  {
         	host = cmd.getOptionValue("host");
         }
         
+        long refresh=0;
+        if(cmd.hasOption("refresh")){
+        	try{
+        		refresh = Long.parseLong(cmd.getOptionValue("refresh"));
+			} catch (NumberFormatException e){
+				System.out.println("-refresh requires a number of ms, parsed: "+cmd.getOptionValue("refresh"));
+				help(options);
+			}
+        }
+        final long refreshInterval=refresh;
+        
         // start up the client
         log.info("PB Client starting up");
         final CommandLine cmd2 = cmd;
@@ -88,12 +153,7 @@ public class AdminClient  {
         clientManager.on(ClientManager.sessionStarted, (eventArgs)->{
         	Endpoint endpoint = (Endpoint) eventArgs[0];
         	if(cmd2.hasOption("shutdown")) {
-        		String password="";
-        		if(cmd2.hasOption("password")) {
-        			password=cmd2.getOptionValue("password");
-        		} else {
-        			System.out.println("using a blank password");
-        		}
+        		String password=getPassword(cmd2);
 	        	if(cmd2.hasOption("force")) {
 	        		endpoint.emit(ServerManager.forceShutdownServer, password);
 	        	} else if(cmd2.hasOption("vader")) {
@@ -101,6 +161,27 @@ public class AdminClient  {
 	        	} else {
 	        		endpoint.emit(ServerManager.shutdownServer, password);
 	        	}
+        	} else if(cmd2.hasOption("stats")) {
+        		String password=getPassword(cmd2);
+        		List<Document> endpoints=new ArrayList<>();
+        		endpoint.on(ServerManager.serverStatsReply, (eventArgs2)->{
+        			Document page = Document.parse((String) eventArgs2[0]);
+        			for(Object o : (List<?>) page.get("endpoints")) {
+        				endpoints.add((Document) o);
+        			}
+        			if(page.getLong("page")<page.getLong("pages")-1) return;
+        			printStats(page,endpoints);
+        			endpoints.clear();
+        			if(refreshInterval>0) {
+        				Utils.getInstance().setTimeout(()->{
+        					endpoint.emit(ServerManager.serverStats, password);
+        				}, refreshInterval);
+        			} else {
+        				clientManager.shutdown();
+        			}
+        		});
+        		endpoint.emit(ServerManager.serverStats, password);
+        		return; // shutdown when the stats arrive
         	} else {
         		System.out.println("not shutting down server");
         	}
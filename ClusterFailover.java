@@ -0,0 +1,214 @@
+package pb;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import pb.managers.ClientManager;
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
+import pb.utils.Utils;
+
+/**
+ * Failover check of a two node cluster of {@link pb.WhiteboardServer}s, run
+ * as separate processes. One peer shares boards through the node that is to
+ * be killed and another through the node that survives, and a watcher on the
+ * survivor waits until it sees all of them. The first peer then ends its
+ * session, so that only the doomed node holds its lease, and that node is
+ * killed. The survivor must unshare the first peer's boards within about a
+ * lease time, and keep the second peer's boards.
+ *
+ * @see {@link pb.ClusterNode}
+ * @author aaron
+ *
+ */
+public class ClusterFailover {
+
+	private static void help(Options options){
+		String header = "PB whiteboard cluster failover check for Unimelb COMP90015\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.ClusterFailover", header, options, footer, true);
+		System.exit(-1);
+	}
+
+	/**
+	 * Start a node of the cluster in its own process.
+	 */
+	private static Process startNode(int port,String cluster,long leaseTime) throws IOException {
+		ProcessBuilder builder = new ProcessBuilder(
+				System.getProperty("java.home")+File.separator+"bin"+File.separator+"java",
+				"-cp",System.getProperty("java.class.path"),"pb.WhiteboardServer",
+				"-port",""+port,"-cluster",cluster,"-leaseTime",""+leaseTime);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+		return builder.start();
+	}
+
+	/**
+	 * A peer that shares some boards once its session has started.
+	 */
+	private static ClientManager sharer(int port,String peer,int boards) throws UnknownHostException, InterruptedException {
+		ClientManager clientManager = new ClientManager(Utils.serverHost,port);
+		clientManager.on(ClientManager.sessionStarted, (eventArgs)->{
+			Endpoint endpoint = (Endpoint) eventArgs[0];
+			for(int b=0;b<boards;b++) endpoint.emit(WhiteboardServer.shareBoard,peer+":board"+b);
+		});
+		clientManager.start();
+		return clientManager;
+	}
+
+	/**
+	 * @return true if the boards seen are those of the given peers
+	 */
+	private static boolean sees(Set<String> seen,int boards,String... peers) {
+		if(seen.size()!=boards*peers.length) return false;
+		for(String peer : peers) {
+			for(int b=0;b<boards;b++) {
+				if(!seen.contains(peer+":board"+b)) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until the watcher sees the boards of the given peers.
+	 * @return false if it did not in time
+	 */
+	private static boolean await(Set<String> seen,int boards,long timeout,String... peers) throws InterruptedException {
+		long deadline = System.currentTimeMillis()+timeout;
+		while(!sees(seen,boards,peers)) {
+			if(System.currentTimeMillis()>deadline) return false;
+			Thread.sleep(100);
+		}
+		return true;
+	}
+
+	public static void main( String[] args ) throws IOException, InterruptedException
+	{
+		Options options = new Options();
+		options.addOption("ports",true,"ports of the surviving and the killed node, e.g. 4811,4812");
+		options.addOption("boards",true,"number of boards each peer shares, an integer");
+		options.addOption("leaseTime",true,"ms that the nodes lease the boards of a peer that has gone, an integer");
+		options.addOption("timeout",true,"ms to wait for each step beyond the lease time, an integer");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+
+		int survivorPort = 0;
+		int killedPort = 0;
+		int boards = 0;
+		long leaseTime = 0;
+		long timeout = 0;
+		try{
+			String[] ports = cmd.getOptionValue("ports","4811,4812").split(",");
+			if(ports.length!=2) {
+				System.out.println("-ports requires two ports");
+				help(options);
+			}
+			survivorPort = Integer.parseInt(ports[0].trim());
+			killedPort = Integer.parseInt(ports[1].trim());
+			boards = Integer.parseInt(cmd.getOptionValue("boards","20"));
+			leaseTime = Long.parseLong(cmd.getOptionValue("leaseTime","3000"));
+			timeout = Long.parseLong(cmd.getOptionValue("timeout","15000"));
+		} catch (NumberFormatException e){
+			System.out.println("options require numbers: "+e.getMessage());
+			help(options);
+		}
+		if(boards<1 || leaseTime<1 || timeout<1) {
+			System.out.println("-boards, -leaseTime and -timeout must be at least 1");
+			help(options);
+		}
+
+		String cluster = Utils.serverHost+":"+survivorPort+","+Utils.serverHost+":"+killedPort;
+		Process killed = startNode(killedPort,cluster,leaseTime);
+		Process survivor = startNode(survivorPort,cluster,leaseTime);
+		// the peers' own ports, which are only names here
+		String gonePeer = "127.0.0.1:6001";
+		String stayingPeer = "127.0.0.1:6002";
+		boolean ok = false;
+		ClientManager watcher = null;
+		ClientManager staying = null;
+		try {
+			// give the nodes time to listen
+			Thread.sleep(2000);
+			Set<String> seen = ConcurrentHashMap.newKeySet();
+			ArrayList<String> pages = new ArrayList<>();
+			watcher = new ClientManager(Utils.serverHost,survivorPort);
+			watcher.on(ClientManager.sessionStarted, (eventArgs)->{
+				Endpoint endpoint = (Endpoint) eventArgs[0];
+				endpoint.on(WhiteboardServer.sharingBoard, (eventArgs2)->{
+					seen.add((String) eventArgs2[0]);
+				}).on(WhiteboardServer.sharingBoards, (eventArgs2)->{
+					Document page = Document.parse((String) eventArgs2[0]);
+					pages.addAll(WhiteboardServer.boardsOfPage(page));
+					if(page.getLong("page")<page.getLong("pages")-1) return;
+					seen.addAll(pages);
+					pages.clear();
+				}).on(WhiteboardServer.unsharingBoard, (eventArgs2)->{
+					seen.remove((String) eventArgs2[0]);
+				}).on(WhiteboardServer.unsharingBoards, (eventArgs2)->{
+					seen.removeAll(WhiteboardServer.boardsOfPage((String) eventArgs2[0]));
+				});
+			});
+			watcher.start();
+
+			ClientManager gone = sharer(killedPort,gonePeer,boards);
+			staying = sharer(survivorPort,stayingPeer,boards);
+			// the nodes link up within a link check of starting
+			if(!await(seen,boards,timeout,gonePeer,stayingPeer)) {
+				System.out.println("the survivor did not see the boards of both peers, it sees "+seen.size());
+				return;
+			}
+			System.out.println("the survivor sees "+seen.size()+" boards");
+
+			// only the node to be killed now holds the gone peer's lease
+			gone.shutdown();
+			gone.join();
+			Thread.sleep(500);
+			killed.destroyForcibly().waitFor();
+			long killedAt = System.currentTimeMillis();
+			System.out.println("killed the node on port "+killedPort);
+
+			if(!await(seen,boards,leaseTime+timeout,stayingPeer)) {
+				System.out.println("the survivor still sees "+seen.size()+" boards after "
+						+(System.currentTimeMillis()-killedAt)+" ms");
+				return;
+			}
+			System.out.println(String.format("the survivor unshared the gone peer's boards %d ms after the kill, "
+					+"with a lease time of %d ms",System.currentTimeMillis()-killedAt,leaseTime));
+			// and keeps the boards of the peer that is still there
+			Thread.sleep(leaseTime+2000);
+			if(!sees(seen,boards,stayingPeer)) {
+				System.out.println("the survivor then sees "+seen.size()+" boards rather than "+boards);
+				return;
+			}
+			ok = true;
+		} finally {
+			if(watcher!=null) watcher.shutdown();
+			if(staying!=null) staying.shutdown();
+			killed.destroyForcibly();
+			survivor.destroyForcibly();
+			survivor.waitFor(10,TimeUnit.SECONDS);
+			Utils.getInstance().cleanUp();
+			System.out.println(ok ? "OK" : "FAILED");
+			System.exit(ok ? 0 : -1);
+		}
+	}
+}
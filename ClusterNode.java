@@ -0,0 +1,771 @@
+package pb;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import pb.managers.ClientManager;
+import pb.managers.ServerManager;
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
+import pb.utils.Utils;
+
+/**
+ * One node of a cluster of {@link pb.WhiteboardServer}s. The board namespace is
+ * split over the nodes with a {@link pb.HashRing}: the node that a board hashes
+ * to owns it, and every share or unshare of the board is decided by that node,
+ * which then tells every other node. So each node holds the global board list,
+ * and a peer connected to any node sees every shared board.
+ * <br/>
+ * Nodes are linked in a full mesh using the usual session machinery: each node
+ * connects with a {@link pb.managers.ClientManager} to every node whose name sorts
+ * after its own and introduces itself with {@link #clusterJoin}. Events flow both
+ * ways over a link. When a link comes up each side sends the boards it has
+ * announced, which replaces whatever the other side knew of them, so nodes
+ * catch up after a restart or a lost link. Boards that a restarted node has
+ * forgotten are announced again by the node their peer is connected to. While a node is unreachable its
+ * boards fall to the next node around the ring.
+ * <br/>
+ * Each node tells the others which peers have sessions with it. When a node
+ * goes down, the peers last heard of there, and the peers of the boards it
+ * announced that are not known to be anywhere else, are granted leases, so
+ * their boards are unshared unless they turn up on a live node.
+ * <br/>
+ * Without any other nodes the cluster is just this node, which owns every board.
+ *
+ * @see {@link pb.HashRing}
+ * @author aaron
+ *
+ */
+public class ClusterNode {
+	private static Logger log = Logger.getLogger(ClusterNode.class.getName());
+
+	/**
+	 * Emitted by a node to the node it has connected to, to identify the link
+	 * as a cluster link. Argument is the node's name "host:port".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String clusterJoin = "CLUSTER_JOIN";
+
+	/**
+	 * Emitted by a node to the owner of a board, asking it to share the board.
+	 * Argument has format "host:port:boardid"
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String clusterShare = "CLUSTER_SHARE";
+
+	/**
+	 * Emitted by a node to the owner of a board, asking it to unshare the board.
+	 * Argument has format "host:port:boardid"
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String clusterUnshare = "CLUSTER_UNSHARE";
+
+	/**
+	 * Emitted by the owner of a board to all other nodes when the board is shared.
+	 * Argument has format "host:port:boardid"
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String clusterShared = "CLUSTER_SHARED";
+
+	/**
+	 * Emitted by the owner of a board to all other nodes when the board is unshared.
+	 * Argument has format "host:port:boardid"
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String clusterUnshared = "CLUSTER_UNSHARED";
+
+	/**
+	 * Emitted by a node over a link that has just come up, with every board
+	 * that the node has announced. Argument is a JSON document in the same
+	 * format as {@link pb.WhiteboardServer#sharingBoards}, except that there
+	 * is always at least one page.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String clusterBoards = "CLUSTER_BOARDS";
+
+	/**
+	 * Emitted by a node to the owners of a batch of boards, asking them to
+	 * unshare the boards. Argument is a page of boards as for {@link #clusterBoards},
+	 * and each page stands alone.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String clusterUnshareBoards = "CLUSTER_UNSHARE_BOARDS";
+
+	/**
+	 * Emitted by the owner of a batch of boards to all other nodes when the
+	 * boards are unshared. Argument is a page of boards as for {@link #clusterBoards},
+	 * and each page stands alone.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String clusterUnsharedBoards = "CLUSTER_UNSHARED_BOARDS";
+
+	/**
+	 * Emitted by a node to all other nodes when a peer starts a session with
+	 * it, so that they renew any lease they hold for the peer.
+	 * Argument has format "host:port"
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String clusterPeer = "CLUSTER_PEER";
+
+	/**
+	 * Emitted by a node over a link that has just come up, with the peers
+	 * that have sessions with it. Argument is a page of peers "host:port" in
+	 * the same format as {@link pb.WhiteboardServer#sharingBoards}, and each
+	 * page stands alone.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String clusterPeers = "CLUSTER_PEERS";
+
+	/**
+	 * How often (ms) to check for links that need to be connected again.
+	 */
+	private static final long linkCheckInterval = 5000;
+
+	/**
+	 * How often (ms) to look for expired leases.
+	 */
+	private static final long leaseCheckInterval = 1000;
+
+	private final String nodeId;
+	private final HashRing ring;
+	private final ServerManager serverManager;
+	private final ShareRegistry registry;
+
+	/**
+	 * Node name to the endpoint of the link with it.
+	 */
+	private final ConcurrentHashMap<String,Endpoint> links = new ConcurrentHashMap<>();
+
+	/**
+	 * Endpoint of a link to the name of the node at the other end.
+	 */
+	private final ConcurrentHashMap<Endpoint,String> linkNodes = new ConcurrentHashMap<>();
+
+	/**
+	 * Node name to the client manager connecting to it, for the nodes this
+	 * node connects to.
+	 */
+	private final ConcurrentHashMap<String,ClientManager> connectors = new ConcurrentHashMap<>();
+
+	/**
+	 * Board to the node that announced it.
+	 */
+	private final ConcurrentHashMap<String,String> announcer = new ConcurrentHashMap<>();
+
+	/**
+	 * Peer to the node it has a session with, as last heard from that node,
+	 * for the peers with sessions with other nodes.
+	 */
+	private final ConcurrentHashMap<String,String> peerNodes = new ConcurrentHashMap<>();
+
+	/**
+	 * Pages of {@link #clusterBoards} received so far on each link.
+	 */
+	private final ConcurrentHashMap<Endpoint,List<String>> snapshotPages = new ConcurrentHashMap<>();
+
+	/**
+	 * Locks, chosen by the hash of a board, that keep a board's announcer and
+	 * its record in the share log in the same order.
+	 */
+	private final Object[] announceLocks = new Object[64];
+
+	/**
+	 * Held shared while the registry changes and the change is published to
+	 * the local peers, and exclusively while a new peer's list of boards is
+	 * queued, so that each change is either in the list or published after it.
+	 */
+	private final ReentrantReadWriteLock publishLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Log of the boards this node has announced, or null.
+	 */
+	private volatile ShareLog shareLog = null;
+
+	/**
+	 * Leases of the peers that have no session.
+	 */
+	private final PeerLeases leases = new PeerLeases();
+
+	/**
+	 * How long (ms) the boards of a peer whose session has ended stay shared.
+	 */
+	private volatile long leaseTime = 30000;
+
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param nodeId the name of this node, "host:port", which must be one of the nodes
+	 * @param nodes all of the nodes in the cluster, including this one
+	 * @param serverManager the server manager of this node
+	 * @param registry the shared boards
+	 */
+	public ClusterNode(String nodeId,Collection<String> nodes,ServerManager serverManager,ShareRegistry registry) {
+		this.nodeId=nodeId;
+		this.ring=new HashRing(nodes);
+		this.serverManager=serverManager;
+		this.registry=registry;
+		for(int i=0;i<announceLocks.length;i++) announceLocks[i]=new Object();
+	}
+
+	/**
+	 * Log the boards that this node announces, starting with the boards that
+	 * were replayed from the log, which are shared again without telling
+	 * anybody since nobody is connected yet. The peers of those boards are
+	 * granted leases for the grace period, so their boards are unshared if
+	 * they do not come back. Call before {@link #start()}.
+	 * @param shareLog the opened share log
+	 * @param boards the boards replayed from the log
+	 * @param gracePeriod time (ms) for the peers to come back
+	 */
+	public void restore(ShareLog shareLog,Collection<String> boards,long gracePeriod) {
+		for(String board : boards) {
+			String peer = ShareRegistry.peerOf(board);
+			if(peer==null) continue;
+			registry.share(board);
+			announcer.put(board,nodeId);
+			leases.grant(peer,gracePeriod);
+		}
+		this.shareLog=shareLog;
+		shareLog.setSnapshotSource(()->{return announcedBoards();});
+		if(leases.size()>0) {
+			log.info("restored "+boards.size()+" boards of "+leases.size()+" peers, expiring those that are not back in "+gracePeriod+" ms");
+		}
+	}
+
+	/**
+	 * @param leaseTime how long (ms) the boards of a peer whose session has
+	 * ended stay shared, waiting for the peer to come back
+	 */
+	public void setLeaseTime(long leaseTime) {
+		this.leaseTime=leaseTime;
+	}
+
+	/**
+	 * A session has ended. The peers that shared boards over it are granted
+	 * leases, unless they have already moved to another session.
+	 * @param endpoint
+	 */
+	public void sessionEnded(Endpoint endpoint) {
+		for(String peer : registry.removeSession(endpoint)) {
+			if(registry.getEndpoint(peer)==null) leases.grant(peer,leaseTime);
+		}
+	}
+
+	/**
+	 * Unshare, in one batch, the boards of the peers whose leases have expired,
+	 * and check again later.
+	 */
+	private void checkLeases() {
+		if(stopped) return;
+		List<String> boards = new ArrayList<>();
+		List<String> peers = leases.expire(System.currentTimeMillis());
+		for(String peer : peers) {
+			// the peer may have come back on another session meanwhile
+			if(registry.getEndpoint(peer)==null) boards.addAll(registry.getBoards(peer));
+		}
+		if(!boards.isEmpty()) {
+			log.info("leases of "+peers.size()+" peers expired, unsharing "+boards.size()+" boards");
+			unshareAll(boards);
+		}
+		Utils.getInstance().setTimeout(()->{checkLeases();}, leaseCheckInterval);
+	}
+
+	/**
+	 * @return the boards this node has announced
+	 */
+	private List<String> announcedBoards() {
+		List<String> boards = new ArrayList<>();
+		announcer.forEach((board,node)->{
+			if(node.equals(nodeId)) boards.add(board);
+		});
+		return boards;
+	}
+
+	/**
+	 * @return the name of this node
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Listen for links from other nodes and connect to the nodes this node
+	 * is responsible for connecting to.
+	 */
+	public void start() {
+		serverManager.on(ServerManager.sessionStarted, (eventArgs)->{
+			Endpoint endpoint = (Endpoint) eventArgs[0];
+			endpoint.on(clusterJoin, (eventArgs2)->{
+				String node = (String) eventArgs2[0];
+				if(node.equals(nodeId) || !ring.getNodes().contains(node)) {
+					log.warning("unknown cluster node "+node+" from "+endpoint.getOtherEndpointId());
+					endpoint.emit(WhiteboardServer.error,node);
+					return;
+				}
+				// a node link is not a peer session
+				serverManager.getTopicBroker().unsubscribeAll(endpoint);
+				linkUp(node,endpoint);
+			});
+		}).on(ServerManager.sessionStopped, (eventArgs)->{
+			linkDown((Endpoint) eventArgs[0]);
+		}).on(ServerManager.sessionError, (eventArgs)->{
+			linkDown((Endpoint) eventArgs[0]);
+		});
+		if(ring.getNodes().size()>1) {
+			log.info("cluster node "+nodeId+" of "+ring.getNodes());
+			checkLinks();
+		}
+		checkLeases();
+	}
+
+	/**
+	 * Stop connecting to other nodes and close the links this node made.
+	 */
+	public void shutdown() {
+		stopped=true;
+		connectors.forEach((node,clientManager)->{
+			if(links.containsKey(node)) clientManager.shutdown();
+		});
+	}
+
+	/**
+	 * Start a client manager for every node this node connects to that has
+	 * neither a link nor a client manager still trying, and check again later.
+	 */
+	private void checkLinks() {
+		if(stopped) return;
+		for(String node : ring.getNodes()) {
+			if(node.compareTo(nodeId)<=0 || links.containsKey(node)) continue;
+			ClientManager connector = connectors.get(node);
+			if(connector!=null && connector.isAlive()) continue;
+			connect(node);
+		}
+		Utils.getInstance().setTimeout(()->{checkLinks();}, linkCheckInterval);
+	}
+
+	/**
+	 * Connect to another node.
+	 * @param node "host:port"
+	 */
+	private void connect(String node) {
+		String[] parts = node.split(":");
+		ClientManager clientManager;
+		try {
+			clientManager = new ClientManager(parts[0],Integer.parseInt(parts[1]));
+		} catch (UnknownHostException | InterruptedException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			log.severe("cannot connect to cluster node "+node+": "+e.getMessage());
+			return;
+		}
+		clientManager.on(ClientManager.sessionStarted, (eventArgs)->{
+			Endpoint endpoint = (Endpoint) eventArgs[0];
+			send(endpoint,clusterJoin,nodeId);
+			linkUp(node,endpoint);
+		}).on(ClientManager.sessionStopped, (eventArgs)->{
+			linkDown((Endpoint) eventArgs[0]);
+		}).on(ClientManager.sessionError, (eventArgs)->{
+			linkDown((Endpoint) eventArgs[0]);
+		});
+		// a node that never answers should not keep the server from exiting
+		clientManager.setDaemon(true);
+		connectors.put(node,clientManager);
+		clientManager.start();
+	}
+
+	/**
+	 * A link with another node has come up.
+	 * @param node
+	 * @param endpoint
+	 */
+	private void linkUp(String node,Endpoint endpoint) {
+		endpoint.on(clusterShare, (eventArgs)->{
+			String board = (String) eventArgs[0];
+			if(ShareRegistry.peerOf(board)!=null) applyShare(board,nodeId);
+		}).on(clusterUnshare, (eventArgs)->{
+			applyUnshare((String) eventArgs[0],true);
+		}).on(clusterShared, (eventArgs)->{
+			String board = (String) eventArgs[0];
+			if(ShareRegistry.peerOf(board)!=null) applyShare(board,node);
+		}).on(clusterUnshared, (eventArgs)->{
+			applyUnshare((String) eventArgs[0],false);
+		}).on(clusterBoards, (eventArgs)->{
+			snapshotReceived(node,endpoint,(String) eventArgs[0]);
+		}).on(clusterUnshareBoards, (eventArgs)->{
+			applyUnshareAll(WhiteboardServer.boardsOfPage((String) eventArgs[0]),true);
+		}).on(clusterUnsharedBoards, (eventArgs)->{
+			applyUnshareAll(WhiteboardServer.boardsOfPage((String) eventArgs[0]),false);
+		}).on(clusterPeer, (eventArgs)->{
+			peerHeard((String) eventArgs[0],node);
+		}).on(clusterPeers, (eventArgs)->{
+			for(String peer : WhiteboardServer.boardsOfPage((String) eventArgs[0])) peerHeard(peer,node);
+		});
+		Endpoint previous = links.put(node,endpoint);
+		if(previous!=null && previous!=endpoint) linkNodes.remove(previous);
+		linkNodes.put(endpoint,node);
+		log.info("cluster link up with "+node);
+		sendSnapshot(endpoint);
+		sendPeers(endpoint);
+	}
+
+	/**
+	 * A session has ended, if it was a link then forget it. Boards announced by
+	 * the node at the other end stay shared, since the node may still be up,
+	 * but their peers are leased.
+	 * @param endpoint
+	 */
+	private void linkDown(Endpoint endpoint) {
+		snapshotPages.remove(endpoint);
+		String node = linkNodes.remove(endpoint);
+		if(node==null) return;
+		if(links.remove(node,endpoint)) {
+			log.warning("cluster link down with "+node);
+			leasePeersOf(node);
+		}
+	}
+
+	/**
+	 * A node has told us that a peer has a session with it, so the peer's
+	 * boards need no lease here.
+	 * @param peer "host:port"
+	 * @param node
+	 */
+	private void peerHeard(String peer,String node) {
+		peerNodes.put(peer,node);
+		leases.release(peer);
+	}
+
+	/**
+	 * A node has gone, and with it the sessions of its peers and the leases
+	 * of the peers whose sessions had ended, so grant a lease to each peer
+	 * last heard of on the node, and to each peer of a board the node
+	 * announced that is not known to be on another node, unless the peer is
+	 * connected here. A peer on a live node is heard of again from it.
+	 * @param node
+	 */
+	private void leasePeersOf(String node) {
+		Set<String> peers = new HashSet<>();
+		peerNodes.forEach((peer,from)->{
+			if(from.equals(node) && peerNodes.remove(peer,from)) peers.add(peer);
+		});
+		announcer.forEach((board,from)->{
+			if(!from.equals(node)) return;
+			String peer = ShareRegistry.peerOf(board);
+			if(peer!=null && !peerNodes.containsKey(peer)) peers.add(peer);
+		});
+		int leased = 0;
+		for(String peer : peers) {
+			if(registry.getEndpoint(peer)!=null || leases.holds(peer)) continue;
+			leases.grant(peer,leaseTime);
+			leased++;
+		}
+		if(leased>0) log.info("leased "+leased+" peers of cluster node "+node+" for "+leaseTime+" ms");
+	}
+
+	/**
+	 * @param board
+	 * @return the node that decides on the board, the first reachable node
+	 * around the ring from where the board hashes to
+	 */
+	private String owner(String board) {
+		return ring.nodeFor(board,(node)->node.equals(nodeId) || links.containsKey(node));
+	}
+
+	/**
+	 * A peer connected to this node has shared a board.
+	 * @param board in the format "host:port:boardid"
+	 * @param endpoint the peer's session
+	 * @throws IllegalArgumentException if the board is not in the right format
+	 */
+	public void share(String board,Endpoint endpoint) {
+		String peer = ShareRegistry.peerOf(board);
+		boolean attached = registry.attach(board,endpoint);
+		// also when the peer is sharing again, the other nodes having
+		// forgotten where it is once it had no boards
+		if(attached || registry.getBoards(peer).isEmpty()) {
+			// the peer is live, here, so its boards need no lease
+			peerNodes.remove(peer);
+			leases.release(peer);
+			serverManager.broadcast(links.values(),clusterPeer,peer);
+		}
+		String owner = owner(board);
+		if(owner.equals(nodeId)) {
+			applyShare(board,nodeId);
+		} else {
+			forward(owner,clusterShare,board);
+		}
+	}
+
+	/**
+	 * A peer connected to this node has unshared a board.
+	 * @param board in the format "host:port:boardid"
+	 * @return false if the board is not known to be shared
+	 */
+	public boolean unshare(String board) {
+		String owner = owner(board);
+		if(owner.equals(nodeId)) return applyUnshare(board,true);
+		if(!registry.isShared(board)) return false;
+		forward(owner,clusterUnshare,board);
+		return true;
+	}
+
+	/**
+	 * Send an event over a link. Both ends of a link handle the same events, so
+	 * {@link pb.managers.endpoint.Endpoint#emit(String, Object...)} cannot be used
+	 * as it would also deliver the event to this end's own handlers.
+	 * @param endpoint
+	 * @param eventName
+	 * @param eventData
+	 * @return true if the event was queued
+	 */
+	private boolean send(Endpoint endpoint,String eventName,String eventData) {
+		return serverManager.broadcast(Collections.singleton(endpoint),eventName,eventData)==1;
+	}
+
+	/**
+	 * Send an event to another node, or handle it here if the link has just gone.
+	 * @param node
+	 * @param eventName {@link #clusterShare} or {@link #clusterUnshare}
+	 * @param board
+	 */
+	private void forward(String node,String eventName,String board) {
+		Endpoint endpoint = links.get(node);
+		if(endpoint!=null && send(endpoint,eventName,board)) return;
+		if(eventName.equals(clusterShare)) {
+			applyShare(board,nodeId);
+		} else {
+			applyUnshare(board,true);
+		}
+	}
+
+	/**
+	 * Share a board and tell the local peers. If this node announced the
+	 * board, also tell the other nodes.
+	 * @param board
+	 * @param from the node that announced the board
+	 */
+	private void applyShare(String board,String from) {
+		boolean shared;
+		publishLock.readLock().lock();
+		try {
+			shared = registry.share(board);
+			if(shared) serverManager.publish(WhiteboardServer.boardsTopic+board,WhiteboardServer.sharingBoard,board);
+		} finally {
+			publishLock.readLock().unlock();
+		}
+		if(!shared && from.equals(nodeId)) return; // already shared, nothing new to announce
+		announce(board,from);
+		if(from.equals(nodeId)) serverManager.broadcast(links.values(),clusterShared,board);
+	}
+
+	/**
+	 * A node no longer knows of a board whose peer is connected here, e.g. it
+	 * has restarted, so have the board's owner announce it again.
+	 * @param board
+	 */
+	private void reclaim(String board) {
+		String owner = owner(board);
+		if(owner.equals(nodeId)) {
+			announce(board,nodeId);
+			serverManager.broadcast(links.values(),clusterShared,board);
+		} else {
+			forward(owner,clusterShare,board);
+		}
+	}
+
+	/**
+	 * Unshare a board and tell the local peers, and the other nodes if asked.
+	 * @param board
+	 * @param announce whether this node is deciding and should tell the other nodes
+	 * @return true if the board was shared
+	 */
+	private boolean applyUnshare(String board,boolean announce) {
+		publishLock.readLock().lock();
+		try {
+			if(!registry.unshare(board)) return false;
+			announce(board,null);
+			serverManager.publish(WhiteboardServer.boardsTopic+board,WhiteboardServer.unsharingBoard,board);
+			forgetPeer(ShareRegistry.peerOf(board));
+		} finally {
+			publishLock.readLock().unlock();
+		}
+		if(announce) serverManager.broadcast(links.values(),clusterUnshared,board);
+		return true;
+	}
+
+	/**
+	 * Record which node announced a board, logging the change if this node
+	 * starts or stops being the one, and wait for the log as its durability
+	 * requires.
+	 * @param board
+	 * @param from the node, or null if the board is no longer shared
+	 */
+	private void announce(String board,String from) {
+		ShareLog shareLog = this.shareLog;
+		long seq = 0;
+		synchronized(announceLocks[(board.hashCode() & 0x7fffffff) % announceLocks.length]) {
+			String previous = from==null ? announcer.remove(board) : announcer.put(board,from);
+			if(shareLog==null) return;
+			boolean was = nodeId.equals(previous);
+			boolean is = nodeId.equals(from);
+			if(was!=is) seq = shareLog.append(is,board);
+		}
+		if(seq>0) shareLog.await(seq);
+	}
+
+	/**
+	 * Unshare a batch of boards, through their owners.
+	 * @param boards
+	 */
+	private void unshareAll(Collection<String> boards) {
+		Map<String,List<String>> byOwner = new HashMap<>();
+		for(String board : boards) {
+			byOwner.computeIfAbsent(owner(board),(node)->new ArrayList<>()).add(board);
+		}
+		byOwner.forEach((owner,ownedBoards)->{
+			Endpoint endpoint = links.get(owner);
+			if(!owner.equals(nodeId) && endpoint!=null) {
+				boolean sent = true;
+				for(String page : WhiteboardServer.boardListPages(ownedBoards)) {
+					sent = send(endpoint,clusterUnshareBoards,page) && sent;
+				}
+				if(sent) return;
+			}
+			applyUnshareAll(ownedBoards,true);
+		});
+	}
+
+	/**
+	 * Unshare a batch of boards and tell the local peers with a single
+	 * {@link pb.WhiteboardServer#unsharingBoards} event, and the other nodes
+	 * with a single {@link #clusterUnsharedBoards} if asked.
+	 * @param boards
+	 * @param announce whether this node is deciding and should tell the other nodes
+	 */
+	private void applyUnshareAll(Collection<String> boards,boolean announce) {
+		List<String> unshared = new ArrayList<>();
+		List<String> pages;
+		publishLock.readLock().lock();
+		try {
+			for(String board : boards) {
+				if(!registry.unshare(board)) continue;
+				announce(board,null);
+				unshared.add(board);
+			}
+			if(unshared.isEmpty()) return;
+			for(String board : unshared) forgetPeer(ShareRegistry.peerOf(board));
+			pages = WhiteboardServer.boardListPages(unshared);
+			for(String page : pages) {
+				serverManager.publish(WhiteboardServer.boardsTopic,WhiteboardServer.unsharingBoards,page);
+			}
+		} finally {
+			publishLock.readLock().unlock();
+		}
+		if(announce) {
+			for(String page : pages) serverManager.broadcast(links.values(),clusterUnsharedBoards,page);
+		}
+	}
+
+	/**
+	 * Send the whole list of shared boards to a peer that has just subscribed
+	 * to them. No share or unshare is published meanwhile, so every change
+	 * the peer hears of after the list is newer than the list.
+	 * @param endpoint the peer's session
+	 */
+	public void sendBoards(Endpoint endpoint) {
+		publishLock.writeLock().lock();
+		try {
+			WhiteboardServer.sendBoardList(registry.getBoards(),endpoint);
+		} finally {
+			publishLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forget which node a peer is on once it has no boards, since there is
+	 * then nothing to lease.
+	 * @param peer "host:port"
+	 */
+	private void forgetPeer(String peer) {
+		if(registry.getBoards(peer).isEmpty()) peerNodes.remove(peer);
+	}
+
+	/**
+	 * Send the boards this node has announced over a new link.
+	 * @param endpoint
+	 */
+	private void sendSnapshot(Endpoint endpoint) {
+		for(String page : WhiteboardServer.boardListPages(announcedBoards())) {
+			send(endpoint,clusterBoards,page);
+		}
+	}
+
+	/**
+	 * Send the peers that have sessions with this node over a new link.
+	 * @param endpoint
+	 */
+	private void sendPeers(Endpoint endpoint) {
+		List<String> peers = new ArrayList<>(registry.getConnectedPeers());
+		if(peers.isEmpty()) return;
+		for(String page : WhiteboardServer.boardListPages(peers)) {
+			send(endpoint,clusterPeers,page);
+		}
+	}
+
+	/**
+	 * A page of another node's boards has arrived. Once all pages are in, the
+	 * boards replace those previously announced by the node.
+	 * @param node
+	 * @param endpoint
+	 * @param json the page
+	 */
+	private void snapshotReceived(String node,Endpoint endpoint,String json) {
+		Document doc = Document.parse(json);
+		List<String> boards = snapshotPages.computeIfAbsent(endpoint,(e)->new ArrayList<>());
+		boards.addAll(WhiteboardServer.boardsOfPage(doc));
+		if(doc.getLong("page")<doc.getLong("pages")-1) return;
+		snapshotPages.remove(endpoint);
+		Set<String> current = new HashSet<>(boards);
+		announcer.forEach((board,from)->{
+			if(!from.equals(node) || current.contains(board)) return;
+			if(registry.getEndpoint(ShareRegistry.peerOf(board))!=null) {
+				// the peer is still connected here, so the board is still shared
+				reclaim(board);
+			} else {
+				applyUnshare(board,false);
+			}
+		});
+		current.forEach((board)->{
+			if(ShareRegistry.peerOf(board)!=null) applyShare(board,node);
+		});
+		log.info("cluster node "+node+" announced "+current.size()+" boards");
+	}
+}
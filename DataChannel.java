@@ -0,0 +1,366 @@
+package pb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
+import pb.utils.Utils;
+
+/**
+ * A channel for the raw bytes of files, beside the event sessions of the
+ * {@link pb.FileSharingPeer}s. A file is offered over a session, which gives
+ * the other peer the port of the data channel, a token and the size of the
+ * file. The other peer connects, sends the token, and the file is sent by
+ * the {@link pb.TransferEngine}, straight from the file to the socket with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * and taken straight from the socket into the file with
+ * {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)}.
+ * So the bytes are neither copied through arrays on the heap nor Base64
+ * encoded, as they are when sent in events.
+ * <br/>
+ * The token is random and is only good for one connection, within
+ * {@link #offerTimeout} ms, so that only the peer that asked gets the file.
+ *
+ * @see {@link pb.FileSharingPeer}
+ * @author aaron
+ *
+ */
+public class DataChannel {
+	private static Logger log = Logger.getLogger(DataChannel.class.getName());
+
+	/**
+	 * Time (ms) that an offer can be taken up for.
+	 */
+	private static final long offerTimeout=30000;
+
+	/**
+	 * Time (ms) to wait for the token of a connection.
+	 */
+	private static final long tokenTimeout=5000;
+
+	/**
+	 * Time (ms) between looks for connections that have waited too long to
+	 * send their token.
+	 */
+	private static final long selectTick=1000;
+
+	/**
+	 * A file offered on the data channel.
+	 */
+	public static class Offer {
+		public final int port;
+		public final long token;
+		public final long size;
+
+		public Offer(int port,long token,long size) {
+			this.port=port;
+			this.token=token;
+			this.size=size;
+		}
+
+		/**
+		 * @return a JSON document with keys "port", "token" and "size"
+		 */
+		public String toJson() {
+			Document doc=new Document();
+			doc.append("port",port);
+			doc.append("token",token);
+			doc.append("size",size);
+			return doc.toJson();
+		}
+
+		/**
+		 * @param json as made by {@link #toJson()}
+		 * @return the offer, or null if the JSON is not one
+		 */
+		public static Offer parse(String json) {
+			Document doc=Document.parse(json);
+			if(!(doc.get("port") instanceof Long) || !(doc.get("token") instanceof Long)
+					|| !(doc.get("size") instanceof Long) || doc.getLong("size")<0) return null;
+			return new Offer((int) doc.getLong("port"),doc.getLong("token"),doc.getLong("size"));
+		}
+	}
+
+	/**
+	 * A file, the number of its bytes that were offered, and the endpoint of
+	 * the session it was offered on.
+	 */
+	private static class Pending {
+		final File file;
+		final long size;
+		final Endpoint session;
+
+		Pending(File file,long size,Endpoint session) {
+			this.file=file;
+			this.size=size;
+			this.session=session;
+		}
+	}
+
+	/**
+	 * A connection whose token is still coming in.
+	 */
+	private static class Connecting {
+		final ByteBuffer token=ByteBuffer.allocate(Long.BYTES);
+		final long since=System.currentTimeMillis();
+	}
+
+	private final ServerSocketChannel server;
+
+	/**
+	 * Waits for connections and for their tokens, only used by the acceptor
+	 * thread.
+	 */
+	private final Selector selector;
+
+	private final TransferEngine engine;
+
+	/**
+	 * Token to the file offered with it, until it is taken up or times out.
+	 */
+	private final ConcurrentHashMap<Long,Pending> offers=new ConcurrentHashMap<>();
+
+	private final SecureRandom random=new SecureRandom();
+
+	private volatile boolean stopped=false;
+
+	/**
+	 * @param port to listen on, 0 for any free port
+	 * @param engine to send the files offered
+	 * @throws IOException if the port cannot be listened on
+	 */
+	public DataChannel(int port,TransferEngine engine) throws IOException {
+		this.engine=engine;
+		server=ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		selector=Selector.open();
+		server.register(selector,SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * @return the port listened on
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Start accepting connections.
+	 */
+	public void start() {
+		Thread acceptor=new Thread(()->{acceptConnections();},"DataChannel-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		log.info("data channel listening on port "+getPort());
+	}
+
+	/**
+	 * Stop accepting connections. Transfers under way carry on.
+	 */
+	public void shutdown() {
+		stopped=true;
+		try {
+			server.close();
+		} catch (IOException e) {
+			// nothing more can be done with it
+		}
+		// the acceptor closes the connections still to send their tokens
+		selector.wakeup();
+	}
+
+	/**
+	 * Offer a file, to be taken up within {@link #offerTimeout} ms.
+	 * @param file
+	 * @param session the endpoint of the session the file is offered on,
+	 * whose stopping cancels the offer and the transfer
+	 * @return the offer to send to the peer that wants the file
+	 * @throws FileNotFoundException if there is no such file
+	 */
+	public Offer offer(File file,Endpoint session) throws FileNotFoundException {
+		if(!file.isFile()) throw new FileNotFoundException(file.getPath());
+		Pending pending=new Pending(file,file.length(),session);
+		long token;
+		do {
+			token=random.nextLong();
+		} while(offers.putIfAbsent(token,pending)!=null);
+		long offered=token;
+		Utils.getInstance().setTimeout(()->{
+			if(offers.remove(offered)!=null) log.warning("offer of "+file+" was not taken up");
+		}, offerTimeout);
+		return new Offer(getPort(),token,pending.size);
+	}
+
+	/**
+	 * Cancel the offers made on a session, and the transfers taking them up,
+	 * for when the session has stopped.
+	 * @param session
+	 */
+	public void cancel(Endpoint session) {
+		offers.values().removeIf((pending)->pending.session==session);
+		engine.cancel(session);
+	}
+
+	/**
+	 * Acceptor thread: accept connections, read each one's token and hand
+	 * the file offered with it to the transfer engine. The connections do
+	 * not block, their tokens are read as they come in, so a connection that
+	 * is slow to send its token, or never does, holds up no other. One that
+	 * has not sent it within {@link #tokenTimeout} ms is closed.
+	 */
+	private void acceptConnections() {
+		while(!stopped) {
+			try {
+				selector.select(selectTick);
+			} catch (IOException e) {
+				log.severe("data channel selector failed: "+e.getMessage());
+				break;
+			}
+			for(SelectionKey key : selector.selectedKeys()) {
+				if(!key.isValid()) continue;
+				if(key.isAcceptable()) accept();
+				else if(key.isReadable()) readToken(key);
+			}
+			selector.selectedKeys().clear();
+			long now=System.currentTimeMillis();
+			for(SelectionKey key : selector.keys()) {
+				if(!key.isValid() || key.attachment()==null) continue;
+				if(now-((Connecting) key.attachment()).since>tokenTimeout) {
+					log.warning("data connection from "+remote(key)+" sent no token within "
+							+tokenTimeout+" ms");
+					drop(key);
+				}
+			}
+		}
+		for(SelectionKey key : selector.keys()) {
+			if(key.attachment()!=null) drop(key);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// nothing more can be done with it
+		}
+	}
+
+	/**
+	 * Accept the connections waiting, to wait for their tokens.
+	 */
+	private void accept() {
+		while(true) {
+			SocketChannel channel;
+			try {
+				channel=server.accept();
+				if(channel==null) return;
+			} catch (IOException e) {
+				log.warning("could not accept a data connection: "+e.getMessage());
+				return;
+			}
+			try {
+				channel.configureBlocking(false);
+				channel.register(selector,SelectionKey.OP_READ,new Connecting());
+			} catch (IOException e) {
+				log.warning("data connection failed: "+e.getMessage());
+				close(channel);
+			}
+		}
+	}
+
+	/**
+	 * Read what has come in of a connection's token, and when all of it has,
+	 * hand the file offered with it to the transfer engine.
+	 * @param key of the connection
+	 */
+	private void readToken(SelectionKey key) {
+		SocketChannel channel=(SocketChannel) key.channel();
+		ByteBuffer token=((Connecting) key.attachment()).token;
+		try {
+			if(channel.read(token)<0) {
+				log.warning("data connection from "+remote(key)+" closed before sending its token");
+				drop(key);
+				return;
+			}
+			if(token.hasRemaining()) return;
+			// the engine waits on a selector of its own
+			key.cancel();
+			token.flip();
+			Pending pending=offers.remove(token.getLong());
+			if(pending==null) {
+				log.warning("data connection from "+remote(key)+" has no offer");
+				channel.close();
+				return;
+			}
+			engine.sendData(pending.file,pending.size,pending.session,channel);
+		} catch (IOException e) {
+			log.warning("data connection failed: "+e.getMessage());
+			drop(key);
+		}
+	}
+
+	/**
+	 * @param key of a connection
+	 * @return the address of the peer, for logging
+	 */
+	private static String remote(SelectionKey key) {
+		try {
+			return ((SocketChannel) key.channel()).getRemoteAddress().toString();
+		} catch (IOException e) {
+			return "a closed connection";
+		}
+	}
+
+	private static void drop(SelectionKey key) {
+		key.cancel();
+		close((SocketChannel) key.channel());
+	}
+
+	private static void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing more can be done with it
+		}
+	}
+
+	/**
+	 * Take up an offer, writing the file as it comes in.
+	 * @param host of the peer that made the offer
+	 * @param offer
+	 * @param target the file to write
+	 * @return the number of bytes received
+	 * @throws IOException if the connection fails or ends before all of the
+	 * file is in
+	 */
+	public static long receive(String host,Offer offer,File target) throws IOException {
+		try(SocketChannel channel=SocketChannel.open(new InetSocketAddress(host,offer.port));
+				FileChannel file=FileChannel.open(target.toPath(),StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer token=ByteBuffer.allocate(Long.BYTES);
+			token.putLong(offer.token);
+			token.flip();
+			while(token.hasRemaining()) channel.write(token);
+			long received=0;
+			while(received<offer.size) {
+				// a blocking channel only gives nothing at the end of the stream
+				long n=file.transferFrom(channel,received,offer.size-received);
+				if(n==0) throw new EOFException("data channel closed after "+received+" of "+offer.size+" bytes");
+				received+=n;
+			}
+			return received;
+		}
+	}
+}
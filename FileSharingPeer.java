@@ -1,18 +1,21 @@
 package pb;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.UnknownHostException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -29,6 +32,7 @@ import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
 import pb.utils.Utils;
 
 /**
@@ -53,7 +57,7 @@ public class FileSharingPeer {
 	 * <li>{@code args[0] instanceof String}
 	 * </ul>
 	 */
-	private static final String getFile = "GET_FILE";
+	public static final String getFile = "GET_FILE";
 	
 	/**
 	 * Emitted when a peer is sending a chunk of a file to another peer.
@@ -65,7 +69,7 @@ public class FileSharingPeer {
 	 * <li>{@code args[0] instanceof String}
 	 * </ul>
 	 */
-	private static final String fileContents = "FILE_CONTENTS";
+	public static final String fileContents = "FILE_CONTENTS";
 	
 	/**
 	 * Emitted when a file does not exist or chunks fail to be
@@ -73,7 +77,30 @@ public class FileSharingPeer {
 	 * receive the rest of the chunks of the file. There are no
 	 * arguments.
 	 */
-	private static final String fileError = "FILE_ERROR";
+	public static final String fileError = "FILE_ERROR";
+	
+	/**
+	 * Emitted when a peer wants to get a file from another peer over the
+	 * other peer's {@link pb.DataChannel}, rather than in {@link #fileContents}
+	 * events. The single argument is a string that is the filename to get.
+	 * The other peer answers with {@link #fileData} or {@link #fileError}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	public static final String getFileData = "GET_FILE_DATA";
+	
+	/**
+	 * Emitted when a peer has offered a file on its {@link pb.DataChannel}.
+	 * The single argument is a string that is a JSON document with the
+	 * "port" of the data channel, the "token" to send on connecting to it,
+	 * and the "size" of the file in bytes, after which the data channel is
+	 * closed.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	public static final String fileData = "FILE_DATA";
 	
 	/**
 	 * port to use for this peer's server
@@ -91,118 +118,304 @@ public class FileSharingPeer {
 	 */
 	private static String host=Utils.serverHost; // default host for the index server
 	
+	/**
+	 * the index servers to use, "host:port", any of which will do, or null
+	 * for just the one given by host and indexServerPort
+	 */
+	private static List<String> indexServers=null;
+	
+	/**
+	 * time (ms) to wait after each of the index servers has been tried
+	 * and failed, before trying them again
+	 */
+	private static final long failoverPause=1000;
+	
+	/**
+	 * most times that a query goes through the index servers before giving up
+	 */
+	private static final int failoverRounds=3;
+	
+	/**
+	 * set when the peer is stopping, so that no other index server is tried
+	 */
+	private static volatile boolean stopping=false;
+	
 	/**
 	 * chunk size to use (bytes) when transferring a file
 	 */
 	private static int chunkSize=Utils.chunkSize;
 	
 	/**
-	 * buffer for file reading
+	 * port for this peer's data channel, 0 for any free port
 	 */
-	private static byte[] buffer = new byte[chunkSize];
+	private static int dataPort=0;
 	
 	/**
-	 * Read up to chunkSize bytes of a file and send to client.
-	 * If we have not reached the end of the file then set a timeout
-	 * to read some more bytes. Since this is using the timer thread
-	 * we have the danger that the transmission will block and that
-	 * this will block all the other timeouts. We could either use another
-	 * thread for each file transfer or else allow for buffering of
-	 * outgoing messages at the endpoint, to overcome this issue.
-	 * @param in the file input stream
-	 * @param endpoint the endpoint to send the file
+	 * the data channel that shared files are sent on, null if not sharing
 	 */
-	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
-		try {
-			int read = in.read(buffer);
-			if(read==-1) {
-				endpoint.emit(fileContents, ""); // signals no more bytes in file
-				in.close();
-			} else {
-				endpoint.emit(fileContents, new String(Base64.encodeBase64(
-						Arrays.copyOfRange(buffer, 0, read)),
-						StandardCharsets.US_ASCII));
-				if(read<chunkSize) {
-					endpoint.emit(fileContents, "");
-					in.close();
-				} else {
-					Utils.getInstance().setTimeout(()->{
-						continueTransmittingFile(in,endpoint);
-					},100); // limit throughput to about 160kB/s, hopefully your bandwidth can keep up :-)
-				}
+	private static DataChannel dataChannel=null;
+	
+	/**
+	 * number of threads sending shared files, each with a buffer of chunkSize
+	 */
+	private static int transferThreads=4;
+	
+	/**
+	 * sends the shared files, null if not sharing
+	 */
+	private static TransferEngine engine=null;
+	
+	/**
+	 * whether to download files over the other peer's data channel, or else
+	 * in events
+	 */
+	private static boolean rawTransfer=true;
+	
+	/**
+	 * most files to download for a query, 0 for no limit
+	 */
+	private static int maxResults=0;
+	
+	/**
+	 * if above 0, query for just the best this many files, with the
+	 * keywords read as a ranked query expression
+	 */
+	private static int topK=0;
+	
+	/**
+	 * number of filenames in each index update batch
+	 */
+	private static int batchSize=1000;
+	
+	/**
+	 * most index update batches sent and not yet replied to
+	 */
+	private static final int batchWindow=4;
+	
+	/**
+	 * time (ms) between peer updates sent to the index server while sharing,
+	 * so that it does not evict this peer, 0 to send just one
+	 */
+	private static long heartbeatInterval=60000;
+	
+	/**
+	 * The filenames being sent to the index server, in batches. Only a few
+	 * batches are sent ahead of the replies, so that a long list streams at
+	 * the rate the index server takes it.
+	 */
+	private static class BatchUpload {
+		final String peerport;
+		final List<String> filenames;
+		final Endpoint endpoint;
+		final ClientManager clientManager;
+		int next=0;
+		long seq=0;
+		int outstanding=0;
+		
+		BatchUpload(String peerport,List<String> filenames,Endpoint endpoint,ClientManager clientManager) {
+			this.peerport=peerport;
+			this.filenames=filenames;
+			this.endpoint=endpoint;
+			this.clientManager=clientManager;
+		}
+		
+		/**
+		 * Send batches until the window is full, close when all are done
+		 * unless heartbeats are being sent.
+		 */
+		synchronized void send() {
+			while(outstanding<batchWindow && next<filenames.size()) {
+				int end=Math.min(next+batchSize,filenames.size());
+				Document batch=new Document();
+				batch.append("seq",seq++);
+				batch.append("peer",peerport);
+				batch.append("files",new ArrayList<String>(filenames.subList(next,end)));
+				log.info("Sending index update batch of "+(end-next)+" files");
+				endpoint.emit(IndexServer.indexUpdateBatch, batch.toJson());
+				next=end;
+				outstanding++;
+			}
+			if(outstanding==0 && next>=filenames.size() && heartbeatInterval==0) {
+				clientManager.shutdown(); // no more index updates to do
 			}
-		} catch (IOException e) {
-			endpoint.emit(fileError,e.toString());
+		}
+		
+		/**
+		 * A batch has been replied to.
+		 */
+		synchronized void replied() {
+			outstanding--;
+			send();
 		}
 	}
 	
 	/**
-	 * Test for the file existence and then start transmitting it. Emit
-	 * {@link #fileError} if file can't be accessed.
-	 * @param filename
-	 * @param endpoint
+	 * A connection to one of the index servers, which moves on to the next
+	 * index server in the list whenever the one in use fails, pausing after
+	 * each round of the list. With a single index server, its client manager
+	 * retries it as usual.
 	 */
-	public static void startTransmittingFile(String filename,Endpoint endpoint) {
-		try {
-			InputStream in = new FileInputStream(filename);
-			continueTransmittingFile(in,endpoint);
-		} catch (FileNotFoundException e) {
-			endpoint.emit(fileError,e.toString());
+	private static class IndexServerConnection {
+		final PeerManager peerManager;
+		final int first;
+		final int maxAttempts;
+		final Consumer<ClientManager> setup;
+		final Runnable gaveUp;
+		
+		/**
+		 * @param peerManager
+		 * @param first which index server to try first
+		 * @param maxAttempts most index servers to try, 0 for no limit
+		 * @param setup sets up the handlers of each client manager before it starts
+		 * @param gaveUp called if no index server could be used
+		 */
+		IndexServerConnection(PeerManager peerManager,int first,int maxAttempts,
+				Consumer<ClientManager> setup,Runnable gaveUp) {
+			this.peerManager=peerManager;
+			this.first=first;
+			this.maxAttempts=maxAttempts;
+			this.setup=setup;
+			this.gaveUp=gaveUp;
+		}
+		
+		/**
+		 * @param attempt the number of index servers tried so far
+		 */
+		void connect(int attempt) {
+			if(stopping) return;
+			String[] server=indexServers.get((first+attempt)%indexServers.size()).split(":");
+			ClientManager clientManager;
+			try {
+				clientManager = peerManager.connect(Integer.parseInt(server[1]),server[0]);
+			} catch (UnknownHostException e) {
+				System.out.println("The index server host could not be found: "+server[0]);
+				next(attempt);
+				return;
+			} catch (InterruptedException e) {
+				System.out.println("Interrupted while trying to connect to the index server");
+				return;
+			}
+			if(indexServers.size()>1) clientManager.setRetries(1);
+			setup.accept(clientManager);
+			clientManager.on(ClientManager.connectFailed, (args)->{
+				System.out.println("Could not use the index server: "+args[0]);
+				next(attempt);
+			});
+			clientManager.start();
+		}
+		
+		void next(int attempt) {
+			int tried=attempt+1;
+			if(indexServers.size()==1 || (maxAttempts>0 && tried>=maxAttempts)) {
+				gaveUp.run();
+				return;
+			}
+			System.out.println("Trying the next index server.");
+			Utils.getInstance().setTimeout(()->{
+				connect(tried);
+			}, tried%indexServers.size()==0 ? failoverPause : 0);
 		}
 	}
 	
 	/**
-	 * Emit a filename as an index update if possible, close when all done.
-	 * @param filenames
+	 * Answer another peer's requests for files on the endpoint of its
+	 * session, sending them with the transfer engine.
+	 * @param endpoint
+	 * @param engine
+	 * @param dataChannel to offer files on
+	 */
+	static void serveFiles(Endpoint endpoint,TransferEngine engine,DataChannel dataChannel) {
+		endpoint.on(getFile,(args)->{
+			String filename = (String) args[0];
+			System.out.println("Peer is requesting file: "+filename);
+			engine.sendEvents(filename,endpoint);
+		}).on(getFileData,(args)->{
+			String filename = (String) args[0];
+			System.out.println("Peer is requesting file data: "+filename);
+			try {
+				endpoint.emit(fileData, dataChannel.offer(new File(filename),endpoint).toJson());
+			} catch (FileNotFoundException e) {
+				endpoint.emit(fileError,e.toString());
+			}
+		});
+	}
+	
+	/**
+	 * Tell the index server that this peer is still there, and keep doing so
+	 * every {@link #heartbeatInterval} ms while the session with it is live.
 	 * @param endpoint
+	 * @param peerport
+	 * @param live cleared when the session stops
 	 */
-	public static void emitIndexUpdate(String peerport,List<String> filenames,Endpoint endpoint,
-			ClientManager clientManager) {
-		if(filenames.size()==0) {
-			clientManager.shutdown(); // no more index updates to do
-		} else {
-			String filename=filenames.remove(0);
-			log.info("Sending index update: "+peerport+":"+filename);
-			// an index update has the format: host:port:filename
-			endpoint.emit(IndexServer.indexUpdate, peerport+":"+filename);
+	private static void sendHeartbeat(Endpoint endpoint,String peerport,AtomicBoolean live) {
+		if(!live.get()) return;
+		endpoint.emit(IndexServer.peerUpdate, peerport);
+		if(heartbeatInterval>0) {
 			Utils.getInstance().setTimeout(()->{
-				emitIndexUpdate(peerport,filenames,endpoint,clientManager);
-			}, 100); // send 10 index updates per second, this shouldn't kill the bandwidth :-]
+				sendHeartbeat(endpoint,peerport,live);
+			}, heartbeatInterval);
 		}
 	}
 	
 	/**
-	 * Open a client connection to the index server and send the filenames to
-	 * update the index.
+	 * Open a client connection to an index server and send the filenames to
+	 * update the index. The connection is kept open to send heartbeats, if
+	 * there are any. If it fails, the filenames are sent again to the next
+	 * index server, so that it has them even if the update had not yet been
+	 * passed on to it.
 	 * @param filenames
 	 * @param peerManager
-	 * @throws InterruptedException 
-	 * @throws UnknownHostException 
 	 */
-	public static void uploadFileList(List<String> filenames,PeerManager peerManager,
-			String peerport) throws UnknownHostException, InterruptedException {
-		// connect to the index server and tell it the files we are sharing
-        ClientManager clientManager = peerManager.connect(indexServerPort, host);
+	public static void uploadFileList(List<String> filenames,PeerManager peerManager,String peerport) {
+		// peers start on different index servers, to spread the load
+		int first = ThreadLocalRandom.current().nextInt(indexServers.size());
+		new IndexServerConnection(peerManager,first,0,(clientManager)->{
+			uploadFileList(filenames,clientManager,peerport);
+		},()->{
+			System.out.println("Could not connect to any index server, not sharing the files.");
+		}).connect(0);
+	}
+	
+	/**
+	 * @param filenames
+	 * @param clientManager not yet started
+	 * @param peerport
+	 */
+	private static void uploadFileList(List<String> filenames,ClientManager clientManager,String peerport) {
+		// tell the index server the files we are sharing
+        AtomicBoolean live = new AtomicBoolean(true);
         clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
+			BatchUpload upload = new BatchUpload(peerport,filenames,endpoint,clientManager);
 			endpoint.on(IndexServer.indexUpdateError, (args2)->{
 				String filename = (String) args2[0];
 				System.out.println("Index server did not accept the file: "+filename);
+			}).on(IndexServer.indexUpdateBatchReply, (args2)->{
+				Document reply = Document.parse((String) args2[0]);
+				if(reply.containsKey("error")) {
+					System.out.println("Index server did not accept batch "+reply.getLong("seq")
+						+": "+reply.getString("error"));
+				}
+				for(Object entry : (ArrayList<?>) reply.get("failed")) {
+					System.out.println("Index server did not accept the file: "+entry);
+				}
+				upload.replied();
 			});
 			System.out.println("Telling the index server our peer:port="+peerport);
-			endpoint.emit(IndexServer.peerUpdate, peerport);
+			sendHeartbeat(endpoint,peerport,live);
 			System.out.println("Sending file list to the index server.");
-			emitIndexUpdate(peerport,filenames,endpoint,clientManager);
+			upload.send();
 		}).on(PeerManager.peerStopped, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
+			live.set(false);
 			System.out.println("Disconnected from the index server: "+endpoint.getOtherEndpointId());
 		}).on(PeerManager.peerError, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
+			live.set(false);
 			System.out.println("There was an error communicating with the index server: "
 					+endpoint.getOtherEndpointId());
 		});
-        clientManager.start();
 	}
 	
 	/**
@@ -221,39 +434,38 @@ public class FileSharingPeer {
         peerManager.on(PeerManager.peerStarted, (args)->{
         	Endpoint endpoint = (Endpoint)args[0];
         	System.out.println("Connection from peer: "+endpoint.getOtherEndpointId());
-        	endpoint.on(getFile,(args2)->{
-        		String filename = (String) args2[0];
-        		System.out.println("Peer is requesting file: "+filename);
-        		startTransmittingFile(filename,endpoint);
-        	});
+        	serveFiles(endpoint,engine,dataChannel);
         }).on(PeerManager.peerStopped,(args)->{
         	Endpoint endpoint = (Endpoint)args[0];
         	System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
+        	dataChannel.cancel(endpoint);
         }).on(PeerManager.peerError,(args)->{
         	Endpoint endpoint = (Endpoint)args[0];
         	System.out.println("There was an error communicating with the peer: "
         			+endpoint.getOtherEndpointId());
+        	dataChannel.cancel(endpoint);
         }).on(PeerManager.peerServerManager, (args)->{
         	ServerManager serverManager = (ServerManager)args[0];
         	serverManager.on(IOThread.ioThread, (args2)->{
 	        	String peerport = (String) args2[0];
-	        	try {
-					uploadFileList(filenames,peerManager,peerport);
-				} catch (UnknownHostException e) {
-					System.out.println("The index server host could not be found: "+host);
-				} catch (InterruptedException e) {
-					System.out.println("Interrupted while trying to send updates to the index server");
-				}
+	        	uploadFileList(filenames,peerManager,peerport);
 	        });
         });
+        engine = new TransferEngine(transferThreads,transferThreads,chunkSize);
+        engine.start();
+        dataChannel = new DataChannel(dataPort,engine);
+        dataChannel.start();
         peerManager.start();
-        
+	
         // just keep sharing until the user presses "return"
         BufferedReader input= new BufferedReader(new InputStreamReader(System.in));
         System.out.println("Press RETURN to stop sharing");
         input.readLine();
         System.out.println("RETURN pressed, stopping the peer");
+        stopping = true;
+        dataChannel.shutdown();
         peerManager.shutdown();
+        engine.shutdown();
 	}
 	
 	/**
@@ -275,6 +487,10 @@ public class FileSharingPeer {
 			System.out.println("Could not find the peer IP address: "+parts[0]);
 			return;
 		}
+		if(rawTransfer) {
+			getFileData(clientManager,parts[0],parts[2]);
+			return;
+		}
 		try {
 			OutputStream out = new FileOutputStream(parts[2]);
 			clientManager.on(PeerManager.peerStarted, (args)->{
@@ -316,43 +532,135 @@ public class FileSharingPeer {
 			// to continue to process its session, so we can join with this later
 		} catch (FileNotFoundException e) {
 			System.out.println("Could not create file: "+parts[2]);
-		}	
-		
+		}
+	
 	}
 	
 	/**
-	 * Query the index server for the keywords and download files for each of the query responses.
+	 * Ask a peer to offer a file on its data channel, and then take the file
+	 * from the data channel on a thread of its own, so that the session is
+	 * not held up while the file comes in.
+	 * @param clientManager connecting to the peer, not yet started
+	 * @param peerHost the peer's IP address, where its data channel is too
+	 * @param filename
+	 */
+	private static void getFileData(ClientManager clientManager,String peerHost,String filename) {
+		clientManager.on(PeerManager.peerStarted, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			endpoint.on(fileData,(args2)->{
+				DataChannel.Offer offer = DataChannel.Offer.parse((String) args2[0]);
+				if(offer==null) {
+					System.out.println("Bad file data offer from peer: "+args2[0]);
+					clientManager.shutdown();
+					return;
+				}
+				new Thread(()->{
+					long start = System.nanoTime();
+					try {
+						long received = DataChannel.receive(peerHost,offer,new File(filename));
+						long ms = Math.max(1,(System.nanoTime()-start)/1000000);
+						System.out.println("Got file "+filename+", "+received+" bytes in "+ms+" ms ("
+								+received/1000/ms+" MB/s)");
+					} catch (IOException e) {
+						System.out.println("Error downloading file "+filename+": "+e.getMessage());
+					}
+					clientManager.shutdown();
+				},"FileSharingPeer-download").start();
+			}).on(fileError, (args2)->{
+				System.out.println("Error downloading file");
+				clientManager.shutdown();
+			});
+			System.out.println("Getting file "+filename+" from "+endpoint.getOtherEndpointId());
+			endpoint.emit(getFileData, filename);
+		}).on(PeerManager.peerStopped, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
+		}).on(PeerManager.peerError, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("There was error while communication with peer: "
+					+endpoint.getOtherEndpointId());
+		});
+		clientManager.start();
+	}
+	
+	/**
+	 * Query an index server for the keywords and download files for each of the query responses.
+	 * Queries start on any of the index servers, to spread the load, and if the one in use
+	 * fails the query is sent again to the next, skipping the files already downloaded.
 	 * @param keywords list of keywords to query for and download matching files
 	 * @throws InterruptedException 
-	 * @throws UnknownHostException 
 	 */
-	private static void queryFiles(String[] keywords) throws UnknownHostException, InterruptedException {
-		String query = String.join(",",keywords);
-		// connect to the index server and tell it the files we are sharing
+	private static void queryFiles(String[] keywords) throws InterruptedException {
+		String query = String.join(topK>0 ? " " : ",",keywords);
 		PeerManager peerManager = new PeerManager(peerPort);
-        ClientManager clientManager = peerManager.connect(indexServerPort, host);
+		CountDownLatch done = new CountDownLatch(1);
+		int[] results = new int[1];
+		Set<String> fetched = ConcurrentHashMap.newKeySet();
+		int first = ThreadLocalRandom.current().nextInt(indexServers.size());
+		new IndexServerConnection(peerManager,first,indexServers.size()*failoverRounds,(clientManager)->{
+			queryFiles(query,clientManager,peerManager,results,fetched,done);
+		},()->{
+			System.out.println("Could not get the responses from any index server.");
+			done.countDown();
+		}).connect(0);
+        done.await(); // wait for the query to finish
+        /*
+         * We also have to join with any other client managers that were started for
+         * download purposes.
+         */
+        peerManager.joinWithClientManagers();
+	}
+	
+	/**
+	 * @param query
+	 * @param clientManager for the index server, not yet started
+	 * @param peerManager
+	 * @param results number of responses downloaded
+	 * @param fetched filenames of the responses downloaded
+	 * @param done counted down when the query is over
+	 */
+	private static void queryFiles(String query,ClientManager clientManager,PeerManager peerManager,
+			int[] results,Set<String> fetched,CountDownLatch done) {
         clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
-			endpoint.on(IndexServer.queryResponse, (args2)->{
-				String response = (String) args2[0];
-				if(response.length()==0) {
-					System.out.println("Received all responses.");
-					clientManager.shutdown();
-				} else {
+			endpoint.on(IndexServer.queryResponses, (args2)->{
+				Document page = Document.parse((String) args2[0]);
+				for(Object hit : (ArrayList<?>) page.get("hits")) {
+					if(maxResults>0 && results[0]>=maxResults) break;
+					String response = (String) hit;
+					String[] parts = response.split(":",3);
+					// given before, by an index server that failed
+					if(parts.length==3 && !fetched.add(parts[2])) continue;
 					System.out.println("Received query response: "+response);
 					try {
 						getFileFromPeer(peerManager,response);
 					} catch (InterruptedException e) {
 						System.out.println("interrupted while trying to download: "+response);
 					}
+					if(++results[0]==maxResults) {
+						System.out.println("Received "+maxResults+" responses, cancelling the query.");
+						endpoint.emit(IndexServer.cancelQuery, query);
+					}
 				}
+			}).on(IndexServer.queryEnd, (args2)->{
+				System.out.println("Received all responses.");
+				clientManager.shutdown();
+				done.countDown();
 			}).on(IndexServer.queryError, (args2)->{
 				System.out.println("Index server did not accept the query: "+query);
 				clientManager.shutdown();
+				done.countDown();
 			});
 			System.out.println("Sending query to the index server.");
-			endpoint.emit(IndexServer.queryIndex, query);
+			if(topK>0) {
+				Document ranked = new Document();
+				ranked.append("query",query);
+				ranked.append("k",topK);
+				endpoint.emit(IndexServer.rankedQuery, ranked.toJson());
+			} else {
+				endpoint.emit(IndexServer.queryIndex, query);
+			}
 		}).on(PeerManager.peerStopped, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Disconnected from the index server: "+endpoint.getOtherEndpointId());
@@ -361,13 +669,6 @@ public class FileSharingPeer {
 			System.out.println("There was an error communicating with the index server: "
 					+endpoint.getOtherEndpointId());
 		});
-        clientManager.start();
-        clientManager.join(); // wait for the query to finish
-        /*
-         * We also have to join with any other client managers that were started for
-         * download purposes.
-         */
-        peerManager.joinWithClientManagers();
 	}
 	
 	private static void help(Options options){
@@ -389,6 +690,14 @@ public class FileSharingPeer {
         options.addOption("port",true,"peer server port, an integer");
         options.addOption("host",true,"index server hostname, a string");
         options.addOption("indexServerPort",true,"index server port, an integer");
+        options.addOption("indexServers",true,"index servers to use instead of -host and -indexServerPort, a comma separated list of host:port");
+        options.addOption("maxResults",true,"most files to download for a query, an integer");
+        options.addOption("top",true,"download just the best matches of a ranked query of the keywords, an integer");
+        options.addOption("batchSize",true,"number of files in each index update batch, an integer");
+        options.addOption("heartbeat",true,"ms between peer updates to the index server while sharing, 0 for just one, an integer");
+        options.addOption("transferThreads",true,"number of threads sending shared files, an integer");
+        options.addOption("dataPort",true,"port for the data channel that shared files are sent on, 0 for any, an integer");
+        options.addOption("transfer",true,"how to download files, \"data\" over the peer's data channel or \"events\" in Base64 chunks");
         Option optionShare = new Option("share",true,"list of files to share");
         optionShare.setArgs(Option.UNLIMITED_VALUES);
         options.addOption(optionShare);
@@ -424,10 +733,118 @@ public class FileSharingPeer {
 			}
         }
         
+        if(cmd.hasOption("maxResults")) {
+        	try{
+        		maxResults = Integer.parseInt(cmd.getOptionValue("maxResults"));
+			} catch (NumberFormatException e){
+				System.out.println("-maxResults requires a number of files, parsed: "+
+						cmd.getOptionValue("maxResults"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("top")) {
+        	try{
+        		topK = Integer.parseInt(cmd.getOptionValue("top"));
+			} catch (NumberFormatException e){
+				System.out.println("-top requires a number of files, parsed: "+
+						cmd.getOptionValue("top"));
+				help(options);
+			}
+        	if(topK<1 || topK>IndexServer.maxTopK) {
+        		System.out.println("-top must be from 1 to "+IndexServer.maxTopK);
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("batchSize")) {
+        	try{
+        		batchSize = Integer.parseInt(cmd.getOptionValue("batchSize"));
+			} catch (NumberFormatException e){
+				System.out.println("-batchSize requires a number of files, parsed: "+
+						cmd.getOptionValue("batchSize"));
+				help(options);
+			}
+        	if(batchSize<1 || batchSize>IndexServer.maxBatchSize) {
+        		System.out.println("-batchSize must be from 1 to "+IndexServer.maxBatchSize);
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("heartbeat")) {
+        	try{
+        		heartbeatInterval = Long.parseLong(cmd.getOptionValue("heartbeat"));
+			} catch (NumberFormatException e){
+				System.out.println("-heartbeat requires a number of ms, parsed: "+
+						cmd.getOptionValue("heartbeat"));
+				help(options);
+			}
+        	if(heartbeatInterval<0) {
+        		System.out.println("-heartbeat must not be negative");
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("transferThreads")) {
+        	try{
+        		transferThreads = Integer.parseInt(cmd.getOptionValue("transferThreads"));
+			} catch (NumberFormatException e){
+				System.out.println("-transferThreads requires a number of threads, parsed: "+
+						cmd.getOptionValue("transferThreads"));
+				help(options);
+			}
+        	if(transferThreads<1) {
+        		System.out.println("-transferThreads must be at least 1");
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("dataPort")) {
+        	try{
+        		dataPort = Integer.parseInt(cmd.getOptionValue("dataPort"));
+			} catch (NumberFormatException e){
+				System.out.println("-dataPort requires a port number, parsed: "+
+						cmd.getOptionValue("dataPort"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("transfer")) {
+        	String transfer = cmd.getOptionValue("transfer");
+        	if(transfer.equals("data")) rawTransfer = true;
+        	else if(transfer.equals("events")) rawTransfer = false;
+        	else {
+        		System.out.println("-transfer must be \"data\" or \"events\", parsed: "+transfer);
+        		help(options);
+        	}
+        }
+        
         if(cmd.hasOption("host")) {
         	host = cmd.getOptionValue("host");
         }
         
+        indexServers = new ArrayList<>();
+        if(cmd.hasOption("indexServers")) {
+        	for(String server : cmd.getOptionValue("indexServers").split(",")) {
+        		if(server.trim().isEmpty()) continue;
+        		String[] parts = server.trim().split(":");
+        		try{
+        			if(parts.length!=2) throw new NumberFormatException();
+        			Integer.parseInt(parts[1]);
+        		} catch (NumberFormatException e){
+        			System.out.println("-indexServers requires a list of host:port, parsed: "+server);
+        			help(options);
+        		}
+        		indexServers.add(server.trim());
+        	}
+        	if(indexServers.isEmpty()) {
+        		System.out.println("-indexServers requires at least one host:port");
+        		help(options);
+        	}
+        } else {
+        	indexServers.add(host+":"+indexServerPort);
+        }
+        
         
         // start up the client
         log.info("PB Peer starting up");
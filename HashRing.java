@@ -0,0 +1,98 @@
+package pb;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Consistent hash ring over the nodes of a {@link pb.WhiteboardServer} cluster.
+ * Each node is placed on the ring at a number of virtual points, and a key
+ * belongs to the node of the first point at or after the key's hash, so adding
+ * or removing a node only moves the keys next to its points. The ring does not
+ * change once it is made, so it can be used by any thread.
+ *
+ * @see {@link pb.ClusterNode}
+ * @author aaron
+ *
+ */
+public class HashRing {
+
+	/**
+	 * Number of points on the ring for each node, which evens out the share
+	 * of keys each node gets.
+	 */
+	private static final int virtualNodes=64;
+
+	private final TreeMap<Long,String> ring=new TreeMap<>();
+
+	private final List<String> nodes;
+
+	/**
+	 * @param nodes the node names, e.g. "host:port"
+	 */
+	public HashRing(Collection<String> nodes) {
+		this.nodes=Collections.unmodifiableList(new ArrayList<>(nodes));
+		for(String node : nodes) {
+			for(int i=0;i<virtualNodes;i++) {
+				ring.put(hash(node+"#"+i),node);
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the first 64 bits of the MD5 digest of the key
+	 */
+	private static long hash(String key) {
+		try {
+			byte[] digest=MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long h=0;
+			for(int i=0;i<8;i++) h=(h<<8)|(digest[i]&0xff);
+			return h;
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has MD5
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the nodes on the ring
+	 */
+	public List<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @param key
+	 * @return the node that the key belongs to
+	 */
+	public String nodeFor(String key) {
+		return nodeFor(key,(node)->true);
+	}
+
+	/**
+	 * Find the node that a key belongs to, skipping nodes that are not
+	 * available so that their keys fall to the next node around the ring.
+	 * @param key
+	 * @param available whether a node can be used
+	 * @return the node, or null if no node is available
+	 */
+	public String nodeFor(String key,Predicate<String> available) {
+		if(ring.isEmpty()) return null;
+		long h=hash(key);
+		for(Map.Entry<Long,String> point : ring.tailMap(h).entrySet()) {
+			if(available.test(point.getValue())) return point.getValue();
+		}
+		for(Map.Entry<Long,String> point : ring.headMap(h).entrySet()) {
+			if(available.test(point.getValue())) return point.getValue();
+		}
+		return null;
+	}
+}
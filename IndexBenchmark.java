@@ -0,0 +1,426 @@
+package pb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Benchmark of the {@link pb.IndexServer} query search, comparing a scan of
+ * every filename with the {@link pb.TrigramIndex}, for indexes of increasing
+ * size. The filenames are made up of random words, and each query is a
+ * random part of a random filename, or sometimes a term that is in none of
+ * them. Both searches must give the same hits.
+ * <br/>
+ * With -store, instead benchmarks opening a persistent index of -entries
+ * files with an {@link pb.IndexStore}, writing its snapshot first if there is
+ * none, and reports the time to open it and the memory used.
+ * <br/>
+ * With -mixed, instead benchmarks the {@link pb.IndexServer}'s own index with
+ * a mix of index updates, peer updates and queries from several threads at
+ * once, and reports the throughput for each number of threads.
+ * <br/>
+ * With -peers, instead benchmarks adding -sizes peers to the
+ * {@link pb.RecentPeers} of one file, most of them never seen, as when the
+ * index is loaded from its log or a replica, and checks that they are kept
+ * most recently seen first.
+ *
+ * @author aaron
+ *
+ */
+public class IndexBenchmark {
+
+	private static final String[] words = {"report","draft","final","photo","holiday","notes",
+			"lecture","assignment","budget","invoice","meeting","project","summary","thesis",
+			"music","video","backup","archive","data","results","slides","week","chapter","scan"};
+	private static final String[] extensions = {".pdf",".txt",".jpg",".docx",".mp3",".zip",".csv"};
+
+	private static void help(Options options){
+		String header = "PB Index Server query benchmark for Unimelb COMP90015\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.IndexBenchmark", header, options, footer, true);
+		System.exit(-1);
+	}
+
+	private static String filename(Random random,int i) {
+		return words[random.nextInt(words.length)]+"_"+words[random.nextInt(words.length)]
+				+"_"+i+extensions[random.nextInt(extensions.length)];
+	}
+
+	/**
+	 * The search that the index replaces.
+	 */
+	private static Set<String> scan(List<String> filenames,String[] terms) {
+		Set<String> hits = new HashSet<>();
+		for(String filename : filenames) {
+			String filelower=filename.toLowerCase();
+			for(String term : terms) {
+				if(filelower.contains(term.toLowerCase())) {
+					hits.add(filename);
+				}
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * @return the resident set size of this process in KB, or -1 if unknown
+	 */
+	private static long residentKB() {
+		try {
+			for(String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+				if(line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("[^0-9]",""));
+			}
+		} catch (IOException | NumberFormatException e) {
+			// not linux
+		}
+		return -1;
+	}
+
+	private static long heapUsedKB() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return (runtime.totalMemory()-runtime.freeMemory())/1024;
+	}
+
+	/**
+	 * Open a persistent index, writing one of the given size first if needed.
+	 * @param dir
+	 * @param entries
+	 * @param queries
+	 * @param seed
+	 * @throws IOException
+	 */
+	private static void store(File dir,int entries,int queries,long seed) throws IOException {
+		IndexStore store = new IndexStore(dir,Long.MAX_VALUE);
+		if(!new File(dir,"index.snapshot").exists()) {
+			System.out.println("writing a snapshot of "+entries+" files to "+dir);
+			Map<String,Long> lastSeen = new HashMap<>();
+			for(int p=0;p<1000;p++) lastSeen.put("10.0."+(p/250)+"."+(p%250)+":"+(5000+p),(long) p);
+			List<String> peers = new ArrayList<>(lastSeen.keySet());
+			long start = System.currentTimeMillis();
+			store.writeSnapshot((action)->{
+				Random random = new Random(seed);
+				for(int i=0;i<entries;i++) {
+					action.accept(filename(random,i),Collections.singletonList(peers.get(i%peers.size())));
+				}
+			},lastSeen,1);
+			System.out.println("wrote it in "+(System.currentTimeMillis()-start)+" ms, "
+					+new File(dir,"index.snapshot").length()/(1024*1024)+" MB");
+			store = new IndexStore(dir,Long.MAX_VALUE);
+		}
+		long heapBefore = heapUsedKB();
+		long residentBefore = residentKB();
+		long start = System.nanoTime();
+		IndexSnapshot snapshot = store.openSnapshot();
+		Map<String,Long> lastSeen = snapshot.getLastSeen();
+		long[] replayed = new long[1];
+		store.open(new IndexStore.Replay() {
+			@Override
+			public void added(String peerport,String filename) {
+				replayed[0]++;
+			}
+			@Override
+			public void seen(String peerport,long time) {
+				replayed[0]++;
+			}
+			@Override
+			public void evicted(String peerport) {
+				replayed[0]++;
+			}
+		});
+		long openTime = System.nanoTime()-start;
+		long heapAfter = heapUsedKB();
+		long residentAfter = residentKB();
+		System.out.println(String.format("opened %d files and %d peers, replaying %d records, in %.1f ms",
+				snapshot.size(),lastSeen.size(),replayed[0],openTime/1e6));
+		System.out.println("heap used: "+(heapAfter-heapBefore)+" KB more after opening, resident: "
+				+residentBefore+" KB before, "+residentAfter+" KB after");
+
+		Random random = new Random(seed+1);
+		long[] times = new long[queries];
+		long hits = 0;
+		for(int q=0;q<queries;q++) {
+			String term = "_"+random.nextInt(Math.max(1,snapshot.size()))+".";
+			Set<String> found = new HashSet<>();
+			long queryStart = System.nanoTime();
+			snapshot.search(Arrays.asList(term),found);
+			times[q] = System.nanoTime()-queryStart;
+			hits += found.size();
+		}
+		Arrays.sort(times);
+		System.out.println("queries of the snapshot: "+hits/Math.max(1,queries)+" hits/query, p50/p99 "
+				+micros(times,0.5)+"/"+micros(times,0.99)+" us, resident after: "+residentKB()+" KB");
+		store.close();
+	}
+
+	/**
+	 * Out of every 100 operations of the mixed benchmark, the number that are
+	 * index updates and peer updates, the rest being queries.
+	 */
+	private static final int mixedIndexUpdates=10;
+	private static final int mixedPeerUpdates=5;
+
+	/**
+	 * Number of peers in the mixed benchmark.
+	 */
+	private static final int mixedPeers=1000;
+
+	/**
+	 * Run a mix of updates and queries of the index server's index from
+	 * each number of threads in turn. A query is a search for part of a
+	 * filename, and then the best peer of each of its first 100 hits, as
+	 * for the first page of responses.
+	 * @param entries number of files indexed before the threads start
+	 * @param threadCounts
+	 * @param duration time (ms) of the run with each number of threads
+	 * @param seed
+	 * @throws InterruptedException
+	 */
+	private static void mixed(int entries,int[] threadCounts,long duration,long seed) throws InterruptedException {
+		Random random = new Random(seed);
+		for(int i=0;i<entries;i++) {
+			IndexServer.indexUpdate(filename(random,i),peer(i%mixedPeers));
+		}
+		AtomicLong nextFile = new AtomicLong(entries);
+		System.out.println("indexed "+entries+" files, "+Runtime.getRuntime().availableProcessors()+" processors");
+		System.out.println("threads  ops/s  index updates/s  peer updates/s  queries/s  speedup");
+		double single = 0;
+		for(int threads : threadCounts) {
+			AtomicLong indexUpdates = new AtomicLong();
+			AtomicLong peerUpdates = new AtomicLong();
+			AtomicLong queries = new AtomicLong();
+			CountDownLatch start = new CountDownLatch(1);
+			CountDownLatch done = new CountDownLatch(threads);
+			long[] end = new long[1];
+			for(int t=0;t<threads;t++) {
+				new Thread(()->{
+					ThreadLocalRandom r = ThreadLocalRandom.current();
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long i=0, p=0, q=0;
+					while(System.currentTimeMillis()<end[0]) {
+						int op = r.nextInt(100);
+						if(op<mixedIndexUpdates) {
+							long n = nextFile.getAndIncrement();
+							IndexServer.indexUpdate(words[r.nextInt(words.length)]+"_"+n+".txt",peer(r.nextInt(mixedPeers)));
+							i++;
+						} else if(op<mixedIndexUpdates+mixedPeerUpdates) {
+							IndexServer.peerUpdate(peer(r.nextInt(mixedPeers)));
+							p++;
+						} else {
+							String term = "_"+r.nextInt(entries)+".";
+							int given = 0;
+							for(String hit : IndexServer.search(term)) {
+								if(given++==100) break;
+								IndexServer.bestPeer(hit);
+							}
+							q++;
+						}
+					}
+					indexUpdates.addAndGet(i);
+					peerUpdates.addAndGet(p);
+					queries.addAndGet(q);
+					done.countDown();
+				},"IndexBenchmark-"+t).start();
+			}
+			end[0] = System.currentTimeMillis()+duration;
+			start.countDown();
+			done.await();
+			double seconds = duration/1000.0;
+			double ops = (indexUpdates.get()+peerUpdates.get()+queries.get())/seconds;
+			if(single==0) single = ops;
+			System.out.println(String.format("%7d  %5.0f  %15.0f  %14.0f  %9.0f  %7.2f", threads, ops,
+					indexUpdates.get()/seconds, peerUpdates.get()/seconds, queries.get()/seconds, ops/single));
+		}
+	}
+
+	/**
+	 * Add peers to one file, a tenth of them seen as they are added and the
+	 * rest never seen.
+	 * @param sizes numbers of peers to add
+	 * @param seed
+	 * @return false if the peers were not kept in order
+	 */
+	private static boolean peers(int[] sizes,long seed) {
+		System.out.println("peers  add ns/peer  seen ns/peer");
+		for(int size : sizes) {
+			Random random = new Random(seed);
+			long now = System.currentTimeMillis();
+			long[] seen = new long[size];
+			for(int p=0;p<size;p++) {
+				seen[p] = random.nextInt(10)==0 ? now+p : 0;
+			}
+			RecentPeers peers = new RecentPeers("file.txt");
+			long start = System.nanoTime();
+			for(int p=0;p<size;p++) peers.add(peer(p),seen[p]);
+			long addTime = System.nanoTime()-start;
+			// then some of them are seen again, now
+			int again = Math.max(1,size/10);
+			start = System.nanoTime();
+			for(int a=0;a<again;a++) {
+				int p = random.nextInt(size);
+				seen[p] = now+size+a;
+				peers.seen(peer(p),seen[p]);
+			}
+			long seenTime = System.nanoTime()-start;
+			System.out.println(String.format("%9d  %11.0f  %12.0f", size,
+					(double) addTime/size, (double) seenTime/again));
+
+			List<String> order = peers.getPeers();
+			if(order.size()!=size) {
+				System.out.println(order.size()+" peers are kept rather than "+size);
+				return false;
+			}
+			Map<String,Long> seenOf = new HashMap<>();
+			for(int p=0;p<size;p++) seenOf.put(peer(p),seen[p]);
+			for(int i=1;i<order.size();i++) {
+				if(seenOf.get(order.get(i-1))<seenOf.get(order.get(i))) {
+					System.out.println(order.get(i)+" is after "+order.get(i-1)+" but was seen later");
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static String peer(int p) {
+		return "10.0."+(p/250)+"."+(p%250)+":"+(5000+p);
+	}
+
+	private static String micros(long[] nanos,double p) {
+		return String.valueOf(nanos[(int) Math.min(nanos.length-1,Math.floor(p*nanos.length))]/1000);
+	}
+
+	public static void main( String[] args ) throws IOException, InterruptedException
+	{
+		Options options = new Options();
+		options.addOption("sizes",true,"comma separated numbers of filenames to index");
+		options.addOption("queries",true,"number of queries for each size, an integer");
+		options.addOption("seed",true,"random seed, an integer");
+		options.addOption("store",true,"directory of a persistent index to benchmark opening");
+		options.addOption("entries",true,"number of files in the persistent index, or indexed before -mixed, an integer");
+		options.addOption("mixed",false,"benchmark the index server's index with updates and queries from many threads");
+		options.addOption("threads",true,"with -mixed, comma separated numbers of threads");
+		options.addOption("duration",true,"with -mixed, ms to run each number of threads, an integer");
+		options.addOption("peers",false,"benchmark adding -sizes peers, mostly never seen, to one file");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+
+		int[] sizes = null;
+		int queries = 0;
+		long seed = 0;
+		try{
+			sizes = Arrays.stream(cmd.getOptionValue("sizes","1000,10000,100000,1000000").split(","))
+					.mapToInt(Integer::parseInt).toArray();
+			queries = Integer.parseInt(cmd.getOptionValue("queries","200"));
+			seed = Long.parseLong(cmd.getOptionValue("seed","1"));
+			if(cmd.hasOption("store")) {
+				store(new File(cmd.getOptionValue("store")),
+						Integer.parseInt(cmd.getOptionValue("entries","10000000")),queries,seed);
+				return;
+			}
+			if(cmd.hasOption("mixed")) {
+				mixed(Integer.parseInt(cmd.getOptionValue("entries","100000")),
+						Arrays.stream(cmd.getOptionValue("threads","1,2,4,8").split(","))
+						.mapToInt(Integer::parseInt).toArray(),
+						Long.parseLong(cmd.getOptionValue("duration","3000")),seed);
+				return;
+			}
+			if(cmd.hasOption("peers")) {
+				if(!peers(sizes,seed)) {
+					System.out.println("FAILED");
+					System.exit(-1);
+				}
+				System.out.println("OK");
+				return;
+			}
+		} catch (NumberFormatException e){
+			System.out.println("options require numbers: "+e.getMessage());
+			help(options);
+		}
+
+		System.out.println("filenames  hits/query  scan p50/p99 us  index p50/p99 us  index build ms");
+		for(int size : sizes) {
+			Random random = new Random(seed);
+			List<String> filenames = new ArrayList<>(size);
+			TrigramIndex index = new TrigramIndex();
+			long buildStart = System.nanoTime();
+			for(int i=0;i<size;i++) {
+				String filename = filename(random,i);
+				filenames.add(filename);
+				index.add(filename);
+			}
+			long buildTime = (System.nanoTime()-buildStart)/1000000;
+
+			String[][] terms = new String[queries][];
+			for(int q=0;q<queries;q++) {
+				if(random.nextInt(10)==0) {
+					terms[q] = new String[] {"nowhere"};
+				} else {
+					String filename = filenames.get(random.nextInt(size));
+					int length = 3+random.nextInt(Math.min(6,filename.length()-2));
+					int start = random.nextInt(filename.length()-length+1);
+					terms[q] = new String[] {filename.substring(start,start+length).toUpperCase()};
+				}
+			}
+
+			// warm up both, then time them
+			for(int q=0;q<Math.min(queries,20);q++) {
+				scan(filenames,terms[q]);
+				index.search(Arrays.asList(terms[q]));
+			}
+			long[] scanTimes = new long[queries];
+			long[] indexTimes = new long[queries];
+			long hits = 0;
+			for(int q=0;q<queries;q++) {
+				long start = System.nanoTime();
+				Set<String> expected = scan(filenames,terms[q]);
+				scanTimes[q] = System.nanoTime()-start;
+				start = System.nanoTime();
+				Set<String> found = index.search(Arrays.asList(terms[q]));
+				indexTimes[q] = System.nanoTime()-start;
+				if(!found.equals(expected)) {
+					System.out.println("hits differ for "+Arrays.toString(terms[q])+": "
+							+found.size()+" from the index, "+expected.size()+" from the scan");
+					System.exit(1);
+				}
+				hits += found.size();
+			}
+			Arrays.sort(scanTimes);
+			Arrays.sort(indexTimes);
+			System.out.println(String.format("%9d  %10d  %15s  %16s  %14d", size, hits/queries,
+					micros(scanTimes,0.5)+"/"+micros(scanTimes,0.99),
+					micros(indexTimes,0.5)+"/"+micros(indexTimes,0.99), buildTime));
+		}
+	}
+}
@@ -0,0 +1,763 @@
+package pb;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+import pb.managers.ClientManager;
+import pb.managers.ServerManager;
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
+import pb.utils.Utils;
+
+/**
+ * One of several {@link pb.IndexServer}s that hold the same index, so that a
+ * peer can use any of them and carry on with another when one goes down.
+ * Each index server takes updates from its own peers and passes them on to
+ * the others as they happen, without waiting for them.
+ * <br/>
+ * Updates that a replica misses, while its link is down or before it started,
+ * are caught up by anti-entropy. For each indexed peer, every replica keeps a
+ * version per index server that has taken updates for it, the time of the
+ * server's latest one. Every so often, and when a link comes up, each replica
+ * sends the other its versions, and the other asks for every peer it is
+ * behind on, getting back all of the peer's files with the sender's versions.
+ * An update passed on as it happens also moves its version on, if the replica
+ * had the update before it, so that replicas that are up to date have nothing
+ * to ask for.
+ * <br/>
+ * Every replica evicts peers by itself, and as peer updates are passed on they
+ * do so at about the same time. An evicted peer's versions are kept for a
+ * while after, so that a replica that has not yet evicted it does not give it
+ * back.
+ * <br/>
+ * Replicas are linked in a full mesh in the same way as {@link pb.ClusterNode}s:
+ * each connects to every replica whose name sorts after its own and introduces
+ * itself with {@link #replicaJoin}.
+ *
+ * @see {@link pb.IndexServer}
+ * @author aaron
+ *
+ */
+public class IndexReplica {
+	private static Logger log = Logger.getLogger(IndexReplica.class.getName());
+
+	/**
+	 * Emitted by a replica to the replica it has connected to, to identify the
+	 * link as a replica link. Argument is the replica's name "host:port".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String replicaJoin = "REPLICA_JOIN";
+
+	/**
+	 * Emitted by a replica to all others when it has indexed files of a peer.
+	 * Argument is a JSON document with keys "peer", "host:port", "seen", when
+	 * the peer was last seen, 0 if never, "origin", the replica, "version", the
+	 * version of the update, "prev", the replica's version of the peer before
+	 * it, and "files", the filenames. A large update is sent as several,
+	 * each with its own version.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String replicaUpdate = "REPLICA_UPDATE";
+
+	/**
+	 * Emitted by a replica to all others when a peer has told it that it is
+	 * still there. Argument has format "host:port"
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String replicaSeen = "REPLICA_SEEN";
+
+	/**
+	 * Emitted by a replica every so often, and when a link comes up, with the
+	 * versions it has of the peers. Argument is a JSON document with key
+	 * "peers", a list of documents, each with keys "peer" and "versions", a
+	 * list of documents with keys "origin" and "version". Long lists are sent
+	 * as several events, each standing alone.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String replicaDigest = "REPLICA_DIGEST";
+
+	/**
+	 * Emitted in reply to a {@link #replicaDigest}, asking for the peers that
+	 * the replica is behind on. Argument is a JSON document with key "peers",
+	 * a list of "host:port".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String replicaRequest = "REPLICA_REQUEST";
+
+	/**
+	 * Emitted in reply to a {@link #replicaRequest}, with a page of the files
+	 * of one of the peers. Argument is a JSON document with keys "peer",
+	 * "seen", "files", the filenames, "versions", as for
+	 * {@link #replicaDigest}, and "last", true for the last
+	 * page of the peer. The versions only hold once the last page is in.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String replicaState = "REPLICA_STATE";
+
+	/**
+	 * What a replica needs of the index it is part of.
+	 */
+	public interface Index {
+		/**
+		 * Add files of a peer indexed by another replica.
+		 * @param peerport
+		 * @param filenames
+		 */
+		void added(String peerport,List<String> filenames);
+
+		/**
+		 * A peer was seen by another replica, which only counts if it is
+		 * later than when it was last seen here.
+		 * @param peerport
+		 * @param time
+		 * @return false if the peer is not in the index and was seen too long
+		 * ago to be added to it
+		 */
+		boolean seen(String peerport,long time);
+
+		/**
+		 * @param peerport
+		 * @return when the peer was last seen, 0 if never, or null if it is
+		 * not in the index
+		 */
+		Long lastSeen(String peerport);
+
+		/**
+		 * @param peers
+		 * @param action called with each of the peers and a file it has
+		 */
+		void forEachFile(Set<String> peers,BiConsumer<String,String> action);
+	}
+
+	/**
+	 * The versions of a peer, by replica, and when the peer was evicted,
+	 * or 0 if it has not been.
+	 */
+	private static class Versions {
+		final Map<String,Long> versions = new HashMap<>();
+		long evicted = 0;
+	}
+
+	/**
+	 * Most characters of filenames, or of the versions of peers, to put in one
+	 * event, keeping each message well under the 64kB limit of a message.
+	 */
+	private static final int pageSize = 32*1024;
+
+	/**
+	 * How often (ms) to check for links that need to be connected again.
+	 */
+	private static final long linkCheckInterval = 5000;
+
+	private final String nodeId;
+	private final List<String> nodes;
+	private final ServerManager serverManager;
+	private final Index index;
+
+	/**
+	 * Time (ms) between digests, and that the versions of an evicted peer
+	 * are kept.
+	 */
+	private volatile long antiEntropyInterval = 10000;
+	private volatile long tombstoneTime = 600000;
+
+	/**
+	 * Peer to its versions. A peer's versions are only changed inside a
+	 * compute of the map for it.
+	 */
+	private final ConcurrentHashMap<String,Versions> peerVersions = new ConcurrentHashMap<>();
+
+	/**
+	 * Peer to when it was last asked for, so that a replica that is behind on
+	 * a peer asks just one of the replicas that have it at a time.
+	 */
+	private final ConcurrentHashMap<String,Long> requested = new ConcurrentHashMap<>();
+
+	/**
+	 * The latest version given to an update here.
+	 */
+	private final AtomicLong clock = new AtomicLong();
+
+	/**
+	 * Replica name to the endpoint of the link with it, and back.
+	 */
+	private final ConcurrentHashMap<String,Endpoint> links = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Endpoint,String> linkNodes = new ConcurrentHashMap<>();
+
+	/**
+	 * Replica name to the client manager connecting to it, for the replicas
+	 * this replica connects to.
+	 */
+	private final ConcurrentHashMap<String,ClientManager> connectors = new ConcurrentHashMap<>();
+
+	/**
+	 * Catch-up statistics: updates passed on and taken, of those taken the
+	 * ones that came after a gap, peers asked for and files caught up.
+	 */
+	private final AtomicLong updatesSent = new AtomicLong();
+	private final AtomicLong updatesReceived = new AtomicLong();
+	private final AtomicLong updateGaps = new AtomicLong();
+	private final AtomicLong peersRequested = new AtomicLong();
+	private final AtomicLong filesCaughtUp = new AtomicLong();
+
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param nodeId the name of this replica, "host:port", which must be one of the nodes
+	 * @param nodes all of the replicas, including this one
+	 * @param serverManager the server manager of this replica
+	 * @param index the index
+	 */
+	public IndexReplica(String nodeId,Collection<String> nodes,ServerManager serverManager,Index index) {
+		this.nodeId=nodeId;
+		this.nodes=new ArrayList<>(nodes);
+		this.serverManager=serverManager;
+		this.index=index;
+	}
+
+	/**
+	 * @param antiEntropyInterval time (ms) between digests
+	 */
+	public void setAntiEntropyInterval(long antiEntropyInterval) {
+		this.antiEntropyInterval=antiEntropyInterval;
+	}
+
+	/**
+	 * @param tombstoneTime time (ms) that the versions of an evicted peer are
+	 * kept, at least as long as the replicas take to evict a peer
+	 */
+	public void setTombstoneTime(long tombstoneTime) {
+		this.tombstoneTime=tombstoneTime;
+	}
+
+	/**
+	 * The peers that were in the index when it was opened are given versions
+	 * here, so that replicas that missed them ask for them. Call before
+	 * {@link #start()}.
+	 * @param peers
+	 */
+	public void restore(Collection<String> peers) {
+		for(String peer : peers) {
+			peerVersions.compute(peer,(p,versions)->{
+				if(versions==null) versions=new Versions();
+				versions.versions.put(nodeId,nextVersion());
+				return versions;
+			});
+		}
+	}
+
+	/**
+	 * @return a version later than any given here before, and than the time
+	 * now, so that versions keep going up after a restart
+	 */
+	private long nextVersion() {
+		long now = System.currentTimeMillis();
+		return clock.accumulateAndGet(now,(last,time)->Math.max(last+1,time));
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Listen for links from other replicas, connect to the replicas this
+	 * replica is responsible for connecting to, and start sending digests.
+	 */
+	public void start() {
+		serverManager.on(ServerManager.sessionStarted, (eventArgs)->{
+			Endpoint endpoint = (Endpoint) eventArgs[0];
+			endpoint.on(replicaJoin, (eventArgs2)->{
+				String node = (String) eventArgs2[0];
+				if(node.equals(nodeId) || !nodes.contains(node)) {
+					log.warning("unknown replica "+node+" from "+endpoint.getOtherEndpointId());
+					return;
+				}
+				linkUp(node,endpoint);
+			});
+		}).on(ServerManager.sessionStopped, (eventArgs)->{
+			linkDown((Endpoint) eventArgs[0]);
+		}).on(ServerManager.sessionError, (eventArgs)->{
+			linkDown((Endpoint) eventArgs[0]);
+		});
+		log.info("index replica "+nodeId+" of "+nodes);
+		checkLinks();
+		Utils.getInstance().setTimeout(()->{antiEntropy();}, antiEntropyInterval);
+	}
+
+	/**
+	 * Stop connecting to other replicas and close the links this replica made.
+	 */
+	public void shutdown() {
+		stopped=true;
+		connectors.forEach((node,clientManager)->{
+			if(links.containsKey(node)) clientManager.shutdown();
+		});
+	}
+
+	/**
+	 * Start a client manager for every replica this replica connects to that
+	 * has neither a link nor a client manager still trying, and check again later.
+	 */
+	private void checkLinks() {
+		if(stopped) return;
+		for(String node : nodes) {
+			if(node.compareTo(nodeId)<=0 || links.containsKey(node)) continue;
+			ClientManager connector = connectors.get(node);
+			if(connector!=null && connector.isAlive()) continue;
+			connect(node);
+		}
+		Utils.getInstance().setTimeout(()->{checkLinks();}, linkCheckInterval);
+	}
+
+	/**
+	 * Connect to another replica.
+	 * @param node "host:port"
+	 */
+	private void connect(String node) {
+		String[] parts = node.split(":");
+		ClientManager clientManager;
+		try {
+			clientManager = new ClientManager(parts[0],Integer.parseInt(parts[1]));
+		} catch (UnknownHostException | InterruptedException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			log.severe("cannot connect to replica "+node+": "+e.getMessage());
+			return;
+		}
+		clientManager.on(ClientManager.sessionStarted, (eventArgs)->{
+			Endpoint endpoint = (Endpoint) eventArgs[0];
+			send(endpoint,replicaJoin,nodeId);
+			linkUp(node,endpoint);
+		}).on(ClientManager.sessionStopped, (eventArgs)->{
+			linkDown((Endpoint) eventArgs[0]);
+		}).on(ClientManager.sessionError, (eventArgs)->{
+			linkDown((Endpoint) eventArgs[0]);
+		});
+		// a replica that never answers should not keep the server from exiting
+		clientManager.setDaemon(true);
+		connectors.put(node,clientManager);
+		clientManager.start();
+	}
+
+	/**
+	 * A link with another replica has come up.
+	 * @param node
+	 * @param endpoint
+	 */
+	private void linkUp(String node,Endpoint endpoint) {
+		endpoint.on(replicaUpdate, (eventArgs)->{
+			updateReceived((String) eventArgs[0]);
+		}).on(replicaSeen, (eventArgs)->{
+			index.seen((String) eventArgs[0],System.currentTimeMillis());
+		}).on(replicaDigest, (eventArgs)->{
+			digestReceived(endpoint,(String) eventArgs[0]);
+		}).on(replicaRequest, (eventArgs)->{
+			requestReceived(endpoint,(String) eventArgs[0]);
+		}).on(replicaState, (eventArgs)->{
+			stateReceived((String) eventArgs[0]);
+		});
+		Endpoint previous = links.put(node,endpoint);
+		if(previous!=null && previous!=endpoint) linkNodes.remove(previous);
+		linkNodes.put(endpoint,node);
+		log.info("replica link up with "+node);
+		sendDigest(Collections.singleton(endpoint));
+	}
+
+	/**
+	 * A session has ended, if it was a link then forget it.
+	 * @param endpoint
+	 */
+	private void linkDown(Endpoint endpoint) {
+		String node = linkNodes.remove(endpoint);
+		if(node==null) return;
+		if(links.remove(node,endpoint)) log.warning("replica link down with "+node);
+	}
+
+	/**
+	 * Send an event over a link. Both ends of a link handle the same events, so
+	 * {@link pb.managers.endpoint.Endpoint#emit(String, Object...)} cannot be used
+	 * as it would also deliver the event to this end's own handlers.
+	 * @param endpoint
+	 * @param eventName
+	 * @param eventData
+	 * @return true if the event was queued
+	 */
+	private boolean send(Endpoint endpoint,String eventName,String eventData) {
+		return serverManager.broadcast(Collections.singleton(endpoint),eventName,eventData)==1;
+	}
+
+	/**
+	 * Files of a peer have been indexed here, pass them on. The version is
+	 * moved on and the update queued on the links inside a compute for the
+	 * peer, so that each link has the peer's updates in version order.
+	 * @param peerport
+	 * @param filenames
+	 */
+	public void updated(String peerport,List<String> filenames) {
+		Long seen = index.lastSeen(peerport);
+		List<ArrayList<String>> pages = filePages(filenames);
+		peerVersions.compute(peerport,(peer,versions)->{
+			if(versions==null) versions=new Versions();
+			versions.evicted = 0;
+			for(ArrayList<String> page : pages) {
+				long version = nextVersion();
+				Long prev = versions.versions.put(nodeId,version);
+				Document doc = new Document();
+				doc.append("peer",peer);
+				doc.append("seen",seen==null ? 0 : seen);
+				doc.append("origin",nodeId);
+				doc.append("version",version);
+				doc.append("prev",prev==null ? 0 : prev);
+				doc.append("files",page);
+				updatesSent.addAndGet(serverManager.broadcast(links.values(),replicaUpdate,doc.toJson()));
+			}
+			return versions;
+		});
+	}
+
+	/**
+	 * @param filenames
+	 * @return the filenames in pages of at most {@link #pageSize} characters,
+	 * at least one
+	 */
+	private static List<ArrayList<String>> filePages(List<String> filenames) {
+		List<ArrayList<String>> pages = new ArrayList<>();
+		ArrayList<String> page = new ArrayList<>();
+		int pageLength = 0;
+		for(String filename : filenames) {
+			if(pageLength+filename.length()>pageSize && !page.isEmpty()) {
+				pages.add(page);
+				page = new ArrayList<>();
+				pageLength = 0;
+			}
+			page.add(filename);
+			pageLength += filename.length()+3; // quotes and comma
+		}
+		pages.add(page);
+		return pages;
+	}
+
+	/**
+	 * A peer has told this replica that it is still there, pass it on.
+	 * @param peerport
+	 */
+	public void seen(String peerport) {
+		serverManager.broadcast(links.values(),replicaSeen,peerport);
+	}
+
+	/**
+	 * A peer has been evicted here, keep its versions for a while so that it
+	 * is not caught up again from a replica that has not evicted it yet.
+	 * @param peerport
+	 */
+	public void evicted(String peerport) {
+		peerVersions.computeIfPresent(peerport,(peer,versions)->{
+			versions.evicted = System.currentTimeMillis();
+			return versions;
+		});
+	}
+
+	/**
+	 * Another replica has passed on an update. Its files are indexed unless
+	 * this replica already has the update. Its version is taken only if this
+	 * replica has the one before it, otherwise the peer is caught up later.
+	 * @param json
+	 */
+	private void updateReceived(String json) {
+		Document doc = Document.parse(json);
+		Object peer = doc.get("peer");
+		Object origin = doc.get("origin");
+		Object files = doc.get("files");
+		if(!(peer instanceof String) || !(origin instanceof String) || !(files instanceof ArrayList)
+				|| !(doc.get("version") instanceof Long) || !(doc.get("prev") instanceof Long)
+				|| !(doc.get("seen") instanceof Long)) {
+			log.warning("bad replica update: "+json);
+			return;
+		}
+		String peerport = (String) peer;
+		long version = doc.getLong("version");
+		long prev = doc.getLong("prev");
+		if(versionOf(peerport,(String) origin)>=version) return;
+		updatesReceived.incrementAndGet();
+		apply(peerport,doc.getLong("seen"),filenames((ArrayList<?>) files));
+		peerVersions.compute(peerport,(p,versions)->{
+			if(versions==null) versions=new Versions();
+			long had = versions.versions.getOrDefault(origin,0L);
+			if(had==prev) {
+				versions.versions.put((String) origin,version);
+				versions.evicted = 0;
+			} else if(had<prev) {
+				updateGaps.incrementAndGet();
+			}
+			return versions;
+		});
+	}
+
+	/**
+	 * @param peerport
+	 * @param origin
+	 * @return this replica's version of the peer from the origin, 0 if none
+	 */
+	private long versionOf(String peerport,String origin) {
+		long[] version = {0};
+		peerVersions.computeIfPresent(peerport,(peer,versions)->{
+			version[0] = versions.versions.getOrDefault(origin,0L);
+			return versions;
+		});
+		return version[0];
+	}
+
+	private static List<String> filenames(ArrayList<?> files) {
+		List<String> filenames = new ArrayList<>(files.size());
+		for(Object file : files) {
+			if(file instanceof String && ((String) file).length()>0) filenames.add((String) file);
+		}
+		return filenames;
+	}
+
+	/**
+	 * Index files of a peer from another replica, with when it was last seen
+	 * first, so that the peer's lease runs from then.
+	 * @param peerport
+	 * @param seen
+	 * @param filenames
+	 */
+	private void apply(String peerport,long seen,List<String> filenames) {
+		if(seen>0 && !index.seen(peerport,seen)) return;
+		if(!filenames.isEmpty()) index.added(peerport,filenames);
+	}
+
+	/**
+	 * Send the versions of every peer, in pages, dropping the versions of
+	 * peers that were evicted long enough ago.
+	 * @param endpoints
+	 */
+	private void sendDigest(Collection<Endpoint> endpoints) {
+		long forgetBefore = System.currentTimeMillis()-tombstoneTime;
+		ArrayList<Document> page = new ArrayList<>();
+		int pageLength = 0;
+		for(String peer : peerVersions.keySet()) {
+			Document[] entry = {null};
+			peerVersions.computeIfPresent(peer,(p,versions)->{
+				if(versions.evicted>0 && versions.evicted<forgetBefore) return null;
+				entry[0] = new Document();
+				entry[0].append("peer",p);
+				entry[0].append("versions",versionList(versions));
+				return versions;
+			});
+			if(entry[0]==null) continue;
+			int length = entry[0].toJson().length()+1;
+			if(pageLength+length>pageSize && !page.isEmpty()) {
+				sendDigestPage(endpoints,page);
+				page = new ArrayList<>();
+				pageLength = 0;
+			}
+			page.add(entry[0]);
+			pageLength += length;
+		}
+		if(!page.isEmpty()) sendDigestPage(endpoints,page);
+	}
+
+	private void sendDigestPage(Collection<Endpoint> endpoints,ArrayList<Document> page) {
+		Document doc = new Document();
+		doc.append("peers",page);
+		serverManager.broadcast(endpoints,replicaDigest,doc.toJson());
+	}
+
+	/**
+	 * Called inside a compute for the peer.
+	 * @param versions
+	 * @return the versions as a list of documents
+	 */
+	private static ArrayList<Document> versionList(Versions versions) {
+		ArrayList<Document> list = new ArrayList<>(versions.versions.size());
+		versions.versions.forEach((origin,version)->{
+			Document doc = new Document();
+			doc.append("origin",origin);
+			doc.append("version",version);
+			list.add(doc);
+		});
+		return list;
+	}
+
+	/**
+	 * @param list as made by {@link #versionList(Versions)}
+	 * @return the versions by origin
+	 */
+	private static Map<String,Long> versionMap(Object list) {
+		Map<String,Long> versions = new HashMap<>();
+		if(!(list instanceof ArrayList)) return versions;
+		for(Object entry : (ArrayList<?>) list) {
+			if(!(entry instanceof Document)) continue;
+			Document doc = (Document) entry;
+			if(doc.get("origin") instanceof String && doc.get("version") instanceof Long) {
+				versions.put(doc.getString("origin"),doc.getLong("version"));
+			}
+		}
+		return versions;
+	}
+
+	/**
+	 * Digest timer: send every link the versions every so often.
+	 */
+	private void antiEntropy() {
+		if(stopped) return;
+		if(!links.isEmpty()) sendDigest(new ArrayList<>(links.values()));
+		Utils.getInstance().setTimeout(()->{antiEntropy();}, antiEntropyInterval);
+	}
+
+	/**
+	 * A page of another replica's versions has come in, ask it for the
+	 * peers that it has later versions of.
+	 * @param endpoint
+	 * @param json
+	 */
+	private void digestReceived(Endpoint endpoint,String json) {
+		Object peers = Document.parse(json).get("peers");
+		if(!(peers instanceof ArrayList)) return;
+		ArrayList<String> behind = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		for(Object entry : (ArrayList<?>) peers) {
+			if(!(entry instanceof Document)) continue;
+			Object peer = ((Document) entry).get("peer");
+			if(!(peer instanceof String)) continue;
+			Map<String,Long> theirs = versionMap(((Document) entry).get("versions"));
+			boolean[] later = {false};
+			peerVersions.compute((String) peer,(p,versions)->{
+				Map<String,Long> ours = versions==null ? Collections.emptyMap() : versions.versions;
+				theirs.forEach((origin,version)->{
+					if(version>ours.getOrDefault(origin,0L)) later[0] = true;
+				});
+				return versions;
+			});
+			if(!later[0]) continue;
+			boolean[] ask = {false};
+			requested.compute((String) peer,(p,at)->{
+				if(at!=null && at>now-antiEntropyInterval) return at;
+				ask[0] = true;
+				return now;
+			});
+			if(ask[0]) behind.add((String) peer);
+		}
+		if(behind.isEmpty()) return;
+		log.info("behind on "+behind.size()+" peers of replica "+linkNodes.get(endpoint)+", catching up");
+		peersRequested.addAndGet(behind.size());
+		Document request = new Document();
+		request.append("peers",behind);
+		send(endpoint,replicaRequest,request.toJson());
+	}
+
+	/**
+	 * Another replica has asked for the files of peers. Their versions are
+	 * taken before their files are gathered, so the files are at least as up
+	 * to date as the versions sent with them.
+	 * @param endpoint
+	 * @param json
+	 */
+	private void requestReceived(Endpoint endpoint,String json) {
+		Object peers = Document.parse(json).get("peers");
+		if(!(peers instanceof ArrayList)) return;
+		Map<String,ArrayList<Document>> versions = new HashMap<>();
+		for(Object peer : (ArrayList<?>) peers) {
+			if(!(peer instanceof String)) continue;
+			peerVersions.computeIfPresent((String) peer,(p,peerversions)->{
+				// an evicted peer is sent with no files, for its versions
+				versions.put(p,versionList(peerversions));
+				return peerversions;
+			});
+		}
+		Map<String,List<String>> files = new HashMap<>();
+		for(String peer : versions.keySet()) files.put(peer,new ArrayList<>());
+		index.forEachFile(new HashSet<>(versions.keySet()),(peer,filename)->{
+			files.get(peer).add(filename);
+		});
+		files.forEach((peer,filenames)->{
+			Long seen = index.lastSeen(peer);
+			List<ArrayList<String>> pages = filePages(filenames);
+			for(int i=0;i<pages.size();i++) {
+				Document doc = new Document();
+				doc.append("peer",peer);
+				doc.append("seen",seen==null ? 0 : seen);
+				doc.append("files",pages.get(i));
+				doc.append("versions",versions.get(peer));
+				doc.append("last",i==pages.size()-1);
+				send(endpoint,replicaState,doc.toJson());
+			}
+		});
+	}
+
+	/**
+	 * A page of a peer's files has come in from another replica. The files
+	 * are indexed, and with the last page the versions are taken. A peer
+	 * that has been evicted, there or by now here, only gives its versions,
+	 * which are kept as those of an evicted peer.
+	 * @param json
+	 */
+	private void stateReceived(String json) {
+		Document doc = Document.parse(json);
+		Object peer = doc.get("peer");
+		Object files = doc.get("files");
+		if(!(peer instanceof String) || !(files instanceof ArrayList) || !(doc.get("seen") instanceof Long)
+				|| !(doc.get("last") instanceof Boolean)) {
+			log.warning("bad replica state: "+json);
+			return;
+		}
+		String peerport = (String) peer;
+		List<String> filenames = filenames((ArrayList<?>) files);
+		filesCaughtUp.addAndGet(filenames.size());
+		apply(peerport,doc.getLong("seen"),filenames);
+		if(!doc.getBoolean("last")) return;
+		requested.remove(peerport);
+		Map<String,Long> theirs = versionMap(doc.get("versions"));
+		peerVersions.compute(peerport,(p,versions)->{
+			if(versions==null) versions=new Versions();
+			for(Map.Entry<String,Long> entry : theirs.entrySet()) {
+				versions.versions.merge(entry.getKey(),entry.getValue(),Math::max);
+			}
+			if(index.lastSeen(p)!=null) {
+				versions.evicted = 0;
+			} else if(versions.evicted==0) {
+				versions.evicted = System.currentTimeMillis();
+			}
+			return versions;
+		});
+	}
+
+	/**
+	 * @return statistics of the replication, for {@link pb.IndexServer}'s
+	 * statistics
+	 */
+	public Document getStats() {
+		Document doc = new Document();
+		doc.append("node",nodeId);
+		doc.append("links",links.size());
+		doc.append("versionedPeers",peerVersions.size());
+		doc.append("updatesSent",updatesSent.get());
+		doc.append("updatesReceived",updatesReceived.get());
+		doc.append("updateGaps",updateGaps.get());
+		doc.append("peersRequested",peersRequested.get());
+		doc.append("filesCaughtUp",filesCaughtUp.get());
+		return doc;
+	}
+}
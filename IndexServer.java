@@ -1,15 +1,22 @@
 package pb;
 
+import java.io.File;
 import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -19,13 +26,30 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import pb.managers.AdmissionControl;
 import pb.managers.IOThread;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.RttEstimator;
+import pb.protocols.Document;
 import pb.utils.Utils;
 
 /**
  * Simple index server to discover peers that have files.
+ * <br/>
+ * Peers are expected to send a {@link #peerUpdate} every so often while they
+ * are online. A peer that has not been seen for {@link #peerTtl} ms is
+ * evicted from the index by a sweeper thread, so that peers that come and go
+ * do not fill it up.
+ * <br/>
+ * The index is kept in concurrent maps, without a lock over all of it. A
+ * change to a file is made inside a compute of {@link #keyValueMap} for
+ * that file, and a change to a peer inside a compute of {@link #lastTimeSeen}
+ * for that peer, so that changes to different files and peers go ahead at
+ * once, and queries read the maps without waiting for changes.
+ * <br/>
+ * Several index servers can hold the same index, each passing on the updates
+ * it takes to the others, see {@link pb.IndexReplica}.
  * @author aaron
  *
  */
@@ -45,6 +69,18 @@ public class IndexServer {
 	 */
 	public static final String indexUpdate = "INDEX_UPDATE";
 	
+	/**
+	 * Emitted to add many files of a peer to the index at once. The
+	 * argument is a JSON document with keys "seq", a number that
+	 * the reply repeats, "peer", in the format "host:port", and
+	 * "files", a list of at most {@link #maxBatchSize} filenames.
+	 * Large lists are sent as a stream of batches.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexUpdateBatch = "INDEX_UPDATE_BATCH";
+	
 	/**
 	 * Emitted to query the index for keywords. The argument
 	 * must have the format "keyword,keyword,..."
@@ -54,6 +90,19 @@ public class IndexServer {
 	 */
 	public static final String queryIndex = "QUERY_INDEX";
 	
+	/**
+	 * Emitted to query the index for the best matches of a search
+	 * expression, as described by {@link pb.RankedQuery}. The argument
+	 * is a JSON document with keys "query", the expression, and "k",
+	 * the most hits wanted, at most {@link #maxTopK}. The hits are sent
+	 * as for {@link #queryIndex}, best first, and the query can be
+	 * cancelled the same way.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String rankedQuery = "RANKED_QUERY";
+	
 	/**
 	 * Emitted to tell the index server that your peer is
 	 * available for other peers to connect to it. The argument
@@ -64,6 +113,16 @@ public class IndexServer {
 	 */
 	public static final String peerUpdate = "PEER_UPDATE";
 	
+	/**
+	 * Emitted to stop the responses to a query. The argument
+	 * is the query, as given to {@link #queryIndex}, and every
+	 * query on the session with that text is stopped.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String cancelQuery = "CANCEL_QUERY";
+	
 	/**
 	 * Events that this server will send back to the client.
 	 */
@@ -78,31 +137,214 @@ public class IndexServer {
 	public static final String indexUpdateError = "INDEX_UPDATE_ERROR";
 	
 	/**
-	 * Emitted as a query response. The argument either gives
-	 * a response in the form "host:port:filename" or the empty
-	 * string "" to mean no more responses remain.
+	 * Emitted in reply to each {@link #indexUpdateBatch}. The argument
+	 * is a JSON document with keys "seq", from the batch, "accepted",
+	 * the number of files indexed, and "failed", a list of the entries
+	 * of the batch that were not, each in the format "host:port:filename"
+	 * or as given if it was not a filename. If the whole batch was
+	 * refused there is also a key "error" saying why.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexUpdateBatchReply = "INDEX_UPDATE_BATCH_REPLY";
+	
+	/**
+	 * Emitted with a page of responses to a query. The argument is
+	 * a JSON document with keys "query", the query as given to
+	 * {@link #queryIndex}, and "hits", a list of responses in the
+	 * form "host:port:filename".
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
 	 */
-	public static final String queryResponse = "QUERY_RESPONSE";
+	public static final String queryResponses = "QUERY_RESPONSES";
 	
 	/**
-	 * Emitted when the query was in error. No argument is given.
+	 * Emitted after the last page of responses to a query, or when
+	 * the query has been cancelled. The argument is the query.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryEnd = "QUERY_END";
+	
+	/**
+	 * Emitted when the query was in error. The argument is the
+	 * query.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
 	 */
 	public static final String queryError = "QUERY_ERROR";
 	
 	/**
 	 * Storage of the key value index
-	 * "filename" to list of "PeerIP:PeerPort" strings that have that file
+	 * "filename" to the "PeerIP:PeerPort" strings that have that file, most
+	 * recently seen first. With a persistent index, this only holds the files
+	 * that have changed since the snapshot was written.
 	 */
-	public static final Map<String,Set<String>> keyValueMap=new HashMap<>();
+	public static final Map<String,RecentPeers> keyValueMap=new ConcurrentHashMap<>();
+	
+	/**
+	 * "PeerIP:PeerPort" to the peers of the files it has, so that they can
+	 * be reordered when it is seen, and the peer removed from them when it
+	 * is evicted. A list is only added or dropped inside a compute of the map,
+	 * and is guarded by itself.
+	 */
+	private static final Map<String,List<RecentPeers>> peerFiles=new ConcurrentHashMap<>();
 	
 	/**
 	 * Last time seen "PeerIP:PeerPort" to timestamp, the last time the peer has
 	 * been seen. We will use this to give the most recent peer that has the file.
+	 * Every peer in the index is here, with 0 if it has never been seen, until
+	 * it is evicted.
+	 */
+	public static final Map<String,Long> lastTimeSeen=new ConcurrentHashMap<>();
+	
+	/**
+	 * A lease for each peer in the index, granted whenever it is seen, and
+	 * when it is first indexed.
+	 */
+	private static final PeerLeases leases=new PeerLeases();
+	
+	/**
+	 * Time (ms) that a peer is kept after it was last seen, or 0 to keep
+	 * peers forever.
+	 */
+	private static long peerTtl=600000;
+	
+	/**
+	 * Time (ms) between sweeps for peers to evict.
+	 */
+	private static final long sweepInterval=1000;
+	
+	/**
+	 * Most time (ms) that a sweep spends evicting peers, so that evicting a
+	 * peer with many files does not hold up updates and queries for long.
+	 */
+	private static long sweepBudget=20;
+	
+	/**
+	 * Number of files that a peer is removed from each time keyValueMap is
+	 * held while evicting it.
+	 */
+	private static final int evictChunk=1000;
+	
+	/**
+	 * Peers whose leases have expired, not yet evicted. Only used by the
+	 * sweeper thread.
+	 */
+	private static final ArrayDeque<String> expiredPeers=new ArrayDeque<>();
+	
+	/**
+	 * Eviction statistics: peers evicted, removals of a peer from a file, files
+	 * left with no peers and so removed, sweeps that evicted something and the
+	 * total and longest time (us) spent in them.
+	 */
+	private static final AtomicLong evictedPeers=new AtomicLong();
+	private static final AtomicLong evictedEntries=new AtomicLong();
+	private static final AtomicLong evictedFiles=new AtomicLong();
+	private static final AtomicLong sweeps=new AtomicLong();
+	private static final AtomicLong sweepTime=new AtomicLong();
+	private static final AtomicLong maxSweepTime=new AtomicLong();
+	
+	/**
+	 * Trigram index of the filenames in {@link #keyValueMap} that are not in
+	 * the snapshot, for queries.
+	 */
+	private static final TrigramIndex fileIndex=new TrigramIndex();
+	
+	/**
+	 * Hits of recent queries, or null if they are not cached.
+	 */
+	private static QueryCache queryCache=new QueryCache(64L*1024*1024);
+	
+	/**
+	 * Where the index is kept, or null if it is not kept.
+	 */
+	private static volatile IndexStore store=null;
+	
+	/**
+	 * The index as it was when the last snapshot was written, or null if there
+	 * is none. A new snapshot is in place before the files it holds are
+	 * dropped from keyValueMap.
+	 */
+	private static volatile IndexSnapshot snapshot=null;
+	
+	/**
+	 * The other index servers that updates are passed on to, or null if there
+	 * are none.
+	 */
+	private static volatile IndexReplica replica=null;
+	
+	/**
+	 * Time (ms) between checks of whether a snapshot is due.
 	 */
-	public static final Map<String,Long> lastTimeSeen=new HashMap<>();
+	private static final long compactCheckInterval=1000;
+	
+	/**
+	 * A query whose responses are being sent.
+	 */
+	private static class QueryStream {
+		final String query;
+		final Endpoint client;
+		final List<String> hits;
+		int next=0;
+		volatile boolean cancelled=false;
+		
+		QueryStream(String query,Endpoint client,List<String> hits) {
+			this.query=query;
+			this.client=client;
+			this.hits=hits;
+		}
+	}
+	
+	/**
+	 * The queries being answered on each session.
+	 */
+	private static final Map<Endpoint,List<QueryStream>> queryStreams=new HashMap<>();
+	
+	/**
+	 * Most hits of a {@link #rankedQuery}.
+	 */
+	public static final int maxTopK=1000;
+	
+	/**
+	 * A hit of a ranked query.
+	 */
+	private static class RankedHit {
+		final String filename;
+		final double score;
+		
+		RankedHit(String filename,double score) {
+			this.filename=filename;
+			this.score=score;
+		}
+		
+		/**
+		 * Best first, and by filename for the same score.
+		 */
+		static final Comparator<RankedHit> order = (a,b)->a.score!=b.score ?
+				Double.compare(b.score,a.score) : a.filename.compareTo(b.filename);
+	}
+	
+	/**
+	 * Most files in an index update batch.
+	 */
+	public static final int maxBatchSize=10000;
+	
+	/**
+	 * Number of hits in each page of query responses.
+	 */
+	private static int pageSize=100;
+	
+	/**
+	 * Pages of query responses are only queued while there are fewer than
+	 * this many frames waiting to be written to the client, so that a query
+	 * goes as fast as the client reads it without filling memory.
+	 */
+	private static final int maxQueuedFrames=4;
 	
 	/**
 	 * The default port number for the server.
@@ -115,83 +357,684 @@ public class IndexServer {
 	 * @param filename
 	 * @param peerport
 	 */
-	private static void indexUpdate(String filename,String peerport) {
-		synchronized(keyValueMap) {
-			if(!keyValueMap.containsKey(filename)) {
-				keyValueMap.put(filename, new HashSet<String>());
+	static void indexUpdate(String filename,String peerport) {
+		addPeer(filename,peerport,knownPeer(peerport));
+	}
+	
+	/**
+	 * Update the index with a batch of filenames from a peer, looking the
+	 * peer up once for all of them, and reply with the outcome.
+	 * @param json the batch
+	 * @param client
+	 */
+	private static void indexUpdateBatch(String json,Endpoint client) {
+		Document batch = Document.parse(json);
+		Document reply = new Document();
+		ArrayList<String> failed = new ArrayList<>();
+		long seq = batch.get("seq") instanceof Long ? batch.getLong("seq") : 0;
+		reply.append("seq",seq);
+		Object peer = batch.get("peer");
+		Object files = batch.get("files");
+		String error = null;
+		if(!(peer instanceof String) || ((String) peer).split(":",-1).length!=2) {
+			error = "peer must be host:port";
+		} else if(!(files instanceof ArrayList)) {
+			error = "files must be a list";
+		} else if(((ArrayList<?>) files).size()>maxBatchSize) {
+			error = "more than "+maxBatchSize+" files";
+		}
+		if(error!=null) {
+			reply.append("accepted",0);
+			reply.append("failed",failed);
+			reply.append("error",error);
+			client.emit(indexUpdateBatchReply,reply.toJson());
+			return;
+		}
+		String peerport = (String) peer;
+		log.info("Received index update batch "+seq+" of "+((ArrayList<?>) files).size()+" files from "+peerport);
+		List<String> filenames = new ArrayList<>();
+		for(Object file : (ArrayList<?>) files) {
+			if(file instanceof String && ((String) file).length()>0) {
+				filenames.add((String) file);
+			} else {
+				failed.add(file instanceof String ? peerport+":"+file : String.valueOf(file));
 			}
-			Set<String> possiblepeers=keyValueMap.get(filename);
-			possiblepeers.add(peerport);
 		}
+		long seen=knownPeer(peerport);
+		for(String filename : filenames) {
+			addPeer(filename,peerport,seen);
+		}
+		IndexReplica replicas=replica;
+		if(replicas!=null && !filenames.isEmpty()) replicas.updated(peerport,filenames);
+		reply.append("accepted",filenames.size());
+		reply.append("failed",failed);
+		client.emit(indexUpdateBatchReply,reply.toJson());
 	}
 	
 	/**
-	 * Transmit a response for each hit. Return the peer that has the file
+	 * A peer that is indexed before it has been seen is known from then on,
+	 * and has a lease from then on too.
+	 * @param peerport
+	 * @return when the peer was last seen, 0 if never
+	 */
+	private static long knownPeer(String peerport) {
+		return lastTimeSeen.computeIfAbsent(peerport,(peer)->{
+			if(peerTtl>0) leases.grant(peer,peerTtl);
+			return 0L;
+		});
+	}
+	
+	/**
+	 * Add a peer to those that have a file, bringing the file over from the
+	 * snapshot if it is there, without the peers evicted since. The file's
+	 * peers, its trigrams and the log record all change inside a compute of
+	 * keyValueMap for the file.
+	 * @param filename
+	 * @param peerport
+	 * @param seen when the peer was last seen
+	 */
+	private static void addPeer(String filename,String peerport,long seen) {
+		keyValueMap.compute(filename,(file,possiblepeers)->{
+			if(possiblepeers==null) {
+				possiblepeers=new RecentPeers(file);
+				IndexSnapshot stored=snapshot;
+				List<String> storedpeers=stored==null ? null : stored.getPeers(file);
+				if(storedpeers==null) {
+					fileIndex.add(file);
+					if(queryCache!=null) queryCache.added(file);
+				} else {
+					for(String storedpeer : storedpeers) {
+						Long storedseen=lastTimeSeen.get(storedpeer);
+						if(storedseen!=null) linkPeer(possiblepeers,storedpeer,storedseen);
+					}
+				}
+			}
+			IndexStore indexStore=store;
+			if(linkPeer(possiblepeers,peerport,seen) && indexStore!=null) {
+				indexStore.added(peerport,file);
+			}
+			return possiblepeers;
+		});
+	}
+	
+	/**
+	 * Add a peer to a file's peers, and the file's peers to the peer's files.
+	 * Called inside a compute of keyValueMap for the file.
+	 * @param possiblepeers
+	 * @param peerport
+	 * @param seen
+	 * @return true if the peer was not already there
+	 */
+	private static boolean linkPeer(RecentPeers possiblepeers,String peerport,long seen) {
+		if(!possiblepeers.add(peerport,seen)) return false;
+		addPeerFiles(peerport,Collections.singletonList(possiblepeers));
+		return true;
+	}
+	
+	/**
+	 * @param peerport
+	 * @param files the peers of files that the peer has
+	 */
+	private static void addPeerFiles(String peerport,List<RecentPeers> files) {
+		peerFiles.compute(peerport,(peer,peerfiles)->{
+			if(peerfiles==null) peerfiles=new ArrayList<>();
+			synchronized(peerfiles) {
+				peerfiles.addAll(files);
+			}
+			return peerfiles;
+		});
+	}
+	
+	/**
+	 * Drop a peer's list of files if it is empty.
+	 * @param peerport
+	 * @return true if the peer has no files
+	 */
+	private static boolean forgetIfNoFiles(String peerport) {
+		return peerFiles.computeIfPresent(peerport,(peer,peerfiles)->{
+			synchronized(peerfiles) {
+				return peerfiles.isEmpty() ? null : peerfiles;
+			}
+		})==null;
+	}
+	
+	/**
+	 * @param filename
+	 * @return the most recently seen peer that has the file, or null if none do
+	 */
+	static String bestPeer(String filename) {
+		RecentPeers peers = keyValueMap.get(filename);
+		if(peers!=null) return peers.best();
+		// read after keyValueMap, so that it has any file dropped from there
+		IndexSnapshot stored = snapshot;
+		List<String> storedpeers = stored==null ? null : stored.getPeers(filename);
+		if(storedpeers==null) return null;
+		// files in the snapshot are not kept in order, but have few peers,
+		// some of which may have been evicted since
+		String best = null;
+		long bestseen = -1;
+		for(String peer : storedpeers) {
+			Long seen = lastTimeSeen.get(peer);
+			if(seen!=null && seen>bestseen) {
+				best = peer;
+				bestseen = seen;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Transmit the next page of hits, for each the peer that has the file
 	 * and that was the most recently seen, to try and make sure its still
-	 * online.
-	 * @param hits
-	 * @param client
+	 * online. Runs on the timer thread a page at a time, so that a cancel
+	 * can be received meanwhile and other timeouts are not held up. When the
+	 * client is not keeping up, waits for its queue to drain.
+	 * @param stream
 	 */
-	private static void transmitHits(List<String> hits,Endpoint client) {
-		if(hits.isEmpty()) {
-			log.info("Sending blank query response");
-			client.emit(queryResponse, "");
+	private static void transmitHits(QueryStream stream) {
+		if(!stream.cancelled && stream.next<stream.hits.size()) {
+			if(stream.client.getOutboundQueueSize()>=maxQueuedFrames) {
+				// carry on from the client's writer once it has caught up
+				stream.client.whenDrained(maxQueuedFrames,()->{
+					Utils.getInstance().setTimeout(()->{
+						transmitHits(stream);
+					}, 0);
+				});
+				return;
+			}
+			int end = Math.min(stream.next+pageSize,stream.hits.size());
+			ArrayList<String> page = new ArrayList<>(end-stream.next);
+			for(int i=stream.next;i<end;i++) {
+				String hit = stream.hits.get(i);
+				String best = bestPeer(hit);
+				if(best!=null) page.add(best+":"+hit);
+			}
+			stream.next = end;
+			if(!page.isEmpty()) {
+				Document doc = new Document();
+				doc.append("query",stream.query);
+				doc.append("hits",page);
+				stream.client.emit(queryResponses, doc.toJson());
+			}
+			Utils.getInstance().setTimeout(()->{
+				transmitHits(stream);
+			}, 0);
 			return;
 		}
-		String hit = hits.remove(0);
-		synchronized(keyValueMap) {
-			synchronized(lastTimeSeen) {
-				if(keyValueMap.containsKey(hit)) {
-					List<String> peers = new ArrayList<String>(keyValueMap.get(hit));
-					Collections.sort(peers,
-					new Comparator<String>() {
-						@Override
-						public int compare(String o1, String o2) {
-							// sort largest to smallest
-							return lastTimeSeen.get(o2).compareTo(lastTimeSeen.get(o1));
-						}
-					});
-					log.info("Sending query response: "+peers.get(0)+":"+hit);
-					client.emit(queryResponse, peers.get(0)+":"+hit);
-				}
+		synchronized(queryStreams) {
+			List<QueryStream> streams = queryStreams.get(stream.client);
+			if(streams!=null) {
+				streams.remove(stream);
+				if(streams.isEmpty()) queryStreams.remove(stream.client);
 			}
 		}
-		Utils.getInstance().setTimeout(()->{
-			transmitHits(hits,client);
-		}, 100); // transmit 10 hits per second... no real bandwidth control here.
+		log.info("Sent "+stream.next+" of "+stream.hits.size()+" hits for query: "+stream.query);
+		stream.client.emit(queryEnd, stream.query);
 	}
 	
 	/**
-	 * Generate hits and return them to the client. Not a very
-	 * efficient search mechanism, but ok for testing.
+	 * A filename is a hit if it contains any of the terms, ignoring case.
+	 * @param query a comma separated list of terms to search for
+	 * @return the hits, which must not be changed
+	 */
+	static Set<String> search(String query) {
+		if(queryCache!=null) return queryCache.get(query,IndexServer::searchIndex);
+		return searchIndex(Arrays.asList(query.split(",")));
+	}
+	
+	/**
+	 * @param terms
+	 * @return the filenames that contain any of the terms, ignoring case
+	 */
+	private static Set<String> searchIndex(List<String> terms) {
+		Set<String> hits = fileIndex.search(terms);
+		IndexSnapshot stored = snapshot;
+		if(stored!=null) stored.search(terms,hits);
+		return hits;
+	}
+	
+	/**
+	 * Generate hits and return them to the client.
 	 * @param query a comma separated list of terms to search for
 	 */
 	private static void queryIndex(String query,Endpoint client) {
-		String[] terms = query.split(",");
-		Set<String> hits = new HashSet<>();
-		List<String> filenames;
-		synchronized(keyValueMap) {
-			filenames=new ArrayList<String>(keyValueMap.keySet());
-		}
-		for(String filename : filenames) {
-			String filelower=filename.toLowerCase();
-			for(String term : terms) {
-				if(filelower.contains(term.toLowerCase())) {
-					hits.add(filename);
+		transmit(new QueryStream(query,client,new ArrayList<String>(search(query))));
+	}
+	
+	/**
+	 * The best hits of a ranked query. The files that match the terms are
+	 * looked at one at a time, keeping the best k so far in a heap, worst
+	 * first, so that only k hits are held however many match.
+	 * @param query
+	 * @param k
+	 * @return the best hits, best first
+	 */
+	static List<String> rankedSearch(RankedQuery query,int k) {
+		PriorityQueue<RankedHit> best = new PriorityQueue<>(k,RankedHit.order.reversed());
+		long now = Instant.now().toEpochMilli();
+		IndexSnapshot stored = snapshot;
+		for(int g=0;g<query.size();g++) {
+			int group = g;
+			BiConsumer<String,String> rank = (filename,lower)->{
+				if(!query.firstMatch(group,lower)) return;
+				double score = query.score(lower);
+				// no need to find the peer of a file that cannot make it
+				if(best.size()==k && score+RankedQuery.maxFreshness<best.peek().score) return;
+				String peer = bestPeer(filename);
+				if(peer==null) return;
+				score += RankedQuery.freshness(lastTimeSeen.getOrDefault(peer,0L),now);
+				RankedHit hit = new RankedHit(filename,score);
+				if(best.size()<k) {
+					best.add(hit);
+				} else if(RankedHit.order.compare(hit,best.peek())<0) {
+					best.poll();
+					best.add(hit);
 				}
+			};
+			fileIndex.forEachMatch(query.candidateTerm(g),rank);
+			if(stored!=null) {
+				stored.forEachMatch(query.candidateTerm(g),(filename,lower)->{
+					// a file in both is being dropped from the fileIndex
+					if(!fileIndex.contains(filename)) rank.accept(filename,lower);
+				});
 			}
 		}
-		transmitHits(new ArrayList<String>(hits),client);
+		List<RankedHit> ranked = new ArrayList<>(best);
+		ranked.sort(RankedHit.order);
+		List<String> hits = new ArrayList<>(ranked.size());
+		for(RankedHit hit : ranked) hits.add(hit.filename);
+		return hits;
+	}
+	
+	/**
+	 * Generate the best hits of a ranked query and return them to the client.
+	 * @param json the query
+	 * @param client
+	 */
+	private static void rankedQuery(String json,Endpoint client) {
+		Document doc = Document.parse(json);
+		Object query = doc.get("query");
+		Object k = doc.get("k");
+		if(!(query instanceof String) || !(k instanceof Long) || (Long) k<1) {
+			client.emit(queryError, json);
+			return;
+		}
+		RankedQuery ranked;
+		try {
+			ranked = RankedQuery.parse((String) query);
+		} catch (IllegalArgumentException e) {
+			log.info("Ranked query not accepted, "+e.getMessage()+": "+query);
+			client.emit(queryError, (String) query);
+			return;
+		}
+		List<String> hits = rankedSearch(ranked,(int) Math.min((Long) k,maxTopK));
+		transmit(new QueryStream((String) query,client,hits));
+	}
+	
+	/**
+	 * Start sending the responses to a query.
+	 * @param stream
+	 */
+	private static void transmit(QueryStream stream) {
+		synchronized(queryStreams) {
+			queryStreams.computeIfAbsent(stream.client,(k)->new ArrayList<>()).add(stream);
+		}
+		Utils.getInstance().setTimeout(()->{
+			transmitHits(stream);
+		}, 0);
+	}
+	
+	/**
+	 * Stop sending responses to a client's queries.
+	 * @param client
+	 * @param query the query to stop, or null for all of them
+	 */
+	private static void cancelQueries(Endpoint client,String query) {
+		synchronized(queryStreams) {
+			List<QueryStream> streams = queryStreams.get(client);
+			if(streams==null) return;
+			for(QueryStream stream : streams) {
+				if(query==null || stream.query.equals(query)) stream.cancelled=true;
+			}
+		}
+	}
+	
+	/**
+	 * Keep a time stamp of the last time we've seen this peer, and renew its
+	 * lease. Multiple endpoints could call this at the same time.
+	 * @param peerport
+	 */
+	static void peerUpdate(String peerport) {
+		peerSeen(peerport, Instant.now().toEpochMilli());
 	}
 	
 	/**
-	 * Keep a time stamp of the last time we've seen this peer. Multiple
-	 * endpoints could call this at the same time.
 	 * @param peerport
+	 * @param time when the peer was seen
 	 */
-	private static void peerUpdate(String peerport) {
-		synchronized(lastTimeSeen) {
-			lastTimeSeen.put(peerport, Instant.now().toEpochMilli());
+	private static void peerSeen(String peerport,long time) {
+		lastTimeSeen.compute(peerport,(peer,seen)->{
+			if(peerTtl>0) leases.grant(peer, peerTtl);
+			IndexStore indexStore=store;
+			if(indexStore!=null) indexStore.seen(peer, time);
+			return time;
+		});
+		reorderFiles(peerport,time);
+	}
+	
+	/**
+	 * A peer was seen by another index server. This only counts if it is
+	 * later than the peer was last seen here, and the peer's lease runs
+	 * from then, so that a peer is not kept for longer for having been
+	 * passed on.
+	 * @param peerport
+	 * @param time when the peer was seen
+	 * @return false if the peer is not in the index, and its lease would
+	 * already have expired
+	 */
+	private static boolean replicaSeen(String peerport,long time) {
+		long lease=time+peerTtl-Instant.now().toEpochMilli();
+		boolean[] later={false};
+		Long seen=lastTimeSeen.compute(peerport,(peer,last)->{
+			if(last!=null && last>=time) return last;
+			if(last==null && peerTtl>0 && lease<=0) return null;
+			if(peerTtl>0) leases.grant(peer, Math.max(1,lease));
+			IndexStore indexStore=store;
+			if(indexStore!=null) indexStore.seen(peer, time);
+			later[0]=true;
+			return time;
+		});
+		if(later[0]) reorderFiles(peerport,time);
+		return seen!=null;
+	}
+	
+	/**
+	 * Move a peer up in the peers of its files.
+	 * @param peerport
+	 * @param time when the peer was seen
+	 */
+	private static void reorderFiles(String peerport,long time) {
+		List<RecentPeers> peerfiles = peerFiles.get(peerport);
+		if(peerfiles==null) return;
+		// files indexed from now on see the new time, those before are in the list
+		RecentPeers[] files;
+		synchronized(peerfiles) {
+			files = peerfiles.toArray(new RecentPeers[peerfiles.size()]);
+		}
+		for(RecentPeers peers : files) {
+			peers.seen(peerport, time);
+		}
+	}
+	
+	/**
+	 * Remove a peer from at most limit of its files, and forget it once it has
+	 * none left. From the first call the peer is no longer in lastTimeSeen,
+	 * so it is not given for files in the snapshot and is left out of the
+	 * next one. A peer that is seen again before it is done with keeps the
+	 * files it still has.
+	 * @param peerport
+	 * @param limit
+	 * @return true if the peer is done with
+	 */
+	private static boolean evict(String peerport,int limit) {
+		if(leases.holds(peerport)) return true;
+		lastTimeSeen.computeIfPresent(peerport,(peer,seen)->{
+			if(leases.holds(peer)) return seen;
+			IndexStore indexStore=store;
+			if(indexStore!=null) indexStore.evicted(peer, Instant.now().toEpochMilli());
+			return null;
+		});
+		List<RecentPeers> peerfiles=peerFiles.get(peerport);
+		if(peerfiles!=null) {
+			List<RecentPeers> chunk;
+			synchronized(peerfiles) {
+				// from the end, so that what is left stays in place
+				List<RecentPeers> last=peerfiles.subList(Math.max(0,peerfiles.size()-limit),peerfiles.size());
+				chunk=new ArrayList<>(last);
+				last.clear();
+			}
+			List<RecentPeers> kept=new ArrayList<>();
+			for(RecentPeers peers : chunk) {
+				if(!unlinkPeer(peers,peerport)) kept.add(peers);
+			}
+			if(!kept.isEmpty()) {
+				addPeerFiles(peerport,kept);
+				return true;
+			}
+			if(!forgetIfNoFiles(peerport)) return false;
+		}
+		evictedPeers.incrementAndGet();
+		IndexReplica replicas=replica;
+		if(replicas!=null) replicas.evicted(peerport);
+		return true;
+	}
+	
+	/**
+	 * Remove an evicted peer from a file's peers, and the file from the index
+	 * if that leaves it with none. The lease is checked inside the compute
+	 * for the file, where the peer would be added to it if seen again.
+	 * @param peers the file's peers
+	 * @param peerport
+	 * @return false if the peer has been seen again, so it keeps the file
+	 */
+	private static boolean unlinkPeer(RecentPeers peers,String peerport) {
+		boolean[] kept={false};
+		keyValueMap.computeIfPresent(peers.getFilename(),(filename,current)->{
+			if(current!=peers) return current; // dropped when a snapshot was written
+			if(leases.holds(peerport)) {
+				kept[0]=true;
+				return current;
+			}
+			if(peers.remove(peerport)) evictedEntries.incrementAndGet();
+			if(peers.size()>0) return current;
+			fileIndex.remove(filename);
+			if(queryCache!=null) queryCache.removed(filename);
+			evictedFiles.incrementAndGet();
+			return null;
+		});
+		return !kept[0];
+	}
+	
+	/**
+	 * Evict the peers whose leases have expired, until the deadline.
+	 * Those left over are carried on with by the next sweep.
+	 * @param deadline as given by {@link System#nanoTime()}
+	 */
+	private static void sweep(long deadline) {
+		long start=System.nanoTime();
+		expiredPeers.addAll(leases.expire(System.currentTimeMillis()));
+		if(expiredPeers.isEmpty()) return;
+		long peersBefore=evictedPeers.get();
+		long filesBefore=evictedFiles.get();
+		do {
+			if(evict(expiredPeers.peek(),evictChunk)) expiredPeers.poll();
+		} while(!expiredPeers.isEmpty() && System.nanoTime()<deadline);
+		long time=(System.nanoTime()-start)/1000;
+		sweeps.incrementAndGet();
+		sweepTime.addAndGet(time);
+		maxSweepTime.accumulateAndGet(time,Math::max);
+		log.info("Evicted "+(evictedPeers.get()-peersBefore)+" peers and "+(evictedFiles.get()-filesBefore)
+				+" files in "+time+" us, "+expiredPeers.size()+" peers still to evict");
+	}
+	
+	/**
+	 * Sweeper thread: sweep for expired peers every so often.
+	 */
+	private static void sweepWhenDue() {
+		while(true) {
+			try {
+				Thread.sleep(sweepInterval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			sweep(System.nanoTime()+sweepBudget*1000000);
+		}
+	}
+	
+	/**
+	 * @return statistics of the index and of the eviction of peers, for
+	 * {@link pb.managers.ServerManager#serverStats}
+	 */
+	private static Document indexStats() {
+		Document doc = new Document();
+		doc.append("files",keyValueMap.size());
+		doc.append("peers",peerFiles.size());
+		doc.append("knownPeers",lastTimeSeen.size());
+		IndexSnapshot stored = snapshot;
+		doc.append("snapshotFiles",stored==null ? 0 : stored.size());
+		doc.append("leases",leases.size());
+		doc.append("evictedPeers",evictedPeers.get());
+		doc.append("evictedEntries",evictedEntries.get());
+		doc.append("evictedFiles",evictedFiles.get());
+		doc.append("sweeps",sweeps.get());
+		doc.append("sweepTimeUs",sweepTime.get());
+		doc.append("maxSweepTimeUs",maxSweepTime.get());
+		if(queryCache!=null) doc.append("queryCache",queryCache.getStats());
+		IndexReplica replicas=replica;
+		if(replicas!=null) doc.append("replica",replicas.getStats());
+		return doc;
+	}
+	
+	/**
+	 * @return the index as the other index servers see it
+	 */
+	private static IndexReplica.Index replicaIndex() {
+		return new IndexReplica.Index() {
+			@Override
+			public void added(String peerport, List<String> filenames) {
+				long seen=knownPeer(peerport);
+				for(String filename : filenames) addPeer(filename,peerport,seen);
+			}
+			@Override
+			public boolean seen(String peerport, long time) {
+				return replicaSeen(peerport,time);
+			}
+			@Override
+			public Long lastSeen(String peerport) {
+				return lastTimeSeen.get(peerport);
+			}
+			@Override
+			public void forEachFile(Set<String> peers, BiConsumer<String,String> action) {
+				for(String peer : peers) {
+					List<RecentPeers> peerfiles=peerFiles.get(peer);
+					if(peerfiles==null) continue;
+					RecentPeers[] files;
+					synchronized(peerfiles) {
+						files=peerfiles.toArray(new RecentPeers[peerfiles.size()]);
+					}
+					for(RecentPeers file : files) action.accept(peer,file.getFilename());
+				}
+				IndexSnapshot stored=snapshot;
+				if(stored==null) return;
+				stored.forEach((filename,storedpeers)->{
+					// files that have changed since are in the peers' lists
+					if(keyValueMap.containsKey(filename)) return;
+					for(String peer : storedpeers) {
+						if(peers.contains(peer) && lastTimeSeen.containsKey(peer)) action.accept(peer,filename);
+					}
+				});
+			}
+		};
+	}
+	
+	/**
+	 * Open the persistent index: map the snapshot and replay the log
+	 * of the updates since.
+	 * @param indexStore
+	 * @throws IOException
+	 */
+	private static void openIndex(IndexStore indexStore) throws IOException {
+		IndexSnapshot stored = indexStore.openSnapshot();
+		snapshot = stored;
+		if(stored!=null) {
+			Map<String,Long> storedseen = stored.getLastSeen();
+			lastTimeSeen.putAll(storedseen);
+			// they have until their leases expire to be seen again
+			if(peerTtl>0) {
+				for(String peer : storedseen.keySet()) leases.grant(peer,peerTtl);
+			}
+		}
+		indexStore.open(new IndexStore.Replay() {
+			@Override
+			public void added(String peerport, String filename) {
+				indexUpdate(filename,peerport);
+			}
+			@Override
+			public void seen(String peerport, long time) {
+				peerSeen(peerport,time);
+			}
+			@Override
+			public void evicted(String peerport) {
+				leases.release(peerport); // the lease it was given by the replay
+				evict(peerport,Integer.MAX_VALUE);
+			}
+		});
+		store = indexStore;
+	}
+	
+	/**
+	 * Write a new snapshot of the index, without the peers that have been
+	 * evicted. The files are copied and the snapshot written while the index
+	 * changes. Files that have not changed meanwhile are then only kept in
+	 * the snapshot.
+	 * @throws IOException
+	 */
+	private static void compactIndex() throws IOException {
+		Map<String,List<String>> files = new HashMap<>();
+		Map<String,Long> versions = new HashMap<>();
+		// changes logged before the roll are in the copy, and those after it
+		// may be too, which does no harm as replaying them changes nothing
+		long generation = store.roll();
+		IndexSnapshot stored = snapshot;
+		for(Map.Entry<String,RecentPeers> entry : keyValueMap.entrySet()) {
+			// the version first, so that a change meanwhile keeps the file
+			versions.put(entry.getKey(), entry.getValue().getVersion());
+			files.put(entry.getKey(), entry.getValue().getPeers());
+		}
+		Map<String,Long> seen = new HashMap<>(lastTimeSeen);
+		IndexSnapshot written = store.writeSnapshot(IndexSnapshot.retain(
+				IndexSnapshot.concat(stored==null ? null : stored.without(files), files), seen), seen, generation);
+		snapshot = written;
+		// files of evicted peers may have gone with the old snapshot
+		if(queryCache!=null) queryCache.clear();
+		Set<RecentPeers> dropped = new HashSet<>();
+		for(Map.Entry<String,Long> entry : versions.entrySet()) {
+			keyValueMap.computeIfPresent(entry.getKey(),(filename,peers)->{
+				if(peers.getVersion()!=entry.getValue()) return peers;
+				fileIndex.remove(filename);
+				dropped.add(peers);
+				return null;
+			});
+		}
+		// the peers of dropped files no longer need to find them
+		Set<String> droppedpeers = new HashSet<>();
+		for(RecentPeers peers : dropped) droppedpeers.addAll(peers.getPeers());
+		for(String peer : droppedpeers) {
+			List<RecentPeers> peerfiles = peerFiles.get(peer);
+			if(peerfiles==null) continue;
+			synchronized(peerfiles) {
+				peerfiles.removeIf(dropped::contains);
+			}
+			forgetIfNoFiles(peer);
+		}
+	}
+	
+	/**
+	 * Snapshot thread: write a snapshot whenever one is due.
+	 */
+	private static void compactWhenDue() {
+		while(true) {
+			try {
+				Thread.sleep(compactCheckInterval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if(!store.compactDue()) continue;
+			try {
+				compactIndex();
+			} catch (IOException e) {
+				log.severe("cannot write a snapshot of the index, keeping the log: "+e.getMessage());
+			}
 		}
 	}
 	
@@ -212,7 +1055,24 @@ public class IndexServer {
     	// parse command line options
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
+        options.addOption("minTimeout",true,"smallest reply timeout in ms, an integer");
+        options.addOption("maxTimeout",true,"largest reply timeout in ms, an integer");
+        options.addOption("drainDeadline",true,"ms to wait for sessions to finish on shutdown, an integer");
+        options.addOption("maxConnections",true,"largest number of client connections, an integer");
+        options.addOption("maxConnectionsPerAddress",true,"largest number of client connections from one address, an integer");
+        options.addOption("acceptRate",true,"connections accepted per second, a number");
+        options.addOption("acceptBurst",true,"connections accepted in a burst, an integer");
+        options.addOption("acceptors",true,"number of threads accepting connections, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("pageSize",true,"number of hits in each page of query responses, an integer");
+        options.addOption("indexDir",true,"directory to keep the index in, so that it survives a restart");
+        options.addOption("indexCompact",true,"number of logged updates after which a snapshot is written, an integer");
+        options.addOption("peerTtl",true,"ms to keep a peer after it was last seen, 0 to keep peers forever, an integer");
+        options.addOption("sweepBudget",true,"most ms each sweep for expired peers takes, an integer");
+        options.addOption("queryCacheMB",true,"MB of memory for caching query hits, 0 for no cache, an integer");
+        options.addOption("replicas",true,"all index servers that hold the index, a comma separated list of host:port");
+        options.addOption("node",true,"this server's host:port in the -replicas list");
+        options.addOption("antiEntropy",true,"ms between comparisons of the index with the other -replicas, an integer");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -231,6 +1091,75 @@ public class IndexServer {
 				help(options);
 			}
         }
+
+        if(cmd.hasOption("minTimeout") || cmd.hasOption("maxTimeout")) {
+        	try{
+        		int minTimeout = Integer.parseInt(cmd.getOptionValue("minTimeout","2000"));
+        		int maxTimeout = Integer.parseInt(cmd.getOptionValue("maxTimeout","40000"));
+        		RttEstimator.setDefaultBounds(minTimeout,maxTimeout);
+        	} catch (NumberFormatException e){
+        		System.out.println("-minTimeout and -maxTimeout require a number of ms");
+        		help(options);
+        	} catch (IllegalArgumentException e){
+        		System.out.println("-minTimeout must be positive and not more than -maxTimeout");
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("pageSize")) {
+        	try{
+        		pageSize = Integer.parseInt(cmd.getOptionValue("pageSize"));
+        	} catch (NumberFormatException e){
+        		System.out.println("-pageSize requires a number of hits, parsed: "+cmd.getOptionValue("pageSize"));
+        		help(options);
+        	}
+        	if(pageSize<1) {
+        		System.out.println("-pageSize must be positive");
+        		help(options);
+        	}
+        }
+        
+        try{
+        	peerTtl = Long.parseLong(cmd.getOptionValue("peerTtl",String.valueOf(peerTtl)));
+        	sweepBudget = Long.parseLong(cmd.getOptionValue("sweepBudget",String.valueOf(sweepBudget)));
+        } catch (NumberFormatException e){
+        	System.out.println("-peerTtl and -sweepBudget require a number of ms");
+        	help(options);
+        }
+        if(peerTtl<0 || sweepBudget<1) {
+        	System.out.println("-peerTtl must not be negative and -sweepBudget must be positive");
+        	help(options);
+        }
+        
+        if(cmd.hasOption("queryCacheMB")) {
+        	try{
+        		long megabytes = Long.parseLong(cmd.getOptionValue("queryCacheMB"));
+        		queryCache = megabytes>0 ? new QueryCache(megabytes*1024*1024) : null;
+        	} catch (NumberFormatException e){
+        		System.out.println("-queryCacheMB requires a number of MB, parsed: "+cmd.getOptionValue("queryCacheMB"));
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("indexDir")) {
+        	long compactEvery = 1000000;
+        	try{
+        		compactEvery = Long.parseLong(cmd.getOptionValue("indexCompact",String.valueOf(compactEvery)));
+        	} catch (NumberFormatException e){
+        		System.out.println("-indexCompact requires a number of updates, parsed: "+cmd.getOptionValue("indexCompact"));
+        		help(options);
+        	}
+        	openIndex(new IndexStore(new File(cmd.getOptionValue("indexDir")),compactEvery));
+        	Thread compactor = new Thread(()->{compactWhenDue();},"IndexServer-compactor");
+        	compactor.setDaemon(true);
+        	compactor.start();
+        }
+        
+        if(peerTtl>0) {
+        	Thread sweeper = new Thread(()->{sweepWhenDue();},"IndexServer-sweeper");
+        	sweeper.setDaemon(true);
+        	sweeper.start();
+        }
         
         // create a server manager and setup event handlers
         ServerManager serverManager;
@@ -241,6 +1170,72 @@ public class IndexServer {
         	serverManager = new ServerManager(port);
         }
         
+        if(cmd.hasOption("drainDeadline")) {
+        	try{
+        		serverManager.setDrainDeadline(Long.parseLong(cmd.getOptionValue("drainDeadline")));
+        	} catch (NumberFormatException e){
+        		System.out.println("-drainDeadline requires a number of ms, parsed: "+cmd.getOptionValue("drainDeadline"));
+        		help(options);
+        	}
+        }
+        
+        // the other index servers that hold the index, if any
+        if(cmd.hasOption("replicas")) {
+        	List<String> nodes = new ArrayList<>();
+        	for(String node : cmd.getOptionValue("replicas").split(",")) {
+        		if(!node.trim().isEmpty()) nodes.add(node.trim());
+        	}
+        	String nodeId = cmd.getOptionValue("node");
+        	if(nodeId==null) {
+        		// the one node on our port
+        		for(String node : nodes) {
+        			if(node.endsWith(":"+port)) {
+        				if(nodeId!=null) {
+        					System.out.println("-node is required when several -replicas use port "+port);
+        					help(options);
+        				}
+        				nodeId = node;
+        			}
+        		}
+        	}
+        	if(nodeId==null || !nodes.contains(nodeId)) {
+        		System.out.println("-node must be one of the -replicas");
+        		help(options);
+        	}
+        	IndexReplica replicas = new IndexReplica(nodeId,nodes,serverManager,replicaIndex());
+        	if(cmd.hasOption("antiEntropy")) {
+        		try{
+        			replicas.setAntiEntropyInterval(Long.parseLong(cmd.getOptionValue("antiEntropy")));
+        		} catch (NumberFormatException e){
+        			System.out.println("-antiEntropy requires a number of ms, parsed: "+cmd.getOptionValue("antiEntropy"));
+        			help(options);
+        		}
+        	}
+        	if(peerTtl>0) replicas.setTombstoneTime(peerTtl);
+        	replicas.restore(lastTimeSeen.keySet());
+        	replica = replicas;
+        }
+        
+        serverManager.setStatsSource(()->{return indexStats();});
+        
+        // how new connections are accepted
+        AdmissionControl admissionControl = serverManager.getAdmissionControl();
+        try{
+        	if(cmd.hasOption("maxConnections"))
+        		admissionControl.setMaxEndpoints(Integer.parseInt(cmd.getOptionValue("maxConnections")));
+        	if(cmd.hasOption("maxConnectionsPerAddress"))
+        		admissionControl.setMaxEndpointsPerAddress(
+        				Integer.parseInt(cmd.getOptionValue("maxConnectionsPerAddress")));
+        	if(cmd.hasOption("acceptors"))
+        		serverManager.setNumAcceptors(Integer.parseInt(cmd.getOptionValue("acceptors")));
+        	if(cmd.hasOption("acceptRate"))
+        		admissionControl.setAcceptRate(Double.parseDouble(cmd.getOptionValue("acceptRate")),
+        				Integer.parseInt(cmd.getOptionValue("acceptBurst","10")));
+        } catch (NumberFormatException e){
+        	System.out.println("admission control options require numbers: "+e.getMessage());
+        	help(options);
+        }
+        
         // event handlers
         // we must define the event handler callbacks BEFORE starting
         // the server, so that we don't miss any events.
@@ -256,22 +1251,36 @@ public class IndexServer {
         		} else {
 	        		String peerport = parts[0]+":"+parts[1];
 	        		indexUpdate(parts[2],peerport);
+	        		if(replica!=null) replica.updated(peerport,Collections.singletonList(parts[2]));
         		}
+        	}).on(indexUpdateBatch, (eventArgs2)->{
+        		indexUpdateBatch((String) eventArgs2[0],endpoint);
         	}).on(queryIndex, (eventArgs2)->{
         		String query = (String) eventArgs2[0];
         		log.info("Received query: "+query);
         		queryIndex(query,endpoint);
+        	}).on(rankedQuery, (eventArgs2)->{
+        		String query = (String) eventArgs2[0];
+        		log.info("Received ranked query: "+query);
+        		rankedQuery(query,endpoint);
         	}).on(peerUpdate, (eventArgs2)->{
         		String peerport = (String) eventArgs2[0];
         		log.info("Received peer update: "+peerport);
         		peerUpdate(peerport);
+        		if(replica!=null) replica.seen(peerport);
+        	}).on(cancelQuery, (eventArgs2)->{
+        		String query = (String) eventArgs2[0];
+        		log.info("Received query cancel: "+query);
+        		cancelQueries(endpoint,query);
         	});
         }).on(ServerManager.sessionStopped,(eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
         	log.info("Client session ended: "+endpoint.getOtherEndpointId());
+        	cancelQueries(endpoint,null);
         }).on(ServerManager.sessionError, (eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
         	log.warning("Client session ended in error: "+endpoint.getOtherEndpointId());
+        	cancelQueries(endpoint,null);
         }).on(IOThread.ioThread, (eventArgs)->{
         	String peerport = (String) eventArgs[0];
         	// we don't need this info, but let's log it
@@ -280,8 +1289,18 @@ public class IndexServer {
         
         // start up the server
         log.info("PB Index Server starting up");
+        if(replica!=null) replica.start();
         serverManager.start();
         
+        if(store!=null || replica!=null) {
+        	try {
+        		serverManager.join();
+        	} catch (InterruptedException e) {
+        		log.warning("interrupted while waiting for the server to stop");
+        	}
+        	if(replica!=null) replica.shutdown();
+        	if(store!=null) store.close();
+        }
     }
 
 }
@@ -0,0 +1,469 @@
+package pb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import pb.utils.MappedFile;
+
+/**
+ * A snapshot of the {@link pb.IndexServer}'s index in a memory mapped file,
+ * which is searched where it lies rather than being read into memory, so that
+ * opening it takes no longer for millions of files than for a few. Written
+ * by {@link #write(File, Entries, Map, long)} and never changed after.
+ * <br/>
+ * The file holds, after a header:
+ * <ul>
+ * <li>the peers, each as its last seen time and the position of its name,</li>
+ * <li>the files, each as the positions of its name and of its list of peers,
+ * and the number of peers,</li>
+ * <li>a hash table of file ids, by filename,</li>
+ * <li>a hash table of the lower cased trigrams of the filenames, each with the
+ * position and length of its posting list,</li>
+ * <li>the lists of peer ids,</li>
+ * <li>the posting lists, each the ids of the files holding a trigram, in
+ * increasing order,</li>
+ * <li>the names of the peers and files, each as its length and UTF-8 bytes.</li>
+ * </ul>
+ *
+ * @see {@link pb.IndexStore}
+ * @author aaron
+ *
+ */
+public class IndexSnapshot {
+
+	/**
+	 * The files to write to a snapshot. They are gone through twice and must be
+	 * the same, in the same order, both times.
+	 */
+	public interface Entries {
+		/**
+		 * @param action called with each filename and the peers that have it
+		 */
+		void forEach(BiConsumer<String,Collection<String>> action);
+	}
+
+	private static final int magic=0x50424958; // "PBIX"
+	private static final int version=1;
+
+	private static final int headerSize=96;
+	private static final int peerSize=16;
+	private static final int fileSize=20;
+	private static final int trigramSize=20;
+
+	private final MappedFile file;
+	private final long generation;
+	private final int numFiles;
+	private final int fileTableSize;
+	private final int trigramTableSize;
+	private final long filesOffset;
+	private final long fileTableOffset;
+	private final long trigramTableOffset;
+
+	/**
+	 * The peers, by id, which are few enough to keep in memory.
+	 */
+	private final String[] peers;
+	private final long[] lastSeen;
+
+	private IndexSnapshot(MappedFile file) throws IOException {
+		this.file=file;
+		if(file.length()<headerSize || file.getInt(0)!=magic || file.getInt(4)!=version) {
+			throw new IOException("not an index snapshot");
+		}
+		generation=file.getLong(8);
+		int numPeers=file.getInt(16);
+		numFiles=file.getInt(20);
+		fileTableSize=file.getInt(24);
+		trigramTableSize=file.getInt(28);
+		long peersOffset=file.getLong(32);
+		filesOffset=file.getLong(40);
+		fileTableOffset=file.getLong(48);
+		trigramTableOffset=file.getLong(56);
+		peers=new String[numPeers];
+		lastSeen=new long[numPeers];
+		for(int i=0;i<numPeers;i++) {
+			lastSeen[i]=file.getLong(peersOffset+(long) i*peerSize);
+			peers[i]=file.getString(file.getLong(peersOffset+(long) i*peerSize+8));
+		}
+	}
+
+	/**
+	 * Map a snapshot.
+	 * @param path
+	 * @return the snapshot
+	 * @throws IOException if the file cannot be mapped or is not a snapshot
+	 */
+	public static IndexSnapshot open(File path) throws IOException {
+		return new IndexSnapshot(MappedFile.openForReading(path));
+	}
+
+	/**
+	 * @return the first log generation that is not in this snapshot
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return the number of files
+	 */
+	public int size() {
+		return numFiles;
+	}
+
+	/**
+	 * @return each peer to when it was last seen, when the snapshot was written
+	 */
+	public Map<String,Long> getLastSeen() {
+		Map<String,Long> seen=new HashMap<>();
+		for(int i=0;i<peers.length;i++) seen.put(peers[i],lastSeen[i]);
+		return seen;
+	}
+
+	private static int hash(String filename) {
+		int h=filename.hashCode();
+		h^=h>>>16;
+		h*=0x85ebca6b;
+		return h^(h>>>13);
+	}
+
+	private static int hash(long trigram) {
+		return (int) ((trigram*0x9E3779B97F4A7C15L)>>>32);
+	}
+
+	/**
+	 * @param lower a lower cased filename
+	 * @return the distinct trigrams of the filename, each as three chars in a long
+	 */
+	private static long[] trigrams(String lower) {
+		if(lower.length()<3) return new long[0];
+		long[] trigrams=new long[lower.length()-2];
+		for(int i=0;i<trigrams.length;i++) {
+			trigrams[i]=((long) lower.charAt(i)<<32)|((long) lower.charAt(i+1)<<16)|lower.charAt(i+2);
+		}
+		Arrays.sort(trigrams);
+		int distinct=0;
+		for(int i=0;i<trigrams.length;i++) {
+			if(i==0 || trigrams[i]!=trigrams[i-1]) trigrams[distinct++]=trigrams[i];
+		}
+		return Arrays.copyOf(trigrams,distinct);
+	}
+
+	private String filename(int id) {
+		return file.getString(file.getLong(filesOffset+(long) id*fileSize));
+	}
+
+	private List<String> peersOf(int id) {
+		long record=filesOffset+(long) id*fileSize;
+		long list=file.getLong(record+8);
+		int count=file.getInt(record+16);
+		List<String> names=new ArrayList<>(count);
+		for(int i=0;i<count;i++) names.add(peers[file.getInt(list+4L*i)]);
+		return names;
+	}
+
+	/**
+	 * @param filename
+	 * @return the file's id, or -1 if it is not in the snapshot
+	 */
+	private int find(String filename) {
+		if(fileTableSize==0) return -1;
+		int mask=fileTableSize-1;
+		for(int slot=hash(filename)&mask;;slot=(slot+1)&mask) {
+			int id=file.getInt(fileTableOffset+4L*slot)-1;
+			if(id<0) return -1;
+			if(filename(id).equals(filename)) return id;
+		}
+	}
+
+	/**
+	 * @param filename
+	 * @return the peers that have the file, or null if it is not in the snapshot
+	 */
+	public List<String> getPeers(String filename) {
+		int id=find(filename);
+		return id<0 ? null : peersOf(id);
+	}
+
+	/**
+	 * @param filename
+	 * @return true if the file is in the snapshot
+	 */
+	public boolean contains(String filename) {
+		return find(filename)>=0;
+	}
+
+	/**
+	 * Call an action with every file and its peers, in id order.
+	 * @param action
+	 */
+	public void forEach(BiConsumer<String,Collection<String>> action) {
+		for(int id=0;id<numFiles;id++) action.accept(filename(id),peersOf(id));
+	}
+
+	/**
+	 * @param trigram
+	 * @return the position of the trigram's table entry, or -1 if no file has it
+	 */
+	private long findTrigram(long trigram) {
+		if(trigramTableSize==0) return -1;
+		int mask=trigramTableSize-1;
+		for(int slot=hash(trigram)&mask;;slot=(slot+1)&mask) {
+			long entry=trigramTableOffset+(long) slot*trigramSize;
+			if(file.getInt(entry+16)==0) return -1;
+			if(file.getLong(entry)==trigram) return entry;
+		}
+	}
+
+	/**
+	 * @param list position of a posting list
+	 * @param count its length
+	 * @param id
+	 * @return true if the id is in the list
+	 */
+	private boolean posted(long list,int count,int id) {
+		int low=0;
+		int high=count-1;
+		while(low<=high) {
+			int mid=(low+high)>>>1;
+			int value=file.getInt(list+4L*mid);
+			if(value<id) low=mid+1;
+			else if(value>id) high=mid-1;
+			else return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Add the files that contain any of the terms, ignoring case, to the hits,
+	 * in the same way as {@link pb.TrigramIndex#search(Collection)}.
+	 * @param terms
+	 * @param hits
+	 */
+	public void search(Collection<String> terms,Set<String> hits) {
+		for(String term : terms) {
+			forEachMatch(term.toLowerCase(),(filename,lower)->{
+				hits.add(filename);
+			});
+		}
+	}
+
+	/**
+	 * Give each file that contains a term, ignoring case, one at a time, so
+	 * that the hits of a term need not all be held at once.
+	 * @param lower the term, lower cased
+	 * @param action called with the filename and its lower cased form
+	 */
+	public void forEachMatch(String lower,BiConsumer<String,String> action) {
+		if(lower.length()<3) {
+			for(int id=0;id<numFiles;id++) {
+				String filename=filename(id);
+				String filelower=filename.toLowerCase();
+				if(filelower.contains(lower)) action.accept(filename,filelower);
+			}
+			return;
+		}
+		long[] trigrams=trigrams(lower);
+		long[] lists=new long[trigrams.length];
+		int[] counts=new int[trigrams.length];
+		int shortest=0;
+		for(int i=0;i<trigrams.length;i++) {
+			long entry=findTrigram(trigrams[i]);
+			if(entry<0) return;
+			lists[i]=file.getLong(entry+8);
+			counts[i]=file.getInt(entry+16);
+			if(counts[i]<counts[shortest]) shortest=i;
+		}
+		candidates:
+		for(int k=0;k<counts[shortest];k++) {
+			int id=file.getInt(lists[shortest]+4L*k);
+			for(int i=0;i<trigrams.length;i++) {
+				if(i!=shortest && !posted(lists[i],counts[i],id)) continue candidates;
+			}
+			String filename=filename(id);
+			String filelower=filename.toLowerCase();
+			// the trigrams may be in the wrong order or apart
+			if(lower.length()==3 || filelower.contains(lower)) action.accept(filename,filelower);
+		}
+	}
+
+	private static int tableSize(int entries) {
+		int size=1;
+		while(size<entries*2L) size<<=1;
+		return entries==0 ? 0 : size;
+	}
+
+	/**
+	 * Write a snapshot. Only the posting list counts and peer ids are kept in
+	 * memory while writing, the rest goes straight to the mapped file.
+	 * @param path
+	 * @param entries the files and their peers
+	 * @param lastSeen when each peer was last seen
+	 * @param generation the first log generation that is not in the snapshot
+	 * @throws IOException if the file cannot be written, or the entries changed
+	 * between the two times they were gone through
+	 */
+	public static void write(File path,Entries entries,Map<String,Long> lastSeen,long generation)
+			throws IOException {
+		// first time through: sizes
+		Map<String,Integer> peerIds=new LinkedHashMap<>();
+		for(String peer : lastSeen.keySet()) peerIds.put(peer,peerIds.size());
+		Map<Long,long[]> postings=new HashMap<>(); // trigram to {count, position}
+		long[] totals=new long[4]; // files, peer ids, postings, name bytes
+		entries.forEach((filename,filePeers)->{
+			totals[0]++;
+			totals[1]+=filePeers.size();
+			totals[3]+=4+filename.getBytes(StandardCharsets.UTF_8).length;
+			for(String peer : filePeers) {
+				if(!peerIds.containsKey(peer)) peerIds.put(peer,peerIds.size());
+			}
+			for(long trigram : trigrams(filename.toLowerCase())) {
+				long[] posting=postings.get(trigram);
+				if(posting==null) {
+					posting=new long[2];
+					postings.put(trigram,posting);
+				}
+				posting[0]++;
+				totals[2]++;
+			}
+		});
+		if(totals[0]>Integer.MAX_VALUE/2) throw new IOException("too many files for a snapshot");
+		int numFiles=(int) totals[0];
+		long peerNameBytes=0;
+		for(String peer : peerIds.keySet()) peerNameBytes+=4+peer.getBytes(StandardCharsets.UTF_8).length;
+		int fileTableSize=tableSize(numFiles);
+		int trigramTableSize=tableSize(postings.size());
+		long peersOffset=headerSize;
+		long filesOffset=peersOffset+(long) peerIds.size()*peerSize;
+		long fileTableOffset=filesOffset+(long) numFiles*fileSize;
+		long trigramTableOffset=fileTableOffset+4L*fileTableSize;
+		long peerListsOffset=trigramTableOffset+(long) trigramTableSize*trigramSize;
+		long postingsOffset=peerListsOffset+4L*totals[1];
+		long namesOffset=postingsOffset+4L*totals[2];
+		long length=namesOffset+peerNameBytes+totals[3];
+
+		MappedFile out=MappedFile.create(path,length);
+		out.putInt(0,magic);
+		out.putInt(4,version);
+		out.putLong(8,generation);
+		out.putInt(16,peerIds.size());
+		out.putInt(20,numFiles);
+		out.putInt(24,fileTableSize);
+		out.putInt(28,trigramTableSize);
+		out.putLong(32,peersOffset);
+		out.putLong(40,filesOffset);
+		out.putLong(48,fileTableOffset);
+		out.putLong(56,trigramTableOffset);
+		out.putLong(64,peerListsOffset);
+		out.putLong(72,postingsOffset);
+		out.putLong(80,namesOffset);
+
+		long name=namesOffset;
+		for(Map.Entry<String,Integer> peer : peerIds.entrySet()) {
+			long record=peersOffset+(long) peer.getValue()*peerSize;
+			out.putLong(record,lastSeen.getOrDefault(peer.getKey(),0L));
+			out.putLong(record+8,name);
+			name=out.putString(name,peer.getKey().getBytes(StandardCharsets.UTF_8));
+		}
+		long posting=postingsOffset;
+		int trigramMask=trigramTableSize-1;
+		for(Map.Entry<Long,long[]> trigram : postings.entrySet()) {
+			long[] list=trigram.getValue();
+			list[1]=posting;
+			int slot=hash(trigram.getKey())&trigramMask;
+			while(out.getInt(trigramTableOffset+(long) slot*trigramSize+16)!=0) slot=(slot+1)&trigramMask;
+			long entry=trigramTableOffset+(long) slot*trigramSize;
+			out.putLong(entry,trigram.getKey());
+			out.putLong(entry+8,posting);
+			out.putInt(entry+16,(int) list[0]);
+			posting+=4*list[0];
+		}
+
+		// second time through: the files, in id order
+		long[] cursor={0,peerListsOffset,name}; // next id, peer list, name
+		int fileMask=fileTableSize-1;
+		entries.forEach((filename,filePeers)->{
+			int id=(int) cursor[0]++;
+			if(id>=numFiles) return;
+			long record=filesOffset+(long) id*fileSize;
+			out.putLong(record,cursor[2]);
+			out.putLong(record+8,cursor[1]);
+			out.putInt(record+16,filePeers.size());
+			cursor[2]=out.putString(cursor[2],filename.getBytes(StandardCharsets.UTF_8));
+			for(String peer : filePeers) {
+				Integer peerId=peerIds.get(peer);
+				out.putInt(cursor[1],peerId==null ? 0 : peerId);
+				cursor[1]+=4;
+			}
+			int slot=hash(filename)&fileMask;
+			while(out.getInt(fileTableOffset+4L*slot)!=0) slot=(slot+1)&fileMask;
+			out.putInt(fileTableOffset+4L*slot,id+1);
+			for(long trigram : trigrams(filename.toLowerCase())) {
+				long[] list=postings.get(trigram);
+				if(list==null) continue;
+				out.putInt(list[1],id);
+				list[1]+=4;
+			}
+		});
+		if(cursor[0]!=numFiles || cursor[2]!=length) {
+			throw new IOException("the files changed while the snapshot was written");
+		}
+		out.force();
+	}
+
+	/**
+	 * @return the files in the snapshot that are not among the given ones, for
+	 * merging with newer files
+	 * @param newer
+	 */
+	public Entries without(Map<String,? extends Collection<String>> newer) {
+		return (action)->{
+			forEach((filename,filePeers)->{
+				if(!newer.containsKey(filename)) action.accept(filename,filePeers);
+			});
+		};
+	}
+
+	/**
+	 * @param first
+	 * @param second
+	 * @return the entries of both, first then second
+	 */
+	public static Entries concat(Entries first,Map<String,? extends Collection<String>> second) {
+		return (action)->{
+			if(first!=null) first.forEach(action);
+			for(Map.Entry<String,? extends Collection<String>> entry : second.entrySet()) {
+				action.accept(entry.getKey(),Collections.unmodifiableCollection(entry.getValue()));
+			}
+		};
+	}
+
+	/**
+	 * @param entries
+	 * @param live the peers to keep
+	 * @return the entries with only the live peers, and without the files
+	 * that are left with none
+	 */
+	public static Entries retain(Entries entries,Map<String,?> live) {
+		return (action)->{
+			entries.forEach((filename,filePeers)->{
+				List<String> kept=new ArrayList<>(filePeers.size());
+				for(String peer : filePeers) {
+					if(live.containsKey(peer)) kept.add(peer);
+				}
+				if(!kept.isEmpty()) action.accept(filename,kept);
+			});
+		};
+	}
+}
@@ -0,0 +1,454 @@
+package pb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent storage for the {@link pb.IndexServer}'s index, so that a
+ * restarted index server still knows every peer's files. The index is kept
+ * as an {@link pb.IndexSnapshot} in "index.snapshot", which is memory mapped
+ * and searched in place, plus the updates made since it was written, which
+ * are appended to a log. The log is split into generations, "index.log.N",
+ * and the snapshot says which generation follows it. When a generation has
+ * grown enough the index server starts a new one and writes a snapshot of
+ * everything up to it, after which the older generations are deleted.
+ * <br/>
+ * Each log record is its length, the record, and a CRC32 of the record. A
+ * record is 'A' and the peer and filename of an index update, 'S' and the
+ * peer and time of a peer update, or 'E' and the peer and time of an eviction
+ * of a peer that was not seen for too long, as written by
+ * {@link java.io.DataOutputStream}. Records are written and forced to disk by
+ * a writer thread every {@link #flushInterval} ms, so the last few can be
+ * lost if the server stops abruptly; peers that share again put them back.
+ *
+ * @see {@link pb.IndexServer}
+ * @author aaron
+ *
+ */
+public class IndexStore {
+	private static Logger log = Logger.getLogger(IndexStore.class.getName());
+
+	/**
+	 * What a log holds, for replaying it.
+	 */
+	public interface Replay {
+		void added(String peerport,String filename);
+		void seen(String peerport,long time);
+		void evicted(String peerport);
+	}
+
+	/**
+	 * Time (ms) between writes of the log.
+	 */
+	private static final long flushInterval=100;
+
+	/**
+	 * Largest record that is believed when replaying.
+	 */
+	private static final int maxRecord=1<<20;
+
+	private static final byte opAdded='A';
+	private static final byte opSeen='S';
+	private static final byte opEvicted='E';
+
+	private final File dir;
+	private final File snapshotFile;
+
+	/**
+	 * Number of records after which a new snapshot is due.
+	 */
+	private final long compactEvery;
+
+	/**
+	 * The generation being appended to, guarded by this.
+	 */
+	private long generation=0;
+
+	/**
+	 * Records since the last generation was started, guarded by this.
+	 */
+	private long sinceRoll=0;
+
+	/**
+	 * The log of the generation being appended to, guarded by this.
+	 */
+	private FileChannel channel=null;
+
+	/**
+	 * Records not yet written, guarded by this. The writer swaps it for an
+	 * empty one and writes the records without holding this, so appending
+	 * does not wait for the disk.
+	 */
+	private ByteArrayOutputStream pending=new ByteArrayOutputStream();
+
+	/**
+	 * Held while records are written to a log, so that they are written in
+	 * order. Taken before this, never while holding it.
+	 */
+	private final Object writeLock=new Object();
+
+	private boolean closed=false;
+
+	private Thread writer;
+
+	/**
+	 * @param dir directory for the snapshot and logs, created if needed
+	 * @param compactEvery number of records after which a snapshot is due
+	 */
+	public IndexStore(File dir,long compactEvery) {
+		dir.mkdirs();
+		this.dir=dir;
+		this.snapshotFile=new File(dir,"index.snapshot");
+		this.compactEvery=Math.max(1,compactEvery);
+	}
+
+	private File logFile(long generation) {
+		return new File(dir,"index.log."+generation);
+	}
+
+	/**
+	 * @return the generations of the logs in the directory, in order
+	 */
+	private List<Long> logGenerations() {
+		List<Long> generations=new ArrayList<>();
+		String[] names=dir.list();
+		if(names==null) return generations;
+		for(String name : names) {
+			if(!name.startsWith("index.log.")) continue;
+			try {
+				generations.add(Long.parseLong(name.substring("index.log.".length())));
+			} catch (NumberFormatException e) {
+				// not one of ours
+			}
+		}
+		Collections.sort(generations);
+		return generations;
+	}
+
+	/**
+	 * Map the snapshot, if there is one.
+	 * @return the snapshot, or null if there is none
+	 * @throws IOException if the snapshot cannot be mapped
+	 */
+	public IndexSnapshot openSnapshot() throws IOException {
+		if(!snapshotFile.exists()) return null;
+		long start=System.nanoTime();
+		IndexSnapshot snapshot=IndexSnapshot.open(snapshotFile);
+		synchronized(this) {
+			generation=snapshot.getGeneration();
+		}
+		log.info("mapped a snapshot of "+snapshot.size()+" files in "+(System.nanoTime()-start)/1000+" us");
+		return snapshot;
+	}
+
+	/**
+	 * Replay the logs that follow the snapshot, dropping a record that was
+	 * only partly written at the end, then open the log for appending.
+	 * @param replay
+	 * @throws IOException if a log cannot be read or opened
+	 */
+	public void open(Replay replay) throws IOException {
+		long start=System.currentTimeMillis();
+		long records=0;
+		long last;
+		synchronized(this) {
+			last=generation;
+		}
+		long valid=0;
+		for(long g : logGenerations()) {
+			if(g<generation) continue;
+			last=g;
+			valid=0;
+			try(DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(logFile(g))))) {
+				CRC32 crc=new CRC32();
+				while(true) {
+					byte[] record;
+					int check;
+					try {
+						int length=in.readInt();
+						if(length<1 || length>maxRecord) break;
+						record=new byte[length];
+						in.readFully(record);
+						check=in.readInt();
+					} catch (EOFException e) {
+						break;
+					}
+					crc.reset();
+					crc.update(record);
+					if((int) crc.getValue()!=check || !apply(record,replay)) break;
+					valid+=4+record.length+4;
+					records++;
+				}
+			}
+		}
+		synchronized(this) {
+			generation=last;
+			sinceRoll=records;
+			channel=FileChannel.open(logFile(generation).toPath(),StandardOpenOption.CREATE,StandardOpenOption.WRITE);
+			if(channel.size()>valid) {
+				log.warning("dropping "+(channel.size()-valid)+" bytes at the end of "+logFile(generation));
+				channel.truncate(valid);
+			}
+			channel.position(valid);
+		}
+		log.info("replayed "+records+" log records in "+(System.currentTimeMillis()-start)+" ms");
+		writer=new Thread(()->{writeRecords();},"IndexStore-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @param record
+	 * @param replay
+	 * @return false if the record is not one of ours
+	 */
+	private static boolean apply(byte[] record,Replay replay) {
+		try {
+			DataInputStream in=new DataInputStream(new ByteArrayInputStream(record));
+			byte op=in.readByte();
+			String peerport=in.readUTF();
+			if(op==opAdded) {
+				replay.added(peerport,in.readUTF());
+			} else if(op==opSeen) {
+				replay.seen(peerport,in.readLong());
+			} else if(op==opEvicted) {
+				replay.evicted(peerport);
+			} else {
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Log an index update.
+	 * @param peerport
+	 * @param filename
+	 */
+	public void added(String peerport,String filename) {
+		append(opAdded,peerport,filename,0);
+	}
+
+	/**
+	 * Log a peer update.
+	 * @param peerport
+	 * @param time
+	 */
+	public void seen(String peerport,long time) {
+		append(opSeen,peerport,null,time);
+	}
+
+	/**
+	 * Log the eviction of a peer.
+	 * @param peerport
+	 * @param time
+	 */
+	public void evicted(String peerport,long time) {
+		append(opEvicted,peerport,null,time);
+	}
+
+	private void append(byte op,String peerport,String filename,long time) {
+		byte[] record;
+		try {
+			ByteArrayOutputStream bytes=new ByteArrayOutputStream(64);
+			DataOutputStream out=new DataOutputStream(bytes);
+			out.writeByte(op);
+			out.writeUTF(peerport);
+			if(filename!=null) out.writeUTF(filename); else out.writeLong(time);
+			record=bytes.toByteArray();
+		} catch (IOException e) {
+			log.severe("cannot log update of "+peerport+": "+e.getMessage());
+			return;
+		}
+		CRC32 crc=new CRC32();
+		crc.update(record);
+		synchronized(this) {
+			if(closed) return;
+			DataOutputStream out=new DataOutputStream(pending);
+			try {
+				out.writeInt(record.length);
+				out.write(record);
+				out.writeInt((int) crc.getValue());
+			} catch (IOException e) {
+				// cannot happen writing to memory
+			}
+			sinceRoll++;
+		}
+	}
+
+	/**
+	 * @return true if enough has been logged that a snapshot is due
+	 */
+	public synchronized boolean compactDue() {
+		return sinceRoll>=compactEvery;
+	}
+
+	/**
+	 * Write what is pending to the log.
+	 */
+	private void flush() {
+		synchronized(writeLock) {
+			ByteArrayOutputStream batch;
+			FileChannel out;
+			synchronized(this) {
+				if(pending.size()==0 || channel==null) return;
+				batch=pending;
+				pending=new ByteArrayOutputStream();
+				out=channel;
+			}
+			write(batch,out);
+		}
+	}
+
+	/**
+	 * Write records to a log and force them to disk. If that fails, the log is
+	 * truncated back to where it was, so that no record is left partly
+	 * written in the middle of it, and the records are put back in front of
+	 * those appended since, to be written again. Called holding writeLock.
+	 * @param batch
+	 * @param out the log
+	 */
+	private void write(ByteArrayOutputStream batch,FileChannel out) {
+		long good=-1;
+		try {
+			good=out.position();
+			ByteBuffer buffer=ByteBuffer.wrap(batch.toByteArray());
+			while(buffer.hasRemaining()) out.write(buffer);
+			out.force(false);
+			return;
+		} catch (IOException e) {
+			log.severe("cannot write to the index log, keeping "+batch.size()
+					+" bytes of records to write again: "+e.getMessage());
+		}
+		try {
+			if(good>=0) {
+				out.truncate(good);
+				out.position(good);
+			}
+		} catch (IOException e) {
+			log.severe("cannot truncate the index log after a failed write: "+e.getMessage());
+		}
+		synchronized(this) {
+			byte[] appended=pending.toByteArray();
+			pending=batch;
+			pending.write(appended,0,appended.length);
+		}
+	}
+
+	/**
+	 * Writer thread: write the pending records every so often.
+	 */
+	private void writeRecords() {
+		while(true) {
+			flush();
+			synchronized(this) {
+				if(closed) return;
+			}
+			try {
+				Thread.sleep(flushInterval);
+			} catch (InterruptedException e) {
+				// write what there is now
+			}
+		}
+	}
+
+	/**
+	 * Start a new log generation. Records appended before this returns are in
+	 * the older generations, which the next snapshot must cover.
+	 * @return the new generation
+	 * @throws IOException if the new log cannot be opened
+	 */
+	public long roll() throws IOException {
+		synchronized(writeLock) {
+			ByteArrayOutputStream batch;
+			FileChannel old;
+			long rolled;
+			synchronized(this) {
+				FileChannel next=FileChannel.open(logFile(generation+1).toPath(),StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING,StandardOpenOption.WRITE);
+				batch=pending;
+				pending=new ByteArrayOutputStream();
+				old=channel;
+				channel=next;
+				rolled=++generation;
+				sinceRoll=0;
+			}
+			// records that cannot be written to the old generation go in the new one
+			if(batch.size()>0) write(batch,old);
+			old.close();
+			return rolled;
+		}
+	}
+
+	/**
+	 * Write a snapshot that covers every generation before the given one, make
+	 * it the current snapshot and delete those generations.
+	 * @param entries every file and its peers
+	 * @param lastSeen when each peer was last seen
+	 * @param generation as returned by {@link #roll()}
+	 * @return the new snapshot, mapped
+	 * @throws IOException if the snapshot cannot be written, in which case the
+	 * logs are kept
+	 */
+	public IndexSnapshot writeSnapshot(IndexSnapshot.Entries entries,Map<String,Long> lastSeen,long generation)
+			throws IOException {
+		long start=System.currentTimeMillis();
+		File tmp=new File(dir,"index.snapshot.tmp");
+		IndexSnapshot.write(tmp,entries,lastSeen,generation);
+		Files.move(tmp.toPath(),snapshotFile.toPath(),StandardCopyOption.ATOMIC_MOVE,StandardCopyOption.REPLACE_EXISTING);
+		for(long g : logGenerations()) {
+			if(g<generation) logFile(g).delete();
+		}
+		IndexSnapshot snapshot=IndexSnapshot.open(snapshotFile);
+		log.info("wrote a snapshot of "+snapshot.size()+" files in "+(System.currentTimeMillis()-start)+" ms");
+		return snapshot;
+	}
+
+	/**
+	 * Write any pending records and close the log.
+	 */
+	public void close() {
+		synchronized(this) {
+			if(closed) return;
+			closed=true;
+		}
+		if(writer!=null) {
+			writer.interrupt();
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				log.warning("interrupted while waiting for the index log to be written");
+			}
+		}
+		flush();
+		synchronized(writeLock) {
+			synchronized(this) {
+				try {
+					if(channel!=null) channel.close();
+				} catch (IOException e) {
+					log.warning("exception closing "+logFile(generation)+": "+e.getMessage());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,447 @@
+package pb;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import pb.managers.ClientManager;
+import pb.managers.ServerManager;
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
+import pb.utils.Utils;
+
+/**
+ * Load generator for the {@link pb.WhiteboardServer}. Simulates a number of
+ * headless peers, each a {@link pb.managers.ClientManager}, that connect to
+ * the server and then share and unshare boards at given rates. For every
+ * {@link pb.WhiteboardServer#sharingBoard} and {@link pb.WhiteboardServer#unsharingBoard}
+ * a peer receives about another peer's board, the time since the other peer
+ * emitted the share or unshare is recorded. At the end a JSON report is
+ * written with the throughput, the latency percentiles and, given the server's
+ * password, the server's thread and heap usage before and after the load.
+ * <br/>
+ * Each peer uses a few threads, so simulating thousands of peers needs a
+ * large enough thread limit on the machine running the load generator.
+ *
+ * @see {@link pb.WhiteboardServer}
+ * @author aaron
+ *
+ */
+public class LoadGenerator {
+	private static Logger log = Logger.getLogger(LoadGenerator.class.getName());
+
+	private static int port = Utils.serverPort;
+	private static String host = Utils.serverHost;
+
+	/**
+	 * Latencies in microseconds, in buckets that are within 1% of their
+	 * values, so recording is a single atomic increment from any thread.
+	 */
+	private static class LatencyHistogram {
+		private static final int subBuckets = 128;
+		private final AtomicLongArray counts = new AtomicLongArray(64*subBuckets);
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		private static int index(long value) {
+			if(value<subBuckets) return (int) value;
+			int magnitude = 63-Long.numberOfLeadingZeros(value);
+			return (magnitude-6)*subBuckets + (int) ((value>>(magnitude-7)) & (subBuckets-1));
+		}
+
+		private static long valueOf(int index) {
+			if(index<subBuckets) return index;
+			int magnitude = index/subBuckets+6;
+			return ((long) (subBuckets+index%subBuckets))<<(magnitude-7);
+		}
+
+		void record(long micros) {
+			if(micros<0) micros=0;
+			counts.incrementAndGet(index(micros));
+			total.incrementAndGet();
+			sum.addAndGet(micros);
+			max.accumulateAndGet(micros,Math::max);
+		}
+
+		long getCount() {
+			return total.get();
+		}
+
+		long percentile(double p) {
+			long count = total.get();
+			if(count==0) return 0;
+			long rank = (long) Math.ceil(p*count);
+			long seen = 0;
+			for(int i=0;i<counts.length();i++) {
+				seen += counts.get(i);
+				if(seen>=rank) return valueOf(i);
+			}
+			return max.get();
+		}
+
+		Document toDocument() {
+			Document doc = new Document();
+			long count = total.get();
+			doc.append("count",count);
+			doc.append("meanUs",count==0 ? 0 : sum.get()/count);
+			doc.append("p50Us",percentile(0.5));
+			doc.append("p90Us",percentile(0.9));
+			doc.append("p99Us",percentile(0.99));
+			doc.append("p999Us",percentile(0.999));
+			doc.append("maxUs",max.get());
+			return doc;
+		}
+	}
+
+	/**
+	 * A simulated peer.
+	 */
+	private static class Peer {
+		final int id;
+		final String name;
+		final ClientManager clientManager;
+		volatile Endpoint endpoint = null;
+		final ArrayDeque<String> shared = new ArrayDeque<>();
+		long boards = 0;
+
+		Peer(int id) throws UnknownHostException, InterruptedException {
+			this.id = id;
+			// the port is not real, nobody connects to load generator peers
+			this.name = "loadgen"+id+":"+id;
+			this.clientManager = new ClientManager(host,port);
+		}
+	}
+
+	/**
+	 * Time (ns) each board was shared or unshared.
+	 */
+	private static final ConcurrentHashMap<String,Long> shareTimes = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String,Long> unshareTimes = new ConcurrentHashMap<>();
+
+	private static final LatencyHistogram shareLatency = new LatencyHistogram();
+	private static final LatencyHistogram unshareLatency = new LatencyHistogram();
+
+	private static final AtomicLong sharesSent = new AtomicLong();
+	private static final AtomicLong unsharesSent = new AtomicLong();
+	private static final AtomicInteger sessions = new AtomicInteger();
+	private static final AtomicInteger sessionErrors = new AtomicInteger();
+
+	/**
+	 * Set while the load is running, so that only notifications for boards
+	 * shared during the run are counted.
+	 */
+	private static volatile boolean running = false;
+
+	/**
+	 * The reply to the admin session's request for the server's stats, or
+	 * null if none has been made.
+	 */
+	private static volatile CompletableFuture<Document> statsReply = null;
+
+	private static void help(Options options){
+		String header = "PB Whiteboard Server load generator for Unimelb COMP90015\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.LoadGenerator", header, options, footer, true);
+		System.exit(-1);
+	}
+
+	/**
+	 * Start a peer and listen for notifications of other peers' boards.
+	 * @param peer
+	 */
+	private static void startPeer(Peer peer) {
+		peer.clientManager.on(ClientManager.sessionStarted, (eventArgs)->{
+			Endpoint endpoint = (Endpoint) eventArgs[0];
+			endpoint.on(WhiteboardServer.sharingBoard, (eventArgs2)->{
+				received(peer,(String) eventArgs2[0],shareTimes,shareLatency);
+			}).on(WhiteboardServer.unsharingBoard, (eventArgs2)->{
+				received(peer,(String) eventArgs2[0],unshareTimes,unshareLatency);
+			}).on(WhiteboardServer.sharingBoards, (eventArgs2)->{
+				// boards shared before this peer connected
+			}).on(WhiteboardServer.unsharingBoards, (eventArgs2)->{
+				// boards of peers whose leases have expired
+			}).on(WhiteboardServer.error, (eventArgs2)->{
+				log.warning("peer "+peer.id+" got error for "+eventArgs2[0]);
+			});
+			peer.endpoint = endpoint;
+			sessions.incrementAndGet();
+		}).on(ClientManager.sessionError, (eventArgs)->{
+			peer.endpoint = null;
+			sessionErrors.incrementAndGet();
+		}).on(ClientManager.sessionStopped, (eventArgs)->{
+			peer.endpoint = null;
+		});
+		// so that peers that never connect do not keep the generator running
+		peer.clientManager.setDaemon(true);
+		peer.clientManager.start();
+	}
+
+	/**
+	 * A peer has been told about a board, record the latency if another peer
+	 * shared it during the run.
+	 * @param peer
+	 * @param board
+	 * @param times when boards were emitted
+	 * @param histogram
+	 */
+	private static void received(Peer peer,String board,ConcurrentHashMap<String,Long> times,LatencyHistogram histogram) {
+		if(!running || board.startsWith(peer.name+":")) return;
+		Long emitted = times.get(board);
+		if(emitted==null) return;
+		histogram.record((System.nanoTime()-emitted)/1000);
+	}
+
+	private static void share(Peer peer) {
+		Endpoint endpoint = peer.endpoint;
+		if(endpoint==null) return;
+		String board;
+		synchronized(peer) {
+			board = peer.name+":board"+(peer.boards++);
+			peer.shared.add(board);
+		}
+		shareTimes.put(board,System.nanoTime());
+		endpoint.emit(WhiteboardServer.shareBoard,board);
+		sharesSent.incrementAndGet();
+	}
+
+	private static void unshare(Peer peer) {
+		Endpoint endpoint = peer.endpoint;
+		if(endpoint==null) return;
+		String board;
+		synchronized(peer) {
+			board = peer.shared.poll();
+		}
+		if(board==null) return;
+		unshareTimes.put(board,System.nanoTime());
+		endpoint.emit(WhiteboardServer.unshareBoard,board);
+		unsharesSent.incrementAndGet();
+	}
+
+	/**
+	 * Ask the server for its stats over an admin session.
+	 * @param admin endpoint of the admin session
+	 * @param password
+	 * @return the summary of the stats, or null if there was no reply in time
+	 */
+	private static Document serverStats(Endpoint admin,String password) {
+		CompletableFuture<Document> reply = new CompletableFuture<>();
+		statsReply = reply;
+		admin.emit(ServerManager.serverStats,password);
+		try {
+			Document summary = reply.get(10,TimeUnit.SECONDS);
+			Document server = new Document();
+			server.append("liveEndpoints",summary.getLong("liveEndpoints"));
+			server.append("threads",summary.getLong("threads"));
+			server.append("heapUsed",summary.getLong("heapUsed"));
+			server.append("heapMax",summary.getLong("heapMax"));
+			return server;
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			log.warning("no stats from the server: "+e.getMessage());
+			return null;
+		}
+	}
+
+	public static void main( String[] args ) throws IOException, InterruptedException
+	{
+		// set a nice log format
+		System.setProperty("java.util.logging.SimpleFormatter.format",
+				"[%1$tl:%1$tM:%1$tS:%1$tL] [%4$s] %2$s: %5$s%n");
+
+		// parse command line options
+		Options options = new Options();
+		options.addOption("port",true,"server port, an integer");
+		options.addOption("host",true,"hostname, a string");
+		options.addOption("peers",true,"number of peers to simulate, an integer");
+		options.addOption("connectRate",true,"peers connecting per second, a number");
+		options.addOption("shareRate",true,"boards each peer shares per second, a number");
+		options.addOption("unshareRate",true,"boards each peer unshares per second, a number");
+		options.addOption("duration",true,"seconds to run the load for, an integer");
+		options.addOption("settle",true,"ms to wait for late notifications after the load, an integer");
+		options.addOption("password",true,"password for server, to report its thread and heap usage");
+		options.addOption("report",true,"file to write the JSON report to, instead of standard output");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+
+		int numPeers = 100;
+		double connectRate = 100;
+		double shareRate = 0.2;
+		double unshareRate = 0.1;
+		long duration = 30;
+		long settle = 2000;
+		try{
+			if(cmd.hasOption("port")) port = Integer.parseInt(cmd.getOptionValue("port"));
+			numPeers = Integer.parseInt(cmd.getOptionValue("peers",String.valueOf(numPeers)));
+			connectRate = Double.parseDouble(cmd.getOptionValue("connectRate",String.valueOf(connectRate)));
+			shareRate = Double.parseDouble(cmd.getOptionValue("shareRate",String.valueOf(shareRate)));
+			unshareRate = Double.parseDouble(cmd.getOptionValue("unshareRate",String.valueOf(unshareRate)));
+			duration = Long.parseLong(cmd.getOptionValue("duration",String.valueOf(duration)));
+			settle = Long.parseLong(cmd.getOptionValue("settle",String.valueOf(settle)));
+		} catch (NumberFormatException e){
+			System.out.println("options require numbers: "+e.getMessage());
+			help(options);
+		}
+		if(numPeers<1 || connectRate<=0 || shareRate<0 || unshareRate<0 || duration<1) {
+			System.out.println("-peers, -connectRate and -duration must be positive, and rates not negative");
+			help(options);
+		}
+		if(cmd.hasOption("host")) {
+			host = cmd.getOptionValue("host");
+		}
+
+		// an admin session for the server's stats
+		Endpoint[] admin = new Endpoint[1];
+		String password = cmd.getOptionValue("password");
+		ClientManager adminManager = null;
+		if(password!=null) {
+			CompletableFuture<Endpoint> adminStarted = new CompletableFuture<>();
+			adminManager = new ClientManager(host,port);
+			adminManager.on(ClientManager.sessionStarted, (eventArgs)->{
+				Endpoint endpoint = (Endpoint) eventArgs[0];
+				endpoint.on(ServerManager.serverStatsReply, (eventArgs2)->{
+					Document page = Document.parse((String) eventArgs2[0]);
+					// the summary is on every page
+					CompletableFuture<Document> reply = statsReply;
+					if(page.getLong("page")==0 && reply!=null) reply.complete(page);
+				}).on(WhiteboardServer.sharingBoard, (eventArgs2)->{
+				}).on(WhiteboardServer.unsharingBoard, (eventArgs2)->{
+				}).on(WhiteboardServer.sharingBoards, (eventArgs2)->{
+				}).on(WhiteboardServer.unsharingBoards, (eventArgs2)->{
+				});
+				adminStarted.complete(endpoint);
+			});
+			adminManager.setDaemon(true);
+			adminManager.start();
+			try {
+				admin[0] = adminStarted.get(30,TimeUnit.SECONDS);
+			} catch (ExecutionException | TimeoutException e) {
+				log.warning("could not start an admin session, no server stats will be reported");
+			}
+		}
+
+		// connect the peers
+		log.info("connecting "+numPeers+" peers to "+host+":"+port);
+		List<Peer> peers = new ArrayList<>();
+		long connectStart = System.currentTimeMillis();
+		long connectInterval = (long) (1000000/connectRate);
+		for(int i=0;i<numPeers;i++) {
+			Peer peer = new Peer(i);
+			peers.add(peer);
+			startPeer(peer);
+			TimeUnit.MICROSECONDS.sleep(connectInterval);
+		}
+		long connectDeadline = System.currentTimeMillis()+30000;
+		while(sessions.get()<numPeers && System.currentTimeMillis()<connectDeadline) {
+			Thread.sleep(100);
+		}
+		long connectTime = System.currentTimeMillis()-connectStart;
+		int connected = sessions.get();
+		log.info(connected+" of "+numPeers+" peers connected in "+connectTime+" ms");
+		Document serverBefore = admin[0]==null ? null : serverStats(admin[0],password);
+
+		// run the load, each peer starting at a random time so that they are spread out
+		log.info("running the load for "+duration+" s");
+		Random random = new Random();
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+				Math.max(2,Runtime.getRuntime().availableProcessors()));
+		running = true;
+		long start = System.nanoTime();
+		for(Peer peer : peers) {
+			if(shareRate>0) {
+				long period = (long) (1000000/shareRate);
+				scheduler.scheduleAtFixedRate(()->{share(peer);},
+						(long) (random.nextDouble()*period),period,TimeUnit.MICROSECONDS);
+			}
+			if(unshareRate>0) {
+				long period = (long) (1000000/unshareRate);
+				scheduler.scheduleAtFixedRate(()->{unshare(peer);},
+						(long) (random.nextDouble()*period),period,TimeUnit.MICROSECONDS);
+			}
+		}
+		Thread.sleep(duration*1000);
+		scheduler.shutdownNow();
+		long loadTime = System.nanoTime()-start;
+		Document serverAfter = admin[0]==null ? null : serverStats(admin[0],password);
+		Thread.sleep(settle);
+		running = false;
+
+		// the report
+		double seconds = loadTime/1e9;
+		long shares = sharesSent.get();
+		long unshares = unsharesSent.get();
+		Document report = new Document();
+		report.append("host",host);
+		report.append("port",port);
+		report.append("peers",numPeers);
+		report.append("connected",connected);
+		report.append("connectMs",connectTime);
+		report.append("sessionErrors",sessionErrors.get());
+		report.append("durationMs",loadTime/1000000);
+		report.append("shares",shares);
+		report.append("unshares",unshares);
+		report.append("sharesPerSecond",Math.round(shares/seconds));
+		report.append("unsharesPerSecond",Math.round(unshares/seconds));
+		// every other connected peer should hear of every share and unshare
+		long expected = (shares+unshares)*Math.max(0,connected-1);
+		long delivered = shareLatency.getCount()+unshareLatency.getCount();
+		report.append("notificationsExpected",expected);
+		report.append("notificationsDelivered",delivered);
+		report.append("notificationsPerSecond",Math.round(delivered/seconds));
+		report.append("shareLatency",shareLatency.toDocument());
+		report.append("unshareLatency",unshareLatency.toDocument());
+		if(serverBefore!=null) report.append("serverBefore",serverBefore);
+		if(serverAfter!=null) report.append("serverAfter",serverAfter);
+		if(cmd.hasOption("report")) {
+			try(Writer writer = new FileWriter(cmd.getOptionValue("report"))) {
+				writer.write(report.toJson());
+				writer.write("\n");
+			}
+			log.info("report written to "+cmd.getOptionValue("report"));
+		} else {
+			System.out.println(report.toJson());
+		}
+
+		// disconnect
+		for(Peer peer : peers) {
+			if(peer.endpoint!=null) peer.clientManager.shutdown();
+		}
+		if(adminManager!=null && admin[0]!=null) adminManager.shutdown();
+		long joinDeadline = System.currentTimeMillis()+10000;
+		for(Peer peer : peers) {
+			long remaining = joinDeadline-System.currentTimeMillis();
+			if(remaining<=0) break;
+			peer.clientManager.join(remaining);
+		}
+		Utils.getInstance().cleanUp();
+	}
+}
@@ -0,0 +1,76 @@
+package pb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Leases on the boards of peers that have no live session with the
+ * {@link pb.WhiteboardServer}. While a peer's session is live its boards
+ * are held without a lease, the KeepAlive protocol being what shows that
+ * the peer is still there. When the session ends the peer is granted a lease,
+ * and if it has not shared anything again by the time the lease expires then
+ * its boards are unshared. A lease is also granted to the peers of boards
+ * restored from the {@link pb.ShareLog}, and to the peers of a cluster node
+ * that has gone down.
+ * <br/>
+ * The {@link pb.IndexServer} grants a lease each time a peer is seen, and
+ * evicts the peers whose leases expire.
+ *
+ * @see {@link pb.ClusterNode}
+ * @author aaron
+ *
+ */
+public class PeerLeases {
+
+	/**
+	 * Peer "host:port" to the time (ms) its lease expires.
+	 */
+	private final ConcurrentHashMap<String,Long> expiry=new ConcurrentHashMap<>();
+
+	/**
+	 * Grant a lease, replacing any lease the peer has.
+	 * @param peer "host:port"
+	 * @param duration time (ms) until the lease expires
+	 */
+	public void grant(String peer,long duration) {
+		expiry.put(peer,System.currentTimeMillis()+duration);
+	}
+
+	/**
+	 * The peer is live again, so it no longer needs a lease.
+	 * @param peer "host:port"
+	 * @return true if the peer had a lease
+	 */
+	public boolean release(String peer) {
+		return expiry.remove(peer)!=null;
+	}
+
+	/**
+	 * @param peer "host:port"
+	 * @return true if the peer has a lease
+	 */
+	public boolean holds(String peer) {
+		return expiry.containsKey(peer);
+	}
+
+	/**
+	 * Remove the leases that have expired.
+	 * @param now current time (ms)
+	 * @return the peers whose leases have expired
+	 */
+	public List<String> expire(long now) {
+		List<String> expired=new ArrayList<>();
+		expiry.forEach((peer,time)->{
+			if(time<=now && expiry.remove(peer,time)) expired.add(peer);
+		});
+		return expired;
+	}
+
+	/**
+	 * @return the number of peers holding a lease
+	 */
+	public int size() {
+		return expiry.size();
+	}
+}
@@ -0,0 +1,327 @@
+package pb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import pb.protocols.Document;
+
+/**
+ * Cache of the hits of recent queries of the {@link pb.IndexServer}, least
+ * recently used first out, within a budget of bytes. Queries are normalized
+ * first, so that the same terms in another order or case are the same query.
+ * <br/>
+ * An entry is dropped when a filename that contains one of its terms is
+ * added to the index, or when one of its hits is removed. So that a query
+ * that runs while the index changes is not cached with hits from before the
+ * change, an entry is made before the search and filled in after it, unless
+ * a change has dropped it meanwhile. Changes find the entries they drop
+ * without taking the cache's lock, and without looking at the others: each
+ * term is indexed by one of its {@link #gram} character parts, which an
+ * added filename has somewhere if it contains the term, the part with the
+ * fewest entries so that common ones do not pile up, and each hit is indexed
+ * by its filename.
+ *
+ * @see {@link pb.IndexServer}
+ * @author aaron
+ *
+ */
+public class QueryCache {
+
+	/**
+	 * Rough size (bytes) of an entry without its hits, and of each hit, as
+	 * the hits' strings may or may not be shared with the index.
+	 */
+	private static final long entryBytes=256;
+	private static final long hitBytes=144;
+
+	/**
+	 * Length of the part of a term that it is indexed by.
+	 */
+	private static final int gram=3;
+
+	private static class Entry {
+		final String key;
+		final List<String> terms;
+		/**
+		 * The part of each term that the entry is indexed by, set holding
+		 * the cache's lock.
+		 */
+		final List<String> grams=new ArrayList<>();
+		/**
+		 * Null until the search is done.
+		 */
+		volatile Set<String> hits=null;
+		volatile boolean valid=true;
+		long bytes;
+
+		Entry(String key,List<String> terms) {
+			this.key=key;
+			this.terms=terms;
+			this.bytes=entryBytes+2L*key.length();
+		}
+
+		/**
+		 * @param lower a lower cased filename
+		 * @return true if the filename is a hit of the query
+		 */
+		boolean matches(String lower) {
+			for(String term : terms) {
+				if(lower.contains(term)) return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Normalized query to its entry, in order of use, guarded by this.
+	 */
+	private final LinkedHashMap<String,Entry> entries=new LinkedHashMap<>(16,0.75f,true);
+
+	/**
+	 * A part of {@link #gram} characters of a term, or all of a shorter
+	 * one, to the entries indexed by it. Changed holding this.
+	 */
+	private final ConcurrentHashMap<String,Set<Entry>> byGram=new ConcurrentHashMap<>();
+
+	/**
+	 * A hit to the entries that have it. Changed holding this.
+	 */
+	private final ConcurrentHashMap<String,Set<Entry>> byHit=new ConcurrentHashMap<>();
+
+	/**
+	 * Entries whose search is under way, which any removal drops.
+	 */
+	private final Set<Entry> searching=ConcurrentHashMap.newKeySet();
+
+	private final long budget;
+
+	/**
+	 * Bytes of the entries, guarded by this.
+	 */
+	private long bytes=0;
+
+	private final AtomicLong hits=new AtomicLong();
+	private final AtomicLong misses=new AtomicLong();
+	private final AtomicLong invalidations=new AtomicLong();
+	private final AtomicLong evictions=new AtomicLong();
+
+	/**
+	 * @param budget most bytes that the entries may take, roughly
+	 */
+	public QueryCache(long budget) {
+		this.budget=budget;
+	}
+
+	/**
+	 * @param query a comma separated list of terms, as given to
+	 * {@link pb.IndexServer#queryIndex}
+	 * @return the distinct terms, lower cased, in order
+	 */
+	public static List<String> normalize(String query) {
+		TreeSet<String> terms=new TreeSet<>();
+		for(String term : query.split(",")) terms.add(term.toLowerCase());
+		return new ArrayList<>(terms);
+	}
+
+	/**
+	 * Give the hits of a query, from the cache if they are there, or else
+	 * from the search, keeping them if nothing has dropped them meanwhile.
+	 * @param query a comma separated list of terms
+	 * @param search gives the hits of the normalized terms
+	 * @return the hits, which must not be changed
+	 */
+	public Set<String> get(String query,Function<List<String>,Set<String>> search) {
+		List<String> terms=normalize(query);
+		String key=String.join(",",terms);
+		Entry entry;
+		synchronized(this) {
+			entry=entries.get(key);
+			if(entry!=null && entry.valid && entry.hits!=null) {
+				hits.incrementAndGet();
+				return entry.hits;
+			}
+			misses.incrementAndGet();
+			// a search already under way for the query is overtaken by this one
+			if(entry!=null) remove(entry);
+			entry=new Entry(key,terms);
+			entries.put(key,entry);
+			bytes+=entry.bytes;
+			searching.add(entry);
+			for(String term : terms) {
+				String part=gramOf(term);
+				entry.grams.add(part);
+				link(byGram,part,entry);
+			}
+		}
+		Set<String> found=Collections.unmodifiableSet(search.apply(terms));
+		long size=entry.bytes+hitBytes*found.size();
+		for(String hit : found) size+=2L*hit.length();
+		synchronized(this) {
+			if(entry.valid && entries.get(key)==entry) {
+				if(size>budget/2) {
+					// would push out most everything else
+					remove(entry);
+				} else {
+					// indexed by its hits before it stops being dropped by any removal
+					for(String hit : found) link(byHit,hit,entry);
+					entry.hits=found;
+					searching.remove(entry);
+					bytes+=size-entry.bytes;
+					entry.bytes=size;
+					trim();
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * A filename has been added to the index, so it may be a hit of queries
+	 * that it was not before.
+	 * @param filename
+	 */
+	public void added(String filename) {
+		if(byGram.isEmpty()) return;
+		String lower=filename.toLowerCase();
+		for(int i=0;i<=lower.length();i++) {
+			for(int end=i;end<=Math.min(lower.length(),i+gram);end++) {
+				if(end==i && i>0) continue; // the empty term is looked up once
+				Set<Entry> found=byGram.get(lower.substring(i,end));
+				if(found==null) continue;
+				for(Entry entry : found) {
+					if(entry.valid && entry.matches(lower)) invalidate(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A filename has been removed from the index, so it is no longer a hit.
+	 * Searches under way may or may not have found it, so are dropped too.
+	 * @param filename
+	 */
+	public void removed(String filename) {
+		// searching first, as an entry is indexed by its hits before it leaves it
+		for(Entry entry : searching) invalidate(entry);
+		Set<Entry> found=byHit.get(filename);
+		if(found==null) return;
+		for(Entry entry : found) invalidate(entry);
+	}
+
+	/**
+	 * Drop every entry.
+	 */
+	public synchronized void clear() {
+		for(Entry entry : entries.values()) entry.valid=false;
+		invalidations.addAndGet(entries.size());
+		entries.clear();
+		byGram.clear();
+		byHit.clear();
+		searching.clear();
+		bytes=0;
+	}
+
+	/**
+	 * Called holding this.
+	 * @param term
+	 * @return the part of the term with the fewest entries indexed by it
+	 */
+	private String gramOf(String term) {
+		if(term.length()<=gram) return term;
+		String best=null;
+		int fewest=Integer.MAX_VALUE;
+		for(int i=0;i+gram<=term.length() && fewest>0;i++) {
+			String part=term.substring(i,i+gram);
+			Set<Entry> found=byGram.get(part);
+			int size=found==null ? 0 : found.size();
+			if(size<fewest) {
+				best=part;
+				fewest=size;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Called holding this.
+	 */
+	private static void link(ConcurrentHashMap<String,Set<Entry>> index,String key,Entry entry) {
+		index.computeIfAbsent(key,(k)->ConcurrentHashMap.newKeySet()).add(entry);
+	}
+
+	/**
+	 * Called holding this.
+	 */
+	private static void unlink(ConcurrentHashMap<String,Set<Entry>> index,String key,Entry entry) {
+		index.computeIfPresent(key,(k,found)->{
+			found.remove(entry);
+			return found.isEmpty() ? null : found;
+		});
+	}
+
+	private void invalidate(Entry entry) {
+		if(!entry.valid) return;
+		entry.valid=false;
+		synchronized(this) {
+			if(entries.get(entry.key)==entry) {
+				invalidations.incrementAndGet();
+				remove(entry);
+			}
+		}
+	}
+
+	/**
+	 * Remove an entry and its place in the indexes. Called holding this.
+	 * @param entry which is in the entries
+	 */
+	private void remove(Entry entry) {
+		entries.remove(entry.key);
+		bytes-=entry.bytes;
+		searching.remove(entry);
+		for(String part : entry.grams) unlink(byGram,part,entry);
+		Set<String> found=entry.hits;
+		if(found!=null) {
+			for(String hit : found) unlink(byHit,hit,entry);
+		}
+	}
+
+	/**
+	 * Drop the least recently used entries until within the budget. Called
+	 * holding this.
+	 */
+	private void trim() {
+		while(bytes>budget && !entries.isEmpty()) {
+			Entry entry=entries.values().iterator().next();
+			entry.valid=false;
+			remove(entry);
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the number of queries answered from the cache, those that were
+	 * not, the entries dropped because the index changed and because they
+	 * were least recently used, and the entries and bytes held
+	 */
+	public synchronized Document getStats() {
+		Document doc=new Document();
+		long hit=hits.get();
+		long miss=misses.get();
+		doc.append("hits",hit);
+		doc.append("misses",miss);
+		doc.append("hitPercent",hit+miss==0 ? 0 : 100*hit/(hit+miss));
+		doc.append("invalidations",invalidations.get());
+		doc.append("evictions",evictions.get());
+		doc.append("entries",entries.size());
+		doc.append("bytes",bytes);
+		doc.append("budget",budget);
+		return doc;
+	}
+}
@@ -0,0 +1,192 @@
+package pb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A search expression for a {@link pb.IndexServer#rankedQuery}, and how well
+ * a filename matches it. Terms apart, by spaces or commas, must all be in a
+ * filename, and "OR" between them needs either side, so that
+ * "final report OR summary" is (final AND report) OR summary. A term is
+ * looked for anywhere in the filename, ignoring case, except that a term
+ * ending in "*" must start a word, the start of the filename or after a
+ * character that is not a letter or digit.
+ * <br/>
+ * A filename scores for each of the query's terms that it has, more if the
+ * term starts a word, more for being short, and more for its best peer having
+ * been seen recently.
+ *
+ * @see {@link pb.IndexServer}
+ * @author aaron
+ *
+ */
+public class RankedQuery {
+
+	/**
+	 * Most terms in a query.
+	 */
+	public static final int maxTerms=16;
+
+	/**
+	 * Score of having a term, and more for it starting a word.
+	 */
+	private static final double termScore=1.0;
+	private static final double wordScore=0.5;
+
+	/**
+	 * Score of a filename of no length, half that for one of
+	 * {@link #halfLength} characters, and so on down.
+	 */
+	private static final double lengthScore=1.0;
+	private static final double halfLength=16;
+
+	/**
+	 * Score of a peer seen just now, half that for one seen {@link #halfAge}
+	 * ms ago, and so on down, and nothing for a peer never seen.
+	 */
+	public static final double maxFreshness=1.0;
+	private static final double halfAge=60000;
+
+	private static class Term {
+		final String text;
+		final boolean prefix;
+
+		Term(String text,boolean prefix) {
+			this.text=text;
+			this.prefix=prefix;
+		}
+
+		/**
+		 * @param lower
+		 * @return true if the text is somewhere in lower at the start of a word
+		 */
+		boolean startsWord(String lower) {
+			for(int at=lower.indexOf(text);at>=0;at=lower.indexOf(text,at+1)) {
+				if(at==0 || !Character.isLetterOrDigit(lower.charAt(at-1))) return true;
+			}
+			return false;
+		}
+
+		boolean in(String lower) {
+			return prefix ? startsWord(lower) : lower.contains(text);
+		}
+	}
+
+	/**
+	 * The terms of each side of an "OR".
+	 */
+	private final List<List<Term>> groups;
+
+	/**
+	 * Every distinct term, for scoring.
+	 */
+	private final List<Term> terms;
+
+	private RankedQuery(List<List<Term>> groups,List<Term> terms) {
+		this.groups=groups;
+		this.terms=terms;
+	}
+
+	/**
+	 * @param query
+	 * @return the query
+	 * @throws IllegalArgumentException if the query is empty, has too many
+	 * terms, or an "OR" with nothing on one side
+	 */
+	public static RankedQuery parse(String query) {
+		List<List<Term>> groups=new ArrayList<>();
+		Set<String> distinct=new LinkedHashSet<>();
+		List<Term> group=new ArrayList<>();
+		for(String token : query.trim().split("[\\s,]+")) {
+			if(token.isEmpty()) continue;
+			if(token.equals("OR")) {
+				if(group.isEmpty()) throw new IllegalArgumentException("nothing before OR");
+				groups.add(group);
+				group=new ArrayList<>();
+				continue;
+			}
+			boolean prefix=token.endsWith("*");
+			String text=(prefix ? token.substring(0,token.length()-1) : token).toLowerCase();
+			if(text.isEmpty()) throw new IllegalArgumentException("* must follow a term");
+			group.add(new Term(text,prefix));
+			distinct.add(token.toLowerCase());
+		}
+		if(group.isEmpty()) {
+			throw new IllegalArgumentException(groups.isEmpty() ? "no terms" : "nothing after OR");
+		}
+		groups.add(group);
+		if(distinct.size()>maxTerms) throw new IllegalArgumentException("more than "+maxTerms+" terms");
+		List<Term> terms=new ArrayList<>();
+		for(String token : distinct) {
+			boolean prefix=token.endsWith("*");
+			terms.add(new Term(prefix ? token.substring(0,token.length()-1) : token,prefix));
+		}
+		return new RankedQuery(groups,terms);
+	}
+
+	/**
+	 * @return the number of sides of "OR"
+	 */
+	public int size() {
+		return groups.size();
+	}
+
+	/**
+	 * @param group
+	 * @return text that every filename matching the group contains, the
+	 * longest of its terms, as that is likely to be the rarest
+	 */
+	public String candidateTerm(int group) {
+		String longest="";
+		for(Term term : groups.get(group)) {
+			if(term.text.length()>longest.length()) longest=term.text;
+		}
+		return longest;
+	}
+
+	/**
+	 * @param group
+	 * @param lower a lower cased filename
+	 * @return true if the filename matches the group and none before it, so
+	 * that a filename found for more than one group is only taken once
+	 */
+	public boolean firstMatch(int group,String lower) {
+		if(!matches(groups.get(group),lower)) return false;
+		for(int g=0;g<group;g++) {
+			if(matches(groups.get(g),lower)) return false;
+		}
+		return true;
+	}
+
+	private static boolean matches(List<Term> group,String lower) {
+		for(Term term : group) {
+			if(!term.in(lower)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param lower a lower cased filename that matches the query
+	 * @return its score for the terms it has and its length
+	 */
+	public double score(String lower) {
+		double score=lengthScore*halfLength/(halfLength+lower.length());
+		for(Term term : terms) {
+			if(term.startsWord(lower)) score+=termScore+wordScore;
+			else if(!term.prefix && lower.contains(term.text)) score+=termScore;
+		}
+		return score;
+	}
+
+	/**
+	 * @param seen when a peer was last seen, 0 if never
+	 * @param now
+	 * @return its score, at most {@link #maxFreshness}
+	 */
+	public static double freshness(long seen,long now) {
+		if(seen<=0) return 0;
+		return maxFreshness*halfAge/(halfAge+Math.max(0,now-seen));
+	}
+}
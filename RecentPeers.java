@@ -0,0 +1,165 @@
+package pb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The peers that have a file, in order of when they were last seen, most
+ * recent first, so that the peer most likely to still be online is at hand.
+ * Kept as a linked list: a peer that is seen again has the latest time and
+ * moves to the front, a new peer usually goes at or near the front, and a
+ * peer that has never been seen goes at the back, so all are O(1) in
+ * practice.
+ *
+ * @see {@link pb.IndexServer}
+ * @author aaron
+ *
+ */
+public class RecentPeers {
+
+	private static class Node {
+		final String peer;
+		long seen;
+		Node prev=null;
+		Node next=null;
+
+		Node(String peer,long seen) {
+			this.peer=peer;
+			this.seen=seen;
+		}
+	}
+
+	private final String filename;
+
+	/**
+	 * Most and least recently seen.
+	 */
+	private Node head=null;
+	private Node tail=null;
+
+	private final Map<String,Node> nodes=new HashMap<>();
+
+	/**
+	 * Changed whenever a peer is added or removed.
+	 */
+	private long version=0;
+
+	/**
+	 * @param filename the file that the peers have
+	 */
+	public RecentPeers(String filename) {
+		this.filename=filename;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * Add a peer, if it is not already here.
+	 * @param peer "host:port"
+	 * @param seen when it was last seen, 0 if never
+	 * @return true if the peer was added
+	 */
+	public synchronized boolean add(String peer,long seen) {
+		if(nodes.containsKey(peer)) return false;
+		Node node=new Node(peer,seen);
+		nodes.put(peer,node);
+		insert(node);
+		version++;
+		return true;
+	}
+
+	/**
+	 * The peer has been seen, move it up if that is later than before.
+	 * @param peer
+	 * @param seen
+	 */
+	public synchronized void seen(String peer,long seen) {
+		Node node=nodes.get(peer);
+		if(node==null || seen<=node.seen) return;
+		unlink(node);
+		node.seen=seen;
+		insert(node);
+	}
+
+	/**
+	 * @param peer
+	 * @return true if the peer was here
+	 */
+	public synchronized boolean remove(String peer) {
+		Node node=nodes.remove(peer);
+		if(node==null) return false;
+		unlink(node);
+		version++;
+		return true;
+	}
+
+	/**
+	 * @return the most recently seen peer, or null if there are none
+	 */
+	public synchronized String best() {
+		return head==null ? null : head.peer;
+	}
+
+	public synchronized int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * @return the peers, most recently seen first
+	 */
+	public synchronized List<String> getPeers() {
+		List<String> peers=new ArrayList<>(nodes.size());
+		for(Node node=head;node!=null;node=node.next) peers.add(node.peer);
+		return peers;
+	}
+
+	/**
+	 * @return a number that changes whenever a peer is added or removed
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Link a node in after the nodes seen later than it. The walk starts
+	 * from whichever end the node is nearer by its time, so a peer seen
+	 * now goes in at the front, and a peer never seen, e.g. one added from
+	 * the index's log or a replica, goes in at the back, in O(1).
+	 * @param node
+	 */
+	private void insert(Node node) {
+		Node after;
+		Node before;
+		if(tail!=null && node.seen<=tail.seen) {
+			// among peers seen at the same time it goes last
+			after=tail;
+			before=null;
+			while(after!=null && after.seen<node.seen) {
+				before=after;
+				after=after.prev;
+			}
+		} else {
+			after=null;
+			before=head;
+			while(before!=null && before.seen>node.seen) {
+				after=before;
+				before=before.next;
+			}
+		}
+		node.prev=after;
+		node.next=before;
+		if(after==null) head=node; else after.next=node;
+		if(before==null) tail=node; else before.prev=node;
+	}
+
+	private void unlink(Node node) {
+		if(node.prev==null) head=node.next; else node.prev.next=node.next;
+		if(node.next==null) tail=node.prev; else node.next.prev=node.prev;
+		node.prev=null;
+		node.next=null;
+	}
+}
@@ -11,6 +11,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import pb.managers.ServerManager;
+import pb.managers.endpoint.RttEstimator;
 import pb.utils.Utils;
 
 /**
@@ -43,6 +44,9 @@ public class Server {
     	// parse command line options
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
+        options.addOption("minTimeout",true,"smallest reply timeout in ms, an integer");
+        options.addOption("maxTimeout",true,"largest reply timeout in ms, an integer");
+        options.addOption("drainDeadline",true,"ms to wait for sessions to finish on shutdown, an integer");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -61,6 +65,20 @@ public class Server {
 				help(options);
 			}
         }
+
+        if(cmd.hasOption("minTimeout") || cmd.hasOption("maxTimeout")) {
+        	try{
+        		int minTimeout = Integer.parseInt(cmd.getOptionValue("minTimeout","2000"));
+        		int maxTimeout = Integer.parseInt(cmd.getOptionValue("maxTimeout","40000"));
+        		RttEstimator.setDefaultBounds(minTimeout,maxTimeout);
+        	} catch (NumberFormatException e){
+        		System.out.println("-minTimeout and -maxTimeout require a number of ms");
+        		help(options);
+        	} catch (IllegalArgumentException e){
+        		System.out.println("-minTimeout must be positive and not more than -maxTimeout");
+        		help(options);
+        	}
+        }
         
         
         // start up the server
@@ -69,6 +87,14 @@ public class Server {
         // the server manager will start an io thread and this will prevent
         // the JVM from terminating
         ServerManager serverManager = new ServerManager(port);
+        if(cmd.hasOption("drainDeadline")) {
+        	try{
+        		serverManager.setDrainDeadline(Long.parseLong(cmd.getOptionValue("drainDeadline")));
+        	} catch (NumberFormatException e){
+        		System.out.println("-drainDeadline requires a number of ms, parsed: "+cmd.getOptionValue("drainDeadline"));
+        		help(options);
+        	}
+        }
         serverManager.start();
         // The simple server does not do any application logic, but will
         // (when you have implemented it in the ServerManager class)
@@ -0,0 +1,388 @@
+package pb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the boards shared through a {@link pb.WhiteboardServer}, so
+ * that a restarted server still knows them. Every share and unshare is appended
+ * to "shares.log" in a directory, and every so often the current boards are
+ * written to "shares.snapshot" and the log is emptied. At startup the snapshot
+ * and then the log are replayed. A record that was only partly written when the
+ * server stopped is dropped.
+ * <br/>
+ * Each record is an operation byte, '+' or '-', the board as written by
+ * {@link java.io.DataOutputStream#writeUTF(String)}, and a CRC32 of both.
+ * <br/>
+ * How soon a record reaches the disk is given by the {@link Durability}:
+ * <ul>
+ * <li>{@link Durability#SYNC}: each record is written and forced to disk before
+ * {@link #append(boolean, String)} returns,</li>
+ * <li>{@link Durability#GROUP}: records are written and forced in batches by
+ * the writer thread, and {@link #await(long)} waits for the batch holding a
+ * record, so that waiting callers share a single force,</li>
+ * <li>{@link Durability#ASYNC}: records are written by the writer thread at
+ * most every {@link #asyncInterval} ms and nobody waits, so the last records
+ * can be lost.</li>
+ * </ul>
+ *
+ * @see {@link pb.ClusterNode#restore(ShareLog, Collection, long)}
+ * @author aaron
+ *
+ */
+public class ShareLog {
+	private static Logger log = Logger.getLogger(ShareLog.class.getName());
+
+	/**
+	 * When records must be on disk.
+	 */
+	public enum Durability {
+		SYNC,
+		GROUP,
+		ASYNC
+	}
+
+	/**
+	 * Time (ms) between writes in {@link Durability#ASYNC} mode.
+	 */
+	private static final long asyncInterval=1000;
+
+	private static final byte opShare='+';
+	private static final byte opUnshare='-';
+
+	private final File logFile;
+	private final File snapshotFile;
+	private final Durability durability;
+
+	/**
+	 * Number of records after which the log is compacted into a snapshot.
+	 */
+	private final long compactEvery;
+
+	/**
+	 * The boards to write to a snapshot, guarded by this. There are no
+	 * snapshots until it is set.
+	 */
+	private Supplier<Collection<String>> snapshotSource=null;
+
+	private FileChannel channel;
+
+	/**
+	 * Held while writing to the channel.
+	 */
+	private final Object writeLock=new Object();
+
+	/**
+	 * Records not yet written, guarded by this.
+	 */
+	private final ByteArrayOutputStream pending=new ByteArrayOutputStream();
+
+	/**
+	 * Number of records appended, and number known to be on disk, guarded by this.
+	 */
+	private long appended=0;
+	private long durable=0;
+
+	/**
+	 * Records since the last snapshot, guarded by this.
+	 */
+	private long sinceSnapshot=0;
+
+	private boolean closed=false;
+
+	private Thread writer;
+
+	/**
+	 * @param dir directory for the log and snapshot, created if needed
+	 * @param durability
+	 * @param compactEvery number of records after which the log is compacted
+	 */
+	public ShareLog(File dir,Durability durability,long compactEvery) {
+		dir.mkdirs();
+		this.logFile=new File(dir,"shares.log");
+		this.snapshotFile=new File(dir,"shares.snapshot");
+		this.durability=durability;
+		this.compactEvery=Math.max(1,compactEvery);
+	}
+
+	/**
+	 * @param snapshotSource gives the boards that a snapshot should hold, which
+	 * must include every board shared by a record that has been appended
+	 */
+	public synchronized void setSnapshotSource(Supplier<Collection<String>> snapshotSource) {
+		this.snapshotSource=snapshotSource;
+		notifyAll();
+	}
+
+	/**
+	 * Replay the snapshot and the log, then open the log for appending.
+	 * @return the boards that were shared, in the order they were first shared
+	 * @throws IOException if the files cannot be read or the log opened
+	 */
+	public Set<String> open() throws IOException {
+		long start=System.currentTimeMillis();
+		Set<String> boards=new LinkedHashSet<>();
+		long snapshotted=0;
+		if(snapshotFile.exists()) {
+			try(DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+				snapshotted=in.readLong();
+				for(long i=0;i<snapshotted;i++) boards.add(in.readUTF());
+			}
+		}
+		long records=0;
+		long valid=0;
+		if(logFile.exists()) {
+			try(DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+				CRC32 crc=new CRC32();
+				while(true) {
+					byte op;
+					String board;
+					int check;
+					try {
+						op=in.readByte();
+						board=in.readUTF();
+						check=in.readInt();
+					} catch (EOFException | UTFDataFormatException e) {
+						break;
+					}
+					crc.reset();
+					crc.update(op);
+					byte[] bytes=board.getBytes(StandardCharsets.UTF_8);
+					crc.update(bytes);
+					if((int) crc.getValue()!=check || (op!=opShare && op!=opUnshare)) break;
+					if(op==opShare) boards.add(board); else boards.remove(board);
+					records++;
+					valid+=1+2+encodedLength(board)+4;
+				}
+			}
+		}
+		channel=FileChannel.open(logFile.toPath(),StandardOpenOption.CREATE,StandardOpenOption.WRITE);
+		if(channel.size()>valid) {
+			log.warning("dropping "+(channel.size()-valid)+" bytes at the end of "+logFile);
+			channel.truncate(valid);
+		}
+		channel.position(valid);
+		log.info("replayed a snapshot of "+snapshotted+" boards and "+records+" log records, giving "
+				+boards.size()+" boards, in "+(System.currentTimeMillis()-start)+" ms");
+		synchronized(this) {
+			sinceSnapshot=records;
+		}
+		writer=new Thread(()->{writeRecords();},"ShareLog-writer");
+		writer.setDaemon(true);
+		writer.start();
+		return boards;
+	}
+
+	/**
+	 * @param board
+	 * @return the length of the board as written by writeUTF, without the length prefix
+	 */
+	private static int encodedLength(String board) {
+		int length=0;
+		for(int i=0;i<board.length();i++) {
+			char c=board.charAt(i);
+			if(c>=0x0001 && c<=0x007f) length++;
+			else if(c>0x07ff) length+=3;
+			else length+=2;
+		}
+		return length;
+	}
+
+	/**
+	 * Append a record.
+	 * @param shared true for a share, false for an unshare
+	 * @param board
+	 * @return the record's sequence number, for {@link #await(long)}
+	 */
+	public long append(boolean shared,String board) {
+		byte[] record;
+		try {
+			ByteArrayOutputStream bytes=new ByteArrayOutputStream(board.length()+8);
+			DataOutputStream out=new DataOutputStream(bytes);
+			byte op = shared ? opShare : opUnshare;
+			out.writeByte(op);
+			out.writeUTF(board);
+			CRC32 crc=new CRC32();
+			crc.update(op);
+			crc.update(board.getBytes(StandardCharsets.UTF_8));
+			out.writeInt((int) crc.getValue());
+			record=bytes.toByteArray();
+		} catch (IOException e) {
+			log.severe("cannot log board "+board+": "+e.getMessage());
+			return 0;
+		}
+		long seq;
+		synchronized(this) {
+			if(closed) return 0;
+			seq=++appended;
+			if(++sinceSnapshot>=compactEvery && durability==Durability.SYNC) notifyAll();
+			if(durability!=Durability.SYNC) {
+				pending.write(record,0,record.length);
+				notifyAll();
+				return seq;
+			}
+		}
+		synchronized(writeLock) {
+			write(record);
+		}
+		synchronized(this) {
+			if(seq>durable) durable=seq;
+		}
+		return seq;
+	}
+
+	/**
+	 * Wait, in {@link Durability#GROUP} mode, until a record is on disk.
+	 * @param seq as returned by {@link #append(boolean, String)}
+	 */
+	public synchronized void await(long seq) {
+		if(durability!=Durability.GROUP) return;
+		while(durable<seq && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Write and force records to the log.
+	 * @param records
+	 */
+	private void write(byte[] records) {
+		try {
+			ByteBuffer buffer=ByteBuffer.wrap(records);
+			while(buffer.hasRemaining()) channel.write(buffer);
+			channel.force(false);
+		} catch (IOException e) {
+			log.severe("cannot write to "+logFile+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Writer thread: write batches of pending records and compact the log
+	 * when it has grown enough.
+	 */
+	private void writeRecords() {
+		while(true) {
+			byte[] batch;
+			long seq;
+			boolean compact;
+			Supplier<Collection<String>> source;
+			synchronized(this) {
+				while(pending.size()==0 && !compactDue() && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// check again
+					}
+				}
+				batch=pending.toByteArray();
+				pending.reset();
+				seq=appended;
+				compact=compactDue();
+				if(compact) sinceSnapshot=0;
+				source=snapshotSource;
+			}
+			synchronized(writeLock) {
+				if(batch.length>0) write(batch);
+				if(compact) compact(source);
+			}
+			synchronized(this) {
+				if(seq>durable && durability!=Durability.SYNC) durable=seq;
+				notifyAll();
+				if(closed && pending.size()==0) return;
+			}
+			if(durability==Durability.ASYNC) {
+				try {
+					Thread.sleep(asyncInterval);
+				} catch (InterruptedException e) {
+					// write what there is now
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if the log should be compacted, guarded by this
+	 */
+	private boolean compactDue() {
+		return sinceSnapshot>=compactEvery && snapshotSource!=null;
+	}
+
+	/**
+	 * Write the boards from the snapshot source to a new snapshot and empty the
+	 * log. Called holding the write lock, so no records reach the log meanwhile;
+	 * records written afterwards are replayed on top of the snapshot.
+	 * @param source
+	 */
+	private void compact(Supplier<Collection<String>> source) {
+		long start=System.currentTimeMillis();
+		Collection<String> boards=new ArrayList<>(source.get());
+		File tmp=new File(snapshotFile.getPath()+".tmp");
+		try {
+			try(FileOutputStream file=new FileOutputStream(tmp)) {
+				DataOutputStream out=new DataOutputStream(new BufferedOutputStream(file));
+				out.writeLong(boards.size());
+				for(String board : boards) out.writeUTF(board);
+				out.flush();
+				file.getFD().sync();
+			}
+			Files.move(tmp.toPath(),snapshotFile.toPath(),StandardCopyOption.ATOMIC_MOVE,StandardCopyOption.REPLACE_EXISTING);
+			channel.truncate(0);
+			channel.force(true);
+			log.info("compacted the share log to "+boards.size()+" boards in "+(System.currentTimeMillis()-start)+" ms");
+		} catch (IOException e) {
+			log.severe("cannot write snapshot "+snapshotFile+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Write any pending records and close the log.
+	 */
+	public void close() {
+		synchronized(this) {
+			if(closed) return;
+			closed=true;
+			notifyAll();
+		}
+		if(writer!=null) {
+			writer.interrupt();
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				log.warning("interrupted while waiting for the share log to be written");
+			}
+		}
+		synchronized(writeLock) {
+			try {
+				if(channel!=null) channel.close();
+			} catch (IOException e) {
+				log.warning("exception closing "+logFile+": "+e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package pb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Benchmark of the recovery of a {@link pb.ShareLog}. Appends -records
+ * shares and unshares of boards to a log, with no snapshot so that all of
+ * them are replayed, closes it, and then times opening it again, which
+ * replays the log as a restarted {@link pb.WhiteboardServer} does. The
+ * boards recovered must be the boards left shared by the records.
+ * <br/>
+ * With -dir, the log is kept in that directory, and if it already has a log
+ * the log is only opened and timed.
+ *
+ * @see {@link pb.ShareLog}
+ * @author aaron
+ *
+ */
+public class ShareLogBenchmark {
+
+	private static void help(Options options){
+		String header = "PB share log recovery benchmark for Unimelb COMP90015\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.ShareLogBenchmark", header, options, footer, true);
+		System.exit(-1);
+	}
+
+	private static long heapUsedKB() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return (runtime.totalMemory()-runtime.freeMemory())/1024;
+	}
+
+	/**
+	 * Append the records to a new log.
+	 * @return the boards left shared by the records
+	 */
+	private static Set<String> write(File dir,int records,double unshareRate,
+			ShareLog.Durability durability,long seed) throws IOException {
+		ShareLog shareLog = new ShareLog(dir,durability,Long.MAX_VALUE);
+		shareLog.open();
+		Random random = new Random(seed);
+		Set<String> shared = new HashSet<>();
+		// the boards shared so far, for unshares to pick from
+		List<String> boards = new ArrayList<>();
+		long start = System.nanoTime();
+		for(int r=0;r<records;r++) {
+			if(!boards.isEmpty() && random.nextDouble()<unshareRate) {
+				int i = random.nextInt(boards.size());
+				String board = boards.get(i);
+				boards.set(i,boards.get(boards.size()-1));
+				boards.remove(boards.size()-1);
+				shared.remove(board);
+				shareLog.append(false,board);
+			} else {
+				int peer = random.nextInt(10000);
+				String board = "10.0."+(peer/250)+"."+(peer%250)+":"+(5000+peer)+":"+r;
+				boards.add(board);
+				shared.add(board);
+				shareLog.append(true,board);
+			}
+		}
+		shareLog.close();
+		long elapsed = System.nanoTime()-start;
+		System.out.println(String.format("appended %d records in %s mode in %.1f ms, %d MB, leaving %d boards",
+				records,durability.name().toLowerCase(),elapsed/1e6,
+				new File(dir,"shares.log").length()/(1024*1024),shared.size()));
+		return shared;
+	}
+
+	public static void main( String[] args ) throws IOException
+	{
+		Options options = new Options();
+		options.addOption("dir",true,"directory of the log, kept afterwards, a temporary one if not given");
+		options.addOption("records",true,"number of records to append, an integer");
+		options.addOption("unshareRate",true,"fraction of the records that unshare a board, a number");
+		options.addOption("durability",true,"\"sync\", \"group\" or \"async\" while appending");
+		options.addOption("seed",true,"random seed, an integer");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+
+		int records = 0;
+		double unshareRate = 0;
+		long seed = 0;
+		try{
+			records = Integer.parseInt(cmd.getOptionValue("records","1000000"));
+			unshareRate = Double.parseDouble(cmd.getOptionValue("unshareRate","0.125"));
+			seed = Long.parseLong(cmd.getOptionValue("seed","1"));
+		} catch (NumberFormatException e){
+			System.out.println("options require numbers: "+e.getMessage());
+			help(options);
+		}
+		if(records<0 || unshareRate<0 || unshareRate>=1) {
+			System.out.println("-records must not be negative and -unshareRate must be in [0,1)");
+			help(options);
+		}
+		ShareLog.Durability durability = null;
+		try {
+			durability = ShareLog.Durability.valueOf(cmd.getOptionValue("durability","async").toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.out.println("-durability must be \"sync\", \"group\" or \"async\"");
+			help(options);
+		}
+
+		boolean keep = cmd.hasOption("dir");
+		File dir = keep ? new File(cmd.getOptionValue("dir"))
+				: Files.createTempDirectory("pb-sharelog").toFile();
+		Set<String> expected = null;
+		if(!new File(dir,"shares.log").exists()) {
+			expected = write(dir,records,unshareRate,durability,seed);
+		} else {
+			System.out.println("opening the existing log in "+dir);
+		}
+
+		long heapBefore = heapUsedKB();
+		long start = System.nanoTime();
+		ShareLog shareLog = new ShareLog(dir,durability,Long.MAX_VALUE);
+		Set<String> recovered = shareLog.open();
+		long openTime = System.nanoTime()-start;
+		long heapAfter = heapUsedKB();
+		shareLog.close();
+		System.out.println(String.format("recovered %d boards from %d MB of log in %.1f ms, heap used %d KB more",
+				recovered.size(),new File(dir,"shares.log").length()/(1024*1024),openTime/1e6,
+				heapAfter-heapBefore));
+
+		if(!keep) {
+			for(File file : dir.listFiles()) file.delete();
+			dir.delete();
+		}
+		if(expected!=null && !expected.equals(recovered)) {
+			System.out.println("FAILED: the recovered boards are not the boards left shared");
+			System.exit(-1);
+		}
+		System.out.println("OK");
+		System.exit(0);
+	}
+}
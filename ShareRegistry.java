@@ -0,0 +1,213 @@
+package pb;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pb.managers.endpoint.Endpoint;
+
+/**
+ * Registry of the boards being shared through the {@link pb.WhiteboardServer}
+ * and of the peers that share them. Boards have the format
+ * "host:port:boardid" where "host:port" identifies the peer that owns the
+ * board. All of the maps are concurrent, since every session's endpoint thread
+ * updates the registry, and sharing or unsharing a board is O(1). A board's
+ * owner and its peer's set of boards change together, within a compute on the
+ * peer's entry.
+ * <br/>
+ * The registry keeps:
+ * <ul>
+ * <li>board to owning peer, the set of shared boards,</li>
+ * <li>peer to the boards it owns,</li>
+ * <li>peer to the endpoint of its session, learnt when it shares a board.</li>
+ * </ul>
+ * The sessions that hear about boards are subscribers of a topic of the
+ * {@link pb.managers.ServerManager}, so they are not kept here.
+ *
+ * @see {@link pb.WhiteboardServer}
+ * @author aaron
+ *
+ */
+public class ShareRegistry {
+
+	/**
+	 * Board "host:port:boardid" to owning peer "host:port".
+	 */
+	private final ConcurrentHashMap<String,String> boardOwner=new ConcurrentHashMap<>();
+
+	/**
+	 * Peer "host:port" to the boards it owns.
+	 */
+	private final ConcurrentHashMap<String,Set<String>> peerBoards=new ConcurrentHashMap<>();
+
+	/**
+	 * Peer "host:port" to the endpoint of its session.
+	 */
+	private final ConcurrentHashMap<String,Endpoint> peerEndpoint=new ConcurrentHashMap<>();
+
+	/**
+	 * Endpoint to the peers that have shared boards over it, so that they
+	 * can be forgotten when the session ends.
+	 */
+	private final ConcurrentHashMap<Endpoint,Set<String>> endpointPeers=new ConcurrentHashMap<>();
+
+	/**
+	 * @param board in the format "host:port:boardid"
+	 * @return the peer "host:port" part of the board, or null if the
+	 * board is not in the right format
+	 */
+	public static String peerOf(String board) {
+		String[] parts=board.split(":",3);
+		if(parts.length!=3) return null;
+		return parts[0]+":"+parts[1];
+	}
+
+	/**
+	 * A session has ended, forget its endpoint. The boards shared over it
+	 * remain shared.
+	 * @param endpoint
+	 * @return the peers that had shared boards over the session
+	 */
+	public Set<String> removeSession(Endpoint endpoint) {
+		Set<String> removed=new HashSet<>();
+		// within the endpoint's compute, so that an attach over the endpoint
+		// is either forgotten here or comes after and is kept
+		endpointPeers.computeIfPresent(endpoint,(e,peers)->{
+			peers.forEach((peer)->{
+				peerEndpoint.remove(peer,endpoint);
+			});
+			removed.addAll(peers);
+			return null;
+		});
+		return removed;
+	}
+
+	/**
+	 * Share a board.
+	 * @param board in the format "host:port:boardid"
+	 * @param endpoint the session the board was shared over
+	 * @return true if the board was not already shared
+	 * @throws IllegalArgumentException if the board is not in the right format
+	 */
+	public boolean share(String board,Endpoint endpoint) {
+		attach(board,endpoint);
+		return share(board);
+	}
+
+	/**
+	 * Note the session of the peer that owns a board, without sharing the
+	 * board, e.g. when the board is shared through another cluster node.
+	 * @param board in the format "host:port:boardid"
+	 * @param endpoint the session the board was shared over
+	 * @return true if the peer was not already known to be on this session
+	 * @throws IllegalArgumentException if the board is not in the right format
+	 */
+	public boolean attach(String board,Endpoint endpoint) {
+		String peer=peerOf(board);
+		if(peer==null) throw new IllegalArgumentException("board must have the format host:port:boardid");
+		Endpoint[] previous={null};
+		endpointPeers.compute(endpoint,(e,peers)->{
+			previous[0]=peerEndpoint.put(peer,endpoint);
+			if(peers==null) peers=ConcurrentHashMap.newKeySet();
+			peers.add(peer);
+			return peers;
+		});
+		return previous[0]!=endpoint;
+	}
+
+	/**
+	 * Share a board whose peer is not connected to this server.
+	 * @param board in the format "host:port:boardid"
+	 * @return true if the board was not already shared
+	 * @throws IllegalArgumentException if the board is not in the right format
+	 */
+	public boolean share(String board) {
+		String peer=peerOf(board);
+		if(peer==null) throw new IllegalArgumentException("board must have the format host:port:boardid");
+		boolean[] added={false};
+		// both maps change within the peer's compute, which a share or
+		// unshare of any of the peer's boards waits for
+		peerBoards.compute(peer,(p,boards)->{
+			if(boardOwner.putIfAbsent(board,peer)!=null) return boards;
+			if(boards==null) boards=ConcurrentHashMap.newKeySet();
+			boards.add(board);
+			added[0]=true;
+			return boards;
+		});
+		return added[0];
+	}
+
+	/**
+	 * Unshare a board. The peer is forgotten when it has no more boards.
+	 * @param board in the format "host:port:boardid"
+	 * @return true if the board was shared
+	 */
+	public boolean unshare(String board) {
+		String peer=peerOf(board);
+		if(peer==null) return false;
+		boolean[] removed={false};
+		peerBoards.computeIfPresent(peer,(p,boards)->{
+			if(boardOwner.remove(board)==null) return boards;
+			boards.remove(board);
+			removed[0]=true;
+			return boards.isEmpty() ? null : boards;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * @param board
+	 * @return true if the board is shared
+	 */
+	public boolean isShared(String board) {
+		return boardOwner.containsKey(board);
+	}
+
+	/**
+	 * @return the shared boards, a weakly consistent view
+	 */
+	public Collection<String> getBoards() {
+		return Collections.unmodifiableSet(boardOwner.keySet());
+	}
+
+	/**
+	 * @return the number of shared boards
+	 */
+	public int numBoards() {
+		return boardOwner.size();
+	}
+
+	/**
+	 * @return the number of peers that share boards
+	 */
+	public int numPeers() {
+		return peerBoards.size();
+	}
+
+	/**
+	 * @param peer "host:port"
+	 * @return the boards shared by the peer, a weakly consistent view
+	 */
+	public Collection<String> getBoards(String peer) {
+		Set<String> boards=peerBoards.get(peer);
+		if(boards==null) return Collections.emptySet();
+		return Collections.unmodifiableSet(boards);
+	}
+
+	/**
+	 * @return the peers with a session with this server, a weakly consistent view
+	 */
+	public Collection<String> getConnectedPeers() {
+		return Collections.unmodifiableSet(peerEndpoint.keySet());
+	}
+
+	/**
+	 * @param peer "host:port"
+	 * @return the endpoint of the peer's session, or null if it is not connected
+	 */
+	public Endpoint getEndpoint(String peer) {
+		return peerEndpoint.get(peer);
+	}
+}
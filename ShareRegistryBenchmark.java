@@ -0,0 +1,164 @@
+package pb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import pb.managers.endpoint.Endpoint;
+
+/**
+ * Benchmark of the {@link pb.ShareRegistry} for increasing numbers of shared
+ * boards. For each number it shares that many boards, spread over peers that
+ * each share a few over one of a fixed number of sessions, then looks up
+ * random boards, half of them shared and half not, along with their peers'
+ * boards and sessions, and then unshares every board. It reports the time
+ * of each operation, which should not grow with the number of boards, and
+ * checks that the registry is left empty, with no boards and no peers.
+ * <br/>
+ * The sessions are endpoints that are never started, since the registry
+ * only keeps them.
+ *
+ * @see {@link pb.ShareRegistry}
+ * @author aaron
+ *
+ */
+public class ShareRegistryBenchmark {
+
+	private static void help(Options options){
+		String header = "PB share registry benchmark for Unimelb COMP90015\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.ShareRegistryBenchmark", header, options, footer, true);
+		System.exit(-1);
+	}
+
+	/**
+	 * @return the peer "host:port" with the given number
+	 */
+	private static String peer(int p) {
+		return "10."+(p>>16&255)+"."+(p>>8&255)+"."+(p&255)+":"+(3000+p%1000);
+	}
+
+	/**
+	 * Share, look up and unshare the given number of boards.
+	 * @return false if the registry was not left empty
+	 */
+	private static boolean run(int boards,int boardsPerPeer,Endpoint[] sessions,int lookups,
+			Random random,boolean report) {
+		ShareRegistry registry=new ShareRegistry();
+		List<String> shared=new ArrayList<>(boards);
+		for(int b=0;b<boards;b++) shared.add(peer(b/boardsPerPeer)+":"+b);
+		Collections.shuffle(shared,random);
+		String[] probes=new String[lookups];
+		for(int l=0;l<lookups;l++) {
+			int b=random.nextInt(boards);
+			// half of the probes are boards that are not shared
+			probes[l]=peer(b/boardsPerPeer)+":"+(random.nextBoolean() ? b : boards+b);
+		}
+
+		long start=System.nanoTime();
+		for(String board : shared) {
+			// each peer shares all of its boards over the same session
+			registry.share(board,sessions[Math.floorMod(ShareRegistry.peerOf(board).hashCode(),sessions.length)]);
+		}
+		long shareTime=System.nanoTime()-start;
+
+		int found=0;
+		start=System.nanoTime();
+		for(String probe : probes) {
+			if(registry.isShared(probe)) found++;
+			String peer=ShareRegistry.peerOf(probe);
+			if(registry.getEndpoint(peer)==null || registry.getBoards(peer).isEmpty()) {
+				System.out.println("peer "+peer+" is missing from the registry");
+				return false;
+			}
+		}
+		long lookupTime=System.nanoTime()-start;
+
+		start=System.nanoTime();
+		for(String board : shared) registry.unshare(board);
+		long unshareTime=System.nanoTime()-start;
+
+		for(Endpoint session : sessions) registry.removeSession(session);
+		if(report) {
+			System.out.println(String.format("%7d boards  share %5.0f ns  lookup %5.0f ns  unshare %5.0f ns"
+					+"  (%d of %d probes shared)",
+					boards,(double) shareTime/boards,(double) lookupTime/lookups,
+					(double) unshareTime/boards,found,lookups));
+		}
+		if(registry.numBoards()!=0) {
+			System.out.println(registry.numBoards()+" boards are still shared after unsharing them all");
+			return false;
+		}
+		if(registry.numPeers()!=0) {
+			System.out.println(registry.numPeers()+" peers are still known after unsharing all of their boards");
+			return false;
+		}
+		return true;
+	}
+
+	public static void main( String[] args )
+	{
+		Options options = new Options();
+		options.addOption("boards",true,"comma separated numbers of boards to share, e.g. 1000,10000,100000");
+		options.addOption("perPeer",true,"number of boards shared by each peer, an integer");
+		options.addOption("sessions",true,"number of sessions the peers share over, an integer");
+		options.addOption("lookups",true,"number of lookups for each number of boards, an integer");
+		options.addOption("seed",true,"random seed, an integer");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+
+		int[] boards = null;
+		int perPeer = 0;
+		int numSessions = 0;
+		int lookups = 0;
+		long seed = 0;
+		try{
+			boards = Arrays.stream(cmd.getOptionValue("boards","1000,10000,100000").split(","))
+					.mapToInt((b)->Integer.parseInt(b.trim())).toArray();
+			perPeer = Integer.parseInt(cmd.getOptionValue("perPeer","10"));
+			numSessions = Integer.parseInt(cmd.getOptionValue("sessions","64"));
+			lookups = Integer.parseInt(cmd.getOptionValue("lookups","1000000"));
+			seed = Long.parseLong(cmd.getOptionValue("seed","1"));
+		} catch (NumberFormatException e){
+			System.out.println("options require numbers: "+e.getMessage());
+			help(options);
+		}
+		if(perPeer<1 || numSessions<1 || lookups<1 || Arrays.stream(boards).anyMatch((b)->b<1)) {
+			System.out.println("-boards, -perPeer, -sessions and -lookups must be at least 1");
+			help(options);
+		}
+
+		Endpoint[] sessions=new Endpoint[numSessions];
+		for(int s=0;s<sessions.length;s++) sessions[s]=new Endpoint(null,null);
+		Random random=new Random(seed);
+
+		// warm up, so that the first number of boards is not timed interpreted
+		for(int w=0;w<5;w++) run(boards[0],perPeer,sessions,lookups,random,false);
+		boolean ok=true;
+		for(int b : boards) {
+			ok&=run(b,perPeer,sessions,lookups,random,true);
+		}
+		if(!ok) {
+			System.out.println("FAILED");
+			System.exit(-1);
+		}
+		System.out.println("OK");
+		System.exit(0);
+	}
+}
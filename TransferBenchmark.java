@@ -0,0 +1,307 @@
+package pb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.codec.binary.Base64;
+
+import pb.managers.ClientManager;
+import pb.managers.ServerManager;
+import pb.managers.endpoint.Endpoint;
+import pb.utils.Utils;
+
+/**
+ * Stress test of the {@link pb.TransferEngine}. Serves a few files of random
+ * bytes the way a {@link pb.FileSharingPeer} shares them, and downloads them
+ * many times at once, each download a {@link pb.managers.ClientManager} of
+ * its own, over the {@link pb.DataChannel} or in events. Every downloaded
+ * file must have the same CRC32 as the file it is a copy of. At the end it
+ * reports the aggregate throughput, the percentiles of the download times
+ * and the engine's stats, and exits with -1 if any download failed or was
+ * corrupt.
+ *
+ * @see {@link pb.TransferEngine}
+ * @author aaron
+ *
+ */
+public class TransferBenchmark {
+
+	private static void help(Options options){
+		String header = "PB file transfer stress test for Unimelb COMP90015\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.TransferBenchmark", header, options, footer, true);
+		System.exit(-1);
+	}
+
+	private static long crc(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+		try(FileChannel in = FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+			while(in.read(buffer)>0) {
+				buffer.flip();
+				crc.update(buffer);
+				buffer.clear();
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * One download, which counts down done when it has ended either way.
+	 */
+	private static class Download {
+		final String source;
+		final File target;
+		final long expected;
+		final CountDownLatch done;
+		volatile long time = -1; // ns, or -1 until downloaded intact
+		volatile String error = null;
+		volatile long start;
+		private final AtomicBoolean ended = new AtomicBoolean();
+
+		Download(String source,File target,long expected,CountDownLatch done) {
+			this.source = source;
+			this.target = target;
+			this.expected = expected;
+			this.done = done;
+		}
+
+		/**
+		 * The download has ended, check what it got.
+		 * @param clientManager to shut down
+		 * @param failure why it failed, or null if it got all of the file
+		 */
+		void end(ClientManager clientManager,String failure) {
+			if(ended.getAndSet(true)) return;
+			if(failure==null) {
+				try {
+					if(crc(target)==expected) time = System.nanoTime()-start;
+					else failure = "corrupt";
+				} catch (IOException e) {
+					failure = e.toString();
+				}
+			}
+			error = failure;
+			clientManager.shutdown();
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Start a download over the data channel.
+	 */
+	private static void getFileData(ClientManager clientManager,String host,Download download) {
+		clientManager.on(ClientManager.sessionStarted, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			endpoint.on(FileSharingPeer.fileData, (args2)->{
+				DataChannel.Offer offer = DataChannel.Offer.parse((String) args2[0]);
+				if(offer==null) {
+					download.end(clientManager,"bad offer");
+					return;
+				}
+				new Thread(()->{
+					try {
+						DataChannel.receive(host,offer,download.target);
+						download.end(clientManager,null);
+					} catch (IOException e) {
+						download.end(clientManager,e.toString());
+					}
+				},"TransferBenchmark-download").start();
+			}).on(FileSharingPeer.fileError, (args2)->{
+				download.end(clientManager,(String) args2[0]);
+			});
+			download.start = System.nanoTime();
+			endpoint.emit(FileSharingPeer.getFileData, download.source);
+		});
+	}
+
+	/**
+	 * Start a download in events.
+	 */
+	private static void getFile(ClientManager clientManager,Download download) throws IOException {
+		OutputStream out = new FileOutputStream(download.target);
+		clientManager.on(ClientManager.sessionStarted, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			endpoint.on(FileSharingPeer.fileContents, (args2)->{
+				String chunk = (String) args2[0];
+				try {
+					if(chunk.length()==0) {
+						out.close();
+						download.end(clientManager,null);
+					} else {
+						out.write(Base64.decodeBase64(chunk));
+					}
+				} catch (IOException e) {
+					download.end(clientManager,e.toString());
+				}
+			}).on(FileSharingPeer.fileError, (args2)->{
+				download.end(clientManager,(String) args2[0]);
+			});
+			download.start = System.nanoTime();
+			endpoint.emit(FileSharingPeer.getFile, download.source);
+		});
+	}
+
+	public static void main( String[] args ) throws IOException, InterruptedException
+	{
+		Options options = new Options();
+		options.addOption("port",true,"port to serve the files on, an integer");
+		options.addOption("downloads",true,"number of downloads at once, an integer");
+		options.addOption("files",true,"number of different files to download, an integer");
+		options.addOption("size",true,"bytes in each file, an integer");
+		options.addOption("transfer",true,"\"data\" to download over the data channel or \"events\" in Base64 chunks");
+		options.addOption("threads",true,"number of transfer engine threads, an integer");
+		options.addOption("buffers",true,"number of direct buffers in the transfer engine's pool, an integer");
+		options.addOption("timeout",true,"ms to wait for all of the downloads, an integer");
+		options.addOption("seed",true,"random seed, an integer");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+
+		int port = Utils.serverPort;
+		int downloads = 0;
+		int files = 0;
+		int size = 0;
+		int threads = 0;
+		int buffers = 0;
+		long timeout = 0;
+		long seed = 0;
+		try{
+			port = Integer.parseInt(cmd.getOptionValue("port",""+Utils.serverPort));
+			downloads = Integer.parseInt(cmd.getOptionValue("downloads","100"));
+			files = Integer.parseInt(cmd.getOptionValue("files","10"));
+			size = Integer.parseInt(cmd.getOptionValue("size",""+4*1024*1024));
+			threads = Integer.parseInt(cmd.getOptionValue("threads","4"));
+			buffers = Integer.parseInt(cmd.getOptionValue("buffers",""+threads));
+			timeout = Long.parseLong(cmd.getOptionValue("timeout","300000"));
+			seed = Long.parseLong(cmd.getOptionValue("seed","1"));
+		} catch (NumberFormatException e){
+			System.out.println("options require numbers: "+e.getMessage());
+			help(options);
+		}
+		if(downloads<1 || files<1 || size<0 || threads<1 || buffers<1) {
+			System.out.println("-downloads, -files, -threads and -buffers must be at least 1");
+			help(options);
+		}
+		String transfer = cmd.getOptionValue("transfer","data");
+		if(!transfer.equals("data") && !transfer.equals("events")) {
+			System.out.println("-transfer must be \"data\" or \"events\", parsed: "+transfer);
+			help(options);
+		}
+
+		// the files and their downloads are in a directory of their own
+		File dir = Files.createTempDirectory("pb-transfer").toFile();
+		Random random = new Random(seed);
+		String[] names = new String[files];
+		long[] crcs = new long[files];
+		byte[] bytes = new byte[64*1024];
+		for(int f=0;f<files;f++) {
+			names[f] = new File(dir,"file"+f+".bin").getPath();
+			try(OutputStream out = new FileOutputStream(names[f])) {
+				for(int written=0;written<size;written+=bytes.length) {
+					random.nextBytes(bytes);
+					out.write(bytes,0,Math.min(bytes.length,size-written));
+				}
+			}
+			crcs[f] = crc(new File(names[f]));
+		}
+
+		TransferEngine engine = new TransferEngine(threads,buffers,Utils.chunkSize);
+		engine.start();
+		DataChannel dataChannel = new DataChannel(0,engine);
+		dataChannel.start();
+		ServerManager serverManager = new ServerManager(port);
+		serverManager.on(ServerManager.sessionStarted, (args2)->{
+			FileSharingPeer.serveFiles((Endpoint)args2[0],engine,dataChannel);
+		}).on(ServerManager.sessionStopped, (args2)->{
+			dataChannel.cancel((Endpoint)args2[0]);
+		}).on(ServerManager.sessionError, (args2)->{
+			dataChannel.cancel((Endpoint)args2[0]);
+		});
+		serverManager.start();
+		Thread.sleep(1000); // for the server to be listening
+
+		CountDownLatch done = new CountDownLatch(downloads);
+		Download[] all = new Download[downloads];
+		ClientManager[] clientManagers = new ClientManager[downloads];
+		for(int d=0;d<downloads;d++) {
+			int f = d%files;
+			all[d] = new Download(names[f],new File(dir,"download"+d+".bin"),crcs[f],done);
+			try {
+				clientManagers[d] = new ClientManager(Utils.serverHost,port);
+			} catch (UnknownHostException e) {
+				System.out.println("Could not find the host: "+Utils.serverHost);
+				System.exit(-1);
+			}
+			if(transfer.equals("data")) getFileData(clientManagers[d],Utils.serverHost,all[d]);
+			else getFile(clientManagers[d],all[d]);
+		}
+		long start = System.nanoTime();
+		for(ClientManager clientManager : clientManagers) clientManager.start();
+		boolean finished = done.await(timeout,TimeUnit.MILLISECONDS);
+		long elapsed = System.nanoTime()-start;
+
+		long[] times = new long[downloads];
+		int intact = 0;
+		int failed = 0;
+		for(Download download : all) {
+			if(download.time>=0) {
+				times[intact++] = download.time;
+			} else {
+				failed++;
+				if(download.error!=null) System.out.println(download.target.getName()+": "+download.error);
+			}
+		}
+		Arrays.sort(times,0,intact);
+		double seconds = elapsed/1e9;
+		System.out.println(String.format("%d %s downloads of %d bytes, %d transfer threads, %d buffers",
+				downloads,transfer,size,threads,buffers));
+		System.out.println(String.format("intact %d  failed %d  %.2f s  %.1f MB/s aggregate",
+				intact,failed,seconds,(double) intact*size/1e6/seconds));
+		if(intact>0) {
+			System.out.println(String.format("download ms p50 %d  p99 %d  max %d",
+					times[intact/2]/1000000,times[Math.min(intact-1,intact*99/100)]/1000000,
+					times[intact-1]/1000000));
+		}
+		System.out.println("engine "+engine.getStats().toJson());
+
+		for(ClientManager clientManager : clientManagers) clientManager.shutdown();
+		dataChannel.shutdown();
+		serverManager.shutdown();
+		engine.shutdown();
+		for(File file : dir.listFiles()) file.delete();
+		dir.delete();
+		Utils.getInstance().cleanUp();
+		if(!finished || failed>0) {
+			System.out.println("FAILED");
+			System.exit(-1);
+		}
+		System.out.println("OK");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,515 @@
+package pb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
+import pb.utils.Utils;
+
+/**
+ * Sends the files of the {@link pb.FileSharingPeer}, any number at once.
+ * Each transfer keeps its own file channel and position, and moves at most
+ * one chunk each time it is stepped. A few worker threads take the transfers
+ * in turn from a queue, stepping each once and putting it back at the end,
+ * so that many transfers share the workers fairly and a large file does not
+ * hold up a small one.
+ * <br/>
+ * A transfer in {@link pb.FileSharingPeer#fileContents} events reads each
+ * chunk into a direct buffer taken from a bounded pool for just that step,
+ * so that the memory used does not grow with the number of transfers. It
+ * waits while its endpoint has {@link #maxQueuedChunks} chunks still to be
+ * written, so that a slow peer is not sent the whole file into memory.
+ * <br/>
+ * A transfer on the {@link pb.DataChannel} has no buffer, its chunks go from
+ * the file to the socket with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ * Its socket does not block, and when the socket can take no more the
+ * transfer waits on a selector until it can, rather than holding a worker,
+ * for at most {@link #writeTimeout} ms. It belongs to the session that the
+ * file was offered on, and is cancelled with that session's transfers.
+ *
+ * @see {@link pb.FileSharingPeer}
+ * @author aaron
+ *
+ */
+public class TransferEngine {
+	private static Logger log = Logger.getLogger(TransferEngine.class.getName());
+
+	/**
+	 * Most chunks of a transfer in events waiting to be written to its
+	 * endpoint before the transfer waits.
+	 */
+	private static final int maxQueuedChunks=16;
+
+	/**
+	 * Time (ms) that a transfer in events waits for its endpoint's queue to
+	 * go down.
+	 */
+	private static final long queueWait=5;
+
+	/**
+	 * Time (ms) that a transfer on the data channel may wait for its socket
+	 * to take more before it is given up.
+	 */
+	private static final long writeTimeout=30000;
+
+	/**
+	 * Time (ms) between looks for transfers waiting on the selector that have
+	 * been cancelled or have waited too long.
+	 */
+	private static final long selectTick=1000;
+
+	/**
+	 * Most bytes moved by a step of a transfer on the data channel.
+	 */
+	private static final long dataQuantum=256*1024;
+
+	/**
+	 * What a transfer needs after a step.
+	 */
+	private enum Next {
+		STEP, // more to do straight away
+		DONE,
+		WRITABLE, // its socket to take more
+		LATER // to wait a while
+	}
+
+	/**
+	 * A bounded pool of direct buffers, all allocated up front.
+	 */
+	private static class BufferPool {
+		private final ArrayBlockingQueue<ByteBuffer> free;
+		private final AtomicLong waits=new AtomicLong();
+
+		BufferPool(int count,int size) {
+			free=new ArrayBlockingQueue<>(count);
+			for(int i=0;i<count;i++) free.add(ByteBuffer.allocateDirect(size));
+		}
+
+		ByteBuffer take() throws InterruptedException {
+			ByteBuffer buffer=free.poll();
+			if(buffer==null) {
+				waits.incrementAndGet();
+				buffer=free.take();
+			}
+			return buffer;
+		}
+
+		void give(ByteBuffer buffer) {
+			buffer.clear();
+			free.add(buffer);
+		}
+	}
+
+	/**
+	 * A file being sent, and how far it has got.
+	 */
+	private abstract class Transfer {
+		final String name;
+		final Object owner;
+		final FileChannel file;
+		final long size;
+		final long start=System.nanoTime();
+		long position=0;
+		volatile boolean cancelled=false;
+
+		Transfer(String name,Object owner,FileChannel file,long size) {
+			this.name=name;
+			this.owner=owner;
+			this.file=file;
+			this.size=size;
+		}
+
+		abstract boolean needsBuffer();
+
+		/**
+		 * Move the next chunk. Called by one worker at a time.
+		 * @param buffer a cleared buffer from the pool, only for this step,
+		 * or null if the transfer needs none
+		 * @return what the transfer needs next
+		 * @throws IOException
+		 */
+		abstract Next step(ByteBuffer buffer) throws IOException;
+
+		/**
+		 * The transfer has failed or been cancelled.
+		 * @param reason
+		 */
+		abstract void failed(String reason);
+
+		void close() {
+			try {
+				file.close();
+			} catch (IOException e) {
+				// was only read
+			}
+		}
+	}
+
+	/**
+	 * A file sent in {@link pb.FileSharingPeer#fileContents} events, Base64
+	 * encoded, ending with an empty one.
+	 */
+	private class EventTransfer extends Transfer {
+		final Endpoint endpoint;
+
+		EventTransfer(String name,Endpoint endpoint,FileChannel file,long size) {
+			super(name,endpoint,file,size);
+			this.endpoint=endpoint;
+		}
+
+		@Override
+		boolean needsBuffer() {
+			return true;
+		}
+
+		@Override
+		Next step(ByteBuffer buffer) throws IOException {
+			if(endpoint.getOutboundQueueSize()>=maxQueuedChunks) return Next.LATER;
+			int read=file.read(buffer,position);
+			if(read>0) {
+				buffer.flip();
+				ByteBuffer encoded=Base64.getEncoder().encode(buffer);
+				endpoint.emit(FileSharingPeer.fileContents,
+						new String(encoded.array(),0,encoded.limit(),StandardCharsets.US_ASCII));
+				position+=read;
+			}
+			if(read<0 || position>=size) {
+				endpoint.emit(FileSharingPeer.fileContents, ""); // signals no more bytes in file
+				return Next.DONE;
+			}
+			return Next.STEP;
+		}
+
+		@Override
+		void failed(String reason) {
+			endpoint.emit(FileSharingPeer.fileError, reason);
+		}
+	}
+
+	/**
+	 * A file sent on a {@link pb.DataChannel} connection, the number of
+	 * bytes that were offered, after which the connection is closed.
+	 */
+	private class DataTransfer extends Transfer {
+		final SocketChannel channel;
+		/**
+		 * When it started to wait for its socket, used by the selector thread.
+		 */
+		long waitingSince;
+
+		DataTransfer(String name,Endpoint session,SocketChannel channel,FileChannel file,long size) {
+			super(name,session,file,size);
+			this.channel=channel;
+		}
+
+		@Override
+		boolean needsBuffer() {
+			return false;
+		}
+
+		@Override
+		Next step(ByteBuffer buffer) throws IOException {
+			if(position>=size) return Next.DONE;
+			long sent=file.transferTo(position,Math.min(dataQuantum,size-position),channel);
+			if(sent==0) {
+				if(position>=file.size()) throw new IOException("file is shorter than offered");
+				return Next.WRITABLE;
+			}
+			position+=sent;
+			return position>=size ? Next.DONE : Next.STEP;
+		}
+
+		@Override
+		void failed(String reason) {
+			// the receiver sees the connection close before all of the file is in
+		}
+
+		@Override
+		void close() {
+			super.close();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing more can be done with it
+			}
+		}
+	}
+
+	private final BufferPool pool;
+
+	/**
+	 * Transfers ready to be stepped, in turn.
+	 */
+	private final LinkedBlockingQueue<Transfer> ready=new LinkedBlockingQueue<>();
+
+	/**
+	 * Every transfer not yet done, so that they can be cancelled.
+	 */
+	private final Set<Transfer> active=ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Data transfers waiting for their sockets, and the selector that waits
+	 * for them, which is only registered with by its own thread.
+	 */
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<DataTransfer> toSelect=new ConcurrentLinkedQueue<>();
+
+	private final Thread[] workers;
+	private final Thread selectorThread;
+	private volatile boolean stopped=false;
+
+	private final AtomicLong started=new AtomicLong();
+	private final AtomicLong completed=new AtomicLong();
+	private final AtomicLong failed=new AtomicLong();
+	private final AtomicLong bytesSent=new AtomicLong();
+
+	/**
+	 * @param threads number of worker threads
+	 * @param buffers number of direct buffers in the pool, at most the number
+	 * of transfers in events that can be reading a chunk at once
+	 * @param bufferSize bytes in each buffer, the chunk size of transfers in
+	 * events
+	 * @throws IOException if the selector cannot be opened
+	 */
+	public TransferEngine(int threads,int buffers,int bufferSize) throws IOException {
+		pool=new BufferPool(buffers,bufferSize);
+		selector=Selector.open();
+		workers=new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			workers[i]=new Thread(()->{work();},"TransferEngine-worker-"+i);
+			workers[i].setDaemon(true);
+		}
+		selectorThread=new Thread(()->{select();},"TransferEngine-selector");
+		selectorThread.setDaemon(true);
+	}
+
+	public void start() {
+		for(Thread worker : workers) worker.start();
+		selectorThread.start();
+	}
+
+	/**
+	 * Stop the workers. Transfers not yet done are closed, unfinished.
+	 */
+	public void shutdown() {
+		stopped=true;
+		for(Thread worker : workers) worker.interrupt();
+		selector.wakeup();
+		for(Transfer transfer : active) finish(transfer,"the peer is stopping");
+	}
+
+	/**
+	 * Send a file in {@link pb.FileSharingPeer#fileContents} events, or emit
+	 * {@link pb.FileSharingPeer#fileError} if it cannot be read.
+	 * @param filename
+	 * @param endpoint
+	 */
+	public void sendEvents(String filename,Endpoint endpoint) {
+		FileChannel file;
+		long size;
+		try {
+			file=FileChannel.open(new File(filename).toPath(),StandardOpenOption.READ);
+			size=file.size();
+		} catch (IOException e) {
+			endpoint.emit(FileSharingPeer.fileError,e.toString());
+			return;
+		}
+		begin(new EventTransfer(filename,endpoint,file,size));
+	}
+
+	/**
+	 * Send the bytes of a file that were offered on a data channel
+	 * connection, and then close it.
+	 * @param file
+	 * @param size the bytes offered
+	 * @param session the endpoint of the session the file was offered on,
+	 * whose transfers the transfer is cancelled with
+	 * @param channel the connection, which is made non-blocking
+	 * @throws IOException if the file cannot be read or the connection is
+	 * closed, in which case the connection is closed too
+	 */
+	public void sendData(File file,long size,Endpoint session,SocketChannel channel) throws IOException {
+		FileChannel in;
+		try {
+			channel.configureBlocking(false);
+			in=FileChannel.open(file.toPath(),StandardOpenOption.READ);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		begin(new DataTransfer(file.getPath(),session,channel,in,size));
+	}
+
+	/**
+	 * Cancel the transfers of an endpoint's session, for when it has stopped,
+	 * those in events to it and those on the data channel offered on it.
+	 * @param endpoint
+	 */
+	public void cancel(Endpoint endpoint) {
+		boolean found=false;
+		for(Transfer transfer : active) {
+			if(transfer.owner==endpoint) {
+				transfer.cancelled=true;
+				found=true;
+			}
+		}
+		// those waiting on the selector are ended by its thread
+		if(found) selector.wakeup();
+	}
+
+	private void begin(Transfer transfer) {
+		if(stopped) {
+			transfer.failed("the peer is stopping");
+			transfer.close();
+			return;
+		}
+		started.incrementAndGet();
+		active.add(transfer);
+		ready.add(transfer);
+	}
+
+	/**
+	 * Worker thread: step the ready transfers in turn.
+	 */
+	private void work() {
+		while(!stopped) {
+			Transfer transfer;
+			ByteBuffer buffer=null;
+			try {
+				transfer=ready.take();
+				if(transfer.cancelled) {
+					finish(transfer,"cancelled");
+					continue;
+				}
+				if(transfer.needsBuffer()) buffer=pool.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			Next next;
+			long before=transfer.position;
+			try {
+				next=transfer.step(buffer);
+			} catch (IOException e) {
+				log.warning("transfer of "+transfer.name+" failed: "+e.getMessage());
+				finish(transfer,e.toString());
+				continue;
+			} finally {
+				if(buffer!=null) pool.give(buffer);
+			}
+			bytesSent.addAndGet(transfer.position-before);
+			switch(next) {
+			case STEP:
+				ready.add(transfer);
+				break;
+			case DONE:
+				finish(transfer,null);
+				break;
+			case WRITABLE:
+				toSelect.add((DataTransfer) transfer);
+				selector.wakeup();
+				break;
+			case LATER:
+				Utils.getInstance().setTimeout(()->{ready.add(transfer);},queueWait);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Selector thread: put data transfers back in turn when their sockets
+	 * can take more, and end those waiting that have been cancelled or have
+	 * waited too long. A transfer is only waiting on the selector while its
+	 * key has interest, and then no worker has it.
+	 */
+	private void select() {
+		while(!stopped) {
+			DataTransfer waiting;
+			while((waiting=toSelect.poll())!=null) {
+				waiting.waitingSince=System.currentTimeMillis();
+				try {
+					SelectionKey key=waiting.channel.keyFor(selector);
+					if(key==null) waiting.channel.register(selector,SelectionKey.OP_WRITE,waiting);
+					else key.interestOps(SelectionKey.OP_WRITE);
+				} catch (ClosedChannelException e) {
+					finish(waiting,e.toString());
+				}
+			}
+			try {
+				selector.select(selectTick);
+			} catch (IOException e) {
+				log.severe("transfer selector failed: "+e.getMessage());
+				return;
+			}
+			for(SelectionKey key : selector.selectedKeys()) {
+				if(key.isValid()) key.interestOps(0);
+				ready.add((Transfer) key.attachment());
+			}
+			selector.selectedKeys().clear();
+			long now=System.currentTimeMillis();
+			for(SelectionKey key : selector.keys()) {
+				if(!key.isValid() || key.interestOps()==0) continue;
+				DataTransfer transfer=(DataTransfer) key.attachment();
+				if(transfer.cancelled) {
+					key.cancel();
+					finish(transfer,"cancelled");
+				} else if(now-transfer.waitingSince>writeTimeout) {
+					key.cancel();
+					log.warning("transfer of "+transfer.name+" gave up after waiting "+writeTimeout
+							+" ms for the receiver");
+					finish(transfer,"the receiver stopped reading");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param transfer
+	 * @param error why the transfer did not complete, or null if it did
+	 */
+	private void finish(Transfer transfer,String error) {
+		if(!active.remove(transfer)) return;
+		if(error==null) {
+			completed.incrementAndGet();
+			log.info("sent "+transfer.name+", "+transfer.position+" bytes, in "
+					+(System.nanoTime()-transfer.start)/1000000+" ms");
+		} else {
+			failed.incrementAndGet();
+			if(!transfer.cancelled) transfer.failed(error);
+		}
+		transfer.close();
+	}
+
+	/**
+	 * @return the number of transfers started, completed, failed and
+	 * under way, the bytes sent, and the number of times a transfer waited
+	 * for a buffer from the pool
+	 */
+	public Document getStats() {
+		Document doc=new Document();
+		doc.append("started",started.get());
+		doc.append("completed",completed.get());
+		doc.append("failed",failed.get());
+		doc.append("active",active.size());
+		doc.append("bytesSent",bytesSent.get());
+		doc.append("workers",workers.length);
+		doc.append("bufferWaits",pool.waits.get());
+		return doc;
+	}
+}
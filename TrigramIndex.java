@@ -0,0 +1,154 @@
+package pb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Inverted index from each trigram (three consecutive characters) of the
+ * lower cased filenames to the filenames that hold it, for finding the
+ * filenames that contain a term without looking at every filename. A term of
+ * three or more characters can only be in filenames that hold all of its
+ * trigrams, so only those filenames, found by intersecting the trigrams'
+ * postings, are checked for the term. Shorter terms have no trigrams and are
+ * checked against every filename.
+ * <br/>
+ * Changes and queries may all run at once, without locks. A change to one
+ * trigram's postings only holds up other changes to the same trigram. A query
+ * that runs during changes gives every filename that was in the index
+ * throughout and none that were in it at no time during the query; those
+ * added or removed meanwhile may or may not be given.
+ *
+ * @see {@link pb.IndexServer}
+ * @author aaron
+ *
+ */
+public class TrigramIndex {
+
+	/**
+	 * Each filename to its lower cased form.
+	 */
+	private final Map<String,String> lowerNames=new ConcurrentHashMap<>();
+
+	/**
+	 * Each trigram to the filenames whose lower cased forms hold it.
+	 */
+	private final Map<String,Set<String>> postings=new ConcurrentHashMap<>();
+
+	/**
+	 * Add a filename, if it is not already in the index. The same filename
+	 * must not be added and removed at once.
+	 * @param filename
+	 * @return true if the filename was added
+	 */
+	public boolean add(String filename) {
+		String lower=filename.toLowerCase();
+		if(lowerNames.putIfAbsent(filename,lower)!=null) return false;
+		for(int i=0;i+3<=lower.length();i++) {
+			// a posting set is only changed inside compute, so that it cannot
+			// be dropped for being empty while a filename is added to it
+			postings.compute(lower.substring(i,i+3),(trigram,filenames)->{
+				if(filenames==null) filenames=ConcurrentHashMap.newKeySet();
+				filenames.add(filename);
+				return filenames;
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * Add filenames that are not already in the index.
+	 * @param filenames
+	 */
+	public void addAll(Collection<String> filenames) {
+		for(String filename : filenames) add(filename);
+	}
+
+	/**
+	 * Remove a filename.
+	 * @param filename
+	 * @return true if the filename was in the index
+	 */
+	public boolean remove(String filename) {
+		String lower=lowerNames.remove(filename);
+		if(lower==null) return false;
+		for(int i=0;i+3<=lower.length();i++) {
+			postings.computeIfPresent(lower.substring(i,i+3),(trigram,filenames)->{
+				filenames.remove(filename);
+				return filenames.isEmpty() ? null : filenames;
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * @param filename
+	 * @return true if the filename is in the index
+	 */
+	public boolean contains(String filename) {
+		return lowerNames.containsKey(filename);
+	}
+
+	/**
+	 * @return the number of filenames in the index
+	 */
+	public int size() {
+		return lowerNames.size();
+	}
+
+	/**
+	 * Find the filenames that contain any of the terms, ignoring case, the
+	 * same as checking {@code filename.toLowerCase().contains(term.toLowerCase())}
+	 * for every filename and term.
+	 * @param terms
+	 * @return the filenames found
+	 */
+	public Set<String> search(Collection<String> terms) {
+		Set<String> hits=new HashSet<>();
+		for(String term : terms) {
+			forEachMatch(term.toLowerCase(),(filename,lower)->{
+				hits.add(filename);
+			});
+		}
+		return hits;
+	}
+
+	/**
+	 * Give each filename that contains a term, one at a time, so that the
+	 * hits of a term need not all be held at once.
+	 * @param term lower cased
+	 * @param action called with the filename and its lower cased form
+	 */
+	public void forEachMatch(String term,BiConsumer<String,String> action) {
+		if(term.length()<3) {
+			for(Map.Entry<String,String> entry : lowerNames.entrySet()) {
+				if(entry.getValue().contains(term)) action.accept(entry.getKey(),entry.getValue());
+			}
+			return;
+		}
+		List<Set<String>> lists=new ArrayList<>(term.length()-2);
+		for(int i=0;i+3<=term.length();i++) {
+			Set<String> filenames=postings.get(term.substring(i,i+3));
+			if(filenames==null) return;
+			lists.add(filenames);
+		}
+		// walk the shortest posting list, probing the others
+		Set<String> shortest=Collections.min(lists,(a,b)->Integer.compare(a.size(),b.size()));
+		candidates:
+		for(String filename : shortest) {
+			for(Set<String> filenames : lists) {
+				if(filenames!=shortest && !filenames.contains(filename)) continue candidates;
+			}
+			// the trigrams may be in the wrong order or apart, and the
+			// filename may have been removed since its postings were read
+			String lower=lowerNames.get(filename);
+			if(lower!=null && (term.length()==3 || lower.contains(term))) action.accept(filename,lower);
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package pb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -12,9 +16,13 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 
+import pb.managers.AdmissionControl;
 import pb.managers.IOThread;
 import pb.managers.ServerManager;
+import pb.managers.TopicBroker;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.RttEstimator;
+import pb.protocols.Document;
 import pb.utils.Utils;
 
 /**
@@ -47,8 +55,6 @@ public class WhiteboardServer {
 	 * The server emits this event:
 	 * <ul>
 	 * <li>to all connected clients to tell them that a board is being shared</li>
-	 * <li>to a newly connected client, it emits this event several times, for all
-	 * boards that are currently known to be being shared</li>
 	 * </ul>
 	 * Argument has format "host:port:boardid"
 	 * <ul>
@@ -57,6 +63,22 @@ public class WhiteboardServer {
 	 */
 	public static final String sharingBoard = "SHARING_BOARD";
 
+	/**
+	 * The server emits this event:
+	 * <ul>
+	 * <li>to a newly connected client, with all boards that are currently known
+	 * to be being shared</li>
+	 * </ul>
+	 * Argument is a JSON document with keys "page" and "pages" (integers) and
+	 * "boards", a list of boards in the format "host:port:boardid". Large lists
+	 * are split over several pages, sent in order, and the client should apply
+	 * the boards once the last page (page == pages-1) has arrived.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String sharingBoards = "SHARING_BOARDS";
+
 	/**
 	 * The server emits this event:
 	 * <ul>
@@ -70,6 +92,20 @@ public class WhiteboardServer {
 	 */
 	public static final String unsharingBoard = "UNSHARING_BOARD";
 
+	/**
+	 * The server emits this event:
+	 * <ul>
+	 * <li>to all connected clients to tell them that a batch of boards is no
+	 * longer shared, e.g. those of a peer that has gone</li>
+	 * </ul>
+	 * Argument is a JSON document in the same format as {@link #sharingBoards},
+	 * except that each page stands alone and can be applied as it arrives.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String unsharingBoards = "UNSHARING_BOARDS";
+
 	/**
 	 * Emitted by the server to a client to let it know that there was an error in a
 	 * received argument to any of the events above. Argument is the error message.
@@ -79,6 +115,20 @@ public class WhiteboardServer {
 	 */
 	public static final String error = "ERROR";
 
+	/**
+	 * Most characters of board names to put in one page of
+	 * {@link #sharingBoards}, keeping each message well under the 64kB
+	 * limit of a message.
+	 */
+	private static final int boardListPageSize = 32*1024;
+
+	/**
+	 * Prefix of the topic that board notifications are published on, the topic
+	 * of a board being this prefix followed by "host:port:boardid". Sessions are
+	 * subscribed to all of them when they start.
+	 */
+	static final String boardsTopic = "boards/";
+
 	/**
 	 * Default port number.
 	 */
@@ -86,6 +136,70 @@ public class WhiteboardServer {
 
 
 
+	/**
+	 * Split a list of boards into pages for {@link #sharingBoards}.
+	 * @param boards the boards
+	 * @return the pages as JSON, at least one even if there are no boards
+	 */
+	static List<String> boardListPages(Collection<String> boards) {
+		List<ArrayList<String>> pages = new ArrayList<>();
+		ArrayList<String> page = new ArrayList<>();
+		int pageLength = 0;
+		for(String board : boards) {
+			if(pageLength+board.length()>boardListPageSize && !page.isEmpty()) {
+				pages.add(page);
+				page = new ArrayList<>();
+				pageLength = 0;
+			}
+			page.add(board);
+			pageLength += board.length()+3; // quotes and comma
+		}
+		pages.add(page);
+		List<String> json = new ArrayList<>();
+		for(int i=0;i<pages.size();i++) {
+			Document doc = new Document();
+			doc.append("page",i);
+			doc.append("pages",pages.size());
+			doc.append("boards",pages.get(i));
+			json.add(doc.toJson());
+		}
+		return json;
+	}
+
+	/**
+	 * @param page a page made by {@link #boardListPages(Collection)}
+	 * @return the boards in the page
+	 */
+	static List<String> boardsOfPage(Document page) {
+		List<String> boards = new ArrayList<>();
+		for(Object board : (ArrayList<?>) page.get("boards")) {
+			boards.add((String) board);
+		}
+		return boards;
+	}
+
+	/**
+	 * @param json a page made by {@link #boardListPages(Collection)}
+	 * @return the boards in the page
+	 */
+	static List<String> boardsOfPage(String json) {
+		return boardsOfPage(Document.parse(json));
+	}
+
+	/**
+	 * Send the whole list of shared boards to a newly connected client, a
+	 * page at a time.
+	 * @param boards the shared boards
+	 * @param endpoint the client
+	 * @see {@link pb.ClusterNode#sendBoards(Endpoint)}
+	 */
+	static void sendBoardList(Collection<String> boards,Endpoint endpoint) {
+		if(boards.isEmpty()) return; // nothing being shared
+		for(String page : boardListPages(boards)) {
+			endpoint.emit(sharingBoards,page);
+		}
+	}
+
 	private static void help(Options options){
 		String header = "PB Whiteboard Server for Unimelb COMP90015\n\n";
 		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
@@ -103,7 +217,22 @@ public class WhiteboardServer {
 		// parse command line options
 		Options options = new Options();
 		options.addOption("port",true,"server port, an integer");
+		options.addOption("minTimeout",true,"smallest reply timeout in ms, an integer");
+		options.addOption("maxTimeout",true,"largest reply timeout in ms, an integer");
+		options.addOption("drainDeadline",true,"ms to wait for sessions to finish on shutdown, an integer");
+		options.addOption("maxConnections",true,"largest number of client connections, an integer");
+		options.addOption("maxConnectionsPerAddress",true,"largest number of client connections from one address, an integer");
+		options.addOption("acceptRate",true,"connections accepted per second, a number");
+		options.addOption("acceptBurst",true,"connections accepted in a burst, an integer");
+		options.addOption("acceptors",true,"number of threads accepting connections, an integer");
 		options.addOption("password",true,"password for server");
+		options.addOption("cluster",true,"all nodes of a server cluster, a comma separated list of host:port");
+		options.addOption("node",true,"this server's host:port in the -cluster list");
+		options.addOption("leaseTime",true,"ms that the boards of a peer whose session ended stay shared, an integer");
+		options.addOption("shareLog",true,"directory to log shared boards in, so that they survive a restart");
+		options.addOption("shareLogDurability",true,"when logged shares reach the disk: sync, group or async");
+		options.addOption("shareLogGrace",true,"ms for peers of restored boards to come back, an integer");
+		options.addOption("shareLogCompact",true,"log records between snapshots, an integer");
 
 
 		CommandLineParser parser = new DefaultParser();
@@ -123,6 +252,20 @@ public class WhiteboardServer {
 			}
 		}
 
+		if(cmd.hasOption("minTimeout") || cmd.hasOption("maxTimeout")) {
+			try{
+				int minTimeout = Integer.parseInt(cmd.getOptionValue("minTimeout","2000"));
+				int maxTimeout = Integer.parseInt(cmd.getOptionValue("maxTimeout","40000"));
+				RttEstimator.setDefaultBounds(minTimeout,maxTimeout);
+			} catch (NumberFormatException e){
+				System.out.println("-minTimeout and -maxTimeout require a number of ms");
+				help(options);
+			} catch (IllegalArgumentException e){
+				System.out.println("-minTimeout must be positive and not more than -maxTimeout");
+				help(options);
+			}
+		}
+
 		// create a server manager and setup event handlers
 		ServerManager serverManager;
 
@@ -131,64 +274,125 @@ public class WhiteboardServer {
 		} else {
 			serverManager = new ServerManager(port);
 		}
+		
+		if(cmd.hasOption("drainDeadline")) {
+			try{
+				serverManager.setDrainDeadline(Long.parseLong(cmd.getOptionValue("drainDeadline")));
+			} catch (NumberFormatException e){
+				System.out.println("-drainDeadline requires a number of ms, parsed: "+cmd.getOptionValue("drainDeadline"));
+				help(options);
+			}
+		}
+		
+		// how new connections are accepted
+		AdmissionControl admissionControl = serverManager.getAdmissionControl();
+		try{
+			if(cmd.hasOption("maxConnections"))
+				admissionControl.setMaxEndpoints(Integer.parseInt(cmd.getOptionValue("maxConnections")));
+			if(cmd.hasOption("maxConnectionsPerAddress"))
+				admissionControl.setMaxEndpointsPerAddress(
+						Integer.parseInt(cmd.getOptionValue("maxConnectionsPerAddress")));
+			if(cmd.hasOption("acceptors"))
+				serverManager.setNumAcceptors(Integer.parseInt(cmd.getOptionValue("acceptors")));
+			if(cmd.hasOption("acceptRate"))
+				admissionControl.setAcceptRate(Double.parseDouble(cmd.getOptionValue("acceptRate")),
+						Integer.parseInt(cmd.getOptionValue("acceptBurst","10")));
+		} catch (NumberFormatException e){
+			System.out.println("admission control options require numbers: "+e.getMessage());
+			help(options);
+		}
 
-		/**
-		 * TODO: Put some server related code here.
-		 */
-		//datastrucure
-		ArrayList<String> shareBoardList = new ArrayList<String>();
-		ArrayList<Endpoint> endpoint = new ArrayList<Endpoint>();
-
+		// shared boards, and the sessions that hear about them
+		ShareRegistry registry = new ShareRegistry();
+		TopicBroker topicBroker = serverManager.getTopicBroker();
 
-		serverManager.on(ServerManager.sessionStarted,(eventArgs)-> {
-			Endpoint endpoint_temp = (Endpoint) eventArgs[0];
-			endpoint.add(endpoint_temp);
-
-			log.info("Client session started: " + endpoint_temp.getOtherEndpointId());
-			if(!shareBoardList.isEmpty()){
-				for(int i = 0; i < shareBoardList.size(); i++){
-					System.out.println(i);
-					endpoint_temp.emit(sharingBoard,shareBoardList.get(i));
+		// the other servers that the boards are split over, if any
+		List<String> nodes = new ArrayList<>();
+		String nodeId = cmd.getOptionValue("node");
+		if(cmd.hasOption("cluster")) {
+			for(String node : cmd.getOptionValue("cluster").split(",")) {
+				if(!node.trim().isEmpty()) nodes.add(node.trim());
+			}
+			if(nodeId==null) {
+				// the one node on our port
+				for(String node : nodes) {
+					if(node.endsWith(":"+port)) {
+						if(nodeId!=null) {
+							System.out.println("-node is required when several -cluster nodes use port "+port);
+							help(options);
+						}
+						nodeId = node;
+					}
 				}
 			}
-			endpoint_temp.on(shareBoard, (eventArgs2)-> {
+			if(nodeId==null || !nodes.contains(nodeId)) {
+				System.out.println("-node must be one of the -cluster nodes");
+				help(options);
+			}
+		} else {
+			if(nodeId==null) nodeId = Utils.serverHost+":"+port;
+			nodes.add(nodeId);
+		}
+		ClusterNode cluster = new ClusterNode(nodeId,nodes,serverManager,registry);
+		if(cmd.hasOption("leaseTime")) {
+			try{
+				cluster.setLeaseTime(Long.parseLong(cmd.getOptionValue("leaseTime")));
+			} catch (NumberFormatException e){
+				System.out.println("-leaseTime requires a number of ms, parsed: "+cmd.getOptionValue("leaseTime"));
+				help(options);
+			}
+		}
 
+		// boards shared before a restart
+		ShareLog shareLog = null;
+		if(cmd.hasOption("shareLog")) {
+			try{
+				ShareLog.Durability durability = ShareLog.Durability.valueOf(
+						cmd.getOptionValue("shareLogDurability","group").toUpperCase());
+				long grace = Long.parseLong(cmd.getOptionValue("shareLogGrace","60000"));
+				long compactEvery = Long.parseLong(cmd.getOptionValue("shareLogCompact","100000"));
+				shareLog = new ShareLog(new File(cmd.getOptionValue("shareLog")),durability,compactEvery);
+				Set<String> boards = shareLog.open();
+				cluster.restore(shareLog,boards,grace);
+			} catch (IllegalArgumentException e){
+				// includes NumberFormatException
+				System.out.println("-shareLogDurability must be sync, group or async, and -shareLogGrace and -shareLogCompact numbers");
+				help(options);
+			}
+		}
+
+		serverManager.on(ServerManager.sessionStarted,(eventArgs)-> {
+			Endpoint endpoint = (Endpoint) eventArgs[0];
+			topicBroker.subscribe(endpoint,boardsTopic+"*");
+
+			log.info("Client session started: " + endpoint.getOtherEndpointId());
+			// after subscribing, so that no change is missed in between
+			cluster.sendBoards(endpoint);
+			endpoint.on(shareBoard, (eventArgs2)-> {
 				String peerShareBoard = (String) eventArgs2[0];
 				log.info("Received share request: " + peerShareBoard);
-				String[] parts=peerShareBoard.split(":",3);
-				if(parts.length!=3) {
-					for(int i=0;i<endpoint.size();i++){
-						endpoint.get(i).emit(error,peerShareBoard);
-					}
-
+				if(ShareRegistry.peerOf(peerShareBoard)==null) {
+					endpoint.emit(error,peerShareBoard);
 				} else {
-					for(int i=0;i<endpoint.size();i++){
-						endpoint.get(i).emit(sharingBoard, peerShareBoard);
-					}
-					shareBoardList.add(peerShareBoard);
-
+					cluster.share(peerShareBoard,endpoint);
 				}
 			}).on(unshareBoard,(eventArgs2)->{
 				String peerUnshareBoard = (String) eventArgs2[0];
 				log.info("Received unshare request: " + peerUnshareBoard);
-				String[] parts=peerUnshareBoard.split(":",3);
-				if(parts.length!=3 && !shareBoardList.contains(peerUnshareBoard)) {
-					for(int i=0;i<endpoint.size();i++)
-						endpoint.get(i).emit(error,peerUnshareBoard);
-				} else {
-
-					shareBoardList.remove(peerUnshareBoard);
-					for(int i=0;i<endpoint.size();i++)
-						endpoint.get(i).emit(unsharingBoard, peerUnshareBoard);
-
+				if(!cluster.unshare(peerUnshareBoard)) {
+					endpoint.emit(error,peerUnshareBoard);
 				}
 			});
 		}).on(ServerManager.sessionStopped,(eventArgs)->{
-			Endpoint endpoint_temp = (Endpoint)eventArgs[0];
-			log.info("Client session ended: "+endpoint_temp.getOtherEndpointId());
+			Endpoint endpoint = (Endpoint)eventArgs[0];
+			topicBroker.unsubscribeAll(endpoint);
+			cluster.sessionEnded(endpoint);
+			log.info("Client session ended: "+endpoint.getOtherEndpointId());
 		}).on(ServerManager.sessionError, (eventArgs)->{
-			Endpoint endpoint_temp = (Endpoint)eventArgs[0];
-			log.warning("Client session ended in error: "+endpoint_temp.getOtherEndpointId());
+			Endpoint endpoint = (Endpoint)eventArgs[0];
+			topicBroker.unsubscribeAll(endpoint);
+			cluster.sessionEnded(endpoint);
+			log.warning("Client session ended in error: "+endpoint.getOtherEndpointId());
 		}).on(IOThread.ioThread, (eventArgs)->{
 			String peerport = (String) eventArgs[0];
 
@@ -198,9 +402,12 @@ public class WhiteboardServer {
 
 		// start up the server
 		log.info("Whiteboard Server starting up");
+		cluster.start();
 		serverManager.start();
 		// nothing more for the main thread to do
 		serverManager.join();
+		cluster.shutdown();
+		if(shareLog!=null) shareLog.close();
 		Utils.getInstance().cleanUp();
 
 	}
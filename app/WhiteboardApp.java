@@ -7,6 +7,7 @@ import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
 import pb.utils.Utils;
 
 import java.awt.BorderLayout;
@@ -208,6 +209,11 @@ public class WhiteboardApp {
 	Endpoint endpoint2 = null;
 	ArrayList<Endpoint> endpoint_2array = new ArrayList<Endpoint>();
 
+	/**
+	 * Boards received so far in a list of shared boards from the server
+	 */
+	ArrayList<String> sharedBoardList = new ArrayList<String>();
+
 
 	/**
 	 * Initialize the white board app.
@@ -239,39 +245,41 @@ public class WhiteboardApp {
 			this.peerport = Utils.serverHost+":"+ peerPort;   //?
 			endpoint.on(WhiteboardServer.sharingBoard,(eventArgs2)->{
 				String update = (String) eventArgs2[0];
-				onShareBoard(update);
-				log.info("the update is : "+update );
-				if (!whiteboards.containsKey(update)){
-					Whiteboard newWhiteboard = new Whiteboard(update,true);
-					log.info("it is not contained");
-					addBoard(newWhiteboard,true);
+				sharingBoardReceived(peerManager,update,peerPort);
+			}).on(WhiteboardServer.sharingBoards,(eventArgs2)->{
+				// the list of boards may come over several pages, so
+				// collect them and apply them all at once
+				Document page = Document.parse((String) eventArgs2[0]);
+				for(Object board : (ArrayList<?>) page.get("boards")) {
+					sharedBoardList.add((String) board);
 				}
-
-				try {
-					if(whiteboards.get(update).isRemote()){//remote
-						sharingPeer(peerManager,update);
-					}
-					else{
-						returnPeer(peerManager,update,peerPort);
-					}
-
-				} catch (InterruptedException e) {
-					System.out.println("the exception: "+update);
-				}
-				//onBoardListen(parts[0],Integer.parseInt(parts[1]),update);
-				log.info("there is the end of the peer started");
-
+				if(page.getLong("page")<page.getLong("pages")-1) return;
+				ArrayList<String> boards = new ArrayList<>(sharedBoardList);
+				sharedBoardList.clear();
+				sharingBoardsReceived(peerManager,boards,peerPort);
 			}).on(WhiteboardServer.unsharingBoard,(eventArgs2)->{
 				log.info("received unsharing board");
 				String update = (String) eventArgs2[0];
-				if(whiteboards.get(update).isRemote()){
+				// may be a board unshared before the list of boards was sent
+				Whiteboard whiteboard = whiteboards.get(update);
+				if(whiteboard!=null && whiteboard.isRemote()){
 					log.info("it is a remote board");
 					unShareBoard(update);
 					deleteBoard(update);
 				}
 
 
+			}).on(WhiteboardServer.unsharingBoards,(eventArgs2)->{
+				// a batch of boards, e.g. of a peer that has gone
+				Document page = Document.parse((String) eventArgs2[0]);
+				ArrayList<String> boards = new ArrayList<>();
+				for(Object board : (ArrayList<?>) page.get("boards")) {
+					boards.add((String) board);
+				}
+				unsharingBoardsReceived(boards);
 			});
+			// after a reconnect, let the server know our boards are still shared
+			shareOwnBoards();
 
 
 		}).on(peerStopped,(eventArgs)->{
@@ -293,6 +301,112 @@ public class WhiteboardApp {
 //		}
 	}
 
+	/**
+	 * A board is being shared, add it if we don't have it and connect to
+	 * the peer that is sharing it.
+	 * @param peerManager
+	 * @param update board name of the form peer:port:boardid
+	 * @param peerPort
+	 */
+	private void sharingBoardReceived(PeerManager peerManager,String update,int peerPort) {
+		onShareBoard(update);
+		log.info("the update is : "+update );
+		if (!whiteboards.containsKey(update)){
+			Whiteboard newWhiteboard = new Whiteboard(update,true);
+			log.info("it is not contained");
+			addBoard(newWhiteboard,true);
+		}
+		connectToBoard(peerManager,update,peerPort);
+	}
+
+	/**
+	 * Tell the whiteboard server about all of our own boards that are shared,
+	 * e.g. after reconnecting to it. Boards the server already knows of are
+	 * not announced again, but the server learns that we are still here.
+	 */
+	private void shareOwnBoards() {
+		ArrayList<String> shared = new ArrayList<>();
+		synchronized(whiteboards) {
+			whiteboards.values().forEach((whiteboard)->{
+				if(whiteboard.isShared() && !whiteboard.isRemote()) shared.add(whiteboard.getName());
+			});
+		}
+		shared.forEach((board)->{
+			endpoint.emit(WhiteboardServer.shareBoard,board);
+		});
+	}
+
+	/**
+	 * A batch of boards is no longer shared. The remote ones are removed
+	 * all at once and the board list is updated just once.
+	 * @param boards board names of the form peer:port:boardid
+	 */
+	private void unsharingBoardsReceived(ArrayList<String> boards) {
+		log.info("received "+boards.size()+" unshared boards");
+		synchronized(whiteboards) {
+			for(String update : boards) {
+				Whiteboard whiteboard = whiteboards.get(update);
+				if(whiteboard==null || !whiteboard.isRemote()) continue;
+				unShareBoard(update);
+				whiteboards.remove(update);
+				for(int i=0;i<endpoint_2array.size();i++){
+					if(endpoint_2array.get(i) != null){
+						endpoint_2array.get(i).emit(boardDeleted,update);
+					}
+				}
+			}
+		}
+		updateComboBox(null);
+	}
+
+	/**
+	 * The whole list of boards being shared has been received, when this peer
+	 * connected to the server. The new boards are added all at once and the
+	 * board list is updated just once, then the peers sharing them are
+	 * connected to.
+	 * @param peerManager
+	 * @param boards board names of the form peer:port:boardid
+	 * @param peerPort
+	 */
+	private void sharingBoardsReceived(PeerManager peerManager,ArrayList<String> boards,int peerPort) {
+		log.info("received the list of "+boards.size()+" shared boards");
+		synchronized(whiteboards) {
+			for(String update : boards) {
+				onShareBoard(update);
+				if (!whiteboards.containsKey(update)){
+					whiteboards.put(update,new Whiteboard(update,true));
+				}
+			}
+		}
+		updateComboBox(null);
+		for(String update : boards) {
+			connectToBoard(peerManager,update,peerPort);
+		}
+	}
+
+	/**
+	 * Connect to the peer sharing a remote board, or listen for peers
+	 * that want our own board.
+	 * @param peerManager
+	 * @param update board name of the form peer:port:boardid
+	 * @param peerPort
+	 */
+	private void connectToBoard(PeerManager peerManager,String update,int peerPort) {
+		try {
+			if(whiteboards.get(update).isRemote()){//remote
+				sharingPeer(peerManager,update);
+			}
+			else{
+				returnPeer(peerManager,update,peerPort);
+			}
+
+		} catch (InterruptedException e) {
+			System.out.println("the exception: "+update);
+		}
+		//onBoardListen(parts[0],Integer.parseInt(parts[1]),update);
+		log.info("there is the end of the peer started");
+	}
+
 	private void sharingPeer(PeerManager peerManager,String response) throws InterruptedException {
 		// Create a independent client manager (thread) for each download
 		// response has the format: PeerIP:PeerPort:filename
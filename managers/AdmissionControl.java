@@ -0,0 +1,221 @@
+package pb.managers;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether the {@link pb.managers.ServerManager} should accept a new
+ * connection. Three limits are applied, each of which is disabled when set to
+ * 0 (the default):
+ * <ul>
+ * <li>a global cap on the number of live endpoints,</li>
+ * <li>a cap on the number of live endpoints from the same source address,</li>
+ * <li>a token bucket that limits the rate at which connections are accepted,
+ * with a given burst size.</li>
+ * </ul>
+ * A rejected connection is told how long to back off for, see
+ * {@link pb.protocols.session.SessionRejectReply}. Counters of accepted and
+ * rejected connections are kept.
+ * <br/>
+ * The io thread calls {@link #admit(InetAddress, int)} while endpoint threads
+ * call {@link #release(InetAddress)}, so the methods are synchronized.
+ *
+ * @see {@link pb.managers.ServerManager#acceptClient(java.net.Socket)}
+ * @author aaron
+ *
+ */
+public class AdmissionControl {
+
+	/**
+	 * Back off time in ms given to clients rejected because of a cap,
+	 * when there is no better estimate.
+	 */
+	public static final long capRetryAfter = 10000;
+
+	/**
+	 * Largest number of live endpoints, 0 for no limit.
+	 */
+	private volatile int maxEndpoints=0;
+
+	/**
+	 * Largest number of live endpoints per source address, 0 for no limit.
+	 */
+	private volatile int maxEndpointsPerAddress=0;
+
+	/**
+	 * Connections accepted per second, 0 for no limit.
+	 */
+	private double acceptRate=0;
+
+	/**
+	 * Most tokens the bucket can hold, i.e. the largest burst of
+	 * connections accepted at once.
+	 */
+	private double acceptBurst=1;
+
+	/**
+	 * Tokens currently in the bucket.
+	 */
+	private double tokens=1;
+
+	/**
+	 * Time in ns the bucket was last refilled.
+	 */
+	private long lastRefill=System.nanoTime();
+
+	/**
+	 * Live endpoints per source address.
+	 */
+	private final Map<InetAddress,Integer> endpointsPerAddress=new HashMap<>();
+
+	/**
+	 * Reason for the last rejection, and the back off time to give.
+	 */
+	private String rejectReason;
+	private long rejectRetryAfter;
+
+	/*
+	 * Counters
+	 */
+	private final AtomicLong accepted=new AtomicLong();
+	private final AtomicLong rejectedTotal=new AtomicLong();
+	private final AtomicLong rejectedCapacity=new AtomicLong();
+	private final AtomicLong rejectedRate=new AtomicLong();
+	private final AtomicLong rejectedAddress=new AtomicLong();
+
+	/**
+	 * Set the global cap on live endpoints.
+	 * @param maxEndpoints largest number of live endpoints, 0 for no limit
+	 */
+	public void setMaxEndpoints(int maxEndpoints) {
+		this.maxEndpoints=maxEndpoints;
+	}
+
+	/**
+	 * Set the cap on live endpoints from the same source address.
+	 * @param maxEndpointsPerAddress largest number of live endpoints per
+	 * address, 0 for no limit
+	 */
+	public void setMaxEndpointsPerAddress(int maxEndpointsPerAddress) {
+		this.maxEndpointsPerAddress=maxEndpointsPerAddress;
+	}
+
+	/**
+	 * Set the accept rate of the token bucket.
+	 * @param acceptRate connections per second, 0 for no limit
+	 * @param acceptBurst largest number of connections accepted in a burst
+	 */
+	public synchronized void setAcceptRate(double acceptRate,int acceptBurst) {
+		this.acceptRate=acceptRate;
+		this.acceptBurst=Math.max(1,acceptBurst);
+		tokens=this.acceptBurst;
+		lastRefill=System.nanoTime();
+	}
+
+	/**
+	 * Decide whether to admit a new connection. If it is admitted then it
+	 * counts against the limits until {@link #release(InetAddress)} is called.
+	 * Otherwise {@link #getRejectReason()} and {@link #getRejectRetryAfter()}
+	 * describe why.
+	 * @param address the source address of the connection
+	 * @param liveEndpoints the number of endpoints currently live
+	 * @return true if the connection should be accepted
+	 */
+	public synchronized boolean admit(InetAddress address,int liveEndpoints) {
+		if(maxEndpoints>0 && liveEndpoints>=maxEndpoints) {
+			rejectedCapacity.incrementAndGet();
+			return reject("server is at its connection limit",capRetryAfter);
+		}
+		int fromAddress=endpointsPerAddress.getOrDefault(address,0);
+		if(maxEndpointsPerAddress>0 && fromAddress>=maxEndpointsPerAddress) {
+			rejectedAddress.incrementAndGet();
+			return reject("too many connections from "+address.getHostAddress(),capRetryAfter);
+		}
+		if(acceptRate>0) {
+			long now=System.nanoTime();
+			tokens=Math.min(acceptBurst,tokens+(now-lastRefill)*acceptRate/1e9);
+			lastRefill=now;
+			if(tokens<1) {
+				rejectedRate.incrementAndGet();
+				long wait=(long) Math.ceil((1-tokens)*1000/acceptRate);
+				return reject("server is accepting connections too quickly",wait);
+			}
+			tokens-=1;
+		}
+		endpointsPerAddress.put(address,fromAddress+1);
+		accepted.incrementAndGet();
+		return true;
+	}
+
+	private boolean reject(String reason,long retryAfter) {
+		rejectReason=reason;
+		rejectRetryAfter=retryAfter;
+		rejectedTotal.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * A previously admitted connection has closed.
+	 * @param address the source address of the connection
+	 */
+	public synchronized void release(InetAddress address) {
+		Integer fromAddress=endpointsPerAddress.get(address);
+		if(fromAddress==null) return;
+		if(fromAddress<=1) {
+			endpointsPerAddress.remove(address);
+		} else {
+			endpointsPerAddress.put(address,fromAddress-1);
+		}
+	}
+
+	/**
+	 * @return the reason for the last rejection
+	 */
+	public synchronized String getRejectReason() {
+		return rejectReason;
+	}
+
+	/**
+	 * @return the time in ms that the last rejected client should back off for
+	 */
+	public synchronized long getRejectRetryAfter() {
+		return rejectRetryAfter;
+	}
+
+	/**
+	 * @return number of connections accepted
+	 */
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	/**
+	 * @return number of connections rejected for any reason
+	 */
+	public long getRejected() {
+		return rejectedTotal.get();
+	}
+
+	/**
+	 * @return number of connections rejected by the global cap
+	 */
+	public long getRejectedByCapacity() {
+		return rejectedCapacity.get();
+	}
+
+	/**
+	 * @return number of connections rejected by the token bucket
+	 */
+	public long getRejectedByRate() {
+		return rejectedRate.get();
+	}
+
+	/**
+	 * @return number of connections rejected by the per address cap
+	 */
+	public long getRejectedByAddress() {
+		return rejectedAddress.get();
+	}
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
@@ -62,6 +63,15 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionError="SESSION_ERROR";
 	
+	/**
+	 * Emitted when the manager has given up on the server, after all of its
+	 * retries have failed. The argument is the server's "host:port".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String connectFailed="CONNECT_FAILED";
+	
 	/**
 	 * The session protocol for this client, so we can stop the
 	 * session when we need to.
@@ -88,6 +98,27 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private boolean shouldWeRetry=false;
 	
+	/**
+	 * Number of times to try to connect before giving up.
+	 */
+	private volatile int retries=10;
+	
+	/**
+	 * Set by {@link #shutdown()}, so that no more tries are made.
+	 */
+	private volatile boolean stopped=false;
+	
+	/**
+	 * Default time (ms) to wait before retrying a connection.
+	 */
+	private static final long retryDelay=5000;
+	
+	/**
+	 * Time (ms) to wait before the next retry, longer than the default
+	 * when the server has asked us to back off.
+	 */
+	private volatile long nextRetryDelay=retryDelay;
+	
 	/**
 	 * Initialise the client manage with a host and port to connect to.
 	 * @param host
@@ -100,21 +131,35 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 		this.port=port;
 	}
 	
+	/**
+	 * @param retries number of times to try to connect before giving up and
+	 * emitting {@link #connectFailed}, e.g. 1 to try another server as soon
+	 * as this one fails. Set before starting.
+	 */
+	public void setRetries(int retries) {
+		this.retries=retries;
+	}
+	
 	@Override
 	public void shutdown() {
-		sessionProtocol.stopSession();
+		stopped=true;
+		// there is no session to stop while still connecting
+		if(sessionProtocol!=null) sessionProtocol.stopSession();
 	}
 	
 	@Override
 	public void run() {
-		int retries=10;
-		while(retries-- > 0) {
+		int retries=this.retries;
+		while(retries-- > 0 && !stopped) {
 			if(attemptToConnect(host,port)) {
 				// the connection ended in error, so let's just
 				// try to get it back up, transparently to the
 				// higher layer
+				long delay=nextRetryDelay;
+				nextRetryDelay=retryDelay;
+				if(retries==0) break;
 				try {
-					Thread.sleep(5000); // short pause before retrying
+					Thread.sleep(delay); // short pause before retrying
 				} catch (InterruptedException e) {
 					continue;
 				} 
@@ -123,8 +168,9 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 				return;
 			}
 		}
+		if(stopped) return;
 		log.severe("no more retries, giving up");
-		
+		localEmit(connectFailed,host+":"+port);
 	}
 	/**
 	 * Attempt to connect.
@@ -253,6 +299,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStarted(Endpoint endpoint) {
 		log.info("session has started with server");
+		endpoint.getStats().sessionStarted();
 		
 		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
 		try {
@@ -277,6 +324,24 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	}
 	
 
+	/**
+	 * The server would not accept the connection. Back off for at least as
+	 * long as the server asked, plus some jitter so that clients rejected
+	 * together do not all come back together, and then retry.
+	 * @param endpoint
+	 * @param reason
+	 * @param retryAfter
+	 */
+	@Override
+	public void sessionRejected(Endpoint endpoint, String reason, long retryAfter) {
+		log.warning("server rejected the session: "+reason+", retrying after "+retryAfter+"ms");
+		long delay=Math.max(retryDelay,retryAfter);
+		nextRetryDelay=delay+ThreadLocalRandom.current().nextLong(delay/2+1);
+		shouldWeRetry=true;
+		localEmit(sessionError,endpoint);
+		endpoint.close();
+	}
+	
 	/**
 	 * The endpoint has requested a protocol to start. If the protocol
 	 * is allowed then the manager should tell the endpoint to handle it
@@ -2,9 +2,14 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedTransferQueue;
 import java.util.logging.Logger;
 
 /**
@@ -14,57 +19,136 @@ import java.util.logging.Logger;
  * {@link pb.managers.ServerManager} is responsible for creating a thread for this
  * connection, else the IOThread will not accept any more connections until this
  * connection is finished.
- * 
+ * <br/>
+ * Connections are accepted by a configurable number of acceptor threads. Where
+ * the platform supports {@code SO_REUSEPORT} each acceptor has its own server
+ * socket bound to the port, so the kernel spreads connections over them,
+ * otherwise the acceptors share a single server socket. Accepted sockets are
+ * handed to the IOThread through a lock-free queue and the IOThread passes them
+ * on to the {@link pb.managers.ServerManager}, so the acceptors only ever accept.
+ *
  * @see {@link pb.managers.ServerManager}
  * @author aaron
  *
  */
 public class IOThread extends Thread {
 	private static Logger log = Logger.getLogger(IOThread.class.getName());
-	private ServerSocket serverSocket=null;
+	private final List<ServerSocket> serverSockets=new ArrayList<>();
+	private final List<Acceptor> acceptors=new ArrayList<>();
 	private int port;
 	private ServerManager serverManager;
-	
+
+	/**
+	 * Accepted sockets waiting to be passed to the server manager.
+	 */
+	private final LinkedTransferQueue<Socket> accepted=new LinkedTransferQueue<>();
+
+	/**
+	 * Least and most time (ms) that an acceptor waits before trying again
+	 * after failing to accept, doubling while it keeps failing, as it does
+	 * while the process is out of file descriptors.
+	 */
+	private static final long minAcceptBackoff=10;
+	private static final long maxAcceptBackoff=1000;
+
+	/**
+	 * Set when shutting down.
+	 */
+	private volatile boolean stopped=false;
+
 	/**
 	 * Emitted when the io thread has started. The argument
-	 * provides the io thread's Internet address in the 
+	 * provides the io thread's Internet address in the
 	 * form "host:port"
 	 * <ol>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ol>
 	 */
 	public static final String ioThread = "IO_THREAD";
-	
+
 	/**
 	 * Initialise the IOThread with a port number to listen on and reference
-	 * to the {@link pb.managers.ServerManager}.
+	 * to the {@link pb.managers.ServerManager}, using a single acceptor.
 	 * @param port to listen on
 	 * @param serverManager to send connections to
 	 * @throws IOException whenever the server socket can't be created
 	 */
 	public IOThread(int port, ServerManager serverManager) throws IOException{
-		serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
+		this(port,serverManager,1);
+	}
+
+	/**
+	 * Initialise the IOThread with a port number to listen on, reference
+	 * to the {@link pb.managers.ServerManager} and the number of acceptor
+	 * threads to use.
+	 * @param port to listen on
+	 * @param serverManager to send connections to
+	 * @param numAcceptors number of threads accepting connections
+	 * @throws IOException whenever the server socket can't be created
+	 */
+	public IOThread(int port, ServerManager serverManager, int numAcceptors) throws IOException{
+		numAcceptors=Math.max(1,numAcceptors);
+		// let's throw these since they are potentially unrecoverable
+		if(numAcceptors>1 && reusePortSupported()) {
+			for(int i=0;i<numAcceptors;i++) {
+				ServerSocket serverSocket = new ServerSocket();
+				serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT,true);
+				try {
+					serverSocket.bind(new InetSocketAddress(port));
+				} catch (IOException e) {
+					serverSocket.close();
+					closeServerSockets();
+					throw e;
+				}
+				serverSockets.add(serverSocket);
+			}
+		} else {
+			serverSockets.add(new ServerSocket(port));
+		}
+		for(int i=0;i<numAcceptors;i++) {
+			acceptors.add(new Acceptor(serverSockets.get(i%serverSockets.size()),i));
+		}
 		this.port=port;
 		this.serverManager=serverManager;
 		setName("IOThread");
+		log.info("using "+numAcceptors+" acceptors on "+serverSockets.size()+" server sockets");
 		start();
 	}
-	
+
 	/**
-	 * Close the server socket and make sure the thread terminates.
+	 * @return true if server sockets can share a port using {@code SO_REUSEPORT}
 	 */
-	public void shutDown() {
-		if(serverSocket!=null)
+	private static boolean reusePortSupported() {
+		try(ServerSocket probe = new ServerSocket()) {
+			return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void closeServerSockets() {
+		serverSockets.forEach((serverSocket)->{
 			try {
 				serverSocket.close();
 			} catch (IOException e) {
 				log.warning("exception closing server socket: "+e.getMessage());
 			}
+		});
+	}
+
+	/**
+	 * Close the server sockets and make sure the threads terminate.
+	 */
+	public void shutDown() {
+		stopped=true;
+		closeServerSockets();
+		acceptors.forEach((acceptor)->{acceptor.interrupt();});
 		interrupt();
 	}
-	
+
 	/**
-	 * Listen for connections and pass them to the ServerManager.
+	 * Start the acceptors and pass the connections they accept to the
+	 * ServerManager.
 	 */
 	@Override
 	public void run() {
@@ -75,21 +159,74 @@ public class IOThread extends Thread {
 			log.severe("Could not get address of local host, continuing anyway, assuming 127.0.0.1");
 			serverManager.emit(ioThread,"127.0.0.1:"+port);
 		}
-		while(!isInterrupted() && !serverSocket.isClosed()){
-			Socket clientSocket;
+		acceptors.forEach((acceptor)->{acceptor.start();});
+		while(!stopped) {
 			try {
-				clientSocket = serverSocket.accept();
-				log.info("Received connection from "+clientSocket.getInetAddress());
-				serverManager.acceptClient(clientSocket);
-			} catch (IOException e) {
-				log.warning("exception accepting connection: "+e.getMessage());
-			} 
+				handOff(accepted.take());
+			} catch (InterruptedException e) {
+				break;
+			}
 		}
 		log.info("IOThread terminating");
-		try {
-			serverSocket.close();
-		} catch (IOException e) {
-			log.warning("exception closing server socket: "+e.getMessage());
+		closeServerSockets();
+		acceptors.forEach((acceptor)->{
+			try {
+				acceptor.join();
+			} catch (InterruptedException e) {
+				log.warning("interrupted while waiting for acceptor to terminate");
+			}
+		});
+		// connections that were accepted while stopping
+		Socket clientSocket;
+		while((clientSocket=accepted.poll())!=null) {
+			handOff(clientSocket);
+		}
+	}
+
+	private void handOff(Socket clientSocket) {
+		log.fine("Received connection from "+clientSocket.getInetAddress());
+		serverManager.acceptClient(clientSocket);
+	}
+
+	/**
+	 * Accepts connections on a server socket and queues them for the IOThread.
+	 */
+	private class Acceptor extends Thread {
+		private final ServerSocket serverSocket;
+
+		Acceptor(ServerSocket serverSocket, int id) {
+			this.serverSocket=serverSocket;
+			setName("IOThread-acceptor-"+id);
+		}
+
+		/**
+		 * Accept until stopped. While accepting keeps failing the acceptor
+		 * backs off, rather than spinning, and only the first failure and
+		 * the recovery are logged.
+		 */
+		@Override
+		public void run() {
+			long backoff=0;
+			int failures=0;
+			while(!stopped && !serverSocket.isClosed()) {
+				try {
+					accepted.offer(serverSocket.accept());
+					if(failures>0) {
+						log.info("accepting again after "+failures+" failures");
+						failures=0;
+						backoff=0;
+					}
+				} catch (IOException e) {
+					if(stopped) break;
+					if(failures++==0) log.warning("exception accepting connection: "+e.getMessage());
+					backoff=Math.min(maxAcceptBackoff,Math.max(minAcceptBackoff,backoff*2));
+					try {
+						Thread.sleep(backoff);
+					} catch (InterruptedException e1) {
+						// shutting down, checked by the loop
+					}
+				}
+			}
 		}
 	}
 }
@@ -1,8 +1,8 @@
 package pb.managers;
 
 import java.net.UnknownHostException;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
@@ -64,7 +64,8 @@ public class PeerManager extends Manager {
 	public static final String peerServerManager = "PEER_SERVER_MANAGER";
 	
 	/**
-	 * The client managers are for connecting to the server and other peers.
+	 * The client managers are for connecting to the server and other peers,
+	 * which may be added from any thread.
 	 */
 	private Set<ClientManager> clientManagers;
 	
@@ -84,7 +85,7 @@ public class PeerManager extends Manager {
 	 * @param myServerPort
 	 */
 	public PeerManager(int myServerPort) {
-		clientManagers = new HashSet<>();
+		clientManagers = ConcurrentHashMap.newKeySet();
 		this.myServerPort=myServerPort;
 	}
 	
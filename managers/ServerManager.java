@@ -1,21 +1,38 @@
 package pb.managers;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.Frame;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
+import pb.protocols.Document;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventRequest;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
 import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionRejectReply;
+import pb.utils.Utils;
 
 
 /**
@@ -91,6 +108,49 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public static final String vaderShutdownServer="SERVER_VADER_SHUTDOWN";
 	
 	
+	/**
+	 * Emitted by an admin client to ask for statistics of the live
+	 * endpoints. Argument is the password.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String serverStats="SERVER_STATS";
+	
+	/**
+	 * Emitted to the admin client in reply to {@link #serverStats}. The
+	 * snapshot is split into pages so that each fits in a message. The
+	 * argument is a JSON document with keys "page", "pages", "time",
+	 * "liveEndpoints", "accepted", "rejected", "threads", "heapUsed",
+	 * "heapMax" (bytes, -1 if there is no limit) and "endpoints", a list
+	 * of documents as given by {@link pb.managers.endpoint.Endpoint#getStatsSnapshot()}.
+	 * If the server has a stats source, see {@link #setStatsSource(Supplier)},
+	 * there is also a key "application" with the document it gives.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String serverStatsReply="SERVER_STATS_REPLY";
+	
+	/**
+	 * Emitted by a client to subscribe to a topic, see {@link #publish(String, String, String)}.
+	 * The argument is a topic name, or a prefix followed by "*" to subscribe to
+	 * every topic that starts with the prefix.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String subscribe="SUBSCRIBE";
+	
+	/**
+	 * Emitted by a client to unsubscribe from a topic. The argument is exactly
+	 * as given to {@link #subscribe}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String unsubscribe="UNSUBSCRIBE";
+	
 	/**
 	 * The io thread accepts connections and informs the server manager
 	 * of the connection's socket.
@@ -98,7 +158,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	private IOThread ioThread;
 	
 	/**
-	 * Keep a track of endpoints that
+	 * Keep a track of endpoints, from when they are accepted, that
 	 * have not yet terminated, so that we can wait/ask/force for them to finish
 	 * before completely terminating. This object can be called by multiple
 	 * endpoint threads and this server manager thread; so synchronized is needed.
@@ -120,6 +180,58 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private volatile boolean vaderShutdown=false;
 	
+	/**
+	 * How long (ms) to wait for endpoints to finish when shutting down,
+	 * 0 means wait forever.
+	 */
+	private volatile long drainDeadline=0;
+	
+	/**
+	 * Number of session stops sent by each task when draining.
+	 */
+	private static final int drainBatchSize=100;
+	
+	/**
+	 * Largest number of threads to use when sending session stops.
+	 */
+	private static final int drainThreads=8;
+	
+	/**
+	 * How often (ms) to report progress when draining.
+	 */
+	private static final long drainReportInterval=1000;
+	
+	/**
+	 * Number of endpoints per page of a stats reply.
+	 */
+	private static final int statsPageSize=50;
+	
+	/**
+	 * Number of threads the io thread uses to accept connections.
+	 */
+	private volatile int numAcceptors=1;
+	
+	/**
+	 * Decides which new connections to accept.
+	 */
+	private final AdmissionControl admissionControl=new AdmissionControl();
+	
+	/**
+	 * Topics that endpoints are subscribed to.
+	 */
+	private final TopicBroker topicBroker=new TopicBroker();
+	
+	/**
+	 * Statistics of the application using the server, or null.
+	 */
+	private volatile Supplier<Document> statsSource=null;
+	
+	/**
+	 * How long (ms) to keep a rejected connection open so that the client
+	 * can read the reject frame.
+	 */
+	private static final long rejectLinger=1000;
+	
 	/**
 	 * Password if given
 	 */
@@ -166,12 +278,24 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		log.warning("server force shutdown called");
 		forceShutdown=true; // this will send session stops to all the clients
 		ioThread.shutDown();
+		wakeDrain();
 	}
 	
 	public void vaderShutdown() { // Darkside style :-]
 		log.warning("server vader shutdown called");
 		vaderShutdown=true; // this will just close all of the endpoints abruptly
 		ioThread.shutDown();
+		wakeDrain();
+	}
+	
+	/**
+	 * Wake up the drain, if it is waiting, so that it sees a change
+	 * in shutdown mode.
+	 */
+	private void wakeDrain() {
+		synchronized(liveEndpoints) {
+			liveEndpoints.notifyAll();
+		}
 	}
 	
 	/**
@@ -190,7 +314,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		// when the IO thread terminates, and all endpoints have terminated,
 		// then the server will terminate
 		try {
-			ioThread = new IOThread(port,this);
+			ioThread = new IOThread(port,this,numAcceptors);
 		} catch (IOException e1) {
 			log.severe("could not start the io thread");
 			return;
@@ -204,74 +328,342 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			ioThread.shutDown();
 		}
 		
+		long acceptStopped = System.currentTimeMillis();
 		log.info("io thread has joined");
 		
 		// At this point, there still may be some endpoints that have not
 		// terminated, and so the JVM will remain running until they do.
 		// However no new endpoints can be created.
-		
-		// let's create our own list of endpoints that exist at this point
-		HashSet<Endpoint> currentEndpoints = new HashSet<>();
-		synchronized(liveEndpoints) {
-			currentEndpoints = new HashSet<>(liveEndpoints);
-		}
-		
-		// if we want to tell clients to end session
-		// it is indeed possible that both may be set true
-		if(forceShutdown && !vaderShutdown) {
-			// let's send a stop session to existing clients
-			currentEndpoints.forEach((endpoint)->{
-				SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol("SessionProtocol");
-				if(sessionProtocol!=null)
-					sessionProtocol.stopSession();
-			});
+		drain(acceptStopped);
+		log.info("terminated");
+	}
+	
+	/**
+	 * Drain the remaining endpoints after the io thread has stopped accepting
+	 * connections. Depending on the shutdown mode, sessions are asked to stop
+	 * (in parallel batches) or endpoints are closed, and then we wait for
+	 * {@link #endpointClosed(Endpoint)} to signal that the live endpoints
+	 * have all gone, or for the drain deadline to pass. Timings for each
+	 * phase and the number of stragglers are logged.
+	 * @param acceptStopped time (ms) at which the io thread stopped
+	 */
+	private void drain(long acceptStopped) {
+		long deadline = drainDeadline>0 ? acceptStopped+drainDeadline : 0;
+		int initial = numLiveEndpoints();
+		long stopsSent = acceptStopped;
+		boolean stopsRequested = false;
+		boolean closed = false;
+		boolean drained = false;
+		try {
+			while(true) {
+				// the shutdown mode may be escalated by an admin client
+				// while we are draining, so check each time around
+				if(vaderShutdown && !closed) {
+					// in this case we just close the endpoints, which will likely cause
+					// abrupt disconnection
+					closeLiveEndpoints();
+					closed = true;
+				} else if(forceShutdown && !stopsRequested && !vaderShutdown) {
+					// let's send a stop session to existing clients
+					stopLiveSessions();
+					stopsRequested = true;
+					stopsSent = System.currentTimeMillis();
+				}
+				if(vaderShutdown) {
+					// we don't wait for anything in this case
+					drained = numLiveEndpoints()==0;
+					break;
+				}
+				if(awaitLiveEndpoints(deadline)) {
+					drained = true;
+					break;
+				}
+				if(deadline>0 && System.currentTimeMillis()>=deadline) break;
+			}
+		} catch (InterruptedException e) {
+			log.severe("interrupted while draining endpoints");
 		}
-		
-		// in this case we just close the endpoints, which will likely cause
-		// abrupt disconnection
-		if(vaderShutdown) {
-			// let's just close everything
-			currentEndpoints.forEach((endpoint)->{
-				endpoint.close();
-			});
+		long finished = System.currentTimeMillis();
+		int stragglers = numLiveEndpoints();
+		if(!drained && stragglers>0) {
+			log.severe("terminating server with "+stragglers+" still unfinished, closing them");
+			closeLiveEndpoints();
 		}
-		
-		// let's wait for the remaining clients if we can
-		while(numLiveEndpoints()>0 && !vaderShutdown) {
-			log.warning("still waiting for "+numLiveEndpoints()+" to finish");
-			try {
-				Thread.sleep(1000); // just wait a little longer
-			} catch (InterruptedException e) {
-				if(numLiveEndpoints()>0) {
-					log.severe("terminating server with "+numLiveEndpoints()+
-							" still unfinished");
+		log.info("drain of "+initial+" endpoints: session stops sent in "
+				+(stopsSent-acceptStopped)+"ms, drained in "+(finished-acceptStopped)
+				+"ms, "+stragglers+" stragglers; connections accepted "
+				+admissionControl.getAccepted()+", rejected "+admissionControl.getRejected());
+	}
+	
+	/**
+	 * Wait for the live endpoints to close, logging progress about once
+	 * a second. Returns early if the shutdown mode needs to escalate.
+	 * @param deadline time (ms) to give up, or 0 to wait forever
+	 * @return true if there are no live endpoints remaining
+	 * @throws InterruptedException
+	 */
+	private boolean awaitLiveEndpoints(long deadline) throws InterruptedException {
+		boolean stopsRequested = forceShutdown;
+		synchronized(liveEndpoints) {
+			while(!liveEndpoints.isEmpty()) {
+				long now = System.currentTimeMillis();
+				if(deadline>0 && now>=deadline) return false;
+				if(vaderShutdown || forceShutdown!=stopsRequested) return false;
+				long wait = drainReportInterval;
+				if(deadline>0) wait = Math.min(wait,deadline-now);
+				int before = liveEndpoints.size();
+				liveEndpoints.wait(wait);
+				if(System.currentTimeMillis()-now>=wait && liveEndpoints.size()>0) {
+					log.warning("still waiting for "+liveEndpoints.size()+" to finish, "
+							+(before-liveEndpoints.size())+" finished in the last "+wait+"ms");
 				}
-				break;
 			}
-			if(vaderShutdown) {
-				// maybe we missed some earlier
-				synchronized(liveEndpoints) {
-					currentEndpoints = new HashSet<>(liveEndpoints);
-				}
-				currentEndpoints.forEach((endpoint)->{
-						endpoint.close();
+			return true;
+		}
+	}
+	
+	/**
+	 * Send a session stop to every live endpoint. The requests are sent in
+	 * batches on a small pool of threads, so that a slow client does not
+	 * hold up the rest.
+	 * @throws InterruptedException
+	 */
+	private void stopLiveSessions() throws InterruptedException {
+		List<Endpoint> currentEndpoints;
+		synchronized(liveEndpoints) {
+			currentEndpoints = new ArrayList<>(liveEndpoints);
+		}
+		int threads = Math.min(drainThreads,
+				(currentEndpoints.size()+drainBatchSize-1)/drainBatchSize);
+		if(threads==0) return;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for(int i=0;i<currentEndpoints.size();i+=drainBatchSize) {
+			final List<Endpoint> batch = currentEndpoints.subList(i,
+					Math.min(i+drainBatchSize,currentEndpoints.size()));
+			pool.execute(()->{
+				batch.forEach((endpoint)->{
+					SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol("SessionProtocol");
+					if(sessionProtocol!=null)
+						sessionProtocol.stopSession();
 				});
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE,TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Emit an event to many endpoints at once. The event is encoded once and
+	 * the same frame is queued on each endpoint that is running the event
+	 * protocol, so the cost per extra endpoint is a queue insert and this
+	 * returns without waiting for anything to be written. Unlike
+	 * {@link pb.managers.endpoint.Endpoint#emit(String, Object...)}, no reply
+	 * timeout is set for each endpoint, since the frame is shared; dead
+	 * endpoints are still detected by the KeepAlive protocol. An endpoint
+	 * that has stopped reading, with more than
+	 * {@link pb.managers.endpoint.Endpoint#maxOutboundBytes} waiting to be
+	 * written, is not sent the event and its connection is closed, see
+	 * {@link pb.managers.endpoint.Endpoint#sendFrame(Frame)}.
+	 * @param endpoints the endpoints to send the event to
+	 * @param eventName
+	 * @param eventData
+	 * @return the number of endpoints the event was queued on
+	 */
+	public int broadcast(Collection<Endpoint> endpoints,String eventName,String eventData) {
+		Frame frame;
+		try {
+			frame = Frame.encode(new EventRequest(eventName,eventData));
+		} catch (IOException e) {
+			log.severe("could not encode broadcast event "+eventName+": "+e.getMessage());
+			return 0;
+		}
+		int sent=0;
+		for(Endpoint endpoint : endpoints) {
+			if(endpoint.getProtocol(EventProtocol.protocolName)!=null && endpoint.sendFrame(frame))
+				sent++;
+		}
+		return sent;
+	}
+	
+	/**
+	 * Emit an event to all live endpoints, see {@link #broadcast(Collection, String, String)}.
+	 * @param eventName
+	 * @param eventData
+	 * @return the number of endpoints the event was queued on
+	 */
+	public int broadcast(String eventName,String eventData) {
+		List<Endpoint> currentEndpoints;
+		synchronized(liveEndpoints) {
+			currentEndpoints = new ArrayList<>(liveEndpoints);
+		}
+		return broadcast(currentEndpoints,eventName,eventData);
+	}
+	
+	/**
+	 * Emit an event to the endpoints subscribed to a topic, see
+	 * {@link #broadcast(Collection, String, String)}. Finding the subscribers
+	 * costs the length of the topic plus the number of subscribers, regardless
+	 * of the number of live endpoints.
+	 * @param topic
+	 * @param eventName
+	 * @param eventData
+	 * @return the number of endpoints the event was queued on
+	 */
+	public int publish(String topic,String eventName,String eventData) {
+		return broadcast(topicBroker.subscribers(topic),eventName,eventData);
+	}
+	
+	/**
+	 * 
+	 * @return the topic subscriptions, which the server can also change on
+	 * behalf of its endpoints
+	 */
+	public TopicBroker getTopicBroker() {
+		return topicBroker;
+	}
+	
+	/**
+	 * Send a snapshot of the live endpoint statistics to an admin client,
+	 * a page at a time.
+	 * @param admin the endpoint of the admin client
+	 */
+	private void sendStats(Endpoint admin) {
+		List<Endpoint> currentEndpoints;
+		synchronized(liveEndpoints) {
+			currentEndpoints = new ArrayList<>(liveEndpoints);
+		}
+		long time = System.currentTimeMillis();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		Supplier<Document> source = statsSource;
+		Document application = source==null ? null : source.get();
+		int pages = Math.max(1,(currentEndpoints.size()+statsPageSize-1)/statsPageSize);
+		for(int page=0;page<pages;page++) {
+			ArrayList<Document> endpoints = new ArrayList<>();
+			for(int i=page*statsPageSize;i<Math.min((page+1)*statsPageSize,currentEndpoints.size());i++) {
+				endpoints.add(currentEndpoints.get(i).getStatsSnapshot());
 			}
+			Document doc = new Document();
+			doc.append("page",page);
+			doc.append("pages",pages);
+			doc.append("time",time);
+			doc.append("liveEndpoints",currentEndpoints.size());
+			doc.append("accepted",admissionControl.getAccepted());
+			doc.append("rejected",admissionControl.getRejected());
+			doc.append("threads",threads.getThreadCount());
+			doc.append("heapUsed",heap.getUsed());
+			doc.append("heapMax",heap.getMax());
+			if(application!=null) doc.append("application",application);
+			doc.append("endpoints",endpoints);
+			admin.emit(serverStatsReply,doc.toJson());
 		}
-		log.info("terminated");
+	}
+	
+	/**
+	 * Close every live endpoint.
+	 */
+	private void closeLiveEndpoints() {
+		List<Endpoint> currentEndpoints;
+		synchronized(liveEndpoints) {
+			currentEndpoints = new ArrayList<>(liveEndpoints);
+		}
+		currentEndpoints.forEach((endpoint)->{
+			endpoint.close();
+		});
+	}
+	
+	/**
+	 * Set how long to wait, after the io thread has stopped, for the
+	 * remaining endpoints to finish before closing them anyway.
+	 * @param drainDeadline deadline in ms, or 0 to wait forever
+	 */
+	public void setDrainDeadline(long drainDeadline) {
+		this.drainDeadline=drainDeadline;
 	}
 	
 	/**
 	 * A new client has connected to the server. We need to keep
 	 * a set of all clients that have connected, so that we can
 	 * do global operations, like broadcast data to all clients.
+	 * The connection is first checked by the admission control, and
+	 * if it is not admitted then the client is told to back off and
+	 * no endpoint is created for it.
 	 * @param clientSocket the socket connection for the client.
 	 */
 	public void acceptClient(Socket clientSocket) {
-		Endpoint endpoint = new Endpoint(clientSocket,this);
+		InetAddress address = clientSocket.getInetAddress();
+		Endpoint endpoint;
+		synchronized(admissionControl) {
+			if(!admissionControl.admit(address,numLiveEndpoints())) {
+				rejectClient(clientSocket,admissionControl.getRejectReason(),
+						admissionControl.getRejectRetryAfter());
+				return;
+			}
+			endpoint = new Endpoint(clientSocket,this);
+			synchronized(liveEndpoints) {
+				liveEndpoints.add(endpoint);
+			}
+		}
 		endpoint.start();
 	}
 	
+	/**
+	 * Tell a client that it has not been admitted, without creating an endpoint
+	 * for it. The reject frame is written straight to the socket, which is then
+	 * half closed, and fully closed a little later so that the client has a
+	 * chance to read the frame rather than seeing a reset.
+	 * @param clientSocket the socket connection for the client
+	 * @param reason why the client was rejected
+	 * @param retryAfter time in ms the client should back off for
+	 */
+	private void rejectClient(Socket clientSocket,String reason,long retryAfter) {
+		log.warning("rejecting connection from "+clientSocket.getInetAddress()+": "+reason
+				+" (accepted="+admissionControl.getAccepted()
+				+", rejected="+admissionControl.getRejected()+")");
+		try {
+			DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+			out.writeUTF(new SessionRejectReply(reason,retryAfter).toJsonString());
+			out.flush();
+			clientSocket.shutdownOutput();
+		} catch (IOException e) {
+			// the client has gone already, nothing more to tell it
+		}
+		Utils.getInstance().setTimeout(()->{
+			try {
+				clientSocket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}, rejectLinger);
+	}
+	
+	/**
+	 * Set the number of threads used to accept connections. Must be called
+	 * before the server manager is started.
+	 * @param numAcceptors number of acceptor threads
+	 */
+	public void setNumAcceptors(int numAcceptors) {
+		this.numAcceptors=numAcceptors;
+	}
+	
+	/**
+	 * 
+	 * @return the admission control for new connections, which can be
+	 * configured before or while the server is running
+	 */
+	public AdmissionControl getAdmissionControl() {
+		return admissionControl;
+	}
+	
+	/**
+	 * Give statistics of the application to include in replies to
+	 * {@link #serverStats}.
+	 * @param statsSource called for each request, or null for none
+	 */
+	public void setStatsSource(Supplier<Document> statsSource) {
+		this.statsSource = statsSource;
+	}
+	
 	/**
 	 * Called by a client endpoint to signal that it is now ready for
 	 * use, the server can send data and it may start receiving messages
@@ -287,9 +679,6 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			endpoint.close(); // we'll kill it here
 			return;
 		}
-		synchronized(liveEndpoints) {
-			liveEndpoints.add(endpoint);
-		}
 		
 		if(password!=null) {
 			// listen for admin client events
@@ -314,9 +703,26 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 				} else {
 					vaderShutdown();
 				}
+			}).on(serverStats, (args)->{
+				String msg = (String) args[0];
+				if(!msg.equals(password)) {
+					log.warning("incorrect password given by client: "+endpoint.getOtherEndpointId());
+				} else {
+					sendStats(endpoint);
+				}
 			});
 		}
 		
+		endpoint.on(subscribe, (args)->{
+			String topic = (String) args[0];
+			if(topicBroker.subscribe(endpoint,topic))
+				log.fine(endpoint.getOtherEndpointId()+" subscribed to "+topic);
+		}).on(unsubscribe, (args)->{
+			String topic = (String) args[0];
+			if(topicBroker.unsubscribe(endpoint,topic))
+				log.fine(endpoint.getOtherEndpointId()+" unsubscribed from "+topic);
+		});
+		
 		KeepAliveProtocol keepAliveProtocol = new KeepAliveProtocol(endpoint,this);
 		try {
 			// we need to add it to the endpoint before starting it
@@ -343,8 +749,12 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointClosed(Endpoint endpoint) {
 		synchronized(liveEndpoints) {
-			liveEndpoints.remove(endpoint);
+			if(!liveEndpoints.remove(endpoint)) return; // already closed
+			// wake up the drain if it is waiting for endpoints to finish
+			liveEndpoints.notifyAll();
 		}
+		admissionControl.release(endpoint.getOtherEndpointAddress());
+		topicBroker.unsubscribeAll(endpoint);
 	}
 
 	/**
@@ -355,6 +765,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStarted(Endpoint endpoint) {
 		log.info("session has started with client: "+endpoint.getOtherEndpointId());
+		endpoint.getStats().sessionStarted();
 		
 		if(forceShutdown) {
 			// ask the client to stop now
@@ -395,6 +806,19 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		endpoint.close(); // will stop all remaining protocols
 	}
 	
+	/**
+	 * Clients do not reject sessions, so this is a protocol violation.
+	 * @param endpoint
+	 * @param reason
+	 * @param retryAfter
+	 */
+	@Override
+	public void sessionRejected(Endpoint endpoint, String reason, long retryAfter) {
+		log.severe("client "+endpoint.getOtherEndpointId()+" tried to reject the session");
+		localEmit(sessionError,endpoint);
+		endpoint.close();
+	}
+	
 	/**
 	 * The endpoint has requested a protocol to start. If the protocol
 	 * is allowed then the manager should tell the endpoint to handle it
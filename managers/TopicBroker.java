@@ -0,0 +1,212 @@
+package pb.managers;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pb.managers.endpoint.Endpoint;
+
+/**
+ * Subscription table for the topics that endpoints of a
+ * {@link pb.managers.ServerManager} are interested in. An endpoint subscribes
+ * either to a topic name, e.g. "boards", or to every topic with a given prefix,
+ * written as the prefix followed by "*", e.g. "boards/*". Exact subscriptions
+ * are kept in a hash table and prefix subscriptions in a concurrent trie, so
+ * finding the subscribers of a topic costs the length of the topic plus the
+ * number of subscribers, however many endpoints are connected.
+ * <br/>
+ * Any endpoint thread may subscribe or unsubscribe while others publish, so all
+ * of the structures are concurrent. Subscribers are added to and removed from
+ * a topic's set, or a trie node, inside a compute of the map that holds it,
+ * which drops the set or node when it is left empty, so that unsubscribing
+ * gives back the memory. An endpoint's subscriptions change inside a compute
+ * for the endpoint, and a closed endpoint cannot subscribe, so a subscription
+ * that races with the endpoint closing is not left behind. An endpoint may
+ * have at most {@link #maxSubscriptions} subscriptions, each at most
+ * {@link #maxLength} characters.
+ *
+ * @see {@link pb.managers.ServerManager#publish(String, String, String)}
+ * @author aaron
+ *
+ */
+public class TopicBroker {
+
+	/**
+	 * Most subscriptions that an endpoint may have.
+	 */
+	public static final int maxSubscriptions=1000;
+
+	/**
+	 * Most characters in a subscription.
+	 */
+	public static final int maxLength=256;
+
+	/**
+	 * Node of the prefix trie.
+	 */
+	private static class Node {
+		final ConcurrentHashMap<Character,Node> children=new ConcurrentHashMap<>();
+		final Set<Endpoint> subscribers=ConcurrentHashMap.newKeySet();
+
+		boolean isEmpty() {
+			return subscribers.isEmpty() && children.isEmpty();
+		}
+	}
+
+	/**
+	 * Topic name to the endpoints subscribed to exactly that topic.
+	 */
+	private final ConcurrentHashMap<String,Set<Endpoint>> exact=new ConcurrentHashMap<>();
+
+	/**
+	 * Root of the trie of prefix subscriptions, which is never dropped.
+	 */
+	private final Node root=new Node();
+
+	/**
+	 * Endpoint to its subscriptions, so they can all be removed when it closes.
+	 */
+	private final ConcurrentHashMap<Endpoint,Set<String>> subscriptions=new ConcurrentHashMap<>();
+
+	/**
+	 * @param subscription
+	 * @return true if the subscription is for a prefix
+	 */
+	private static boolean isPrefix(String subscription) {
+		return subscription.endsWith("*");
+	}
+
+	/**
+	 * Add an endpoint to the trie node for a prefix, making the nodes on the
+	 * way to it inside computes of their parents, so that none of them can be
+	 * dropped meanwhile.
+	 * @param node
+	 * @param prefix
+	 * @param depth characters of the prefix that lead to the node
+	 * @param endpoint
+	 */
+	private static void addPrefix(Node node,String prefix,int depth,Endpoint endpoint) {
+		if(depth==prefix.length()) {
+			node.subscribers.add(endpoint);
+			return;
+		}
+		node.children.compute(prefix.charAt(depth),(c,child)->{
+			if(child==null) child=new Node();
+			addPrefix(child,prefix,depth+1,endpoint);
+			return child;
+		});
+	}
+
+	/**
+	 * Remove an endpoint from the trie node for a prefix, dropping the nodes
+	 * on the way to it that are left empty.
+	 * @param node
+	 * @param prefix
+	 * @param depth characters of the prefix that lead to the node
+	 * @param endpoint
+	 */
+	private static void removePrefix(Node node,String prefix,int depth,Endpoint endpoint) {
+		if(depth==prefix.length()) {
+			node.subscribers.remove(endpoint);
+			return;
+		}
+		node.children.computeIfPresent(prefix.charAt(depth),(c,child)->{
+			removePrefix(child,prefix,depth+1,endpoint);
+			return child.isEmpty() ? null : child;
+		});
+	}
+
+	private void add(Endpoint endpoint,String subscription) {
+		if(isPrefix(subscription)) {
+			addPrefix(root,subscription.substring(0,subscription.length()-1),0,endpoint);
+		} else {
+			exact.compute(subscription,(t,endpoints)->{
+				if(endpoints==null) endpoints=ConcurrentHashMap.newKeySet();
+				endpoints.add(endpoint);
+				return endpoints;
+			});
+		}
+	}
+
+	private void remove(Endpoint endpoint,String subscription) {
+		if(isPrefix(subscription)) {
+			removePrefix(root,subscription.substring(0,subscription.length()-1),0,endpoint);
+		} else {
+			exact.computeIfPresent(subscription,(t,endpoints)->{
+				endpoints.remove(endpoint);
+				return endpoints.isEmpty() ? null : endpoints;
+			});
+		}
+	}
+
+	/**
+	 * Subscribe an endpoint.
+	 * @param endpoint
+	 * @param subscription a topic name, or a prefix followed by "*"
+	 * @return true if the endpoint was not already subscribed, and was not
+	 * closed, at its limit of subscriptions, or given one that is too long
+	 */
+	public boolean subscribe(Endpoint endpoint,String subscription) {
+		if(subscription.length()>maxLength) return false;
+		boolean[] added={false};
+		subscriptions.compute(endpoint,(e,subscribed)->{
+			if(endpoint.isClosed()) return subscribed;
+			if(subscribed==null) subscribed=ConcurrentHashMap.newKeySet();
+			if(subscribed.size()<maxSubscriptions && subscribed.add(subscription)) {
+				add(endpoint,subscription);
+				added[0]=true;
+			}
+			return subscribed.isEmpty() ? null : subscribed;
+		});
+		return added[0];
+	}
+
+	/**
+	 * Unsubscribe an endpoint.
+	 * @param endpoint
+	 * @param subscription as given to {@link #subscribe(Endpoint, String)}
+	 * @return true if the endpoint was subscribed
+	 */
+	public boolean unsubscribe(Endpoint endpoint,String subscription) {
+		boolean[] removed={false};
+		subscriptions.computeIfPresent(endpoint,(e,subscribed)->{
+			if(subscribed.remove(subscription)) {
+				remove(endpoint,subscription);
+				removed[0]=true;
+			}
+			return subscribed.isEmpty() ? null : subscribed;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * Remove all of an endpoint's subscriptions.
+	 * @param endpoint
+	 */
+	public void unsubscribeAll(Endpoint endpoint) {
+		subscriptions.computeIfPresent(endpoint,(e,subscribed)->{
+			subscribed.forEach((subscription)->{remove(endpoint,subscription);});
+			return null;
+		});
+	}
+
+	/**
+	 * Find the endpoints that should receive a topic, each endpoint only once
+	 * even if several of its subscriptions match.
+	 * @param topic
+	 * @return the subscribers
+	 */
+	public Set<Endpoint> subscribers(String topic) {
+		Set<Endpoint> found=new HashSet<>();
+		Set<Endpoint> endpoints=exact.get(topic);
+		if(endpoints!=null) found.addAll(endpoints);
+		Node node=root;
+		found.addAll(node.subscribers);
+		for(int i=0;i<topic.length();i++) {
+			node=node.children.get(topic.charAt(i));
+			if(node==null) break;
+			found.addAll(node.subscribers);
+		}
+		return found;
+	}
+}
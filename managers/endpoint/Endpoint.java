@@ -1,17 +1,26 @@
 package pb.managers.endpoint;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import pb.utils.Eventable;
 import pb.utils.Utils;
+import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
@@ -29,6 +38,14 @@ import pb.protocols.session.SessionProtocol;
  * and sends them to the appropriate protocol for processing; thus a
  * thread-per-connection model is being used. It also provides a synchronized
  * method to send data to the socket which will be sent to the other endpoint.
+ * Sent messages are encoded as {@link pb.managers.endpoint.Frame}s and placed
+ * on an outbound queue, which a writer thread drains to the socket, so sending
+ * never blocks on the network. The queue holds at most {@link #maxOutboundBytes},
+ * beyond which the other endpoint is taken to have stopped reading and the
+ * connection is closed, so that a slow endpoint cannot use up the memory.
+ * Received events are handled on an events thread of their own, in the order
+ * they were received, so that a slow event handler does not hold up reading
+ * and replying to the messages after it.
  * Any number of protocols can be handled by the endpoint, but there can be only
  * one instance of each protocol running at a time.
  * 
@@ -51,6 +68,76 @@ public class Endpoint extends Eventable {
 	 */
 	private IEndpointHandler manager;
 	
+	/**
+	 * Frames waiting to be written to the socket.
+	 */
+	private final LinkedBlockingQueue<Frame> outbound=new LinkedBlockingQueue<>();
+	
+	/**
+	 * Most bytes of frames waiting to be written to the socket. A frame that
+	 * would go over it is dropped and the connection is closed.
+	 */
+	public static final long maxOutboundBytes=16*1024*1024;
+	
+	/**
+	 * Bytes of the frames waiting to be written to the socket.
+	 */
+	private final AtomicLong outboundBytes=new AtomicLong();
+	
+	/**
+	 * Set when the outbound queue went over {@link #maxOutboundBytes}, after
+	 * which nothing more is queued.
+	 */
+	private final AtomicBoolean overflowed=new AtomicBoolean();
+	
+	/**
+	 * Thread that writes the outbound frames to the socket.
+	 */
+	private Thread writer=null;
+	
+	/**
+	 * Callbacks waiting for the outbound queue to drain, each to below its
+	 * number of frames, see {@link #whenDrained(int, ICallback)}.
+	 */
+	private final Map<ICallback,Integer> drainCallbacks=new HashMap<>();
+	
+	/**
+	 * The number of drain callbacks, so that the writer only looks at them
+	 * when there are some.
+	 */
+	private volatile int numDrainCallbacks=0;
+	
+	/**
+	 * Set when the writer has stopped, after which the queue drains no more.
+	 */
+	private boolean writerDone=false;
+	
+	/**
+	 * Events received, waiting to be handled by the events thread.
+	 */
+	private final LinkedBlockingQueue<Runnable> events=new LinkedBlockingQueue<>(maxQueuedEvents);
+	
+	/**
+	 * Most received events waiting to be handled, beyond which the endpoint
+	 * thread waits, and stops reading, until the handlers catch up.
+	 */
+	public static final int maxQueuedEvents=64;
+	
+	/**
+	 * Thread that handles the received events.
+	 */
+	private Thread eventHandler=null;
+	
+	/**
+	 * Put on the events queue to end the events thread.
+	 */
+	private static final Runnable endEvents=()->{};
+	
+	/**
+	 * How long (ms) close will wait for the outbound frames to be written.
+	 */
+	private static final long closeLinger=1000;
+	
 	/**
 	 * The input data stream on the socket.
 	 */
@@ -72,15 +159,32 @@ public class Endpoint extends Eventable {
 	private long timeoutId=1;
 	
 	/**
-	 * Oustanding ids
+	 * Oustanding ids, mapped to the time (ms) at which the message
+	 * was sent so that the round trip time can be measured.
+	 */
+	private Map<Long,Long> outstandingIds;
+	
+	/**
+	 * Round trip time estimator, used to decide how long to wait
+	 * for replies on this endpoint.
+	 */
+	private final RttEstimator rttEstimator;
+	
+	/**
+	 * Traffic counters for this endpoint.
 	 */
-	private Set<Long> outstandingIds;
+	private final EndpointStats stats;
 	
 	/**
 	 * stopped flag
 	 */
 	private volatile boolean stopped=true; // the use of send will return false always
 	
+	/**
+	 * set when close() is called, never cleared
+	 */
+	private volatile boolean closed=false;
+	
 	/**
 	 * Initialise the endpoint with a socket and a manager.
 	 * @param socket
@@ -90,29 +194,168 @@ public class Endpoint extends Eventable {
 		this.socket = socket;
 		this.manager = manager;
 		protocols = new HashMap<>();
-		outstandingIds = new HashSet<>();
+		outstandingIds = new HashMap<>();
+		rttEstimator = new RttEstimator();
+		stats = new EndpointStats();
 		setName("Endpoint"); // name the thread
 	}
 	
 	/**
 	 * Send a Message on the socket for this endpoint. This is synchronized
-	 * to avoid multiple concurrent messages overwriting each other on the socket.
+	 * so that messages are queued in the order they are sent. The message is
+	 * encoded straight away and written to the socket by the writer thread.
 	 * @param msg
-	 * @return true if the message was sent, false otherwise
+	 * @return true if the message was queued to be sent, false otherwise
 	 */
 	public synchronized boolean send(Message msg) {
+		return queue(msg);
+	}
+	
+	/**
+	 * Encode a message and queue it to be written.
+	 * @param msg
+	 * @return true if the message was queued to be sent, false otherwise
+	 */
+	private boolean queue(Message msg) {
 		if(stopped) return false;
+		//log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
+		Frame frame;
 		try {
-			//log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
-			out.flush();
+			frame=Frame.encode(msg);
 		} catch (IOException e) {
-			manager.endpointDisconnectedAbruptly(this);
+			log.severe("message could not be encoded, not sending it: "+e.getMessage());
 			return false;
 		}
+		return sendFrame(frame);
+	}
+	
+	/**
+	 * Queue an already encoded message to be sent. The same frame can be
+	 * sent on any number of endpoints. This does not block. If the frames
+	 * waiting to be written would go over {@link #maxOutboundBytes} the frame
+	 * is dropped and the socket is closed, and the endpoint's threads then
+	 * find the connection gone, as if the other endpoint had disconnected.
+	 * @param frame
+	 * @return true if the frame was queued to be sent, false otherwise
+	 */
+	public boolean sendFrame(Frame frame) {
+		if(stopped || overflowed.get()) return false;
+		if(outboundBytes.addAndGet(frame.length())>maxOutboundBytes) {
+			outboundBytes.addAndGet(-frame.length());
+			overflow();
+			return false;
+		}
+		outbound.offer(frame);
 		return true;
 	}
 	
+	/**
+	 * The other endpoint is not reading what is sent to it, close the socket.
+	 */
+	private void overflow() {
+		if(stopped || overflowed.getAndSet(true)) return;
+		log.warning("closing the connection to "+getOtherEndpointId()+", it is not reading, "
+				+outboundBytes.get()+" bytes in "+outbound.size()+" frames are waiting to be written");
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.warning("socket did not close properly: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * 
+	 * @return true once the endpoint has started to close
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * 
+	 * @return the number of frames waiting to be written to the socket
+	 */
+	public int getOutboundQueueSize() {
+		return outbound.size();
+	}
+	
+	/**
+	 * 
+	 * @return the number of bytes waiting to be written to the socket
+	 */
+	public long getOutboundQueueBytes() {
+		return outboundBytes.get();
+	}
+	
+	/**
+	 * Call back once fewer than the given number of frames are waiting to be
+	 * written to the socket, straight away if there already are, or once the
+	 * endpoint has closed. So a sender that is waiting for the other endpoint
+	 * to read can carry on as soon as it does, rather than polling the queue.
+	 * The callback is made on the writer thread when the queue drains, and
+	 * should be quick, e.g. schedule the work on another thread.
+	 * @param frames
+	 * @param callback
+	 */
+	public void whenDrained(int frames,ICallback callback) {
+		synchronized(drainCallbacks) {
+			if(!writerDone) {
+				// registered before looking at the queue, so that a frame
+				// the writer takes meanwhile is seen here or by the writer
+				drainCallbacks.put(callback,frames);
+				numDrainCallbacks=drainCallbacks.size();
+				if(outbound.size()>=frames) return;
+				drainCallbacks.remove(callback);
+				numDrainCallbacks=drainCallbacks.size();
+			}
+		}
+		callback.callback();
+	}
+	
+	/**
+	 * Make the drain callbacks whose number of frames the queue is now below.
+	 * @param all make all of them, the queue will drain no more
+	 */
+	private void drained(boolean all) {
+		List<ICallback> ready=new ArrayList<>();
+		synchronized(drainCallbacks) {
+			if(all) writerDone=true;
+			int queued=outbound.size();
+			drainCallbacks.entrySet().removeIf((entry)->{
+				if(!all && queued>=entry.getValue()) return false;
+				ready.add(entry.getKey());
+				return true;
+			});
+			numDrainCallbacks=drainCallbacks.size();
+		}
+		ready.forEach(ICallback::callback);
+	}
+	
+	/**
+	 * Write the outbound frames to the socket until the end frame is seen,
+	 * flushing whenever the queue is empty.
+	 */
+	private void writeFrames() {
+		try {
+			while(true) {
+				Frame frame=outbound.take();
+				if(frame==Frame.end) break;
+				if(numDrainCallbacks>0) drained(false);
+				outboundBytes.addAndGet(-frame.length());
+				frame.writeTo(out);
+				stats.sent(frame.getProtocolName(),frame.length());
+				if(outbound.isEmpty()) out.flush();
+			}
+			out.flush();
+		} catch (IOException e) {
+			if(!stopped) manager.endpointDisconnectedAbruptly(this);
+		} catch (InterruptedException e) {
+			// closing without waiting for the frames to be written
+		} finally {
+			drained(true);
+		}
+	}
+	
 	/**
 	 * Send a message and attach a timeout identifier to it. The callback
 	 * is triggered if no reply to the message was seen within the given
@@ -126,7 +369,7 @@ public class Endpoint extends Eventable {
 			ICallback timeoutCallback,int timeInterval) {
 		long nextId = timeoutId++;
 		synchronized(outstandingIds) {
-			outstandingIds.add(nextId);
+			outstandingIds.put(nextId,System.currentTimeMillis());
 		}
 		msg.setTimeoutId(nextId);
 		boolean sent=send(msg);
@@ -134,13 +377,25 @@ public class Endpoint extends Eventable {
 		Utils.getInstance().setTimeout(()->{
 			boolean timedout;
 			synchronized(outstandingIds) {
-				timedout=outstandingIds.contains(nextId);
+				timedout=outstandingIds.remove(nextId)!=null;
 			}
 			if(timedout) timeoutCallback.callback();
 		}, timeInterval);
 		return sent;
 	}
 	
+	/**
+	 * Send a message and attach a timeout identifier to it, using the
+	 * timeout currently estimated for this endpoint.
+	 * @see {@link #getTimeout()}
+	 * @param msg
+	 * @param timeoutCallback
+	 * @return true if the message was sent and false otherwise
+	 */
+	public boolean sendWithTimeout(Message msg,ICallback timeoutCallback) {
+		return sendWithTimeout(msg,timeoutCallback,getTimeout());
+	}
+	
 	/**
 	 * Send a message in reply to a message that has a timeout id associated
 	 * with it. If it is received in time then it will ensure that a timeout
@@ -149,10 +404,60 @@ public class Endpoint extends Eventable {
 	 * @param replyingTo
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendAndCancelTimeout(Message msg,
+	public boolean sendAndCancelTimeout(Message msg,
 			Message replyingTo) {
 		msg.setTimeoutId(replyingTo.getTimeoutId());
-		return(send(msg));
+		// not synchronized, so that the endpoint thread can reply while an
+		// event handler on the events thread is holding this endpoint
+		return queue(msg);
+	}
+	
+	/**
+	 * Handle a received event on the events thread, after the events received
+	 * before it. An event still waiting when the endpoint closes is dropped.
+	 * Called by the endpoint thread, which waits while {@link #maxQueuedEvents}
+	 * are waiting.
+	 * @param eventName
+	 * @param eventData
+	 */
+	public void localEmitLater(String eventName,String eventData) {
+		try {
+			events.put(()->{
+				if(!closed) localEmit(eventName,eventData);
+			});
+		} catch (InterruptedException e) {
+			// closing, the endpoint thread stops when it sees it
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Wait for the events received so far to be handled.
+	 * @throws InterruptedException if the endpoint is closing
+	 */
+	private void awaitEvents() throws InterruptedException {
+		CountDownLatch handled=new CountDownLatch(1);
+		events.put(handled::countDown);
+		handled.await();
+	}
+	
+	/**
+	 * Handle the received events in turn until the end is seen.
+	 */
+	private void handleEvents() {
+		try {
+			while(true) {
+				Runnable event=events.take();
+				if(event==endEvents) break;
+				try {
+					event.run();
+				} catch (RuntimeException e) {
+					log.severe("event handler failed: "+e);
+				}
+			}
+		} catch (InterruptedException e) {
+			// closing with events still waiting
+		}
 	}
 	
 	/**
@@ -163,6 +468,7 @@ public class Endpoint extends Eventable {
 	public synchronized void close() {
 		// we are stopping this endpoint, the send method will return false always now.
 		stopped=true;
+		closed=true;
 		/* 
 	    * Tell all of the protocols to stop - they may not be able to correctly complete
 		* their intended function however - and this should be flagged as an error
@@ -175,6 +481,25 @@ public class Endpoint extends Eventable {
 		if(protocolNames!=null)
 			protocolNames.forEach((protocolName)->{stopProtocol(protocolName);});
 		
+		/*
+		 * Give the writer a chance to write out what has already been sent,
+		 * e.g. a session stop reply, before the socket is closed. The writer
+		 * may be the thread that is closing.
+		 */
+		outbound.offer(Frame.end);
+		if(eventHandler!=null && !events.offer(endEvents)) eventHandler.interrupt();
+		if(writer!=null && Thread.currentThread()!=writer) {
+			try {
+				writer.join(closeLinger);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writer.interrupt();
+		} else if(writer==null) {
+			// never started, nothing will drain
+			drained(true);
+		}
+		
 		/*
 		 *  The endpoint thread itself will not process any more messages if we
 		 *  interrupt it.
@@ -192,12 +517,8 @@ public class Endpoint extends Eventable {
 		 * The endpoint is at this point just "closing", not closed.
 		 */
 		
-		try {
-			if(out!=null) out.close();
-			out=null;
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
-		}
+		// closing the socket closes the out stream without flushing it, which
+		// could block if the other side has stopped reading
 		try {
 			socket.close();
 		} catch (IOException e) {
@@ -213,23 +534,33 @@ public class Endpoint extends Eventable {
 	public void run() {
 		try {
 			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		} catch (IOException e){
 			manager.endpointDisconnectedAbruptly(this);
 			return;
 		}
-		stopped=false; // allow use of the out stream
+		synchronized(this) {
+			writer = new Thread(this::writeFrames,"Endpoint-writer");
+			writer.start();
+			eventHandler = new Thread(this::handleEvents,"Endpoint-events");
+			eventHandler.start();
+			stopped=false; // allow use of the outbound queue
+		}
 		manager.endpointReady(this);
 		log.info("endpoint has started to: "+getOtherEndpointId());
 		while(!isInterrupted()) {
 			try {
 				String line=in.readUTF();
 				Message msg = Message.toMessage(line);
-				// cancel any related time out
+				stats.received(msg.getProtocolName(),line.length()+2);
+				// cancel any related time out, and use it as an rtt sample
 				if(msg.getType()==Message.Type.Reply) {
+					Long timeSent;
 					synchronized(outstandingIds) {
-						outstandingIds.remove(msg.getTimeoutId());
+						timeSent=outstandingIds.remove(msg.getTimeoutId());
 					}
+					if(timeSent!=null)
+						rttEstimator.addSample(System.currentTimeMillis()-timeSent);
 				}
 				// find the protocol
 				Protocol protocol=null;
@@ -253,6 +584,8 @@ public class Endpoint extends Eventable {
 					}
 				}
 				//log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+				// a session starts or stops after the events received before it
+				if(msg.getProtocolName().equals(SessionProtocol.protocolName)) awaitEvents();
 				switch(msg.getType()) {
 				case Request:
 					((IRequestReplyProtocol)protocol).receiveRequest(msg);
@@ -268,6 +601,9 @@ public class Endpoint extends Eventable {
 			} catch (InvalidMessage e) {
 				manager.endpointSentInvalidMessage(this);
 				// up to the client what to do
+			} catch (InterruptedException e) {
+				// closing
+				break;
 			}
 		}
 		try {
@@ -314,6 +650,75 @@ public class Endpoint extends Eventable {
 		}
 	}
 	
+	/**
+	 * The time to wait for a reply on this endpoint, adapted to the
+	 * round trip times measured so far.
+	 * @return timeout in ms
+	 */
+	public int getTimeout() {
+		return rttEstimator.getTimeout();
+	}
+	
+	/**
+	 * 
+	 * @return the round trip time estimator for this endpoint
+	 */
+	public RttEstimator getRttEstimator() {
+		return rttEstimator;
+	}
+	
+	/**
+	 * 
+	 * @return the traffic counters for this endpoint
+	 */
+	public EndpointStats getStats() {
+		return stats;
+	}
+	
+	/**
+	 * 
+	 * @return the number of requests sent that are still waiting for a reply
+	 */
+	public int getNumOutstanding() {
+		synchronized(outstandingIds) {
+			return outstandingIds.size();
+		}
+	}
+	
+	/**
+	 * A snapshot of this endpoint's statistics, for reporting to an admin
+	 * client. The keys are "id", "age" and "sessionAge" (ms, -1 if no session),
+	 * "lastRtt" and "srtt" (ms, -1 if unknown), "timeout" (ms), "outstanding"
+	 * (requests awaiting a reply), "queue" (frames waiting to be written),
+	 * "queueBytes" (bytes of those frames),
+	 * "events" (event names being listened to)
+	 * and "protocols" (see {@link EndpointStats#toDocuments()}).
+	 * @return the snapshot
+	 */
+	public Document getStatsSnapshot() {
+		Document doc = new Document();
+		doc.append("id",getOtherEndpointId());
+		doc.append("age",stats.getAge());
+		doc.append("sessionAge",stats.getSessionAge());
+		doc.append("lastRtt",rttEstimator.getLastRtt());
+		doc.append("srtt",rttEstimator.getSmoothedRtt());
+		doc.append("timeout",getTimeout());
+		doc.append("outstanding",getNumOutstanding());
+		doc.append("queue",getOutboundQueueSize());
+		doc.append("queueBytes",getOutboundQueueBytes());
+		doc.append("events",new ArrayList<String>(getEventNames()));
+		doc.append("protocols",stats.toDocuments());
+		return doc;
+	}
+	
+	/**
+	 * 
+	 * @return the Internet address of the other endpoint
+	 */
+	public InetAddress getOtherEndpointAddress() {
+		return socket.getInetAddress();
+	}
+	
 	/**
 	 * 
 	 * @return the id of the other endpoint
@@ -0,0 +1,113 @@
+package pb.managers.endpoint;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pb.protocols.Document;
+
+/**
+ * Traffic counters for an endpoint, kept per protocol, along with the times
+ * the endpoint connected and its session started. Counters are updated by the
+ * endpoint thread (incoming) and by any thread that sends (outgoing), and read
+ * by whoever asks for a snapshot, so they are atomic.
+ * <br/>
+ * Incoming bytes are counted from the length of the received line, which is
+ * exact for the ASCII JSON that the protocols send.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#getStats()}
+ * @author aaron
+ *
+ */
+public class EndpointStats {
+
+	/**
+	 * Counters for a single protocol.
+	 */
+	private static class ProtocolStats {
+		final AtomicLong messagesIn=new AtomicLong();
+		final AtomicLong messagesOut=new AtomicLong();
+		final AtomicLong bytesIn=new AtomicLong();
+		final AtomicLong bytesOut=new AtomicLong();
+	}
+
+	private final Map<String,ProtocolStats> protocols=new ConcurrentHashMap<>();
+
+	/**
+	 * Time (ms) the endpoint was created.
+	 */
+	private final long createdAt=System.currentTimeMillis();
+
+	/**
+	 * Time (ms) the session started, or 0 if it has not.
+	 */
+	private volatile long sessionStartedAt=0;
+
+	private ProtocolStats get(String protocolName) {
+		return protocols.computeIfAbsent(protocolName,(name)->new ProtocolStats());
+	}
+
+	/**
+	 * Count a received message.
+	 * @param protocolName protocol of the message
+	 * @param bytes size of the message on the wire
+	 */
+	public void received(String protocolName,long bytes) {
+		ProtocolStats stats=get(protocolName);
+		stats.messagesIn.incrementAndGet();
+		stats.bytesIn.addAndGet(bytes);
+	}
+
+	/**
+	 * Count a sent message.
+	 * @param protocolName protocol of the message
+	 * @param bytes size of the message on the wire
+	 */
+	public void sent(String protocolName,long bytes) {
+		ProtocolStats stats=get(protocolName);
+		stats.messagesOut.incrementAndGet();
+		stats.bytesOut.addAndGet(bytes);
+	}
+
+	/**
+	 * Note that the session on the endpoint has started.
+	 */
+	public void sessionStarted() {
+		sessionStartedAt=System.currentTimeMillis();
+	}
+
+	/**
+	 * @return time (ms) since the endpoint was created
+	 */
+	public long getAge() {
+		return System.currentTimeMillis()-createdAt;
+	}
+
+	/**
+	 * @return time (ms) since the session started, or -1 if it has not
+	 */
+	public long getSessionAge() {
+		long started=sessionStartedAt;
+		return started==0 ? -1 : System.currentTimeMillis()-started;
+	}
+
+	/**
+	 * A snapshot of the counters, one document per protocol with the
+	 * keys "protocol", "messagesIn", "messagesOut", "bytesIn" and "bytesOut".
+	 * @return list of documents
+	 */
+	public ArrayList<Document> toDocuments() {
+		ArrayList<Document> docs=new ArrayList<>();
+		protocols.forEach((name,stats)->{
+			Document doc=new Document();
+			doc.append("protocol",name);
+			doc.append("messagesIn",stats.messagesIn.get());
+			doc.append("messagesOut",stats.messagesOut.get());
+			doc.append("bytesIn",stats.bytesIn.get());
+			doc.append("bytesOut",stats.bytesOut.get());
+			docs.add(doc);
+		});
+		return docs;
+	}
+}
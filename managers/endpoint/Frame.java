@@ -0,0 +1,71 @@
+package pb.managers.endpoint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import pb.protocols.Message;
+
+/**
+ * A message that has been encoded for the wire, exactly as
+ * {@link java.io.DataOutputStream#writeUTF(String)} would write its JSON
+ * string. Frames are immutable, so a single frame can be placed on the
+ * outbound queue of any number of endpoints, e.g. for a broadcast, without
+ * encoding the message again.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#sendFrame(Frame)}
+ * @author aaron
+ *
+ */
+public final class Frame {
+
+	/**
+	 * Marks the end of an endpoint's outbound queue.
+	 */
+	static final Frame end = new Frame(new byte[0],"");
+
+	private final byte[] bytes;
+	private final String protocolName;
+
+	private Frame(byte[] bytes,String protocolName) {
+		this.bytes=bytes;
+		this.protocolName=protocolName;
+	}
+
+	/**
+	 * Encode a message. Any timeout id must already be set on the message.
+	 * @param msg
+	 * @return the frame for the message
+	 * @throws IOException if the message is too large to be sent
+	 */
+	public static Frame encode(Message msg) throws IOException {
+		String json=msg.toJsonString();
+		ByteArrayOutputStream buffer=new ByteArrayOutputStream(json.length()+2);
+		new DataOutputStream(buffer).writeUTF(json);
+		return new Frame(buffer.toByteArray(),msg.getProtocolName());
+	}
+
+	/**
+	 * @return the number of bytes in the frame
+	 */
+	public int length() {
+		return bytes.length;
+	}
+
+	/**
+	 * @return the name of the protocol the message belongs to
+	 */
+	public String getProtocolName() {
+		return protocolName;
+	}
+
+	/**
+	 * Write the frame to a stream. The bytes themselves are never handed out,
+	 * so the frame stays immutable.
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		out.write(bytes);
+	}
+}
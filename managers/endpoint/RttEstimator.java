@@ -0,0 +1,151 @@
+package pb.managers.endpoint;
+
+/**
+ * Estimates the round trip time (RTT) of an endpoint's connection and from it
+ * the time to wait for a reply before assuming the other side is dead. This
+ * follows the smoothed RTT (SRTT) and RTT variation (RTTVAR) estimator used by
+ * TCP (RFC 6298): each reply that arrives gives an RTT sample, and the timeout
+ * is SRTT plus four times RTTVAR, clamped between a floor and a ceiling. Before
+ * any sample has been seen the initial timeout is used.
+ * <br/>
+ * Requests are replied to as soon as they are read, and events are handled
+ * on a thread of their own, so the samples do not include the time that
+ * event handlers take at either end.
+ * <br/>
+ * Samples are given by the endpoint thread while timeouts are read by any
+ * thread that sends a request, so the methods are synchronized.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#sendWithTimeout(pb.protocols.Message, pb.protocols.ICallback, int)}
+ * @author aaron
+ *
+ */
+public class RttEstimator {
+
+	/**
+	 * Default smallest timeout in ms that will be used, regardless of how
+	 * fast the connection is. Can be changed with {@link #setDefaultBounds(int, int)}.
+	 */
+	private static volatile int defaultMinTimeout = 2000;
+
+	/**
+	 * Default largest timeout in ms that will be used, regardless of how
+	 * slow the connection is. Can be changed with {@link #setDefaultBounds(int, int)}.
+	 */
+	private static volatile int defaultMaxTimeout = 40000;
+
+	/**
+	 * Timeout in ms to use until the first RTT sample has been seen.
+	 */
+	public static final int initialTimeout = 10000;
+
+	/**
+	 * Gain for the smoothed RTT, 1/8 as for TCP.
+	 */
+	private static final double alpha = 0.125;
+
+	/**
+	 * Gain for the RTT variation, 1/4 as for TCP.
+	 */
+	private static final double beta = 0.25;
+
+	/**
+	 * Number of RTT variations to add to the smoothed RTT.
+	 */
+	private static final int k = 4;
+
+	/**
+	 * Smallest timeout in ms for this estimator.
+	 */
+	private final int minTimeout;
+
+	/**
+	 * Largest timeout in ms for this estimator.
+	 */
+	private final int maxTimeout;
+
+	/**
+	 * Smoothed RTT in ms, negative until the first sample.
+	 */
+	private double srtt=-1;
+
+	/**
+	 * RTT variation in ms.
+	 */
+	private double rttvar=0;
+
+	/**
+	 * The most recent RTT sample in ms, or -1 if none yet.
+	 */
+	private long lastRtt=-1;
+
+	/**
+	 * Initialise the estimator with the default floor and ceiling.
+	 */
+	public RttEstimator() {
+		this(defaultMinTimeout,defaultMaxTimeout);
+	}
+
+	/**
+	 * Initialise the estimator with a given floor and ceiling.
+	 * @param minTimeout smallest timeout in ms
+	 * @param maxTimeout largest timeout in ms
+	 */
+	public RttEstimator(int minTimeout,int maxTimeout) {
+		if(minTimeout<=0 || maxTimeout<minTimeout)
+			throw new IllegalArgumentException("need 0 < minTimeout <= maxTimeout");
+		this.minTimeout=minTimeout;
+		this.maxTimeout=maxTimeout;
+	}
+
+	/**
+	 * Change the floor and ceiling used by estimators created from now on.
+	 * Typically called from a main method before any managers are started.
+	 * @param minTimeout smallest timeout in ms
+	 * @param maxTimeout largest timeout in ms
+	 */
+	public static void setDefaultBounds(int minTimeout,int maxTimeout) {
+		if(minTimeout<=0 || maxTimeout<minTimeout)
+			throw new IllegalArgumentException("need 0 < minTimeout <= maxTimeout");
+		defaultMinTimeout=minTimeout;
+		defaultMaxTimeout=maxTimeout;
+	}
+
+	/**
+	 * Add a new RTT sample.
+	 * @param rtt the time in ms between sending a request and receiving its reply
+	 */
+	public synchronized void addSample(long rtt) {
+		if(rtt<0) return;
+		lastRtt=rtt;
+		if(srtt<0) {
+			srtt=rtt;
+			rttvar=rtt/2.0;
+		} else {
+			rttvar=(1-beta)*rttvar+beta*Math.abs(srtt-rtt);
+			srtt=(1-alpha)*srtt+alpha*rtt;
+		}
+	}
+
+	/**
+	 * @return the time in ms to wait for a reply before timing out
+	 */
+	public synchronized int getTimeout() {
+		if(srtt<0) return Math.max(minTimeout,Math.min(maxTimeout,initialTimeout));
+		long rto = Math.round(srtt+k*rttvar);
+		return (int) Math.max(minTimeout,Math.min(maxTimeout,rto));
+	}
+
+	/**
+	 * @return the smoothed RTT in ms, or -1 if no sample has been seen
+	 */
+	public synchronized long getSmoothedRtt() {
+		return Math.round(srtt);
+	}
+
+	/**
+	 * @return the most recent RTT sample in ms, or -1 if no sample has been seen
+	 */
+	public synchronized long getLastRtt() {
+		return lastRtt;
+	}
+}
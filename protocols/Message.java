@@ -4,6 +4,7 @@ import pb.protocols.event.EventReply;
 import pb.protocols.event.EventRequest;
 import pb.protocols.keepalive.KeepAliveReply;
 import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.SessionRejectReply;
 import pb.protocols.session.SessionStartReply;
 import pb.protocols.session.SessionStartRequest;
 import pb.protocols.session.SessionStopReply;
@@ -97,6 +98,7 @@ public class Message {
 			case SessionStartReply.name: return new SessionStartReply(doc);
 			case SessionStopRequest.name: return new SessionStopRequest(doc);
 			case SessionStopReply.name: return new SessionStopReply(doc);
+			case SessionRejectReply.name: return new SessionRejectReply(doc);
 			case EventRequest.name: return new EventRequest(doc);
 			case EventReply.name: return new EventReply(doc);
 			// put more message cases here
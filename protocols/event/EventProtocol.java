@@ -20,8 +20,6 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	public static final String protocolName = "EventProtocol";
 	
-	public int eventTimeout = 40000;
-	
 	public volatile boolean stopped=false;
 	
 	/**
@@ -76,9 +74,10 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void sendRequest(Message msg) {
 		if(stopped)return;
+		// the timeout adapts to the round trip times seen on the endpoint
 		endpoint.sendWithTimeout(msg, ()->{
 			if(!stopped) manager.endpointTimedOut(endpoint, this);
-		}, eventTimeout);
+		});
 		
 	}
 
@@ -92,8 +91,11 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	public void receiveRequest(Message msg) {
 		if(stopped)return;
 		EventRequest eventRequest = (EventRequest)msg;
+		// reply straight away and leave the handling to the events thread, so
+		// that the time handlers take is not part of the round trip of this
+		// event, nor of the messages after it
 		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		endpoint.localEmitLater(eventRequest.getEventName(),eventRequest.getEventData());
 	}
 
 	@Override
@@ -13,20 +13,26 @@ import pb.protocols.IRequestReplyProtocol;
 /**
  * Provides all of the protocol logic for both client and server to undertake
  * the KeepAlive protocol. In the KeepAlive protocol, the client sends a
- * KeepAlive request to the server every {@link #keepAliveInterval} seconds using
+ * KeepAlive request to the server every {@link #keepAliveRequestInterval} ms using
  * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}. The server must
  * send a KeepAlive response to the client upon receiving the request. If the
- * client does not receive the response within {@link #keepAliveTimeout} seconds
+ * client does not receive the response within the endpoint's timeout
  * it will assume the server is dead
  * and signal its manager using
  * {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. If the server does
- * not receive a KeepAlive request at least every {@link #keepAliveTimeout} seconds (again using
+ * not receive a KeepAlive request at least every {@link #keepAliveRequestInterval} ms,
+ * plus the endpoint's timeout (again using
  * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}), it will assume
  * the client is dead and signal its manager. Upon initialisation, the client
  * should send the KeepAlive request immediately, whereas the server will wait
- * up to {@link #keepAliveTimeout} seconds before it assumes the client is dead. The protocol stops
+ * before it assumes the client is dead. The protocol stops
  * when a timeout occurs.
+ * <br/>
+ * The endpoint's timeout is not fixed, it adapts to the round trip times
+ * measured on the endpoint, and the KeepAlive requests themselves provide
+ * regular measurements.
  * 
+ * @see {@link pb.managers.endpoint.RttEstimator}
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
  * @see {@link pb.protocols.Message}
@@ -47,23 +53,13 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	public static final String protocolName="KeepAliveProtocol";
 	
 	/**
-	 * Default keep alive request interval
+	 * Default keep alive request interval in ms
 	 */
 	private int keepAliveRequestInterval = 20000;
 	
-	/**
-	 * Default keep alive timeout
-	 */
-	private int keepAliveTimeout = 40000;
-	
 	// Use of volatile is because the timer thread is different to the endpoint thread
 	// and they make use of the same flags/variables.
 	
-	/**
-	 * Time that a request was last sent.
-	 */
-	private volatile long timeReplySeen;
-	
 	/**
 	 * Time that a request was last seen.
 	 */
@@ -75,11 +71,6 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	private volatile boolean stopped=false;
 	
-	/**
-	 * Whether we should timeout or not.
-	 */
-	private volatile boolean timeout=false; 
-	
 	/**
 	 * Initialise the protocol with an endopint and a manager.
 	 * @param endpoint
@@ -111,7 +102,8 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	
 	/**
 	 * Called by the manager that is acting as the server. Basically
-	 * just wait for {@link #keepAliveTimeout} seconds and if no (new) request has been seen
+	 * just wait for {@link #keepAliveRequestInterval} plus the endpoint's
+	 * timeout and if no (new) request has been seen
 	 * then timeout. Keep doing this until cancelled.
 	 */
 	public void startAsServer() {
@@ -119,7 +111,14 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 		// set a timeout callback
 		Utils.getInstance().setTimeout(()->{
 			checkClientTimeout();
-		}, keepAliveTimeout);
+		}, clientTimeout());
+	}
+	
+	/**
+	 * @return how long the server will wait for the next request
+	 */
+	private long clientTimeout() {
+		return keepAliveRequestInterval+endpoint.getTimeout();
 	}
 	
 	/**
@@ -128,7 +127,8 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	public void checkClientTimeout() {
 		if(stopped)return;
 		long now = Instant.now().toEpochMilli();
-		if(now-timeRequestSeen > keepAliveTimeout) {
+		long timeout = clientTimeout();
+		if(now-timeRequestSeen > timeout) {
 			// timeout :-(
 			manager.endpointTimedOut(endpoint,this);
 			stopProtocol();
@@ -136,19 +136,17 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 			// set a timeout callback
 			Utils.getInstance().setTimeout(()->{
 				checkClientTimeout();
-			}, keepAliveTimeout);
+			}, timeRequestSeen+timeout-now+1);
 		}
 	}
 	
 	/**
 	 * Called by the manager that is acting as the client. Basically
 	 * send a keep alive immediately and timeout if no response within
-	 * {@link #keepAliveTimeout} seconds.
-	 * Keep doing this every {@link #keepAliveRequestInterval} seconds until cancelled.
+	 * the endpoint's timeout.
+	 * Keep doing this every {@link #keepAliveRequestInterval} ms until cancelled.
 	 */
 	public void startAsClient() {
-		// assume we saw a reply already
-		timeReplySeen = Instant.now().toEpochMilli();
 		// send a request straight away
 		sendAnotherRequest();	
 	}
@@ -159,51 +157,37 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	public void sendAnotherRequest() {
 		if(stopped)return;
 		sendRequest(new KeepAliveRequest());
-		final long timeSent = Instant.now().toEpochMilli();
 		Utils.getInstance().setTimeout(()->{
 			sendAnotherRequest();
 		}, keepAliveRequestInterval);
-		Utils.getInstance().setTimeout(()->{
-			checkServerTimeout(timeSent);
-		}, keepAliveTimeout);
-	}
-	
-	/**
-	 * callback to check for server timeout
-	 */
-	public void checkServerTimeout(long timeSent) {
-		if(stopped)return;
-		if(timeout) {
-			manager.endpointTimedOut(endpoint,this);
-			stopProtocol();
-		} else {
-			if(timeReplySeen-timeSent > keepAliveTimeout) {
-				//we timed out :-(
-				timeout=true;
-				manager.endpointDisconnectedAbruptly(endpoint);				
-			} 
-		}
 	}
 
 	/**
-	 * Send a keep alive request.
+	 * Send a keep alive request, timing out if the reply is not seen
+	 * within the endpoint's timeout. The reply also gives the endpoint
+	 * a round trip time measurement.
 	 * @param msg
 	 */
 	@Override
 	public void sendRequest(Message msg) {
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
-		endpoint.send(keepAliveRequest);
+		endpoint.sendWithTimeout(keepAliveRequest,()->{
+			if(stopped) return;
+			// we timed out :-(
+			manager.endpointTimedOut(endpoint,this);
+			stopProtocol();
+		});
 	}
 
 	/**
-	 * If we receive a keep alive reply, make a note of the time.
+	 * If we receive a keep alive reply there is nothing to do, the
+	 * endpoint has already cancelled the timeout.
 	 * @param msg
 	 */
 	@Override
 	public void receiveReply(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveReply keepAliveResponse = (KeepAliveReply) msg;
-		timeReplySeen = Instant.now().toEpochMilli();
 	}
 
 	/**
@@ -212,10 +196,9 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	@Override
 	public void receiveRequest(Message msg) {
-		@SuppressWarnings("unused")
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
 		timeRequestSeen = Instant.now().toEpochMilli();
-		sendReply(new KeepAliveReply());
+		endpoint.sendAndCancelTimeout(new KeepAliveReply(),keepAliveRequest);
 	}
 
 	/**
@@ -14,4 +14,12 @@ public interface ISessionProtocolHandler {
 	 * @param endpoint
 	 */
 	public void sessionStopped(Endpoint endpoint);
+	
+	/**
+	 * The other side would not start the session and asked us to back off.
+	 * @param endpoint
+	 * @param reason why the session was rejected
+	 * @param retryAfter time in ms to wait before trying again
+	 */
+	public void sessionRejected(Endpoint endpoint, String reason, long retryAfter);
 }
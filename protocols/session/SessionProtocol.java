@@ -27,6 +27,7 @@ import pb.protocols.IRequestReplyProtocol;
  * @see {@link pb.protocols.session.SessionStartReply}
  * @see {@link pb.protocols.session.SessionStopRequest}
  * @see {@link pb.protocols.session.SessionStopReply}
+ * @see {@link pb.protocols.session.SessionRejectReply}
  * @author aaron
  *
  */
@@ -38,11 +39,6 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public static final String protocolName="SessionProtocol";
 	
-	/**
-	 * Default request timeout
-	 */
-	private int sessionTimeout = 40000;
-	
 	// Use of volatile is in case the thread that calls stopProtocol is different
 	// to the endpoint thread, although in this case it hardly needed.
 	
@@ -102,7 +98,9 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	}
 
 	/**
-	 * Called by the manager that is acting as a server.
+	 * Called by the manager that is acting as a server. Timeout if
+	 * the client does not request the session to start within the
+	 * endpoint's timeout.
 	 */
 	@Override
 	public void startAsServer() {
@@ -111,7 +109,7 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				// we timed out
 				manager.endpointTimedOut(endpoint, this);
 			}
-		}, sessionTimeout);
+		}, endpoint.getTimeout());
 	}
 	
 	/**
@@ -122,7 +120,8 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	}
 	
 	/**
-	 * Just send a request, nothing special.
+	 * Just send a request, the timeout adapts to the round trip
+	 * times seen on the endpoint.
 	 * @param msg
 	 */
 	@Override
@@ -131,13 +130,14 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 			// the message timed out
 			if(!stopped)
 			manager.endpointTimedOut(endpoint, this);
-		},sessionTimeout);
+		});
 	}
 
 	/**
 	 * If the reply is a session start reply then tell the manager that
 	 * the session has started, otherwise if its a session stop reply then
-	 * tell the manager that the session has stopped. If something weird 
+	 * tell the manager that the session has stopped. If the session was
+	 * rejected then tell the manager how long to back off for. If something weird 
 	 * happens then tell the manager that something weird has happened.
 	 * @param msg
 	 */
@@ -159,6 +159,16 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 			}
 			protocolRunning=false;
 			((ISessionProtocolHandler)manager).sessionStopped(endpoint);
+		} else if(msg instanceof SessionRejectReply) {
+			if(protocolRunning) {
+				// error, rejected a session that already started?
+				manager.protocolViolation(endpoint,this);
+				return;
+			}
+			SessionRejectReply rejectReply = (SessionRejectReply) msg;
+			stopped=true;
+			((ISessionProtocolHandler)manager).sessionRejected(endpoint,
+					rejectReply.getReason(),rejectReply.getRetryAfter());
 		}
 	}
 
@@ -0,0 +1,51 @@
+package pb.protocols.session;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Message sent by a server that will not accept the connection, in place of
+ * a start reply. The client should close the connection and wait at least
+ * the given number of ms before trying to connect again.
+ * @see {@link pb.protocols.session.SessionProtocol}
+ * @see {@link pb.managers.AdmissionControl}
+ * @author aaron
+ *
+ */
+public class SessionRejectReply extends Message {
+	static final public String name = "SessionRejectReply";
+
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param reason why the connection was rejected
+	 * @param retryAfter time in ms the client should wait before reconnecting
+	 */
+	public SessionRejectReply(String reason, long retryAfter) {
+		super(name,SessionProtocol.protocolName,Message.Type.Reply);
+		doc.append("reason", reason);
+		doc.append("retryAfter", retryAfter);
+	}
+
+	/**
+	 * Initialiser when given message parameters in a doc. Must throw
+	 * InvalidMessage if any of the required parameters are not
+	 * in the doc, including the appropriate msg parameter.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public SessionRejectReply(Document doc) throws InvalidMessage {
+		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc);
+		Message.validateStringType("reason", doc);
+		Message.validateLongType("retryAfter", doc);
+		this.doc=doc;
+	}
+
+	public String getReason() {
+		return doc.getString("reason");
+	}
+
+	public long getRetryAfter() {
+		return doc.getLong("retryAfter");
+	}
+}
@@ -1,9 +1,11 @@
 package pb.utils;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import pb.protocols.event.IEventCallback;
@@ -18,7 +20,8 @@ public class Eventable extends Thread {
 	private static Logger log = Logger.getLogger(Eventable.class.getName());
 	
 	/**
-	 * Event callbacks
+	 * Event callbacks, the map is concurrent only so that
+	 * {@link #getEventNames()} can read it without synchronizing.
 	 */
 	private Map<String,List<IEventCallback>> callbacks;
 	
@@ -26,7 +29,7 @@ public class Eventable extends Thread {
 	 * Initializer
 	 */
 	public Eventable() {
-		callbacks=new HashMap<>();
+		callbacks=new ConcurrentHashMap<>();
 	}
 	
 	/**
@@ -72,6 +75,17 @@ public class Eventable extends Thread {
 		return hit;
 	}
 	
+	/**
+	 * Not synchronized, so that it does not wait for an event that
+	 * is currently being emitted.
+	 * @return the names of the events that have callbacks, not including "*"
+	 */
+	public Set<String> getEventNames() {
+		Set<String> names=new TreeSet<>(callbacks.keySet());
+		names.remove("*");
+		return names;
+	}
+	
 	/**
 	 * Add a new callback for an event. The special event name "*" is used
 	 * for callbacks that want to receive all events.
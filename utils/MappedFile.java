@@ -0,0 +1,154 @@
+package pb.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file mapped into memory, which may be larger than the 2GB that a single
+ * {@link java.nio.MappedByteBuffer} can map, so it is mapped in segments.
+ * Values are read and written at absolute positions, and a value may lie
+ * across two segments. Only the pages that are touched are read from disk.
+ *
+ * @author aaron
+ *
+ */
+public class MappedFile {
+
+	private static final int segmentBits=30;
+	private static final long segmentSize=1L<<segmentBits;
+
+	private final MappedByteBuffer[] segments;
+	private final long length;
+
+	private MappedFile(FileChannel channel,FileChannel.MapMode mode,long length) throws IOException {
+		this.length=length;
+		int count=(int) ((length+segmentSize-1)>>>segmentBits);
+		segments=new MappedByteBuffer[count];
+		for(int i=0;i<count;i++) {
+			long start=(long) i<<segmentBits;
+			segments[i]=channel.map(mode,start,Math.min(segmentSize,length-start));
+		}
+	}
+
+	/**
+	 * Map a file for reading.
+	 * @param file
+	 * @return the mapped file
+	 * @throws IOException
+	 */
+	public static MappedFile openForReading(File file) throws IOException {
+		try(FileChannel channel=FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+			return new MappedFile(channel,FileChannel.MapMode.READ_ONLY,channel.size());
+		}
+	}
+
+	/**
+	 * Create, or replace, a file of the given length and map it for writing.
+	 * @param file
+	 * @param length
+	 * @return the mapped file
+	 * @throws IOException
+	 */
+	public static MappedFile create(File file,long length) throws IOException {
+		try(FileChannel channel=FileChannel.open(file.toPath(),StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,StandardOpenOption.READ,StandardOpenOption.WRITE)) {
+			return new MappedFile(channel,FileChannel.MapMode.READ_WRITE,length);
+		}
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public byte get(long pos) {
+		return segments[(int) (pos>>>segmentBits)].get((int) (pos&(segmentSize-1)));
+	}
+
+	public void put(long pos,byte value) {
+		segments[(int) (pos>>>segmentBits)].put((int) (pos&(segmentSize-1)),value);
+	}
+
+	public int getInt(long pos) {
+		int offset=(int) (pos&(segmentSize-1));
+		if(offset<=segmentSize-4) return segments[(int) (pos>>>segmentBits)].getInt(offset);
+		int value=0;
+		for(int i=0;i<4;i++) value=(value<<8)|(get(pos+i)&0xff);
+		return value;
+	}
+
+	public void putInt(long pos,int value) {
+		int offset=(int) (pos&(segmentSize-1));
+		if(offset<=segmentSize-4) {
+			segments[(int) (pos>>>segmentBits)].putInt(offset,value);
+			return;
+		}
+		for(int i=0;i<4;i++) put(pos+i,(byte) (value>>>(24-8*i)));
+	}
+
+	public long getLong(long pos) {
+		int offset=(int) (pos&(segmentSize-1));
+		if(offset<=segmentSize-8) return segments[(int) (pos>>>segmentBits)].getLong(offset);
+		return ((long) getInt(pos)<<32)|(getInt(pos+4)&0xffffffffL);
+	}
+
+	public void putLong(long pos,long value) {
+		int offset=(int) (pos&(segmentSize-1));
+		if(offset<=segmentSize-8) {
+			segments[(int) (pos>>>segmentBits)].putLong(offset,value);
+			return;
+		}
+		putInt(pos,(int) (value>>>32));
+		putInt(pos+4,(int) value);
+	}
+
+	/**
+	 * @param pos where a string was put by {@link #putString(long, byte[])}
+	 * @return the string
+	 */
+	public String getString(long pos) {
+		int size=getInt(pos);
+		byte[] bytes=new byte[size];
+		long start=pos+4;
+		int offset=(int) (start&(segmentSize-1));
+		if(offset<=segmentSize-size) {
+			ByteBuffer segment=segments[(int) (start>>>segmentBits)].duplicate();
+			segment.position(offset);
+			segment.get(bytes);
+		} else {
+			for(int i=0;i<size;i++) bytes[i]=get(start+i);
+		}
+		return new String(bytes,StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Put a string as its length and then its UTF-8 bytes.
+	 * @param pos
+	 * @param utf8
+	 * @return the position after the string
+	 */
+	public long putString(long pos,byte[] utf8) {
+		putInt(pos,utf8.length);
+		long start=pos+4;
+		int offset=(int) (start&(segmentSize-1));
+		if(offset<=segmentSize-utf8.length) {
+			ByteBuffer segment=segments[(int) (start>>>segmentBits)].duplicate();
+			segment.position(offset);
+			segment.put(utf8);
+		} else {
+			for(int i=0;i<utf8.length;i++) put(start+i,utf8[i]);
+		}
+		return start+utf8.length;
+	}
+
+	/**
+	 * Write changes to the disk.
+	 */
+	public void force() {
+		for(MappedByteBuffer segment : segments) segment.force();
+	}
+}